@@ -1,6 +1,8 @@
 package com.securephone.client;
 
 import javax.swing.*;
+import java.util.List;
+import com.securephone.client.models.Contact;
 import com.securephone.client.ui.frames.MainFrame;
 import com.securephone.client.ui.components.NotificationToast;
 import com.securephone.client.network.ConnectionManager;
@@ -98,10 +100,27 @@ public class SecurePhoneApp {
         });
         
         // Contact listener
-        connectionManager.setContactListener(contacts -> {
-            SwingUtilities.invokeLater(() -> {
-                mainFrame.getAppFrame().displayContacts(contacts);
-            });
+        connectionManager.setContactListener(new ConnectionManager.ContactListener() {
+            @Override
+            public void onContactList(List<Contact> contacts) {
+                SwingUtilities.invokeLater(() -> {
+                    mainFrame.getAppFrame().displayContacts(contacts);
+                });
+            }
+            
+            @Override
+            public void onContactChanged(Contact contact) {
+                SwingUtilities.invokeLater(() -> {
+                    mainFrame.getAppFrame().updateContact(contact);
+                });
+            }
+            
+            @Override
+            public void onContactRemoved(Contact contact) {
+                SwingUtilities.invokeLater(() -> {
+                    mainFrame.getAppFrame().removeContact(contact);
+                });
+            }
         });
         
         // Notification listener
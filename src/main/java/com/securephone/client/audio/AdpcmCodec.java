@@ -0,0 +1,317 @@
+package com.securephone.client.audio;
+
+import java.util.Arrays;
+
+/**
+ * Pure-Java fallback used when libopus is not available.
+ *
+ * Each frame is decimated to the lowest rate at which the whole packet,
+ * FEC copy included, fits the bitrate, and coded as 4-bit IMA ADPCM; a
+ * bitrate too low to carry the FEC copy at all goes without it. Packets carry their own predictor state so
+ * they decode independently. With FEC the previous frame is appended at
+ * half the rate, and with DTX silent frames shrink to a single byte.
+ *
+ * Packet: flags(1) [predictor(2) index(1) nibbles...] [fecDecimation(1) predictor(2) index(1) nibbles...]
+ */
+class AdpcmCodec implements OpusCodec.Engine {
+
+	private static final int FLAG_FEC = 0x10;
+	private static final int FLAG_DTX = 0x20;
+	private static final int DECIMATION_MASK = 0x0F;
+	private static final int BLOCK_HEADER_BYTES = 3;
+	// the engine id OpusCodec puts in front of every packet
+	private static final int ENGINE_BYTES = 1;
+	private static final int MAX_DECIMATION = 12;
+	private static final int[] DECIMATIONS = {1, 2, 3, 4, 6, 8, 12};
+	private static final long DTX_MEAN_SQUARE = 1000;
+
+	private static final int[] INDEX_TABLE = {
+		-1, -1, -1, -1, 2, 4, 6, 8,
+		-1, -1, -1, -1, 2, 4, 6, 8
+	};
+
+	private static final int[] STEP_TABLE = {
+		7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+		50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+		253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+		1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+		3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+		12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+	};
+
+	private final int decimation;
+	private final int fecDecimation;
+	private final boolean fec;
+	private final boolean dtx;
+
+	private final short[] previousFrame;
+	private boolean hasPrevious;
+	private int primaryIndex;
+	private int fecIndex;
+	private final int[] encodeScratch;
+	private final int[] decodeScratch;
+
+	private final short[] lastDecoded;
+	private int lastDecodedSamples;
+	private int concealedInRow;
+
+	AdpcmCodec(int sampleRate, int bitrate, int frameSamples, boolean fec, boolean dtx) {
+		int chosen = fec ? chooseDecimation(sampleRate, bitrate, frameSamples, true) : 0;
+		// rather than overshoot the bitrate, drop FEC where it cannot fit
+		this.fec = chosen != 0;
+		if (chosen == 0) {
+			chosen = chooseDecimation(sampleRate, bitrate, frameSamples, false);
+		}
+		this.decimation = chosen != 0 ? chosen : MAX_DECIMATION;
+		this.fecDecimation = fecDecimation(decimation, frameSamples);
+		this.dtx = dtx;
+		this.previousFrame = new short[frameSamples];
+		this.encodeScratch = new int[frameSamples];
+		this.decodeScratch = new int[frameSamples];
+		this.lastDecoded = new short[frameSamples];
+	}
+
+	/** The lowest decimation whose packets fit the bitrate, 0 if none does. */
+	static int chooseDecimation(int sampleRate, int bitrate, int frameSamples, boolean fec) {
+		int framesPerSecond = Math.max(1, sampleRate / frameSamples);
+		for (int candidate : DECIMATIONS) {
+			if (frameSamples % candidate != 0) {
+				continue;
+			}
+			// steady state: every packet after the first carries the FEC copy
+			int bytes = ENGINE_BYTES + 1 + blockBytes(frameSamples, candidate);
+			if (fec) {
+				bytes += 1 + blockBytes(frameSamples, fecDecimation(candidate, frameSamples));
+			}
+			if (bytes * 8 * framesPerSecond <= bitrate) {
+				return candidate;
+			}
+		}
+		return 0;
+	}
+
+	private static int fecDecimation(int decimation, int frameSamples) {
+		int half = Math.min(decimation * 2, MAX_DECIMATION);
+		return frameSamples % half == 0 ? half : decimation;
+	}
+
+	private static int blockBytes(int frameSamples, int decimation) {
+		return BLOCK_HEADER_BYTES + (frameSamples / decimation + 1) / 2;
+	}
+
+	static int maxPacketBytes(int frameSamples) {
+		return 1 + 2 * (1 + BLOCK_HEADER_BYTES + (frameSamples + 1) / 2);
+	}
+
+	int getDecimation() {
+		return decimation;
+	}
+
+	@Override
+	public int id() {
+		return OpusCodec.ENGINE_ADPCM;
+	}
+
+	@Override
+	public int encode(short[] pcm, int frameSamples, byte[] out, int offset, int maxBytes) {
+		int pos = offset;
+		if (dtx && isSilent(pcm, frameSamples)) {
+			out[pos++] = (byte) (FLAG_DTX | decimation);
+			hasPrevious = false;
+			return pos - offset;
+		}
+
+		boolean withFec = fec && hasPrevious;
+		out[pos++] = (byte) ((withFec ? FLAG_FEC : 0) | decimation);
+		pos = writeBlock(pcm, frameSamples, decimation, true, out, pos);
+		if (withFec) {
+			out[pos++] = (byte) fecDecimation;
+			pos = writeBlock(previousFrame, frameSamples, fecDecimation, false, out, pos);
+		}
+
+		System.arraycopy(pcm, 0, previousFrame, 0, frameSamples);
+		hasPrevious = true;
+		return pos - offset;
+	}
+
+	@Override
+	public int decode(byte[] data, int offset, int length, short[] pcm, int frameSamples, boolean fecRequested) {
+		if (data == null || length <= 0) {
+			return conceal(pcm, frameSamples);
+		}
+		int flags = data[offset] & 0xFF;
+		int blockDecimation = flags & DECIMATION_MASK;
+		if (blockDecimation == 0 || frameSamples % blockDecimation != 0) {
+			return 0;
+		}
+		if ((flags & FLAG_DTX) != 0) {
+			if (fecRequested) {
+				return 0;
+			}
+			Arrays.fill(pcm, 0, frameSamples, (short) 0);
+			remember(pcm, frameSamples);
+			return frameSamples;
+		}
+
+		int pos = offset + 1;
+		int end = offset + length;
+		if (fecRequested) {
+			if ((flags & FLAG_FEC) == 0) {
+				return 0;
+			}
+			pos += BLOCK_HEADER_BYTES + (frameSamples / blockDecimation + 1) / 2;
+			if (pos >= end) {
+				return 0;
+			}
+			blockDecimation = data[pos++] & DECIMATION_MASK;
+			if (blockDecimation == 0 || frameSamples % blockDecimation != 0) {
+				return 0;
+			}
+		}
+		if (!readBlock(data, pos, end, frameSamples, blockDecimation, pcm)) {
+			return 0;
+		}
+		remember(pcm, frameSamples);
+		return frameSamples;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private int conceal(short[] pcm, int frameSamples) {
+		int samples = Math.min(lastDecodedSamples, frameSamples);
+		if (samples == 0) {
+			Arrays.fill(pcm, 0, frameSamples, (short) 0);
+			return frameSamples;
+		}
+		concealedInRow++;
+		int shift = Math.min(concealedInRow, 15);
+		for (int i = 0; i < samples; i++) {
+			pcm[i] = (short) (lastDecoded[i] >> shift);
+		}
+		Arrays.fill(pcm, samples, frameSamples, (short) 0);
+		return frameSamples;
+	}
+
+	private void remember(short[] pcm, int frameSamples) {
+		System.arraycopy(pcm, 0, lastDecoded, 0, frameSamples);
+		lastDecodedSamples = frameSamples;
+		concealedInRow = 0;
+	}
+
+	private boolean isSilent(short[] pcm, int frameSamples) {
+		long sum = 0;
+		for (int i = 0; i < frameSamples; i++) {
+			sum += pcm[i] * pcm[i];
+		}
+		return sum / Math.max(1, frameSamples) < DTX_MEAN_SQUARE;
+	}
+
+	private int writeBlock(short[] pcm, int frameSamples, int blockDecimation, boolean primary,
+						   byte[] out, int pos) {
+		int count = frameSamples / blockDecimation;
+		for (int i = 0; i < count; i++) {
+			int sum = 0;
+			int base = i * blockDecimation;
+			for (int j = 0; j < blockDecimation; j++) {
+				sum += pcm[base + j];
+			}
+			encodeScratch[i] = sum / blockDecimation;
+		}
+
+		int predictor = encodeScratch[0];
+		int index = primary ? primaryIndex : fecIndex;
+		out[pos++] = (byte) (predictor >> 8);
+		out[pos++] = (byte) predictor;
+		out[pos++] = (byte) index;
+
+		int packed = 0;
+		for (int i = 0; i < count; i++) {
+			int step = STEP_TABLE[index];
+			int diff = encodeScratch[i] - predictor;
+			int code = 0;
+			if (diff < 0) {
+				code = 8;
+				diff = -diff;
+			}
+			int delta = step >> 3;
+			if (diff >= step) {
+				code |= 4;
+				diff -= step;
+				delta += step;
+			}
+			step >>= 1;
+			if (diff >= step) {
+				code |= 2;
+				diff -= step;
+				delta += step;
+			}
+			step >>= 1;
+			if (diff >= step) {
+				code |= 1;
+				delta += step;
+			}
+			predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+			index = Math.max(0, Math.min(STEP_TABLE.length - 1, index + INDEX_TABLE[code]));
+
+			if ((i & 1) == 0) {
+				packed = code << 4;
+			} else {
+				out[pos++] = (byte) (packed | code);
+			}
+		}
+		if ((count & 1) != 0) {
+			out[pos++] = (byte) packed;
+		}
+
+		if (primary) {
+			primaryIndex = index;
+		} else {
+			fecIndex = index;
+		}
+		return pos;
+	}
+
+	private boolean readBlock(byte[] data, int pos, int end, int frameSamples, int blockDecimation, short[] pcm) {
+		int count = frameSamples / blockDecimation;
+		if (end - pos < BLOCK_HEADER_BYTES + (count + 1) / 2) {
+			return false;
+		}
+		int predictor = (short) (((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF));
+		int index = Math.max(0, Math.min(STEP_TABLE.length - 1, data[pos + 2] & 0xFF));
+		pos += BLOCK_HEADER_BYTES;
+
+		for (int i = 0; i < count; i++) {
+			int code = (i & 1) == 0 ? (data[pos] >> 4) & 0x0F : data[pos++] & 0x0F;
+			int step = STEP_TABLE[index];
+			int delta = step >> 3;
+			if ((code & 4) != 0) {
+				delta += step;
+			}
+			if ((code & 2) != 0) {
+				delta += step >> 1;
+			}
+			if ((code & 1) != 0) {
+				delta += step >> 2;
+			}
+			predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+			index = Math.max(0, Math.min(STEP_TABLE.length - 1, index + INDEX_TABLE[code]));
+			decodeScratch[i] = predictor;
+		}
+
+		for (int i = 0; i < count; i++) {
+			int current = decodeScratch[i];
+			int next = i + 1 < count ? decodeScratch[i + 1] : current;
+			int base = i * blockDecimation;
+			for (int j = 0; j < blockDecimation; j++) {
+				pcm[base + j] = (short) (current + (next - current) * j / blockDecimation);
+			}
+		}
+		return true;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+	}
+}
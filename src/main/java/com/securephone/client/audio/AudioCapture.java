@@ -7,6 +7,10 @@ import javax.sound.sampled.TargetDataLine;
 
 public class AudioCapture {
 
+	/**
+	 * Receives captured frames. The array is reused for the next frame and
+	 * must not be retained after the call returns.
+	 */
 	public interface AudioFrameListener {
 		void onAudioFrame(byte[] data, int length);
 	}
@@ -17,12 +21,13 @@ public class AudioCapture {
 	private static final boolean SIGNED = true;
 	private static final boolean LITTLE_ENDIAN = false;
 
-	private static final int FRAME_SAMPLES = 960;
+	private static final int DEFAULT_FRAME_SAMPLES = 960;
 
 	private TargetDataLine line;
 	private Thread captureThread;
 	private volatile boolean running;
 	private final AudioBuffer buffer;
+	private int frameSamples = DEFAULT_FRAME_SAMPLES;
 
 	public AudioCapture() {
 		this.buffer = null;
@@ -32,6 +37,10 @@ public class AudioCapture {
 		this.buffer = buffer;
 	}
 
+	public void setFrameSamples(int frameSamples) {
+		this.frameSamples = frameSamples;
+	}
+
 	public AudioFormat getFormat() {
 		return new AudioFormat(SAMPLE_RATE, SAMPLE_SIZE, CHANNELS, SIGNED, LITTLE_ENDIAN);
 	}
@@ -39,7 +48,9 @@ public class AudioCapture {
 	public void start() throws Exception {
 		start((data, length) -> {
 			if (buffer != null) {
-				buffer.push(data);
+				byte[] frame = new byte[length];
+				System.arraycopy(data, 0, frame, 0, length);
+				buffer.push(frame);
 			}
 		});
 	}
@@ -62,15 +73,13 @@ public class AudioCapture {
 	}
 
 	private void captureLoop(AudioFrameListener listener) {
-		int frameBytes = FRAME_SAMPLES * (SAMPLE_SIZE / 8) * CHANNELS;
+		int frameBytes = frameSamples * (SAMPLE_SIZE / 8) * CHANNELS;
 		byte[] buffer = new byte[frameBytes];
 
 		while (running) {
 			int read = line.read(buffer, 0, buffer.length);
 			if (read > 0 && listener != null) {
-				byte[] frame = new byte[read];
-				System.arraycopy(buffer, 0, frame, 0, read);
-				listener.onAudioFrame(frame, read);
+				listener.onAudioFrame(buffer, read);
 			}
 		}
 	}
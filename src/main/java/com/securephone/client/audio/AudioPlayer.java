@@ -10,9 +10,12 @@ public class AudioPlayer {
     private static final AudioFormat DEFAULT_FORMAT =
         new AudioFormat(48000f, 16, 1, true, false);
 
+    private static final int LINE_BUFFER_FRAMES = 3;
+
     private SourceDataLine line;
     private boolean started;
     private final AudioBuffer buffer;
+    private JitterBuffer jitterBuffer;
     private Thread playThread;
     private volatile boolean running;
 
@@ -43,6 +46,49 @@ public class AudioPlayer {
         started = true;
     }
 
+    /**
+     * Starts playout from a jitter buffer. The line is opened with a small
+     * buffer so that blocking writes pace playout at the real frame rate.
+     */
+    public void start(AudioFormat format, JitterBuffer jitterBuffer) throws Exception {
+        if (started) {
+            return;
+        }
+        int bytesPerMs = (int) (format.getFrameRate() * format.getFrameSize() / 1000);
+        int lineBuffer = bytesPerMs * jitterBuffer.getFrameMillis() * LINE_BUFFER_FRAMES;
+        DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+        line = (SourceDataLine) AudioSystem.getLine(info);
+        line.open(format, lineBuffer);
+        line.start();
+        started = true;
+        this.jitterBuffer = jitterBuffer;
+        startJitterLoop(bytesPerMs * jitterBuffer.getFrameMillis() * 2);
+    }
+
+    private void startJitterLoop(int maxFrameBytes) {
+        if (running) {
+            return;
+        }
+        running = true;
+        playThread = new Thread(() -> {
+            byte[] frame = new byte[maxFrameBytes];
+            long idleSleep = Math.max(1, jitterBuffer.getFrameMillis() / 2);
+            while (running) {
+                int length = jitterBuffer.poll(frame);
+                if (length > 0) {
+                    play(frame, length);
+                } else {
+                    try {
+                        Thread.sleep(idleSleep);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        }, "AudioPlayoutThread");
+        playThread.setDaemon(true);
+        playThread.start();
+    }
+
     private void startBufferLoop() {
         if (running) {
             return;
@@ -85,6 +131,7 @@ public class AudioPlayer {
             line.close();
             line = null;
         }
+        jitterBuffer = null;
         started = false;
     }
 
@@ -0,0 +1,410 @@
+package com.securephone.client.audio;
+
+/**
+ * Adaptive jitter buffer for received audio frames.
+ *
+ * Frames are stored by sequence number in a fixed ring, played out in order,
+ * and the playout delay follows the measured inter-arrival jitter without
+ * going below the configured latency target. Missing frames are concealed
+ * by repeating the last frame with a decaying gain (16-bit little-endian PCM).
+ *
+ * With a {@link FrameDecoder} the buffer holds encoded packets instead and
+ * decodes them at playout, so a frame lost in front of a buffered one is
+ * rebuilt from that packet's FEC, and otherwise concealed by the codec.
+ */
+public class JitterBuffer {
+
+	public interface FrameDecoder {
+		/** Decodes a packet to PCM and returns its length, 0 if it is unusable. */
+		int decode(byte[] packet, int length, byte[] pcm);
+
+		/** Recovers the frame preceding {@code next} from its FEC; 0 if it carries none. */
+		int decodeFec(byte[] next, int length, byte[] pcm);
+
+		/** Synthesizes a replacement for a lost frame. */
+		int conceal(byte[] pcm);
+	}
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final int HYSTERESIS_FRAMES = 2;
+	private static final int MAX_CONCEALED_FRAMES = 5;
+	private static final int ADAPT_INTERVAL_FRAMES = 10;
+	private static final int JITTER_MULTIPLIER = 4;
+
+	private final int frameMillis;
+	private final int capacity;
+	private final int minFrames;
+	private final int maxFrames;
+	private final byte[][] slots;
+	private final int[] slotSequence;
+	private final int[] slotLength;
+	private final boolean[] slotFilled;
+
+	private int targetDelayMs;
+	private int targetFrames;
+	private int count;
+	private int nextSequence;
+	private boolean playing;
+	private boolean started;
+	private int highestSequence;
+
+	private byte[] lastFrame = new byte[0];
+	private int lastLength;
+	private int consecutiveConcealed;
+	private int framesSinceAdapt;
+
+	private double jitterMs;
+	private long lastArrivalNanos;
+	private long lastTimestamp;
+	private boolean hasTransit;
+
+	private long receivedFrames;
+	private long playedFrames;
+	private long lateFrames;
+	private long concealedFrames;
+	private long recoveredFrames;
+	private long heldFrames;
+	private long droppedFrames;
+	private FrameDecoder decoder;
+
+	public JitterBuffer(int frameMillis, int targetDelayMs) {
+		this(frameMillis, targetDelayMs, DEFAULT_CAPACITY);
+	}
+
+	public JitterBuffer(int frameMillis, int targetDelayMs, int capacity) {
+		if (frameMillis <= 0 || capacity < 4) {
+			throw new IllegalArgumentException("Parametres jitter buffer invalides");
+		}
+		this.frameMillis = frameMillis;
+		this.capacity = capacity;
+		this.minFrames = 2;
+		this.maxFrames = capacity - HYSTERESIS_FRAMES - 1;
+		this.slots = new byte[capacity][];
+		this.slotSequence = new int[capacity];
+		this.slotLength = new int[capacity];
+		this.slotFilled = new boolean[capacity];
+		setTargetDelayMs(targetDelayMs);
+	}
+
+	/** Set before the first put(); null stores and plays PCM as is. */
+	public synchronized void setDecoder(FrameDecoder decoder) {
+		this.decoder = decoder;
+	}
+
+	public synchronized void setTargetDelayMs(int targetDelayMs) {
+		this.targetDelayMs = Math.max(frameMillis, targetDelayMs);
+		updateTargetFrames();
+	}
+
+	/**
+	 * Inserts a received frame. Returns false if the frame was dropped
+	 * because it arrived after its playout time, is a duplicate or does
+	 * not fit in the buffer.
+	 */
+	public synchronized boolean put(int sequenceNumber, long timestamp, byte[] data, int length) {
+		if (data == null || length <= 0) {
+			return false;
+		}
+		receivedFrames++;
+		updateJitter(timestamp);
+
+		if (!started) {
+			started = true;
+			nextSequence = sequenceNumber;
+			highestSequence = sequenceNumber;
+		} else if (Math.abs(sequenceNumber - highestSequence) > capacity * 4) {
+			// new stream or sender restart: start over
+			reset();
+			started = true;
+			nextSequence = sequenceNumber;
+			highestSequence = sequenceNumber;
+		}
+
+		if (playing && sequenceNumber - nextSequence < 0) {
+			lateFrames++;
+			return false;
+		}
+		if (!playing && sequenceNumber - nextSequence < 0) {
+			// reordered ahead of the first frame before playout started
+			if (highestSequence - sequenceNumber >= capacity) {
+				lateFrames++;
+				return false;
+			}
+			nextSequence = sequenceNumber;
+		}
+		if (sequenceNumber - nextSequence >= capacity) {
+			droppedFrames++;
+			return false;
+		}
+
+		int index = index(sequenceNumber);
+		if (slotFilled[index]) {
+			if (slotSequence[index] == sequenceNumber) {
+				return false;
+			}
+			slotFilled[index] = false;
+			count--;
+			droppedFrames++;
+		}
+
+		if (slots[index] == null || slots[index].length < length) {
+			slots[index] = new byte[length];
+		}
+		System.arraycopy(data, 0, slots[index], 0, length);
+		slotSequence[index] = sequenceNumber;
+		slotLength[index] = length;
+		slotFilled[index] = true;
+		count++;
+		if (sequenceNumber - highestSequence > 0) {
+			highestSequence = sequenceNumber;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the next frame to play into {@code out} and returns its length,
+	 * or 0 while the buffer is (re)filling.
+	 */
+	public synchronized int poll(byte[] out) {
+		if (!playing) {
+			if (count == 0 || count < targetFrames) {
+				return 0;
+			}
+			playing = true;
+			nextSequence = lowestBufferedSequence();
+			consecutiveConcealed = 0;
+			framesSinceAdapt = 0;
+		}
+
+		framesSinceAdapt++;
+		if (framesSinceAdapt >= ADAPT_INTERVAL_FRAMES) {
+			if (count > targetFrames + HYSTERESIS_FRAMES && isBuffered(nextSequence)) {
+				// shrink: skip one frame to move back toward the target delay
+				discard(nextSequence);
+				nextSequence++;
+				droppedFrames++;
+				framesSinceAdapt = 0;
+			} else if (count > 0 && count < targetFrames - HYSTERESIS_FRAMES) {
+				// grow: hold the playout point for one frame
+				framesSinceAdapt = 0;
+				heldFrames++;
+				return synthesize(out);
+			}
+		}
+
+		if (isBuffered(nextSequence)) {
+			int index = index(nextSequence);
+			int length;
+			if (decoder != null) {
+				length = decoder.decode(slots[index], slotLength[index], out);
+			} else {
+				length = Math.min(slotLength[index], out.length);
+				System.arraycopy(slots[index], 0, out, 0, length);
+				rememberLastFrame(out, length);
+			}
+			discard(nextSequence);
+			nextSequence++;
+			if (length == 0) {
+				return conceal(out);
+			}
+			consecutiveConcealed = 0;
+			playedFrames++;
+			return length;
+		}
+
+		if (count == 0) {
+			// starved: the slot is played out as concealment, so move past it;
+			// playing it late, or from the next packet's FEC, would add a frame
+			if (consecutiveConcealed >= MAX_CONCEALED_FRAMES) {
+				playing = false;
+				return 0;
+			}
+			nextSequence++;
+			return conceal(out);
+		}
+
+		// gap with later frames already buffered: the frame is lost
+		nextSequence++;
+		if (decoder != null && isBuffered(nextSequence)) {
+			int index = index(nextSequence);
+			int length = decoder.decodeFec(slots[index], slotLength[index], out);
+			if (length > 0) {
+				consecutiveConcealed = 0;
+				recoveredFrames++;
+				return length;
+			}
+		}
+		return conceal(out);
+	}
+
+	public synchronized void clear() {
+		reset();
+		jitterMs = 0;
+		hasTransit = false;
+		updateTargetFrames();
+	}
+
+	public synchronized int getDepth() {
+		return count;
+	}
+
+	public synchronized int getDepthMs() {
+		return count * frameMillis;
+	}
+
+	public synchronized int getPlayoutDelayMs() {
+		return targetFrames * frameMillis;
+	}
+
+	public synchronized double getJitterMs() {
+		return jitterMs;
+	}
+
+	public synchronized long getReceivedFrames() {
+		return receivedFrames;
+	}
+
+	public synchronized long getPlayedFrames() {
+		return playedFrames;
+	}
+
+	public synchronized long getLateFrames() {
+		return lateFrames;
+	}
+
+	public synchronized long getConcealedFrames() {
+		return concealedFrames;
+	}
+
+	/** Lost frames rebuilt from the next packet's FEC. */
+	public synchronized long getRecoveredFrames() {
+		return recoveredFrames;
+	}
+
+	/** Frames synthesized to grow the playout delay; not losses. */
+	public synchronized long getHeldFrames() {
+		return heldFrames;
+	}
+
+	public synchronized long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	public synchronized double getLateLossRate() {
+		return receivedFrames == 0 ? 0 : (double) lateFrames / receivedFrames;
+	}
+
+	public synchronized double getConcealmentRate() {
+		long total = playedFrames + recoveredFrames + concealedFrames;
+		return total == 0 ? 0 : (double) concealedFrames / total;
+	}
+
+	public synchronized double getRecoveryRate() {
+		long total = playedFrames + recoveredFrames + concealedFrames;
+		return total == 0 ? 0 : (double) recoveredFrames / total;
+	}
+
+	public int getFrameMillis() {
+		return frameMillis;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("JitterBuffer{depth=%d, delay=%dms, jitter=%.1fms, late=%d, recovered=%d, concealed=%d, held=%d, dropped=%d}",
+			count, targetFrames * frameMillis, jitterMs, lateFrames, recoveredFrames, concealedFrames, heldFrames, droppedFrames);
+	}
+
+	private void updateJitter(long timestamp) {
+		long now = System.nanoTime();
+		if (hasTransit) {
+			double arrivalDelta = (now - lastArrivalNanos) / 1_000_000.0;
+			double sendDelta = timestamp - lastTimestamp;
+			double d = Math.abs(arrivalDelta - sendDelta);
+			jitterMs += (d - jitterMs) / 16.0;
+		}
+		hasTransit = true;
+		lastArrivalNanos = now;
+		lastTimestamp = timestamp;
+		updateTargetFrames();
+	}
+
+	private void updateTargetFrames() {
+		int neededMs = (int) Math.ceil(jitterMs * JITTER_MULTIPLIER) + frameMillis;
+		int delayMs = Math.max(targetDelayMs, neededMs);
+		int frames = (delayMs + frameMillis - 1) / frameMillis;
+		targetFrames = Math.max(minFrames, Math.min(maxFrames, frames));
+	}
+
+	private int conceal(byte[] out) {
+		consecutiveConcealed++;
+		concealedFrames++;
+		return synthesize(out);
+	}
+
+	// codec concealment, or the last frame attenuated by the current run of losses
+	private int synthesize(byte[] out) {
+		if (decoder != null) {
+			return decoder.conceal(out);
+		}
+		int length = Math.min(lastLength, out.length);
+		if (length == 0) {
+			return 0;
+		}
+		int shift = Math.min(consecutiveConcealed, 15);
+		for (int i = 0; i + 1 < length; i += 2) {
+			int sample = (short) ((lastFrame[i] & 0xFF) | (lastFrame[i + 1] << 8));
+			sample >>= shift;
+			out[i] = (byte) sample;
+			out[i + 1] = (byte) (sample >> 8);
+		}
+		return length;
+	}
+
+	private void rememberLastFrame(byte[] frame, int length) {
+		if (lastFrame.length < length) {
+			lastFrame = new byte[length];
+		}
+		System.arraycopy(frame, 0, lastFrame, 0, length);
+		lastLength = length;
+	}
+
+	private boolean isBuffered(int sequenceNumber) {
+		int index = index(sequenceNumber);
+		return slotFilled[index] && slotSequence[index] == sequenceNumber;
+	}
+
+	private void discard(int sequenceNumber) {
+		int index = index(sequenceNumber);
+		if (slotFilled[index] && slotSequence[index] == sequenceNumber) {
+			slotFilled[index] = false;
+			count--;
+		}
+	}
+
+	private int lowestBufferedSequence() {
+		int lowest = highestSequence;
+		for (int i = 0; i < capacity; i++) {
+			if (slotFilled[i] && slotSequence[i] - lowest < 0) {
+				lowest = slotSequence[i];
+			}
+		}
+		return lowest;
+	}
+
+	private void reset() {
+		for (int i = 0; i < capacity; i++) {
+			slotFilled[i] = false;
+		}
+		count = 0;
+		playing = false;
+		started = false;
+		lastLength = 0;
+		consecutiveConcealed = 0;
+		framesSinceAdapt = 0;
+	}
+
+	private int index(int sequenceNumber) {
+		return Math.floorMod(sequenceNumber, capacity);
+	}
+}
@@ -1,22 +1,290 @@
 package com.securephone.client.audio;
 
+import com.securephone.client.utils.Logger;
+
 /**
- * Placeholder Opus codec (pass-through).
- * Replace with a real Opus binding for production-quality audio.
+ * Opus voice codec (48 kHz, 16-bit little-endian PCM).
+ *
+ * Uses libopus through JNA when it can be loaded and falls back to the
+ * pure-Java {@link AdpcmCodec} otherwise. Every payload starts with one
+ * engine byte. A peer without libopus cannot decode Opus, so the engine
+ * is agreed per call: each side advertises {@link #getEngineName()} and
+ * {@link #negotiate} only encodes Opus when both have it.
+ * Encoding and decoding keep separate state and may run on different
+ * threads; each direction is single-threaded.
  */
 public class OpusCodec {
 
+	interface Engine {
+		int id();
+
+		int encode(short[] pcm, int frameSamples, byte[] out, int offset, int maxBytes);
+
+		/**
+		 * Decodes one frame, recovers the previous frame from in-band FEC when
+		 * {@code fec} is set, or conceals a lost frame when {@code data} is null.
+		 * Returns the number of samples written, 0 if nothing could be decoded.
+		 */
+		int decode(byte[] data, int offset, int length, short[] pcm, int frameSamples, boolean fec);
+
+		void close();
+	}
+
+	static final int ENGINE_OPUS = 1;
+	static final int ENGINE_ADPCM = 2;
+
+	public static final String ENGINE_NAME_OPUS = "opus";
+	public static final String ENGINE_NAME_ADPCM = "adpcm";
+
+	public static final int SAMPLE_RATE = 48000;
+	public static final int DEFAULT_BITRATE = 64000;
+	public static final int DEFAULT_FRAME_SAMPLES = 960;
+
+	private static final int DEFAULT_PACKET_LOSS_PERCENT = 10;
+	private static final int MAX_OPUS_PACKET_BYTES = 1275;
+	private static final int[] VALID_FRAME_SAMPLES = {120, 240, 480, 960, 1920, 2880};
+
+	private final int bitrate;
+	private final int frameSamples;
+	private final boolean fecEnabled;
+	private final boolean dtxEnabled;
+
+	private volatile Engine encoder;
+	private OpusNative nativeEngine;
+	private AdpcmCodec adpcmEngine;
+	private Engine lastDecoder;
+	private boolean unsupportedLogged;
+
+	private final short[] encodePcm;
+	private final short[] decodePcm;
+
+	public OpusCodec() {
+		this(DEFAULT_BITRATE, DEFAULT_FRAME_SAMPLES);
+	}
+
+	public OpusCodec(int bitrate, int frameSamples) {
+		this(bitrate, frameSamples, true, false);
+	}
+
+	public OpusCodec(int bitrate, int frameSamples, boolean fecEnabled, boolean dtxEnabled) {
+		this(bitrate, frameSamples, fecEnabled, dtxEnabled, true);
+	}
+
+	OpusCodec(int bitrate, int frameSamples, boolean fecEnabled, boolean dtxEnabled, boolean allowNative) {
+		if (!isValidFrameSize(frameSamples)) {
+			throw new IllegalArgumentException("Taille de trame Opus invalide: " + frameSamples);
+		}
+		this.bitrate = bitrate;
+		this.frameSamples = frameSamples;
+		this.fecEnabled = fecEnabled;
+		this.dtxEnabled = dtxEnabled;
+		this.encodePcm = new short[frameSamples];
+		this.decodePcm = new short[frameSamples];
+
+		if (allowNative && OpusNative.isAvailable()) {
+			nativeEngine = new OpusNative(SAMPLE_RATE, 1, bitrate, fecEnabled, DEFAULT_PACKET_LOSS_PERCENT, dtxEnabled);
+			encoder = nativeEngine;
+		} else {
+			encoder = adpcm();
+		}
+	}
+
+	public static boolean isValidFrameSize(int frameSamples) {
+		for (int valid : VALID_FRAME_SAMPLES) {
+			if (valid == frameSamples) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public byte[] encode(byte[] pcm) {
-		if (pcm == null) {
+		if (pcm == null || pcm.length == 0) {
 			return new byte[0];
 		}
-		return pcm;
+		byte[] out = new byte[getMaxPacketBytes()];
+		int length = encode(pcm, pcm.length, out);
+		byte[] result = new byte[length];
+		System.arraycopy(out, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Encodes one frame of PCM into a caller-provided buffer and returns the
+	 * encoded length. Shorter input is padded with silence.
+	 */
+	public int encode(byte[] pcm, int length, byte[] encoded) {
+		if (pcm == null || length <= 0) {
+			return 0;
+		}
+		int samples = Math.min(length / 2, frameSamples);
+		for (int i = 0; i < samples; i++) {
+			encodePcm[i] = (short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8));
+		}
+		for (int i = samples; i < frameSamples; i++) {
+			encodePcm[i] = 0;
+		}
+		encoded[0] = (byte) encoder.id();
+		int written = encoder.encode(encodePcm, frameSamples, encoded, 1, encoded.length - 1);
+		return written == 0 ? 0 : written + 1;
 	}
 
 	public byte[] decode(byte[] encoded) {
-		if (encoded == null) {
+		if (encoded == null || encoded.length == 0) {
 			return new byte[0];
 		}
-		return encoded;
+		byte[] pcm = new byte[getFrameBytes()];
+		int length = decode(encoded, 0, encoded.length, pcm);
+		if (length == pcm.length) {
+			return pcm;
+		}
+		byte[] result = new byte[length];
+		System.arraycopy(pcm, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Decodes into a caller-provided buffer and returns the PCM length.
+	 */
+	public int decode(byte[] encoded, int offset, int length, byte[] pcm) {
+		int samples = decode(encoded, offset, length, decodePcm);
+		return toBytes(decodePcm, samples, pcm);
+	}
+
+	/**
+	 * Decodes into a caller-provided sample buffer and returns the number
+	 * of samples written.
+	 */
+	public int decode(byte[] encoded, int offset, int length, short[] pcm) {
+		return decode(encoded, offset, length, pcm, false);
+	}
+
+	/**
+	 * Recovers the frame preceding {@code encoded} from its in-band FEC.
+	 * Returns 0 if the packet carries no FEC data.
+	 */
+	public int decodeFec(byte[] encoded, int offset, int length, byte[] pcm) {
+		int samples = decode(encoded, offset, length, decodePcm, true);
+		return toBytes(decodePcm, samples, pcm);
+	}
+
+	/**
+	 * Synthesizes a replacement for a lost frame from the decoder state.
+	 */
+	public int conceal(byte[] pcm) {
+		Engine engine = lastDecoder != null ? lastDecoder : encoder;
+		int samples = engine.decode(null, 0, 0, decodePcm, frameSamples, false);
+		return toBytes(decodePcm, samples, pcm);
+	}
+
+	/**
+	 * True for packets that only signal silence under DTX; they do not
+	 * need to be sent.
+	 */
+	public boolean isSilencePacket(byte[] encoded, int length) {
+		if (!dtxEnabled || length <= 0) {
+			return false;
+		}
+		return encoded[0] == ENGINE_OPUS ? length <= 3 : length <= 2;
+	}
+
+	public boolean isNative() {
+		return nativeEngine != null;
+	}
+
+	/** Best engine this side can decode, to advertise in call signaling. */
+	public String getEngineName() {
+		return nativeEngine != null ? ENGINE_NAME_OPUS : ENGINE_NAME_ADPCM;
+	}
+
+	/** Engine actually used to encode, once negotiated. */
+	public String getEncoderName() {
+		return encoder.id() == ENGINE_OPUS ? ENGINE_NAME_OPUS : ENGINE_NAME_ADPCM;
+	}
+
+	/**
+	 * Picks the encoder for a call from the peer's advertised engine:
+	 * Opus only when both sides have libopus. Unknown or missing means
+	 * ADPCM, which every peer can decode.
+	 */
+	public void negotiate(String peerEngine) {
+		encoder = nativeEngine != null && ENGINE_NAME_OPUS.equals(peerEngine) ? nativeEngine : adpcm();
+	}
+
+	public int getBitrate() {
+		return bitrate;
+	}
+
+	public int getFrameSamples() {
+		return frameSamples;
+	}
+
+	public int getFrameBytes() {
+		return frameSamples * 2;
+	}
+
+	public int getFrameMillis() {
+		return frameSamples * 1000 / SAMPLE_RATE;
+	}
+
+	public boolean isFecEnabled() {
+		return fecEnabled;
+	}
+
+	public boolean isDtxEnabled() {
+		return dtxEnabled;
+	}
+
+	public int getMaxPacketBytes() {
+		return 1 + Math.max(MAX_OPUS_PACKET_BYTES, AdpcmCodec.maxPacketBytes(frameSamples));
+	}
+
+	public void close() {
+		if (nativeEngine != null) {
+			nativeEngine.close();
+			nativeEngine = null;
+		}
+	}
+
+	private int decode(byte[] encoded, int offset, int length, short[] pcm, boolean fec) {
+		if (encoded == null || length <= 1) {
+			return 0;
+		}
+		Engine engine = engineFor(encoded[offset]);
+		if (engine == null) {
+			return 0;
+		}
+		lastDecoder = engine;
+		return engine.decode(encoded, offset + 1, length - 1, pcm, frameSamples, fec);
+	}
+
+	private Engine engineFor(byte id) {
+		if (id == ENGINE_ADPCM) {
+			return adpcm();
+		}
+		if (id == ENGINE_OPUS) {
+			if (nativeEngine == null && !unsupportedLogged) {
+				unsupportedLogged = true;
+				Logger.warn("Flux Opus recu mais libopus indisponible");
+			}
+			return nativeEngine;
+		}
+		return null;
+	}
+
+	private AdpcmCodec adpcm() {
+		if (adpcmEngine == null) {
+			adpcmEngine = new AdpcmCodec(SAMPLE_RATE, bitrate, frameSamples, fecEnabled, dtxEnabled);
+		}
+		return adpcmEngine;
+	}
+
+	private static int toBytes(short[] samples, int count, byte[] pcm) {
+		int length = Math.min(count, pcm.length / 2);
+		for (int i = 0; i < length; i++) {
+			pcm[2 * i] = (byte) samples[i];
+			pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+		}
+		return length * 2;
 	}
 }
@@ -0,0 +1,114 @@
+package com.securephone.client.audio;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+
+/**
+ * libopus binding loaded through JNA.
+ *
+ * The library is looked up on the system path and in the classpath under
+ * the JNA platform prefix (e.g. linux-x86-64/libopus.so). This build does
+ * not bundle one; without a system libopus the ADPCM fallback is used.
+ */
+class OpusNative implements OpusCodec.Engine {
+
+	interface OpusLibrary extends Library {
+		Pointer opus_encoder_create(int fs, int channels, int application, IntByReference error);
+		int opus_encode(Pointer encoder, short[] pcm, int frameSize, byte[] data, int maxDataBytes);
+		int opus_encoder_ctl(Pointer encoder, int request, Object... args);
+		void opus_encoder_destroy(Pointer encoder);
+
+		Pointer opus_decoder_create(int fs, int channels, IntByReference error);
+		int opus_decode(Pointer decoder, byte[] data, int length, short[] pcm, int frameSize, int decodeFec);
+		void opus_decoder_destroy(Pointer decoder);
+	}
+
+	private static final int OPUS_APPLICATION_VOIP = 2048;
+	private static final int OPUS_SET_BITRATE_REQUEST = 4002;
+	private static final int OPUS_SET_INBAND_FEC_REQUEST = 4012;
+	private static final int OPUS_SET_PACKET_LOSS_PERC_REQUEST = 4014;
+	private static final int OPUS_SET_DTX_REQUEST = 4016;
+
+	private static OpusLibrary library;
+	private static boolean loadAttempted;
+
+	private final Pointer encoder;
+	private final Pointer decoder;
+	private byte[] encodeScratch = new byte[0];
+	private byte[] decodeScratch = new byte[0];
+
+	static synchronized boolean isAvailable() {
+		if (!loadAttempted) {
+			loadAttempted = true;
+			try {
+				library = Native.load("opus", OpusLibrary.class);
+			} catch (Throwable e) {
+				library = null;
+			}
+		}
+		return library != null;
+	}
+
+	OpusNative(int sampleRate, int channels, int bitrate, boolean fec, int packetLossPercent, boolean dtx) {
+		IntByReference error = new IntByReference();
+		encoder = library.opus_encoder_create(sampleRate, channels, OPUS_APPLICATION_VOIP, error);
+		if (encoder == null || error.getValue() != 0) {
+			throw new IllegalStateException("opus_encoder_create: " + error.getValue());
+		}
+		decoder = library.opus_decoder_create(sampleRate, channels, error);
+		if (decoder == null || error.getValue() != 0) {
+			library.opus_encoder_destroy(encoder);
+			throw new IllegalStateException("opus_decoder_create: " + error.getValue());
+		}
+		library.opus_encoder_ctl(encoder, OPUS_SET_BITRATE_REQUEST, bitrate);
+		library.opus_encoder_ctl(encoder, OPUS_SET_INBAND_FEC_REQUEST, fec ? 1 : 0);
+		library.opus_encoder_ctl(encoder, OPUS_SET_PACKET_LOSS_PERC_REQUEST, fec ? packetLossPercent : 0);
+		library.opus_encoder_ctl(encoder, OPUS_SET_DTX_REQUEST, dtx ? 1 : 0);
+	}
+
+	@Override
+	public int id() {
+		return OpusCodec.ENGINE_OPUS;
+	}
+
+	@Override
+	public int encode(short[] pcm, int frameSamples, byte[] out, int offset, int maxBytes) {
+		byte[] target = out;
+		if (offset != 0) {
+			if (encodeScratch.length < maxBytes) {
+				encodeScratch = new byte[maxBytes];
+			}
+			target = encodeScratch;
+		}
+		int written = library.opus_encode(encoder, pcm, frameSamples, target, maxBytes);
+		if (written < 0) {
+			return 0;
+		}
+		if (target != out) {
+			System.arraycopy(target, 0, out, offset, written);
+		}
+		return written;
+	}
+
+	@Override
+	public int decode(byte[] data, int offset, int length, short[] pcm, int frameSamples, boolean fec) {
+		byte[] packet = data;
+		if (data != null && offset != 0) {
+			if (decodeScratch.length < length) {
+				decodeScratch = new byte[length];
+			}
+			System.arraycopy(data, offset, decodeScratch, 0, length);
+			packet = decodeScratch;
+		}
+		int decoded = library.opus_decode(decoder, packet, data == null ? 0 : length, pcm, frameSamples, fec ? 1 : 0);
+		return Math.max(0, decoded);
+	}
+
+	@Override
+	public void close() {
+		library.opus_encoder_destroy(encoder);
+		library.opus_decoder_destroy(decoder);
+	}
+}
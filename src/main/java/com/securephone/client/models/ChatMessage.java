@@ -13,6 +13,8 @@ public class ChatMessage {
     private String content;
     private long timestamp;
     private String token;
+    // position in the local message log, -1 if not stored
+    private long sequence = -1;
     
     // ========== CONSTRUCTEUR ==========
     public ChatMessage(String sender, String content, long timestamp, String token) {
@@ -44,6 +46,10 @@ public class ChatMessage {
         return token;
     }
     
+    public long getSequence() {
+        return sequence;
+    }
+    
     // ========== SETTERS ==========
     public void setSender(String sender) {
         this.sender = sender;
@@ -57,6 +63,10 @@ public class ChatMessage {
         this.token = token;
     }
     
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
     @Override
     public String toString() {
         return "[" + getTimestamp() + "] " + sender + ": " + content;
@@ -0,0 +1,254 @@
+package com.securephone.client.models;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ContactIndex - Index en mémoire des contacts pour la recherche
+ *
+ * Names are normalized (lower case, accents removed) and every n-gram of
+ * length 1 to 3 points to the contacts containing it, so a lookup reads
+ * the posting lists of the query instead of scanning every name. Longer
+ * queries intersect their trigrams and verify the few candidates left.
+ * When nothing contains the query, contacts sharing most of its trigrams
+ * are returned instead, which tolerates a typo.
+ *
+ * Updates are incremental: only a contact whose name changed is
+ * re-indexed. Not thread-safe; use it from the EDT.
+ */
+public class ContactIndex {
+
+    private static final int MAX_GRAM = 3;
+    private static final double FUZZY_MIN_OVERLAP = 0.5;
+
+    // key -> contact, in server order
+    private final Map<String, Contact> contacts = new LinkedHashMap<>();
+    private final Map<String, String> normalizedNames = new HashMap<>();
+    private final Map<String, Set<String>> postings = new HashMap<>();
+
+    /** The id when the server gave one, the name otherwise. */
+    public static String keyOf(Contact contact) {
+        String id = contact.getId();
+        return id != null && !id.isEmpty() ? id : contact.getName();
+    }
+
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}+", "").toLowerCase(Locale.ROOT).trim();
+    }
+
+    /** Adds the contact, or replaces the one with the same key. */
+    public void put(Contact contact) {
+        String key = keyOf(contact);
+        String name = normalize(contact.getName());
+        String previous = normalizedNames.get(key);
+        contacts.put(key, contact);
+        if (name.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            unindex(key, previous);
+        }
+        normalizedNames.put(key, name);
+        index(key, name);
+    }
+
+    public Contact remove(String key) {
+        Contact removed = contacts.remove(key);
+        String name = normalizedNames.remove(key);
+        if (name != null) {
+            unindex(key, name);
+        }
+        return removed;
+    }
+
+    public Contact get(String key) {
+        return contacts.get(key);
+    }
+
+    /** Status changes do not touch the index. Returns the contact, or null if unknown. */
+    public Contact updateStatus(String key, String status) {
+        Contact contact = contacts.get(key);
+        if (contact != null) {
+            contact.setStatus(status);
+        }
+        return contact;
+    }
+
+    /**
+     * Makes the index hold exactly these contacts, in this order, touching
+     * only the entries that were added, removed or renamed.
+     */
+    public void replaceAll(List<Contact> updated) {
+        Set<String> keep = new HashSet<>();
+        for (Contact contact : updated) {
+            keep.add(keyOf(contact));
+        }
+        for (String key : new ArrayList<>(contacts.keySet())) {
+            if (!keep.contains(key)) {
+                remove(key);
+            }
+        }
+        Map<String, Contact> ordered = new LinkedHashMap<>();
+        for (Contact contact : updated) {
+            put(contact);
+            ordered.put(keyOf(contact), contact);
+        }
+        contacts.clear();
+        contacts.putAll(ordered);
+    }
+
+    public void clear() {
+        contacts.clear();
+        normalizedNames.clear();
+        postings.clear();
+    }
+
+    public int size() {
+        return contacts.size();
+    }
+
+    public List<Contact> all() {
+        return new ArrayList<>(contacts.values());
+    }
+
+    /**
+     * Contacts whose name contains the query: names starting with it
+     * first, then names with a word starting with it, then the rest. Falls
+     * back to fuzzy matches when there is no such contact.
+     */
+    public List<Contact> search(String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return all();
+        }
+        List<String> matches = new ArrayList<>();
+        for (String key : candidates(q)) {
+            if (normalizedNames.get(key).contains(q)) {
+                matches.add(key);
+            }
+        }
+        if (matches.isEmpty()) {
+            return fuzzy(q);
+        }
+        List<Contact> prefix = new ArrayList<>();
+        List<Contact> wordPrefix = new ArrayList<>();
+        List<Contact> infix = new ArrayList<>();
+        // walk in server order so ties keep it
+        Set<String> matched = new HashSet<>(matches);
+        for (Map.Entry<String, Contact> entry : contacts.entrySet()) {
+            if (!matched.contains(entry.getKey())) {
+                continue;
+            }
+            String name = normalizedNames.get(entry.getKey());
+            if (name.startsWith(q)) {
+                prefix.add(entry.getValue());
+            } else if (name.contains(" " + q)) {
+                wordPrefix.add(entry.getValue());
+            } else {
+                infix.add(entry.getValue());
+            }
+        }
+        prefix.addAll(wordPrefix);
+        prefix.addAll(infix);
+        return prefix;
+    }
+
+    // keys that contain every gram of the query, smallest posting list first
+    private Set<String> candidates(String q) {
+        List<String> grams = q.length() <= MAX_GRAM ? Collections.singletonList(q) : trigrams(q);
+        List<Set<String>> lists = new ArrayList<>();
+        for (String gram : grams) {
+            Set<String> keys = postings.get(gram);
+            if (keys == null) {
+                return Collections.emptySet();
+            }
+            lists.add(keys);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        Set<String> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.retainAll(lists.get(i));
+        }
+        return result;
+    }
+
+    private List<Contact> fuzzy(String q) {
+        if (q.length() < MAX_GRAM) {
+            return new ArrayList<>();
+        }
+        List<String> grams = trigrams(q);
+        Map<String, Integer> overlap = new HashMap<>();
+        for (String gram : new HashSet<>(grams)) {
+            Set<String> keys = postings.get(gram);
+            if (keys != null) {
+                for (String key : keys) {
+                    overlap.merge(key, 1, Integer::sum);
+                }
+            }
+        }
+        int needed = (int) Math.ceil(new HashSet<>(grams).size() * FUZZY_MIN_OVERLAP);
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : overlap.entrySet()) {
+            if (entry.getValue() >= needed) {
+                keys.add(entry.getKey());
+            }
+        }
+        keys.sort((a, b) -> {
+            int byOverlap = Integer.compare(overlap.get(b), overlap.get(a));
+            return byOverlap != 0 ? byOverlap : normalizedNames.get(a).compareTo(normalizedNames.get(b));
+        });
+        List<Contact> result = new ArrayList<>();
+        for (String key : keys) {
+            result.add(contacts.get(key));
+        }
+        return result;
+    }
+
+    private void index(String key, String name) {
+        for (String gram : grams(name)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(key);
+        }
+    }
+
+    private void unindex(String key, String name) {
+        for (String gram : grams(name)) {
+            Set<String> keys = postings.get(gram);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    private static Set<String> grams(String name) {
+        Set<String> grams = new HashSet<>();
+        for (int n = 1; n <= MAX_GRAM; n++) {
+            for (int i = 0; i + n <= name.length(); i++) {
+                grams.add(name.substring(i, i + n));
+            }
+        }
+        return grams;
+    }
+
+    private static List<String> trigrams(String q) {
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + MAX_GRAM <= q.length(); i++) {
+            grams.add(q.substring(i, i + MAX_GRAM));
+        }
+        return grams;
+    }
+}
@@ -0,0 +1,198 @@
+package com.securephone.client.models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * ContactStore - Liste de contacts versionnée
+ *
+ * Holds the contact list at a server version (the sync cursor) and applies
+ * deltas to it. A delta built on a version newer than ours means we missed
+ * something, so it is refused and the caller asks for a catch-up from the
+ * cursor; a delta we already have is ignored. Status changes are not
+ * versioned and always apply.
+ *
+ * Listeners get one event per change, with copies of the contacts, called
+ * on the thread that applied the change.
+ */
+public class ContactStore {
+
+    public enum Result {
+        APPLIED,
+        STALE,
+        GAP
+    }
+
+    public enum Op {
+        UPSERT,
+        REMOVE,
+        STATUS
+    }
+
+    public static final class Change {
+        public final Op op;
+        public final Contact contact;
+
+        public Change(Op op, Contact contact) {
+            this.op = op;
+            this.contact = contact;
+        }
+    }
+
+    public interface Listener {
+        void onReset(List<Contact> contacts);
+        void onAdded(Contact contact);
+        void onRemoved(Contact contact);
+        void onChanged(Contact contact);
+    }
+
+    private final Map<String, Contact> contacts = new LinkedHashMap<>();
+    private final Map<String, String> keysByName = new HashMap<>();
+    private long version;
+    private Listener listener;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Server version of the list we hold; 0 before the first snapshot. */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int size() {
+        return contacts.size();
+    }
+
+    public synchronized Contact get(String key) {
+        Contact contact = contacts.get(key);
+        return contact != null ? copy(contact) : null;
+    }
+
+    public synchronized List<Contact> getContacts() {
+        List<Contact> result = new ArrayList<>();
+        for (Contact contact : contacts.values()) {
+            result.add(copy(contact));
+        }
+        return result;
+    }
+
+    /** Replaces everything, e.g. with a full CONTACT_LIST. */
+    public synchronized void applySnapshot(long snapshotVersion, List<Contact> snapshot) {
+        contacts.clear();
+        keysByName.clear();
+        for (Contact contact : snapshot) {
+            store(copy(contact));
+        }
+        version = snapshotVersion;
+        if (listener != null) {
+            listener.onReset(getContacts());
+        }
+    }
+
+    /** Applies the changes that take the list from fromVersion to toVersion. */
+    public synchronized Result applyDelta(long fromVersion, long toVersion, List<Change> changes) {
+        if (toVersion <= version) {
+            return Result.STALE;
+        }
+        if (fromVersion > version) {
+            return Result.GAP;
+        }
+        // upserts and removes are idempotent, so overlapping deltas are fine
+        for (Change change : changes) {
+            apply(change);
+        }
+        version = toVersion;
+        return Result.APPLIED;
+    }
+
+    /** Applies changes that carry no version, like presence; the cursor does not move. */
+    public synchronized void applyUnversioned(List<Change> changes) {
+        for (Change change : changes) {
+            apply(change);
+        }
+    }
+
+    /** Resolves a contact by id, falling back to its name. */
+    public synchronized String findKey(String id, String name) {
+        if (id != null && contacts.containsKey(id)) {
+            return id;
+        }
+        return name != null ? keysByName.get(name) : null;
+    }
+
+    public synchronized void clear() {
+        contacts.clear();
+        keysByName.clear();
+        version = 0;
+    }
+
+    private void apply(Change change) {
+        String key = findKey(change.contact.getId(), change.contact.getName());
+        Contact current = key != null ? contacts.get(key) : null;
+        switch (change.op) {
+            case UPSERT:
+                Contact updated = copy(change.contact);
+                if (current != null) {
+                    if (!key.equals(ContactIndex.keyOf(updated))) {
+                        remove(key);
+                    } else {
+                        keysByName.remove(current.getName(), key);
+                    }
+                    // same key keeps its position
+                    store(updated);
+                    fireChanged(updated);
+                } else {
+                    store(updated);
+                    if (listener != null) {
+                        listener.onAdded(copy(updated));
+                    }
+                }
+                break;
+            case REMOVE:
+                if (current != null) {
+                    remove(key);
+                    if (listener != null) {
+                        listener.onRemoved(copy(current));
+                    }
+                }
+                break;
+            case STATUS:
+                if (current != null && !Objects.equals(change.contact.getStatus(), current.getStatus())) {
+                    current.setStatus(change.contact.getStatus());
+                    fireChanged(current);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void store(Contact contact) {
+        String key = ContactIndex.keyOf(contact);
+        contacts.put(key, contact);
+        keysByName.put(contact.getName(), key);
+    }
+
+    private void remove(String key) {
+        Contact removed = contacts.remove(key);
+        if (removed != null) {
+            keysByName.remove(removed.getName(), key);
+        }
+    }
+
+    private void fireChanged(Contact contact) {
+        if (listener != null) {
+            listener.onChanged(copy(contact));
+        }
+    }
+
+    private static Contact copy(Contact contact) {
+        return new Contact(contact.getId(), contact.getName(), contact.getPhoneNumber(),
+                contact.getStatus(), contact.getAddedDate());
+    }
+}
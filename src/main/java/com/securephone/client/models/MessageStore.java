@@ -0,0 +1,261 @@
+package com.securephone.client.models;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * MessageStore - Historique des conversations en mémoire
+ *
+ * Each conversation keeps its latest messages in a ring buffer of fixed
+ * capacity (the window), so a long-lived conversation costs constant
+ * memory: appending to a full window evicts its oldest message. Older
+ * messages are paged in on demand from a HistoryLoader, in front of the
+ * window; once the window is full, each older page evicts as many of its
+ * newest messages, so the window slides back through the whole history.
+ * Newer pages then slide it forward again. While the window does not
+ * reach the newest message, appended messages only go to the listeners
+ * (which persist them) and come back with the newer pages.
+ *
+ * Not thread-safe; use it from the EDT.
+ */
+public class MessageStore {
+
+    public static final int DEFAULT_WINDOW = 500;
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    public interface HistoryLoader {
+        /** Up to limit messages older than the given one (null: the newest), oldest first. */
+        List<ChatMessage> loadBefore(String conversation, ChatMessage oldest, int limit);
+
+        /** Up to limit messages newer than the given one, oldest first. */
+        List<ChatMessage> loadAfter(String conversation, ChatMessage newest, int limit);
+    }
+
+    public interface Listener {
+        /** Called for every appended message; it is in the window unless the window has newer. */
+        void onAppended(String conversation, ChatMessage message, boolean evictedOldest);
+        void onPrepended(String conversation, int count, int evictedNewest);
+        void onNewerLoaded(String conversation, int count, int evictedOldest);
+    }
+
+    /** Read-only view of one conversation's window, oldest first. */
+    public static final class Conversation {
+        private final ChatMessage[] ring;
+        private int head;
+        private int size;
+        private boolean historyExhausted;
+        private boolean hasNewer;
+
+        Conversation(int capacity) {
+            this.ring = new ChatMessage[capacity];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int capacity() {
+            return ring.length;
+        }
+
+        public ChatMessage get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return ring[(head + index) % ring.length];
+        }
+
+        public boolean isFull() {
+            return size == ring.length;
+        }
+
+        public boolean isHistoryExhausted() {
+            return historyExhausted;
+        }
+
+        /** True when messages newer than the window were evicted; loadNewer brings them back. */
+        public boolean hasNewer() {
+            return hasNewer;
+        }
+
+        // returns true if the oldest message was evicted
+        boolean addLast(ChatMessage message) {
+            if (size == ring.length) {
+                ring[head] = message;
+                head = (head + 1) % ring.length;
+                return true;
+            }
+            ring[(head + size) % ring.length] = message;
+            size++;
+            return false;
+        }
+
+        void addFirst(ChatMessage message) {
+            head = (head - 1 + ring.length) % ring.length;
+            ring[head] = message;
+            size++;
+        }
+
+        void removeFirst() {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+        }
+
+        void removeLast() {
+            size--;
+            ring[(head + size) % ring.length] = null;
+        }
+    }
+
+    private final int window;
+    private final int pageSize;
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private HistoryLoader loader;
+
+    public MessageStore() {
+        this(DEFAULT_WINDOW, DEFAULT_PAGE_SIZE);
+    }
+
+    public MessageStore(int window, int pageSize) {
+        if (window <= 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Window and page size must be positive");
+        }
+        this.window = window;
+        this.pageSize = pageSize;
+    }
+
+    public void setHistoryLoader(HistoryLoader loader) {
+        this.loader = loader;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public Conversation get(String conversation) {
+        return conversations.computeIfAbsent(conversation, k -> new Conversation(window));
+    }
+
+    public void append(String conversation, ChatMessage message) {
+        Conversation conv = get(conversation);
+        // past the window's end: a newer page brings it back once persisted
+        boolean evicted = !conv.hasNewer && conv.addLast(message);
+        if (evicted) {
+            // what fell out of the window is only reachable through the loader now
+            conv.historyExhausted = false;
+        }
+        for (Listener listener : listeners) {
+            listener.onAppended(conversation, message, evicted);
+        }
+    }
+
+    /**
+     * Loads the page before the oldest message in the window, evicting as
+     * many of its newest messages as needed to make room. Returns the number
+     * of messages added, 0 when there is no older history.
+     */
+    public int loadOlder(String conversation) {
+        Conversation conv = get(conversation);
+        if (loader == null || conv.historyExhausted) {
+            return 0;
+        }
+        return prependPage(conversation, conv, 0);
+    }
+
+    // dropped: messages already removed from the window's end, reported as evicted
+    private int prependPage(String conversation, Conversation conv, int dropped) {
+        int limit = Math.min(pageSize, conv.capacity());
+        ChatMessage oldest = conv.size() > 0 ? conv.get(0) : null;
+        List<ChatMessage> page = loader.loadBefore(conversation, oldest, limit);
+        if (page.size() < limit) {
+            conv.historyExhausted = true;
+        }
+        int count = Math.min(page.size(), limit);
+        int evicted = Math.max(0, conv.size() + count - conv.capacity());
+        for (int i = 0; i < evicted; i++) {
+            conv.removeLast();
+        }
+        if (evicted > 0) {
+            conv.hasNewer = true;
+        }
+        // page is oldest first, so push from its newest end
+        for (int i = page.size() - 1; i >= page.size() - count; i--) {
+            conv.addFirst(page.get(i));
+        }
+        if (count > 0 || dropped > 0) {
+            for (Listener listener : listeners) {
+                listener.onPrepended(conversation, count, evicted + dropped);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Loads the page after the newest message in the window, evicting as
+     * many of its oldest messages as needed. Returns the number of messages
+     * added, 0 when the window already ends at the newest message.
+     */
+    public int loadNewer(String conversation) {
+        Conversation conv = get(conversation);
+        if (loader == null || !conv.hasNewer) {
+            return 0;
+        }
+        int limit = Math.min(pageSize, conv.capacity());
+        List<ChatMessage> page = loader.loadAfter(conversation, conv.get(conv.size() - 1), limit);
+        if (page.size() < limit) {
+            conv.hasNewer = false;
+        }
+        int count = Math.min(page.size(), limit);
+        int evicted = Math.max(0, conv.size() + count - conv.capacity());
+        for (int i = 0; i < evicted; i++) {
+            conv.removeFirst();
+        }
+        if (evicted > 0) {
+            conv.historyExhausted = false;
+        }
+        for (int i = 0; i < count; i++) {
+            conv.addLast(page.get(i));
+        }
+        if (count > 0) {
+            for (Listener listener : listeners) {
+                listener.onNewerLoaded(conversation, count, evicted);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops a window that no longer reaches the newest message and loads
+     * the newest page instead, rather than paging forward to it. Returns
+     * the number of messages loaded.
+     */
+    public int loadLatest(String conversation) {
+        Conversation conv = get(conversation);
+        if (loader == null || !conv.hasNewer) {
+            return 0;
+        }
+        int dropped = conv.size();
+        while (conv.size() > 0) {
+            conv.removeLast();
+        }
+        conv.hasNewer = false;
+        conv.historyExhausted = false;
+        return prependPage(conversation, conv, dropped);
+    }
+
+    public void clear() {
+        conversations.clear();
+    }
+}
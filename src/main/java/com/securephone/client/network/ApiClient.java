@@ -1,72 +1,179 @@
 package com.securephone.client.network;
 
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Asynchronous JSON client for the REST API.
+ *
+ * One {@link HttpClient} is shared by every request, so connections are
+ * kept alive and reused instead of paying a TCP handshake per call. HTTPS
+ * negotiates HTTP/2 when the server offers it; plain HTTP stays on 1.1.
+ * Responses may be gzip-compressed. A non-2xx status fails the future.
+ */
 public class ApiClient {
 
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+	public static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+
 	private final String baseUrl;
+	private final HttpClient client;
+	private final Duration requestTimeout;
 
 	public ApiClient() {
 		Properties props = new Properties();
 		String host = "10.19.174.48";
 		String port = "8001";
+		int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+		int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
 		try (var fis = new java.io.FileInputStream("client/resources/config.properties")) {
 			props.load(fis);
 			host = props.getProperty("server.host", host);
 			port = props.getProperty("server.port", port);
+			connectTimeoutMs = Integer.parseInt(props.getProperty("network.timeout.connection", "" + connectTimeoutMs).trim());
+			readTimeoutMs = Integer.parseInt(props.getProperty("network.timeout.read", "" + readTimeoutMs).trim());
 		} catch (Exception ignored) {
 		}
 		this.baseUrl = "http://" + host + ":" + port + "/securephone/api";
+		this.client = buildClient(baseUrl, connectTimeoutMs);
+		this.requestTimeout = Duration.ofMillis(Math.max(1, readTimeoutMs));
 	}
 
-	public JSONObject post(String path, Map<String, String> params) throws Exception {
-		URL url = new URL(baseUrl + path);
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		conn.setRequestMethod("POST");
-		conn.setDoOutput(true);
-		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-
-		String body = buildQuery(params);
-		try (OutputStream os = conn.getOutputStream()) {
-			os.write(body.getBytes(StandardCharsets.UTF_8));
-		}
+	public ApiClient(String baseUrl, int connectTimeoutMs, int readTimeoutMs) {
+		this.baseUrl = baseUrl;
+		this.client = buildClient(baseUrl, connectTimeoutMs);
+		this.requestTimeout = Duration.ofMillis(Math.max(1, readTimeoutMs));
+	}
+
+	private static HttpClient buildClient(String baseUrl, int connectTimeoutMs) {
+		return HttpClient.newBuilder()
+			.version(baseUrl.startsWith("https") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofMillis(Math.max(1, connectTimeoutMs)))
+			.build();
+	}
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public CompletableFuture<JSONObject> getAsync(String path, Map<String, String> params) {
+		HttpRequest request = newRequest(path, params)
+			.GET()
+			.build();
+		return sendAsync(request);
+	}
 
-		return readResponse(conn);
+	/** POST with the parameters as a form body. */
+	public CompletableFuture<JSONObject> postAsync(String path, Map<String, String> params) {
+		return postAsync(path, null, params);
 	}
 
+	/** POST with separate query-string and form-body parameters; either may be null. */
+	public CompletableFuture<JSONObject> postAsync(String path, Map<String, String> query, Map<String, String> form) {
+		HttpRequest request = newRequest(path, query)
+			.header("Content-Type", "application/x-www-form-urlencoded")
+			.POST(HttpRequest.BodyPublishers.ofString(buildQuery(form), StandardCharsets.UTF_8))
+			.build();
+		return sendAsync(request);
+	}
+
+	/** Blocking form of {@link #postAsync(String, Map)}; not for the EDT. */
+	public JSONObject post(String path, Map<String, String> params) throws Exception {
+		return await(postAsync(path, params));
+	}
+
+	/** Blocking form of {@link #getAsync}; not for the EDT. */
 	public JSONObject get(String path, Map<String, String> params) throws Exception {
-		String query = buildQuery(params);
-		URL url = new URL(baseUrl + path + (query.isEmpty() ? "" : "?" + query));
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		conn.setRequestMethod("GET");
-		return readResponse(conn);
+		return await(getAsync(path, params));
 	}
 
-	private JSONObject readResponse(HttpURLConnection conn) throws Exception {
-		int code = conn.getResponseCode();
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
-			code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream(),
-			StandardCharsets.UTF_8));
-		StringBuilder sb = new StringBuilder();
-		String line;
-		while ((line = reader.readLine()) != null) {
-			sb.append(line);
+	private HttpRequest.Builder newRequest(String path, Map<String, String> query) {
+		String encoded = buildQuery(query);
+		return HttpRequest.newBuilder(URI.create(baseUrl + path + (encoded.isEmpty() ? "" : "?" + encoded)))
+			.timeout(requestTimeout)
+			.header("Accept", "application/json")
+			.header("Accept-Encoding", "gzip");
+	}
+
+	private CompletableFuture<JSONObject> sendAsync(HttpRequest request) {
+		return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+			.thenApply(response -> {
+				JSONObject json = parseBody(response);
+				int code = response.statusCode();
+				if (code < 200 || code >= 300) {
+					String message = json.optString("message", json.optString("detail", ""));
+					throw new CompletionException(new IOException("HTTP " + code
+						+ (message.isEmpty() ? "" : ": " + message)));
+				}
+				return json;
+			});
+	}
+
+	private static JSONObject parseBody(HttpResponse<byte[]> response) {
+		byte[] body = response.body();
+		if (body == null || body.length == 0) {
+			return new JSONObject();
+		}
+		try {
+			InputStream in = new ByteArrayInputStream(body);
+			boolean gzip = response.headers().firstValue("Content-Encoding")
+				.map(value -> value.toLowerCase().contains("gzip"))
+				.orElse(false);
+			if (gzip) {
+				in = new GZIPInputStream(in);
+			}
+			try (InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+				return new JSONObject(new JSONTokener(reader));
+			}
+		} catch (IOException e) {
+			throw new CompletionException(e);
+		} catch (RuntimeException e) {
+			if (response.statusCode() >= 200 && response.statusCode() < 300) {
+				throw new CompletionException(new IOException("Réponse JSON invalide", e));
+			}
+			// error pages are often HTML, the status is what matters
+			return new JSONObject();
+		}
+	}
+
+	private static JSONObject await(CompletableFuture<JSONObject> future) throws Exception {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/** The exception behind a failed future, without the CompletionException wrapper. */
+	public static Throwable unwrap(Throwable error) {
+		while (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
 		}
-		reader.close();
-		return new JSONObject(sb.toString());
+		return error;
 	}
 
-	private String buildQuery(Map<String, String> params) throws Exception {
+	private static String buildQuery(Map<String, String> params) {
 		if (params == null || params.isEmpty()) {
 			return "";
 		}
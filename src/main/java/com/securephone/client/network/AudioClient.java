@@ -2,54 +2,137 @@ package com.securephone.client.network;
 
 import com.securephone.client.audio.AudioCapture;
 import com.securephone.client.audio.AudioPlayer;
+import com.securephone.client.audio.JitterBuffer;
 import com.securephone.client.audio.OpusCodec;
+import com.securephone.client.security.MediaCrypto;
+import com.securephone.client.utils.Logger;
 import com.securephone.shared.protocol.AudioPacket;
+import com.securephone.shared.protocol.AudioPacketView;
+import com.securephone.shared.protocol.PacketBufferPool;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class AudioClient {
 
-	private final OpusCodec codec = new OpusCodec();
+	private static final int DEFAULT_LATENCY_TARGET_MS = 200;
+	private static final int PACKET_BUFFER_SIZE = AudioPacket.HEADER_SIZE + AudioPacket.MAX_AUDIO_SIZE + MediaCrypto.TAG_BYTES;
+
+	private final MediaTransport transport;
 	private final AudioCapture capture = new AudioCapture();
 	private final AudioPlayer player = new AudioPlayer();
 	private final AtomicInteger sequence = new AtomicInteger();
+	private OpusCodec codec = new OpusCodec();
+	private int latencyTargetMs = DEFAULT_LATENCY_TARGET_MS;
+	private JitterBuffer jitterBuffer = newJitterBuffer();
+	private final PacketBufferPool sendPool = new PacketBufferPool(4, PACKET_BUFFER_SIZE, true);
+	private final byte[] encodeBuffer = new byte[AudioPacket.MAX_AUDIO_SIZE];
+	private final byte[] receiveBuffer = new byte[AudioPacket.MAX_AUDIO_SIZE];
+	private final AudioPacketView view = new AudioPacketView();
 
-	private DatagramSocket socket;
-	private InetAddress serverAddress;
-	private int serverPort;
+	private MediaTransport.Flow flow;
 	private int userId;
 	private volatile boolean receiving;
-	private Thread receiveThread;
+	private volatile MediaCrypto crypto;
+
+	public AudioClient() {
+		this(new MediaTransport());
+	}
+
+	public AudioClient(MediaTransport transport) {
+		this.transport = transport;
+	}
 
 	public void configure(String host, int port, int userId) throws Exception {
-		this.serverAddress = InetAddress.getByName(host);
-		this.serverPort = port;
 		this.userId = userId;
-		if (socket == null || socket.isClosed()) {
-			socket = new DatagramSocket();
+		if (flow == null || !flow.isOpen()) {
+			flow = transport.open("audio", new InetSocketAddress(host, port), PACKET_BUFFER_SIZE + 64, this::onPacket);
 		}
-		player.start(capture.getFormat());
+		jitterBuffer.clear();
+		player.start(capture.getFormat(), jitterBuffer);
 	}
 
-	public void startReceiving() {
-		if (receiving) {
-			return;
+	/**
+	 * Encrypts outgoing payloads and requires incoming ones to be sealed
+	 * with the same key; null sends and accepts them in clear.
+	 */
+	public void setMediaCrypto(MediaCrypto crypto) {
+		this.crypto = crypto;
+	}
+
+	public void setLatencyTarget(int latencyMs) {
+		this.latencyTargetMs = latencyMs;
+		jitterBuffer.setTargetDelayMs(latencyMs);
+	}
+
+	/**
+	 * Raises the playout delay above the configured target when the chat
+	 * RTT variation points to more jitter than the target covers.
+	 */
+	public void setRttVariation(double variationMs) {
+		jitterBuffer.setTargetDelayMs(Math.max(latencyTargetMs, (int) Math.ceil(variationMs * 2)));
+	}
+
+	/**
+	 * Replaces the codec; only takes effect between calls.
+	 */
+	public void setCodecSettings(int bitrate, int frameSamples, boolean fec, boolean dtx) {
+		if (!OpusCodec.isValidFrameSize(frameSamples)) {
+			frameSamples = OpusCodec.DEFAULT_FRAME_SAMPLES;
 		}
+		codec.close();
+		codec = new OpusCodec(bitrate, frameSamples, fec, dtx);
+		capture.setFrameSamples(frameSamples);
+		jitterBuffer = newJitterBuffer();
+	}
+
+	// packets are decoded at playout, where a gap can still be filled from
+	// the next packet's FEC before falling back to the codec's concealment
+	private JitterBuffer newJitterBuffer() {
+		JitterBuffer buffer = new JitterBuffer(codec.getFrameMillis(), latencyTargetMs);
+		OpusCodec decoder = codec;
+		buffer.setDecoder(new JitterBuffer.FrameDecoder() {
+			@Override
+			public int decode(byte[] packet, int length, byte[] pcm) {
+				return decoder.decode(packet, 0, length, pcm);
+			}
+
+			@Override
+			public int decodeFec(byte[] next, int length, byte[] pcm) {
+				return decoder.decodeFec(next, 0, length, pcm);
+			}
+
+			@Override
+			public int conceal(byte[] pcm) {
+				return decoder.conceal(pcm);
+			}
+		});
+		return buffer;
+	}
+
+	public OpusCodec getCodec() {
+		return codec;
+	}
+
+	public JitterBuffer getJitterBuffer() {
+		return jitterBuffer;
+	}
+
+	public void startReceiving() {
 		receiving = true;
-		receiveThread = new Thread(this::receiveLoop, "AudioReceiveThread");
-		receiveThread.setDaemon(true);
-		receiveThread.start();
 	}
 
 	public void stopReceiving() {
 		receiving = false;
-		if (socket != null && !socket.isClosed()) {
-			socket.close();
-		}
+		transport.close(flow);
+		flow = null;
 		player.stop();
+		if (jitterBuffer.getReceivedFrames() > 0) {
+			Logger.info(String.format("📊 Audio reçu: %s, FEC %.1f%%, masquage %.1f%%", jitterBuffer,
+				jitterBuffer.getRecoveryRate() * 100, jitterBuffer.getConcealmentRate() * 100));
+		}
+		jitterBuffer.clear();
 	}
 
 	public void startCapture() throws Exception {
@@ -61,37 +144,47 @@ public class AudioClient {
 	}
 
 	private void sendAudio(byte[] data, int length) {
+		MediaTransport.Flow current = flow;
+		if (current == null) {
+			return;
+		}
+		ByteBuffer buffer = sendPool.acquire();
 		try {
-			byte[] encoded = codec.encode(data);
-			AudioPacket packet = new AudioPacket(userId, encoded, encoded.length);
-			packet.setSequenceNumber(sequence.incrementAndGet());
-			byte[] bytes = packet.toBytes();
-			DatagramPacket datagram = new DatagramPacket(bytes, bytes.length, serverAddress, serverPort);
-			socket.send(datagram);
+			int encodedLength = codec.encode(data, length, encodeBuffer);
+			if (encodedLength == 0 || codec.isSilencePacket(encodeBuffer, encodedLength)) {
+				return;
+			}
+			int seq = sequence.incrementAndGet();
+			AudioPacket.encode(buffer, userId, seq, System.currentTimeMillis(), encodeBuffer, 0, encodedLength);
+			buffer.flip();
+			MediaCrypto sealer = crypto;
+			if (sealer != null) {
+				sealer.seal(buffer, AudioPacket.HEADER_SIZE, userId, seq & 0xFFFFFFFFL);
+			}
+			transport.send(current, buffer);
 		} catch (Exception e) {
 			// ignore transient send errors
+		} finally {
+			sendPool.release(buffer);
 		}
 	}
 
-	private void receiveLoop() {
-		byte[] buffer = new byte[AudioPacket.MAX_AUDIO_SIZE + 64];
-		while (receiving && socket != null && !socket.isClosed()) {
-			try {
-				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-				socket.receive(packet);
-				byte[] data = new byte[packet.getLength()];
-				System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
-				AudioPacket audioPacket = AudioPacket.fromBytes(data);
-				if (audioPacket.getUserId() == userId) {
-					continue;
-				}
-				byte[] pcm = codec.decode(audioPacket.getAudioData());
-				player.play(pcm, pcm.length);
-			} catch (Exception e) {
-				if (!receiving) {
-					break;
-				}
-			}
+	private void onPacket(ByteBuffer packet) {
+		if (!receiving) {
+			return;
+		}
+		int start = packet.position();
+		int sender = packet.getInt(start);
+		if (sender == userId) {
+			return;
+		}
+		MediaCrypto opener = crypto;
+		if (opener != null
+			&& !opener.open(packet, AudioPacket.HEADER_SIZE, sender, packet.getInt(start + 4) & 0xFFFFFFFFL)) {
+			return;
 		}
+		view.wrap(packet);
+		int length = view.copyData(receiveBuffer, 0);
+		jitterBuffer.put(view.getSequenceNumber(), view.getTimestamp(), receiveBuffer, length);
 	}
 }
@@ -2,18 +2,43 @@ package com.securephone.client.network;
 
 import com.securephone.client.models.ChatMessage;
 import com.securephone.client.models.Contact;
+import com.securephone.client.models.ContactStore;
+import com.securephone.client.models.MessageStore;
+import com.securephone.client.storage.MessageLog;
 import com.securephone.client.models.UserSession;
+import com.securephone.client.security.KeyExchange;
+import com.securephone.client.security.KeySchedule;
+import com.securephone.client.security.MediaCrypto;
 import com.securephone.client.utils.Logger;
 import com.securephone.shared.protocol.ChatPacket;
 import com.securephone.shared.protocol.MessageType;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import javax.swing.SwingUtilities;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class ConnectionManager {
 
@@ -31,6 +56,13 @@ public class ConnectionManager {
 
 	public interface ContactListener {
 		void onContactList(List<Contact> contacts);
+
+		/** A single contact was added or changed, e.g. its status. */
+		default void onContactChanged(Contact contact) {
+		}
+
+		default void onContactRemoved(Contact contact) {
+		}
 	}
 
 	public interface StatusListener {
@@ -53,9 +85,38 @@ public class ConnectionManager {
 		void onCallError(String error);
 	}
 
+	/** File transfer events, called on the EDT. */
+	public interface FileTransferListener {
+		/** Answer with {@link #acceptFile} or {@link #rejectFile}. */
+		void onFileOffered(long transferId, String sender, String fileName, long size);
+
+		default void onFileProgress(FileTransfer transfer) {
+		}
+
+		/** Completed, failed or cancelled; error is null on success. */
+		default void onFileFinished(FileTransfer transfer, String error) {
+		}
+	}
+
+	private static final long LOGOUT_FLUSH_TIMEOUT_MS = 1000;
+	private static final int REPLAY_QUEUE_CAPACITY = 100;
+
+	/** A packet held back while the connection is being restored. */
+	private static final class PendingPacket {
+		final ChatPacket packet;
+		final CompletableFuture<Void> future;
+
+		PendingPacket(ChatPacket packet, CompletableFuture<Void> future) {
+			this.packet = packet;
+			this.future = future;
+		}
+	}
+
 	private final WebSocketClient chatClient = new WebSocketClient();
-	private final AudioClient audioClient = new AudioClient();
-	private final com.securephone.client.video.VideoClient videoClient = new com.securephone.client.video.VideoClient();
+	private final MessageDispatcher dispatcher = new MessageDispatcher();
+	private final MediaTransport mediaTransport = new MediaTransport();
+	private final AudioClient audioClient = new AudioClient(mediaTransport);
+	private final com.securephone.client.video.VideoClient videoClient = new com.securephone.client.video.VideoClient(mediaTransport);
 
 	private AuthListener authListener;
 	private ChatListener chatListener;
@@ -64,37 +125,167 @@ public class ConnectionManager {
 	private ErrorListener errorListener;
 	private NotificationListener notificationListener;
 	private CallListener callListener;
+	private volatile FileTransferListener fileTransferListener;
 
-	private UserSession session = new UserSession();
+	private volatile UserSession session = new UserSession();
 
 	// Call state tracking
-	private String currentCallId = null;
-	private String currentCallType = null;  // "audio" or "video"
-	private String currentCallRemoteUser = null;
+	private volatile String currentCallId = null;
+	private volatile String currentCallType = null;  // "audio" or "video"
+	private volatile String currentCallRemoteUser = null;
+	// ephemeral ECDH pair and peer key for the current call's media keys
+	private volatile KeyPair callKeyPair;
+	private volatile String remoteMediaKey;
+	// audio engine the caller advertised in CALL_INITIATE
+	private volatile String remoteAudioCodec;
+	private boolean mediaEncryption;
+	// this call's key schedule, destroyed when the call ends
+	private volatile KeySchedule callKeys;
+	private long mediaRekeyPackets = KeySchedule.DEFAULT_PACKET_BUDGET;
+	private long mediaRekeyIntervalMs = KeySchedule.DEFAULT_TIME_BUDGET_MS;
 
 	private String host = "localhost";
 	private int chatPort = 8081;
+	private int apiPort = 8000;
+	private ApiClient apiClient;
+	private ContactSearchService contactSearch;
+	private final ContactStore contactStore = new ContactStore();
+	private MessageStore messageStore;
+	// encrypted on-disk history, open while logged in
+	private volatile MessageLog messageLog;
+	private boolean storageEnabled = true;
+	private Path storageDir;
+	private long storageSegmentSize = MessageLog.DEFAULT_SEGMENT_SIZE;
+	private long storageFsyncIntervalMs = MessageLog.DEFAULT_FSYNC_INTERVAL_MS;
+	// files go over their own channel, negotiated with FILE_MESSAGE on the chat one
+	private final FileTransferClient fileTransfers = new FileTransferClient();
+	// incoming offers not answered yet, and the peer of every transfer, guarded by themselves
+	private final Map<Long, JSONObject> fileOffers = new HashMap<>();
+	private final Map<Long, String> filePeers = new HashMap<>();
+	private boolean fileTransferEnabled;
+	private int fileTransferPort = 8083;
+	private int fileChunkSize = FileTransferClient.DEFAULT_CHUNK_SIZE;
+	private Path downloadDir;
+	// kept from login() until the response, to derive the history key
+	private volatile String pendingPassword;
 	private int audioPort = 50000;
 	private int videoPort = 50020;
+	private int audioLatencyTargetMs = 200;
 	private int timeoutMs = 10000;
 	private boolean enableTwoFaByDefault = true;
 
+	// Reconnect supervisor and heartbeat: state changes run on connectionExecutor
+	private final ScheduledExecutorService connectionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ChatConnectionThread");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// the file channel connects on its own thread: a black-holed file port
+	// must not hold up heartbeats and chat reconnects on connectionExecutor
+	private final ScheduledExecutorService fileExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "FileTransferConnectThread");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+	private final Deque<PendingPacket> replayQueue = new ArrayDeque<>();
+	private volatile boolean reconnecting;
+	private volatile boolean resuming;
+	private int reconnectAttempt;
+	private volatile ScheduledFuture<?> reconnectTask;
+
+	private static final int MAX_MISSED_PONGS = 2;
+	private final RttEstimator rttEstimator = new RttEstimator();
+	private int pingIntervalMs = 30000;
+	private int pingTimeoutMs = 5000;
+	private ScheduledFuture<?> heartbeatTask;
+	private ScheduledFuture<?> pingTimeoutTask;
+	private long pingId;
+	private long pingSentNanos;
+	private boolean pingOutstanding;
+	private boolean pongSeen;
+	private int missedPongs;
+
 	public ConnectionManager() {
 		loadConfig();
-		chatClient.setMessageListener(this::handleMessage);
+		registerHandlers();
+		contactStore.setListener(new ContactStore.Listener() {
+			@Override
+			public void onReset(List<Contact> contacts) {
+				if (contactListener != null) {
+					contactListener.onContactList(contacts);
+				}
+			}
+
+			@Override
+			public void onAdded(Contact contact) {
+				if (contactListener != null) {
+					contactListener.onContactChanged(contact);
+				}
+			}
+
+			@Override
+			public void onRemoved(Contact contact) {
+				if (contactListener != null) {
+					contactListener.onContactRemoved(contact);
+				}
+			}
+
+			@Override
+			public void onChanged(Contact contact) {
+				if (contactListener != null) {
+					contactListener.onContactChanged(contact);
+				}
+			}
+		});
+		fileTransfers.setListener(new FileTransferClient.Listener() {
+			@Override
+			public void onProgress(FileTransfer transfer) {
+				FileTransferListener listener = fileTransferListener;
+				if (listener != null) {
+					SwingUtilities.invokeLater(() -> listener.onFileProgress(transfer));
+				}
+			}
+
+			@Override
+			public void onFinished(FileTransfer transfer, String error) {
+				synchronized (filePeers) {
+					filePeers.remove(transfer.getId());
+				}
+				FileTransferListener listener = fileTransferListener;
+				if (listener != null) {
+					SwingUtilities.invokeLater(() -> listener.onFileFinished(transfer, error));
+				}
+			}
+
+			@Override
+			public void onDisconnected() {
+				fileExecutor.schedule(ConnectionManager.this::connectFileChannel,
+					ReconnectPolicy.DEFAULT_DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		});
+		chatClient.setPacketListener(dispatcher::dispatch);
 		chatClient.setConnectionListener(new WebSocketClient.ConnectionListener() {
 			@Override
 			public void onConnected() {
 				if (statusListener != null) {
 					statusListener.onStatus("connecte");
 				}
+				connectionExecutor.execute(ConnectionManager.this::startHeartbeat);
 			}
 
 			@Override
-			public void onDisconnected() {
+			public void onDisconnected(boolean lost) {
 				if (statusListener != null) {
 					statusListener.onStatus("deconnecte");
 				}
+				connectionExecutor.execute(ConnectionManager.this::stopHeartbeat);
+				if (lost) {
+					// decided here, before the writer fails what it still holds:
+					// once reconnecting is set those writes go to the replay queue
+					boolean started = beginReconnect();
+					connectionExecutor.execute(() -> onConnectionLost(started));
+				}
 			}
 		});
 	}
@@ -127,6 +318,19 @@ public class ConnectionManager {
 		this.callListener = listener;
 	}
 
+	public void setFileTransferListener(FileTransferListener listener) {
+		this.fileTransferListener = listener;
+	}
+
+	/**
+	 * Subscribes an extra handler to an inbound packet type, next to the
+	 * listeners above.
+	 */
+	public MessageDispatcher.Subscription subscribe(MessageType type, MessageDispatcher.Context context,
+			MessageDispatcher.Handler handler) {
+		return dispatcher.subscribe(type, context, handler);
+	}
+
 	// ========== CALL MANAGEMENT ==========
 
 	public void initiateCall(String remoteName, String callType) {
@@ -150,17 +354,24 @@ public class ConnectionManager {
 		data.put("callType", callType);
 		data.put("callerName", session.getUsername());
 		data.put("targetName", remoteName);
+		data.put("audioCodec", audioClient.getCodec().getEngineName());
+		clearMediaKeys();
+		if (mediaEncryption) {
+			callKeyPair = generateCallKeyPair();
+			if (callKeyPair != null) {
+				data.put("mediaKey", KeyExchange.publicKeyToBase64(callKeyPair.getPublic()));
+			}
+		}
 		packet.setData(data);
 		
-		try {
-			String jsonMsg = packet.toJson();
-			Logger.info("📤 Envoi message CALL_INITIATE: " + jsonMsg);
-			chatClient.send(jsonMsg);
-			Logger.info("✅ Message CALL_INITIATE envoyé avec succès");
-		} catch (Exception e) {
-			Logger.error("❌ Erreur envoi appel: " + e.getMessage());
-			e.printStackTrace();
-		}
+		Logger.info("📤 Envoi message CALL_INITIATE: " + data);
+		sendPacket(packet).whenComplete((ignored, error) -> {
+			if (error == null) {
+				Logger.info("✅ Message CALL_INITIATE envoyé avec succès");
+			} else {
+				Logger.error("❌ Erreur envoi appel: " + error.getMessage());
+			}
+		});
 		Logger.info("📞 Appel " + callType + " initialisé avec " + remoteName);
 	}
 
@@ -179,17 +390,27 @@ public class ConnectionManager {
 		data.put("callId", currentCallId);
 		data.put("acceptedType", callType);
 		data.put("accepterName", session.getUsername());
+		data.put("audioCodec", audioClient.getCodec().getEngineName());
+		audioClient.getCodec().negotiate(remoteAudioCodec);
+		if (mediaEncryption && remoteMediaKey != null) {
+			callKeyPair = generateCallKeyPair();
+			if (callKeyPair != null) {
+				data.put("mediaKey", KeyExchange.publicKeyToBase64(callKeyPair.getPublic()));
+			}
+		}
 		packet.setData(data);
 		
-		try {
-			String jsonMsg = packet.toJson();
-			Logger.info("📤 Envoi message CALL_ACCEPT: " + jsonMsg);
-			chatClient.send(jsonMsg);
-			Logger.info("✅ Message CALL_ACCEPT envoyé");
-		} catch (Exception e) {
-			Logger.error("❌ Erreur envoi acceptation appel: " + e.getMessage());
-		}
+		Logger.info("📤 Envoi message CALL_ACCEPT: " + data);
+		sendPacket(packet).whenComplete((ignored, error) -> {
+			if (error == null) {
+				Logger.info("✅ Message CALL_ACCEPT envoyé");
+			} else {
+				Logger.error("❌ Erreur envoi acceptation appel: " + error.getMessage());
+			}
+		});
 		
+		installMediaKeys(remoteMediaKey, false);
+
 		// Start audio/video streams
 		try {
 			Logger.info("🎯 Démarrage flux " + callType + " vers " + host + ":" + ("audio".equals(callType) ? audioPort : videoPort));
@@ -227,12 +448,12 @@ public class ConnectionManager {
 		data.put("rejectorName", session.getUsername());
 		packet.setData(data);
 		
-		try {
-			chatClient.send(packet.toJson());
-		} catch (Exception e) {
-			Logger.error("❌ Erreur envoi rejet appel: " + e.getMessage());
-		}
+		sendPacket(packet).exceptionally(error -> {
+			Logger.error("❌ Erreur envoi rejet appel: " + error.getMessage());
+			return null;
+		});
 		
+		clearMediaKeys();
 		currentCallId = null;
 		currentCallType = null;
 		currentCallRemoteUser = null;
@@ -250,11 +471,10 @@ public class ConnectionManager {
 		data.put("endedBy", session.getUsername());
 		packet.setData(data);
 		
-		try {
-			chatClient.send(packet.toJson());
-		} catch (Exception e) {
-			Logger.error("❌ Erreur envoi fin appel: " + e.getMessage());
-		}
+		sendPacket(packet).exceptionally(error -> {
+			Logger.error("❌ Erreur envoi fin appel: " + error.getMessage());
+			return null;
+		});
 		
 		// Stop audio/video streams
 		try {
@@ -265,6 +485,7 @@ public class ConnectionManager {
 			Logger.error("❌ Erreur arrêt média: " + e.getMessage());
 		}
 		
+		clearMediaKeys();
 		currentCallId = null;
 		currentCallType = null;
 		currentCallRemoteUser = null;
@@ -272,6 +493,64 @@ public class ConnectionManager {
 		Logger.info("🔴 Appel terminé");
 	}
 
+	private static KeyPair generateCallKeyPair() {
+		try {
+			return KeyExchange.generateKeyPair();
+		} catch (Exception e) {
+			Logger.error("❌ Erreur génération clé média: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Sets up this call's media keys from our ephemeral pair and the
+	 * peer's public key; without both, media stays in clear.
+	 */
+	private void installMediaKeys(String peerKey, boolean initiator) {
+		KeyPair pair = callKeyPair;
+		callKeyPair = null;
+		MediaCrypto audio = null;
+		MediaCrypto video = null;
+		String callId = currentCallId;
+		KeySchedule schedule = null;
+		if (mediaEncryption && (pair == null || peerKey == null)) {
+			Logger.warn("⚠️ Pas de clé média négociée, flux en clair");
+		} else if (pair != null && peerKey != null && callId != null) {
+			try {
+				byte[] secret = KeyExchange.deriveSharedSecret(pair.getPrivate(), KeyExchange.publicKeyFromBase64(peerKey));
+				schedule = new KeySchedule(secret, callId.getBytes(StandardCharsets.UTF_8), initiator,
+					mediaRekeyPackets, mediaRekeyIntervalMs);
+				Arrays.fill(secret, (byte) 0);
+			} catch (Exception e) {
+				Logger.error("❌ Erreur échange de clé média: " + e.getMessage());
+			}
+		}
+		KeySchedule previous = callKeys;
+		callKeys = schedule;
+		if (previous != null) {
+			previous.destroy();
+		}
+		if (schedule != null) {
+			audio = new MediaCrypto(schedule, MediaCrypto.STREAM_AUDIO);
+			video = new MediaCrypto(schedule, MediaCrypto.STREAM_VIDEO);
+			Logger.info("🔐 Flux média chiffrés");
+		}
+		audioClient.setMediaCrypto(audio);
+		videoClient.setMediaCrypto(video);
+	}
+
+	private void clearMediaKeys() {
+		callKeyPair = null;
+		remoteMediaKey = null;
+		audioClient.setMediaCrypto(null);
+		videoClient.setMediaCrypto(null);
+		KeySchedule schedule = callKeys;
+		callKeys = null;
+		if (schedule != null) {
+			schedule.destroy();
+		}
+	}
+
 	public String getCurrentCallType() {
 		return currentCallType;
 	}
@@ -299,6 +578,7 @@ public class ConnectionManager {
 	}
 
 	public void disconnect() {
+		stopReconnect();
 		chatClient.disconnect();
 		audioClient.stopReceiving();
 		videoClient.stop();
@@ -310,11 +590,17 @@ public class ConnectionManager {
 			JSONObject data = new JSONObject();
 			data.put("username", username);
 			data.put("password", password);
+			pendingPassword = password;
 			if (totpCode != null && !totpCode.isEmpty()) {
 				data.put("totp", totpCode);
 			}
 			packet.setData(data);
-			chatClient.send(packet.toJson());
+			chatClient.send(packet).exceptionally(error -> {
+				if (authListener != null) {
+					authListener.onLoginFailed("Erreur de connexion");
+				}
+				return null;
+			});
 		} catch (Exception e) {
 			if (authListener != null) {
 				authListener.onLoginFailed("Erreur de connexion");
@@ -333,7 +619,12 @@ public class ConnectionManager {
 			}
 			data.put("enable_2fa", enableTwoFaByDefault);
 			packet.setData(data);
-			chatClient.send(packet.toJson());
+			chatClient.send(packet).exceptionally(error -> {
+				if (authListener != null) {
+					authListener.onRegisterFailed("Erreur d'inscription");
+				}
+				return null;
+			});
 		} catch (Exception e) {
 			if (authListener != null) {
 				authListener.onRegisterFailed("Erreur d'inscription");
@@ -354,7 +645,13 @@ public class ConnectionManager {
 			JSONObject data = new JSONObject();
 			data.put("code", code);
 			packet.setData(data);
-			chatClient.send(packet.toJson());
+			chatClient.send(packet).exceptionally(error -> {
+				Logger.error("❌ Erreur envoi 2FA: " + error.getMessage());
+				if (authListener != null) {
+					authListener.onLoginFailed("Erreur vérification 2FA: " + error.getMessage());
+				}
+				return null;
+			});
 		} catch (Exception e) {
 			Logger.error("❌ Erreur envoi 2FA: " + e.getMessage());
 			if (authListener != null) {
@@ -377,18 +674,30 @@ public class ConnectionManager {
 			data.put("content", content);
 			data.put("timestamp", System.currentTimeMillis());
 			packet.setData(data);
-			chatClient.send(packet.toJson());
+			sendPacket(packet).exceptionally(error -> {
+				Logger.error("Erreur envoi message: " + error.getMessage());
+				return null;
+			});
 		} catch (Exception e) {
 			Logger.error("Erreur envoi message: " + e.getMessage());
 		}
 	}
 
 	public void logout() {
+		stopReconnect();
 		try {
-			chatClient.send(new ChatPacket(MessageType.LOGOUT).toJson());
+			// let the writer flush it before the socket goes away
+			chatClient.send(new ChatPacket(MessageType.LOGOUT)).get(LOGOUT_FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
 		} catch (Exception ignored) {
 		}
 		session = new UserSession();
+		closeMessageLog();
+		messageStore.clear();
+		contactStore.clear();
+		clearMediaKeys();
+		clearFileTransfers();
+		contactSearch.cancel();
+		contactSearch.invalidate();
 		disconnect();
 	}
 
@@ -400,80 +709,84 @@ public class ConnectionManager {
 			ChatPacket packet = new ChatPacket(MessageType.CONTACT_LIST);
 			JSONObject data = new JSONObject();
 			data.put("action", "request");
+			long version = contactStore.getVersion();
+			if (version > 0) {
+				// only the changes since our cursor
+				data.put("since", version);
+			}
 			packet.setData(data);
-			chatClient.send(packet.toJson());
+			sendPacket(packet).exceptionally(error -> {
+				Logger.error("Erreur demande contacts: " + error.getMessage());
+				return null;
+			});
 		} catch (Exception e) {
 			Logger.error("Erreur demande contacts: " + e.getMessage());
 		}
 	}
 
-	public void searchContacts(String query, SearchResultListener listener) {
+	/**
+	 * Searches users over the REST API without blocking the caller. The
+	 * listener is called on the EDT; errors yield an empty list.
+	 */
+	public CompletableFuture<List<SearchResult>> searchContacts(String query, SearchResultListener listener) {
+		CompletableFuture<List<SearchResult>> results = fetchSearchResults(query)
+			.exceptionally(error -> {
+				Logger.error("Erreur recherche contacts: " + ApiClient.unwrap(error).getMessage());
+				return new ArrayList<>();
+			});
+		if (listener != null) {
+			results.thenAccept(list -> SwingUtilities.invokeLater(() -> listener.onSearchResult(list)));
+		}
+		return results;
+	}
+
+	/** Chat history shown by the UI; use it from the EDT. */
+	public MessageStore getMessageStore() {
+		return messageStore;
+	}
+
+	/** Debounced, cached search for the search-as-you-type popup. */
+	public ContactSearchService getContactSearch() {
+		return contactSearch;
+	}
+
+	// fails on error, so the search cache never keeps an error as an empty result
+	private CompletableFuture<List<SearchResult>> fetchSearchResults(String query) {
 		if (!session.isLoggedIn()) {
-			if (listener != null) {
-				listener.onSearchResult(new ArrayList<>());
-			}
-			return;
+			return CompletableFuture.completedFuture(new ArrayList<>());
 		}
-		try {
-			String url = "http://" + host + ":8000/api/contacts/search?q=" + 
-				java.net.URLEncoder.encode(query, "UTF-8") + 
-				"&session_id=" + session.getSessionId();
-			
-			java.net.URL apiUrl = new java.net.URL(url);
-			java.net.HttpURLConnection conn = (java.net.HttpURLConnection) apiUrl.openConnection();
-			conn.setRequestMethod("GET");
-			conn.setConnectTimeout(5000);
-			conn.setReadTimeout(5000);
-			
-			int responseCode = conn.getResponseCode();
-			if (responseCode == 200) {
-				java.io.BufferedReader reader = new java.io.BufferedReader(
-					new java.io.InputStreamReader(conn.getInputStream())
-				);
-				StringBuilder response = new StringBuilder();
-				String line;
-				while ((line = reader.readLine()) != null) {
-					response.append(line);
-				}
-				reader.close();
-				
-				JSONObject json = new JSONObject(response.toString());
-				List<SearchResult> results = new ArrayList<>();
-				
-				if ("success".equals(json.optString("status"))) {
-					JSONArray users = json.optJSONArray("users");
-					if (users != null) {
-						for (int i = 0; i < users.length(); i++) {
-							JSONObject user = users.getJSONObject(i);
-							SearchResult result = new SearchResult(
-								user.optInt("id"),
-								user.optString("username"),
-								user.optString("email"),
-								user.optString("status", "offline"),
-								user.optBoolean("is_contact", false)
-							);
-							results.add(result);
-						}
-					}
-				}
-				
-				if (listener != null) {
-					listener.onSearchResult(results);
-				}
-			} else {
-				Logger.error("Erreur recherche contacts: " + responseCode);
-				if (listener != null) {
-					listener.onSearchResult(new ArrayList<>());
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("q", query);
+		params.put("session_id", session.getSessionId());
+		return apiClient.getAsync("/contacts/search", params)
+			.thenApply(ConnectionManager::parseSearchResults);
+	}
+
+	private static List<SearchResult> parseSearchResults(JSONObject json) {
+		List<SearchResult> results = new ArrayList<>();
+		if ("success".equals(json.optString("status"))) {
+			JSONArray users = json.optJSONArray("users");
+			if (users != null) {
+				for (int i = 0; i < users.length(); i++) {
+					JSONObject user = users.getJSONObject(i);
+					SearchResult result = new SearchResult(
+						user.optInt("id"),
+						user.optString("username"),
+						user.optString("email"),
+						user.optString("status", "offline"),
+						user.optBoolean("is_contact", false)
+					);
+					results.add(result);
 				}
 			}
-		} catch (Exception e) {
-			Logger.error("Erreur recherche contacts: " + e.getMessage());
-			if (listener != null) {
-				listener.onSearchResult(new ArrayList<>());
-			}
 		}
+		return results;
 	}
 
+	/**
+	 * Adds a contact over the REST API without blocking the caller. The
+	 * listener is called on the EDT.
+	 */
 	public void addContact(int contactId, String nickname, AddContactListener listener) {
 		if (!session.isLoggedIn()) {
 			if (listener != null) {
@@ -481,47 +794,32 @@ public class ConnectionManager {
 			}
 			return;
 		}
-		try {
-			String url = "http://" + host + ":8000/api/contacts/add?session_id=" + 
-				session.getSessionId() + "&contact_id=" + contactId + 
-				"&nickname=" + java.net.URLEncoder.encode(nickname, "UTF-8");
-			
-			java.net.URL apiUrl = new java.net.URL(url);
-			java.net.HttpURLConnection conn = (java.net.HttpURLConnection) apiUrl.openConnection();
-			conn.setRequestMethod("POST");
-			conn.setConnectTimeout(5000);
-			conn.setReadTimeout(5000);
-			
-			int responseCode = conn.getResponseCode();
-			if (responseCode == 200) {
-				java.io.BufferedReader reader = new java.io.BufferedReader(
-					new java.io.InputStreamReader(conn.getInputStream())
-				);
-				StringBuilder response = new StringBuilder();
-				String line;
-				while ((line = reader.readLine()) != null) {
-					response.append(line);
-				}
-				reader.close();
-				
-				JSONObject json = new JSONObject(response.toString());
-				boolean success = "success".equals(json.optString("status"));
-				String message = json.optString("message", success ? "Contact ajouté" : "Erreur");
-				
-				if (listener != null) {
-					listener.onAddContactResult(success, message);
-				}
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("session_id", session.getSessionId());
+		params.put("contact_id", String.valueOf(contactId));
+		params.put("nickname", nickname);
+		apiClient.postAsync("/contacts/add", params, null).whenComplete((json, error) -> {
+			boolean success;
+			String message;
+			if (error != null) {
+				Throwable cause = ApiClient.unwrap(error);
+				Logger.error("Erreur ajout contact: " + cause.getMessage());
+				success = false;
+				message = cause.getMessage() != null && cause.getMessage().startsWith("HTTP ")
+					? "Erreur serveur"
+					: cause.getMessage();
 			} else {
-				if (listener != null) {
-					listener.onAddContactResult(false, "Erreur serveur");
-				}
+				success = "success".equals(json.optString("status"));
+				message = json.optString("message", success ? "Contact ajouté" : "Erreur");
+			}
+			if (success) {
+				// cached results still say is_contact=false for this user
+				contactSearch.invalidate();
 			}
-		} catch (Exception e) {
-			Logger.error("Erreur ajout contact: " + e.getMessage());
 			if (listener != null) {
-				listener.onAddContactResult(false, e.getMessage());
+				SwingUtilities.invokeLater(() -> listener.onAddContactResult(success, message));
 			}
-		}
+		});
 	}
 
 	public static class SearchResult {
@@ -581,205 +879,765 @@ public class ConnectionManager {
 		videoClient.stop();
 	}
 
+	public AudioClient getAudioClient() {
+		return audioClient;
+	}
+
 	public com.securephone.client.video.VideoClient getVideoClient() {
 		return videoClient;
 	}
 
-	private void handleMessage(String message) {
+	// ========== FILE TRANSFER ==========
+
+	/**
+	 * Offers a file to a contact; it is sent once they accept. Returns null
+	 * when transfers are disabled or the file cannot be read.
+	 */
+	public FileTransfer sendFile(String recipient, Path file) {
+		if (!fileTransferEnabled || !session.isLoggedIn()) {
+			return null;
+		}
+		long id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+		FileTransfer transfer;
 		try {
-			ChatPacket packet = ChatPacket.fromJson(message);
-			MessageType type = packet.getType();
-			JSONObject data = packet.getData();
+			transfer = fileTransfers.upload(id, file, fileChunkSize);
+		} catch (IOException e) {
+			Logger.error("❌ Fichier illisible: " + e.getMessage());
+			return null;
+		}
+		synchronized (filePeers) {
+			filePeers.put(id, recipient);
+		}
+		JSONObject data = new JSONObject();
+		data.put("name", file.getFileName().toString());
+		data.put("size", transfer.getSize());
+		data.put("chunk_size", transfer.getChunkSize());
+		sendFileMessage("offer", id, recipient, data);
+		fileExecutor.execute(this::connectFileChannel);
+		Logger.info("📁 Fichier proposé à " + recipient + ": " + transfer);
+		return transfer;
+	}
 
-			if (type == MessageType.LOGIN_RESPONSE) {
-				handleLoginResponse(data);
-				return;
+	/**
+	 * Accepts an offer; a null target saves it under the download directory.
+	 * An unusable name is answered with a reject.
+	 */
+	public FileTransfer acceptFile(long transferId, Path target) {
+		JSONObject offer;
+		synchronized (fileOffers) {
+			offer = fileOffers.remove(transferId);
+		}
+		if (offer == null) {
+			return null;
+		}
+		String sender = offer.optString("sender_name");
+		FileTransfer transfer;
+		try {
+			if (target == null) {
+				// never let the sender pick a path outside the download directory
+				target = FileTransferClient.downloadTarget(downloadDir, offer.optString("name", null));
 			}
+			Files.createDirectories(target.toAbsolutePath().getParent());
+			transfer = fileTransfers.download(transferId, target, offer.optLong("size"),
+				offer.optInt("chunk_size", FileTransferClient.DEFAULT_CHUNK_SIZE));
+		} catch (IOException | IllegalArgumentException e) {
+			Logger.error("❌ Réception du fichier impossible: " + e.getMessage());
+			sendFileMessage("reject", transferId, sender, new JSONObject());
+			return null;
+		}
+		synchronized (filePeers) {
+			filePeers.put(transferId, sender);
+		}
+		sendFileMessage("accept", transferId, sender, new JSONObject());
+		fileExecutor.execute(this::connectFileChannel);
+		return transfer;
+	}
 
-			if (type == MessageType.REGISTER_RESPONSE) {
-				handleRegisterResponse(data);
-				return;
-			}
+	public void rejectFile(long transferId) {
+		JSONObject offer;
+		synchronized (fileOffers) {
+			offer = fileOffers.remove(transferId);
+		}
+		if (offer != null) {
+			sendFileMessage("reject", transferId, offer.optString("sender_name"), new JSONObject());
+		}
+	}
 
-			if (type == MessageType.VERIFY_2FA_RESPONSE) {
-				handleVerify2FAResponse(data);
-				return;
-			}
+	public void cancelTransfer(long transferId) {
+		String peer;
+		synchronized (filePeers) {
+			peer = filePeers.remove(transferId);
+		}
+		// the channel may be down: tell the peer over the chat as well
+		fileTransfers.cancel(transferId);
+		if (peer != null) {
+			sendFileMessage("cancel", transferId, peer, new JSONObject());
+		}
+	}
 
-			if (type == MessageType.TEXT_MESSAGE) {
-				// Check if this is a notification or a regular message
-				String notificationType = data.optString("type", "");
-				if ("message".equals(notificationType)) {
-					// It's a notification
-					if (notificationListener != null) {
-						notificationListener.onNotification("message", 
-							data.optString("title", "Message"),
-							data.optString("message", ""),
-							data);
-					}
-				} else if (!notificationType.isEmpty()) {
-					// It's some other notification
-					if (notificationListener != null) {
-						notificationListener.onNotification(notificationType,
-							data.optString("title", "Notification"),
-							data.optString("message", ""),
-							data);
-					}
-				} else {
-					// Regular chat message
-					String sender = data.optString("sender_name", "inconnu");
-					String content = data.optString("content", "");
-					long timestamp = data.optLong("timestamp", System.currentTimeMillis());
-					ChatMessage chatMessage = new ChatMessage(sender, content, timestamp, "");
-					if (chatListener != null) {
-						chatListener.onMessage(chatMessage);
-					}
-				}
-				return;
-			}
+	public List<FileTransfer> getFileTransfers() {
+		return fileTransfers.getTransfers();
+	}
 
-			if (type == MessageType.CONTACT_REQUEST) {
-				if (notificationListener != null) {
-					notificationListener.onNotification("contact_request",
-						data.optString("title", "Contact Request"),
-						data.optString("message", ""),
-						data);
-				}
-				return;
+	private void handleFileMessage(JSONObject data) {
+		long id = data.optLong("transfer_id", -1);
+		String action = data.optString("action");
+		if (id < 0 || !fileTransferEnabled) {
+			return;
+		}
+		if ("offer".equals(action)) {
+			synchronized (fileOffers) {
+				fileOffers.put(id, data);
+			}
+			FileTransferListener listener = fileTransferListener;
+			if (listener != null) {
+				String sender = data.optString("sender_name");
+				String name = data.optString("name");
+				long size = data.optLong("size");
+				SwingUtilities.invokeLater(() -> listener.onFileOffered(id, sender, name, size));
+			}
+		} else if ("accept".equals(action)) {
+			fileTransfers.start(id);
+		} else if ("reject".equals(action) || "cancel".equals(action)) {
+			synchronized (fileOffers) {
+				fileOffers.remove(id);
+			}
+			synchronized (filePeers) {
+				filePeers.remove(id);
 			}
+			fileTransfers.cancel(id);
+		}
+	}
 
-			if (type == MessageType.CONTACT_ACCEPT) {
-				if (notificationListener != null) {
-					notificationListener.onNotification("contact_accepted",
-						data.optString("title", "Contact Accepted"),
-						data.optString("message", ""),
-						data);
-				}
-				return;
+	private void sendFileMessage(String action, long transferId, String peer, JSONObject data) {
+		ChatPacket packet = new ChatPacket(MessageType.FILE_MESSAGE);
+		data.put("action", action);
+		data.put("transfer_id", transferId);
+		data.put("sender_name", session.getUsername());
+		data.put("receiver_name", peer);
+		packet.setData(data);
+		sendPacket(packet).exceptionally(error -> {
+			Logger.error("Erreur message fichier: " + error.getMessage());
+			return null;
+		});
+	}
+
+	// on fileExecutor: keeps the channel up while some transfer needs it
+	private void connectFileChannel() {
+		if (fileTransfers.isConnected() || !session.isLoggedIn() || !fileTransfers.hasActiveTransfers()) {
+			return;
+		}
+		fileTransfers.configure(host, fileTransferPort, session.getSessionId());
+		fileTransfers.setConnectTimeout(timeoutMs);
+		try {
+			fileTransfers.connect();
+		} catch (IOException e) {
+			Logger.warn("⚠️ Canal de transfert indisponible: " + e.getMessage());
+			fileExecutor.schedule(this::connectFileChannel, ReconnectPolicy.DEFAULT_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void clearFileTransfers() {
+		synchronized (fileOffers) {
+			fileOffers.clear();
+		}
+		synchronized (filePeers) {
+			filePeers.clear();
+		}
+		fileTransfers.clear();
+		fileTransfers.disconnect();
+	}
+
+	// ========== HEARTBEAT ==========
+
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	private void startHeartbeat() {
+		stopHeartbeat();
+		pingOutstanding = false;
+		pongSeen = false;
+		missedPongs = 0;
+		if (pingIntervalMs > 0) {
+			heartbeatTask = connectionExecutor.scheduleAtFixedRate(this::heartbeat,
+				pingIntervalMs, pingIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void stopHeartbeat() {
+		if (heartbeatTask != null) {
+			heartbeatTask.cancel(false);
+			heartbeatTask = null;
+		}
+		if (pingTimeoutTask != null) {
+			pingTimeoutTask.cancel(false);
+			pingTimeoutTask = null;
+		}
+		pingOutstanding = false;
+	}
+
+	private void heartbeat() {
+		// an unanswered ping is already being retried by its timeout
+		if (!pingOutstanding && chatClient.isConnected()) {
+			sendPing();
+		}
+	}
+
+	private void sendPing() {
+		pingId++;
+		pingSentNanos = System.nanoTime();
+		pingOutstanding = true;
+		ChatPacket packet = new ChatPacket(MessageType.PING);
+		packet.getData().put("id", pingId);
+		chatClient.send(packet);
+		long id = pingId;
+		pingTimeoutTask = connectionExecutor.schedule(() -> onPingTimeout(id), pingTimeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * An unanswered ping is retried at once rather than at the next
+	 * interval, so a half-open connection is closed after a couple of
+	 * timeouts. Servers that never answered a PONG on this connection are
+	 * not held to it.
+	 */
+	private void onPingTimeout(long id) {
+		if (!pingOutstanding || id != pingId) {
+			return;
+		}
+		pingOutstanding = false;
+		if (!pongSeen) {
+			return;
+		}
+		if (chatClient.getLastReceivedNanos() - pingSentNanos > 0) {
+			// traffic arrived, the link is alive even if the PONG is late
+			missedPongs = 0;
+		} else {
+			missedPongs++;
+		}
+		if (missedPongs >= MAX_MISSED_PONGS) {
+			Logger.warn("💔 Aucune réponse du serveur après " + missedPongs + " pings, connexion fermée");
+			chatClient.abort();
+			return;
+		}
+		if (chatClient.isConnected()) {
+			sendPing();
+		}
+	}
+
+	private void onPong(long id, long receivedNanos) {
+		if (!pingOutstanding || (id >= 0 && id != pingId)) {
+			return;
+		}
+		pingOutstanding = false;
+		pongSeen = true;
+		missedPongs = 0;
+		if (pingTimeoutTask != null) {
+			pingTimeoutTask.cancel(false);
+			pingTimeoutTask = null;
+		}
+		rttEstimator.record((receivedNanos - pingSentNanos) / 1_000_000.0);
+		audioClient.setRttVariation(rttEstimator.getVariationMs());
+		videoClient.setNetworkRtt(rttEstimator.getSmoothedMs(), rttEstimator.getMinMs());
+		Logger.debug("📶 " + rttEstimator);
+	}
+
+	// ========== RECONNECT ==========
+
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	// tests point the manager at a local server
+	void setServer(String host, int chatPort, ReconnectPolicy policy) {
+		this.host = host;
+		this.chatPort = chatPort;
+		this.reconnectPolicy = policy;
+	}
+
+	WebSocketClient getChatClient() {
+		return chatClient;
+	}
+
+	/**
+	 * Sends a packet of the logged-in session. While the connection is being
+	 * restored, or if it drops under the packet, the packet waits in the
+	 * replay queue and goes out after the session is resumed.
+	 */
+	private CompletableFuture<Void> sendPacket(ChatPacket packet) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		CompletableFuture<Void> sent;
+		synchronized (replayQueue) {
+			if (reconnecting) {
+				enqueueReplay(new PendingPacket(packet, result));
+				return result;
 			}
+			sent = chatClient.send(packet);
+		}
+		forward(sent, packet, result);
+		return result;
+	}
 
-			if (type == MessageType.CONTACT_REJECT) {
-				if (notificationListener != null) {
-					notificationListener.onNotification("contact_rejected",
-						data.optString("title", "Contact Rejected"),
-						data.optString("message", ""),
-						data);
-				}
+	private void forward(CompletableFuture<Void> sent, ChatPacket packet, CompletableFuture<Void> result) {
+		sent.whenComplete((ignored, error) -> {
+			if (error == null) {
+				result.complete(null);
 				return;
 			}
-
-			if (type == MessageType.CONTACT_LIST) {
-				JSONArray array = data.optJSONArray("contacts");
-				List<Contact> contacts = new ArrayList<>();
-				if (array != null) {
-					for (int i = 0; i < array.length(); i++) {
-						JSONObject obj = array.getJSONObject(i);
-						String id = String.valueOf(obj.optInt("id"));
-						String name = obj.optString("username");
-						String status = obj.optString("status", "offline");
-						contacts.add(new Contact(id, name, "", status, ""));
-					}
+			boolean started = false;
+			boolean queued = false;
+			synchronized (replayQueue) {
+				// the writer may fail its packets before onDisconnected has run:
+				// whoever sees the connection down first starts the reconnect
+				if (!reconnecting && !chatClient.isConnected()) {
+					started = beginReconnect();
 				}
-				if (contactListener != null) {
-					contactListener.onContactList(contacts);
+				if (reconnecting) {
+					enqueueReplay(new PendingPacket(packet, result));
+					queued = true;
 				}
-				return;
 			}
+			if (started) {
+				connectionExecutor.execute(() -> onConnectionLost(true));
+			}
+			if (!queued) {
+				result.completeExceptionally(error);
+			}
+		});
+	}
 
-			if (type == MessageType.ERROR) {
-				String error = data.optString("message", "Erreur");
-				if (errorListener != null) {
-					errorListener.onError(error);
-				}
-				return;
+	// guarded by replayQueue
+	private void enqueueReplay(PendingPacket pending) {
+		if (replayQueue.size() >= REPLAY_QUEUE_CAPACITY) {
+			replayQueue.pollFirst().future.completeExceptionally(new IOException("File de reprise pleine"));
+		}
+		replayQueue.addLast(pending);
+	}
+
+	// called on the thread that saw the connection drop
+	private boolean beginReconnect() {
+		if (resuming || !session.isLoggedIn() || reconnectPolicy.getMaxAttempts() == 0) {
+			return false;
+		}
+		synchronized (replayQueue) {
+			if (reconnecting) {
+				return false;
 			}
+			reconnecting = true;
+			return true;
+		}
+	}
 
-		if (type == MessageType.CALL_INITIATE) {
-			currentCallId = data.optString("callId");
-			currentCallRemoteUser = data.optString("callerName");
-			currentCallType = data.optString("callType");
-			Logger.info("📞 Appel entrant de " + currentCallRemoteUser + " (" + currentCallType + ")");
-			Logger.info("   Call ID: " + currentCallId);
-			if (callListener != null) {
-				Logger.info("   Callback d'appel entrant en cours...");
-				callListener.onCallIncoming(currentCallRemoteUser);
-			} else {
-				Logger.error("   ❌ callListener est NULL!");
+	private void onConnectionLost(boolean started) {
+		if (resuming) {
+			// dropped again before the server confirmed the session
+			resuming = false;
+			cancelReconnectTask();
+			scheduleReconnect();
+			return;
+		}
+		// not ours to start, or stopped by a logout in the meantime
+		if (!started || !reconnecting) {
+			return;
+		}
+		reconnectAttempt = 0;
+		Logger.warn("⚠️ Connexion chat perdue, reconnexion en cours...");
+		if (statusListener != null) {
+			statusListener.onStatus("reconnexion");
+		}
+		scheduleReconnect();
+	}
+
+	private void scheduleReconnect() {
+		if (!reconnecting) {
+			return;
+		}
+		int maxAttempts = reconnectPolicy.getMaxAttempts();
+		if (reconnectAttempt >= maxAttempts) {
+			abandonReconnect("Reconnexion impossible après " + maxAttempts + " tentatives");
+			return;
+		}
+		long delay = reconnectPolicy.nextDelayMs(reconnectAttempt);
+		Logger.info("🔄 Reconnexion dans " + delay + " ms (tentative " + (reconnectAttempt + 1) + "/" + maxAttempts + ")");
+		reconnectTask = connectionExecutor.schedule(this::attemptReconnect, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void attemptReconnect() {
+		if (!reconnecting) {
+			return;
+		}
+		reconnectAttempt++;
+		try {
+			chatClient.connect(host, chatPort, timeoutMs);
+		} catch (Exception e) {
+			Logger.warn("⚠️ Reconnexion échouée: " + e.getMessage());
+			scheduleReconnect();
+			return;
+		}
+		resumeSession();
+	}
+
+	/**
+	 * Re-authenticates the new connection with the existing session id
+	 * instead of the user's credentials.
+	 */
+	private void resumeSession() {
+		if (!reconnecting) {
+			chatClient.disconnect();
+			return;
+		}
+		resuming = true;
+		ChatPacket packet = new ChatPacket(MessageType.LOGIN_REQUEST);
+		JSONObject data = new JSONObject();
+		data.put("session_id", session.getSessionId());
+		data.put("username", session.getUsername());
+		data.put("resume", true);
+		packet.setData(data);
+		chatClient.send(packet);
+		reconnectTask = connectionExecutor.schedule(() -> {
+			if (resuming) {
+				Logger.warn("⚠️ Pas de réponse à la reprise de session");
+				resuming = false;
+				chatClient.disconnect();
+				scheduleReconnect();
 			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void handleResumeResponse(JSONObject data) {
+		if (!resuming) {
+			return;
+		}
+		resuming = false;
+		cancelReconnectTask();
+		if (!"success".equals(data.optString("status", "error"))) {
+			session = new UserSession();
+			abandonReconnect("Session expirée, veuillez vous reconnecter");
 			return;
 		}
 
-		if (type == MessageType.CALL_ACCEPT) {
-			String accepterName = data.optString("accepterName");
-			String acceptedType = data.optString("acceptedType");
-			Logger.info("✅ Appel accepté par " + accepterName + " (" + acceptedType + ")");
-			if (callListener != null) {
-				Logger.info("   Callback d'appel accepté en cours...");
-				callListener.onCallAccepted();
+		String sessionId = data.optString("session_id", session.getSessionId());
+		int userId = data.optInt("user_id", session.getUserId());
+		String username = data.optString("username", session.getUsername());
+		session = new UserSession(sessionId, userId, username);
+
+		List<PendingPacket> replay;
+		synchronized (replayQueue) {
+			reconnecting = false;
+			replay = new ArrayList<>(replayQueue);
+			replayQueue.clear();
+			// still under the lock so new packets cannot overtake the replayed ones
+			for (PendingPacket pending : replay) {
+				forward(chatClient.send(pending.packet), pending.packet, pending.future);
+			}
+		}
+		Logger.info("✅ Session reprise après " + reconnectAttempt + " tentative(s), " + replay.size() + " message(s) renvoyé(s)");
+		if (statusListener != null) {
+			statusListener.onStatus("connecte");
+		}
+		// catch up on contact changes missed while offline
+		requestContacts();
+		if (fileTransfers.hasActiveTransfers()) {
+			fileExecutor.execute(this::connectFileChannel);
+		}
+	}
+
+	private void abandonReconnect(String reason) {
+		failReplayQueue(new IOException(reason));
+		Logger.error("❌ " + reason);
+		if (errorListener != null) {
+			errorListener.onError(reason);
+		}
+		if (statusListener != null) {
+			statusListener.onStatus("deconnecte");
+		}
+	}
+
+	private void stopReconnect() {
+		resuming = false;
+		cancelReconnectTask();
+		failReplayQueue(new IOException("Déconnecté"));
+	}
+
+	private void failReplayQueue(IOException error) {
+		List<PendingPacket> dropped;
+		synchronized (replayQueue) {
+			reconnecting = false;
+			dropped = new ArrayList<>(replayQueue);
+			replayQueue.clear();
+		}
+		for (PendingPacket pending : dropped) {
+			pending.future.completeExceptionally(error);
+		}
+	}
+
+	private void cancelReconnectTask() {
+		ScheduledFuture<?> task = reconnectTask;
+		if (task != null) {
+			task.cancel(false);
+		}
+	}
+
+	/**
+	 * Inbound routing. Call signalling runs on the dispatch worker because
+	 * it starts and stops media, which must not hold up the read thread.
+	 * So do login replies, which derive the history key and open the log,
+	 * and chat messages, which write through to it: on the same worker
+	 * they stay ordered behind the log being opened. The rest only parses
+	 * and notifies listeners.
+	 */
+	private void registerHandlers() {
+		dispatcher.subscribe(MessageType.PONG, MessageDispatcher.Context.INLINE, packet -> {
+			long receivedNanos = System.nanoTime();
+			long id = packet.getData().optLong("id", -1);
+			connectionExecutor.execute(() -> onPong(id, receivedNanos));
+		});
+		dispatcher.subscribe(MessageType.PING, MessageDispatcher.Context.INLINE,
+			packet -> chatClient.send(new ChatPacket(MessageType.PONG, packet.getData())));
+		dispatcher.subscribe(MessageType.LOGIN_RESPONSE, MessageDispatcher.Context.WORKER, packet -> {
+			JSONObject data = packet.getData();
+			if (resuming) {
+				connectionExecutor.execute(() -> handleResumeResponse(data));
 			} else {
-				Logger.error("   ❌ callListener est NULL!");
+				handleLoginResponse(data);
 			}
-			// Start audio/video based on accepted type
-			try {
-				Logger.info("🎵 Démarrage flux " + acceptedType + " vers " + host + ":" + ("audio".equals(acceptedType) ? audioPort : videoPort));
-				if ("audio".equals(acceptedType)) {
-					Logger.info("   Configuring audio client...");
-					audioClient.configure(host, audioPort, session.getUserId());
-					Logger.info("   Starting audio receive...");
-					audioClient.startReceiving();
-					Logger.info("   Starting audio capture...");
-					audioClient.startCapture();
-					Logger.info("✅ Flux audio démarré");
-				} else if ("video".equals(acceptedType)) {
-					Logger.info("   Configuring video client...");
-					videoClient.configure(host, videoPort, session.getUserId());
-					Logger.info("   Starting video...");
-					videoClient.start();
-					Logger.info("✅ Flux vidéo démarré");
-				}
-			} catch (Exception e) {
-				Logger.error("❌ Erreur démarrage média: " + e.getMessage());
-				e.printStackTrace();
+		});
+		dispatcher.subscribe(MessageType.REGISTER_RESPONSE, MessageDispatcher.Context.INLINE,
+			packet -> handleRegisterResponse(packet.getData()));
+		dispatcher.subscribe(MessageType.VERIFY_2FA_RESPONSE, MessageDispatcher.Context.WORKER,
+			packet -> handleVerify2FAResponse(packet.getData()));
+		dispatcher.subscribe(MessageType.TEXT_MESSAGE, MessageDispatcher.Context.WORKER,
+			packet -> handleTextMessage(packet.getData()));
+		dispatcher.subscribe(MessageType.CONTACT_REQUEST, MessageDispatcher.Context.INLINE,
+			packet -> notifyContactEvent("contact_request", "Contact Request", packet.getData()));
+		dispatcher.subscribe(MessageType.CONTACT_ACCEPT, MessageDispatcher.Context.INLINE, packet -> {
+			notifyContactEvent("contact_accepted", "Contact Accepted", packet.getData());
+			requestContacts();
+		});
+		dispatcher.subscribe(MessageType.CONTACT_REMOVE, MessageDispatcher.Context.INLINE,
+			packet -> applyContactEvent(ContactStore.Op.REMOVE, packet.getData()));
+		dispatcher.subscribe(MessageType.CONTACT_REJECT, MessageDispatcher.Context.INLINE,
+			packet -> notifyContactEvent("contact_rejected", "Contact Rejected", packet.getData()));
+		dispatcher.subscribe(MessageType.CONTACT_LIST, MessageDispatcher.Context.INLINE,
+			packet -> handleContactList(packet.getData()));
+		dispatcher.subscribe(MessageType.USER_STATUS_UPDATE, MessageDispatcher.Context.INLINE,
+			packet -> applyContactEvent(ContactStore.Op.STATUS, packet.getData()));
+		dispatcher.subscribe(MessageType.PRESENCE_UPDATE, MessageDispatcher.Context.INLINE,
+			packet -> applyContactEvent(ContactStore.Op.STATUS, packet.getData()));
+		dispatcher.subscribe(MessageType.ERROR, MessageDispatcher.Context.INLINE, packet -> {
+			if (errorListener != null) {
+				errorListener.onError(packet.getData().optString("message", "Erreur"));
+			}
+		});
+		dispatcher.subscribe(MessageType.CALL_INITIATE, MessageDispatcher.Context.WORKER,
+			packet -> handleCallInitiate(packet.getData()));
+		dispatcher.subscribe(MessageType.CALL_ACCEPT, MessageDispatcher.Context.WORKER,
+			packet -> handleCallAccept(packet.getData()));
+		dispatcher.subscribe(MessageType.CALL_REJECT, MessageDispatcher.Context.WORKER,
+			packet -> handleCallReject(packet.getData()));
+		dispatcher.subscribe(MessageType.CALL_END, MessageDispatcher.Context.WORKER,
+			packet -> handleCallEnd(packet.getData()));
+		dispatcher.subscribe(MessageType.FILE_MESSAGE, MessageDispatcher.Context.WORKER,
+			packet -> handleFileMessage(packet.getData()));
+	}
+
+	private void handleTextMessage(JSONObject data) {
+		// Check if this is a notification or a regular message
+		String notificationType = data.optString("type", "");
+		if ("message".equals(notificationType)) {
+			// It's a notification
+			if (notificationListener != null) {
+				notificationListener.onNotification("message", 
+					data.optString("title", "Message"),
+					data.optString("message", ""),
+					data);
+			}
+		} else if (!notificationType.isEmpty()) {
+			// It's some other notification
+			if (notificationListener != null) {
+				notificationListener.onNotification(notificationType,
+					data.optString("title", "Notification"),
+					data.optString("message", ""),
+					data);
+			}
+		} else {
+			// Regular chat message
+			String sender = data.optString("sender_name", "inconnu");
+			String content = data.optString("content", "");
+			long timestamp = data.optLong("timestamp", System.currentTimeMillis());
+			ChatMessage chatMessage = new ChatMessage(sender, content, timestamp, "");
+			if (chatListener != null) {
+				chatListener.onMessage(chatMessage);
 			}
-			return;
 		}
+	}
+
+	private void notifyContactEvent(String kind, String defaultTitle, JSONObject data) {
+		if (notificationListener != null) {
+			notificationListener.onNotification(kind,
+				data.optString("title", defaultTitle),
+				data.optString("message", ""),
+				data);
+		}
+	}
 
-		if (type == MessageType.CALL_REJECT) {
-			String reason = data.optString("reason", "Non spécifiée");
-			Logger.info("❌ Appel rejeté: " + reason);
-			currentCallId = null;
-			currentCallType = null;
-			currentCallRemoteUser = null;
-			if (callListener != null) {
-				callListener.onCallRejected(reason);
+	/**
+	 * A CONTACT_LIST is either the full list, or with "changes" the deltas
+	 * from version "since" to "version". A delta we cannot apply in order
+	 * triggers a catch-up from our cursor.
+	 */
+	private void handleContactList(JSONObject data) {
+		JSONArray changes = data.optJSONArray("changes");
+		if (changes == null) {
+			List<Contact> contacts = new ArrayList<>();
+			JSONArray array = data.optJSONArray("contacts");
+			if (array != null) {
+				for (int i = 0; i < array.length(); i++) {
+					contacts.add(parseContact(array.getJSONObject(i)));
+				}
 			}
+			contactStore.applySnapshot(data.optLong("version", 0), contacts);
 			return;
 		}
+		List<ContactStore.Change> parsed = new ArrayList<>();
+		for (int i = 0; i < changes.length(); i++) {
+			JSONObject change = changes.getJSONObject(i);
+			parsed.add(new ContactStore.Change(parseOp(change.optString("op")), parseContact(change)));
+		}
+		applyVersioned(data.optLong("since", 0), data.optLong("version", 0), parsed);
+	}
 
-		if (type == MessageType.CALL_END) {
-			String endedBy = data.optString("endedBy");
-			Logger.info("🔴 Appel terminé par " + endedBy);
-			try {
-				Logger.info("   Arrêt flux audio...");
-				audioClient.stopReceiving();
-				audioClient.stopCapture();
-				Logger.info("   Arrêt flux vidéo...");
-				videoClient.stop();
-				Logger.info("✅ Arrêt flux complet");
-			} catch (Exception e) {
-				Logger.error("❌ Erreur arrêt média: " + e.getMessage());
+	// single-contact events: versioned ones advance the cursor by one
+	private void applyContactEvent(ContactStore.Op op, JSONObject data) {
+		List<ContactStore.Change> changes = new ArrayList<>();
+		changes.add(new ContactStore.Change(op, parseContact(data)));
+		if (data.has("version") && op != ContactStore.Op.STATUS) {
+			long version = data.optLong("version");
+			applyVersioned(version - 1, version, changes);
+		} else {
+			contactStore.applyUnversioned(changes);
+		}
+	}
+
+	private void applyVersioned(long since, long version, List<ContactStore.Change> changes) {
+		ContactStore.Result result = contactStore.applyDelta(since, version, changes);
+		if (result == ContactStore.Result.GAP) {
+			Logger.warn("⚠️ Deltas contacts manquants (v" + contactStore.getVersion() + " -> v" + since + "), resynchronisation");
+			requestContacts();
+		}
+	}
+
+	private static Contact parseContact(JSONObject obj) {
+		String id = "";
+		for (String field : new String[] {"id", "user_id", "contact_id"}) {
+			if (obj.has(field)) {
+				id = String.valueOf(obj.optInt(field));
+				break;
 			}
-			currentCallId = null;
-			currentCallType = null;
-			currentCallRemoteUser = null;
-			if (callListener != null) {
-				callListener.onCallEnded();
+		}
+		String name = obj.optString("username", obj.optString("name", id));
+		String status = obj.optString("status", "offline");
+		return new Contact(id, name, "", status, "");
+	}
+
+	private static ContactStore.Op parseOp(String op) {
+		switch (op) {
+			case "remove":
+				return ContactStore.Op.REMOVE;
+			case "status":
+				return ContactStore.Op.STATUS;
+			default:
+				return ContactStore.Op.UPSERT;
+		}
+	}
+
+	private void handleCallInitiate(JSONObject data) {
+		currentCallId = data.optString("callId");
+		currentCallRemoteUser = data.optString("callerName");
+		currentCallType = data.optString("callType");
+		clearMediaKeys();
+		String mediaKey = data.optString("mediaKey", "");
+		remoteMediaKey = mediaKey.isEmpty() ? null : mediaKey;
+		remoteAudioCodec = data.optString("audioCodec", null);
+		Logger.info("📞 Appel entrant de " + currentCallRemoteUser + " (" + currentCallType + ")");
+		Logger.info("   Call ID: " + currentCallId);
+		if (callListener != null) {
+			Logger.info("   Callback d'appel entrant en cours...");
+			callListener.onCallIncoming(currentCallRemoteUser);
+		} else {
+			Logger.error("   ❌ callListener est NULL!");
+		}
+	}
+
+	private void handleCallAccept(JSONObject data) {
+		String accepterName = data.optString("accepterName");
+		String acceptedType = data.optString("acceptedType");
+		Logger.info("✅ Appel accepté par " + accepterName + " (" + acceptedType + ")");
+		if (callListener != null) {
+			Logger.info("   Callback d'appel accepté en cours...");
+			callListener.onCallAccepted();
+		} else {
+			Logger.error("   ❌ callListener est NULL!");
+		}
+		// encode with an engine the peer can decode
+		audioClient.getCodec().negotiate(data.optString("audioCodec", null));
+		String mediaKey = data.optString("mediaKey", "");
+		installMediaKeys(mediaKey.isEmpty() ? null : mediaKey, true);
+		// Start audio/video based on accepted type
+		try {
+			Logger.info("🎵 Démarrage flux " + acceptedType + " vers " + host + ":" + ("audio".equals(acceptedType) ? audioPort : videoPort));
+			if ("audio".equals(acceptedType)) {
+				Logger.info("   Configuring audio client...");
+				audioClient.configure(host, audioPort, session.getUserId());
+				Logger.info("   Starting audio receive...");
+				audioClient.startReceiving();
+				Logger.info("   Starting audio capture...");
+				audioClient.startCapture();
+				Logger.info("✅ Flux audio démarré");
+			} else if ("video".equals(acceptedType)) {
+				Logger.info("   Configuring video client...");
+				videoClient.configure(host, videoPort, session.getUserId());
+				Logger.info("   Starting video...");
+				videoClient.start();
+				Logger.info("✅ Flux vidéo démarré");
 			}
-			return;
+		} catch (Exception e) {
+			Logger.error("❌ Erreur démarrage média: " + e.getMessage());
+			e.printStackTrace();
 		}
+	}
 
+	private void handleCallReject(JSONObject data) {
+		String reason = data.optString("reason", "Non spécifiée");
+		Logger.info("❌ Appel rejeté: " + reason);
+		clearMediaKeys();
+		currentCallId = null;
+		currentCallType = null;
+		currentCallRemoteUser = null;
+		if (callListener != null) {
+			callListener.onCallRejected(reason);
+		}
+	}
+
+	private void handleCallEnd(JSONObject data) {
+		String endedBy = data.optString("endedBy");
+		Logger.info("🔴 Appel terminé par " + endedBy);
+		try {
+			Logger.info("   Arrêt flux audio...");
+			audioClient.stopReceiving();
+			audioClient.stopCapture();
+			Logger.info("   Arrêt flux vidéo...");
+			videoClient.stop();
+			Logger.info("✅ Arrêt flux complet");
 		} catch (Exception e) {
-			Logger.error("Erreur traitement message: " + e.getMessage());
+			Logger.error("❌ Erreur arrêt média: " + e.getMessage());
+		}
+		clearMediaKeys();
+		currentCallId = null;
+		currentCallType = null;
+		currentCallRemoteUser = null;
+		if (callListener != null) {
+			callListener.onCallEnded();
 		}
 	}
 
@@ -796,6 +1654,7 @@ public class ConnectionManager {
 		}
 
 		if (!"success".equals(status)) {
+			pendingPassword = null;
 			if (authListener != null) {
 				authListener.onLoginFailed(data.optString("message", "Erreur login"));
 			}
@@ -806,12 +1665,43 @@ public class ConnectionManager {
 		int userId = data.optInt("user_id");
 		String username = data.optString("username");
 		session = new UserSession(sessionId, userId, username);
+		openMessageLog(username);
 
 		if (authListener != null) {
 			authListener.onLoginSuccess(session);
 		}
 	}
 
+	// before onLoginSuccess, so the UI's first history page comes from disk
+	private void openMessageLog(String username) {
+		String password = pendingPassword;
+		pendingPassword = null;
+		if (!storageEnabled || password == null || username == null || username.isEmpty()) {
+			return;
+		}
+		closeMessageLog();
+		Path root = storageDir.resolve(MessageLog.directoryName(username)).resolve("messages");
+		try {
+			messageLog = new MessageLog(root, MessageLog.deriveKey(root, password),
+				storageSegmentSize, storageFsyncIntervalMs);
+			Logger.info("💾 Historique local ouvert");
+		} catch (Exception e) {
+			Logger.error("❌ Historique local indisponible: " + e.getMessage());
+		}
+	}
+
+	private void closeMessageLog() {
+		MessageLog log = messageLog;
+		messageLog = null;
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				Logger.error("Erreur fermeture historique: " + e.getMessage());
+			}
+		}
+	}
+
 	private void handleRegisterResponse(JSONObject data) {
 		String status = data.optString("status", "error");
 		if ("success".equals(status)) {
@@ -832,6 +1722,7 @@ public class ConnectionManager {
 			int userId = data.optInt("user_id");
 			String username = data.optString("username");
 			session = new UserSession(sessionId, userId, username);
+			openMessageLog(username);
 
 			if (authListener != null) {
 				authListener.onLoginSuccess(session);
@@ -853,6 +1744,17 @@ public class ConnectionManager {
 
 		host = props.getProperty("server.host", host);
 		timeoutMs = parseInt(props.getProperty("websocket.timeout"), timeoutMs);
+		pingIntervalMs = parseInt(props.getProperty("websocket.ping.interval"), pingIntervalMs);
+		pingTimeoutMs = parseInt(props.getProperty("websocket.ping.timeout"), pingTimeoutMs);
+		reconnectPolicy = new ReconnectPolicy(
+			parseInt(props.getProperty("websocket.reconnect.attempts"), ReconnectPolicy.DEFAULT_MAX_ATTEMPTS),
+			parseInt(props.getProperty("websocket.reconnect.delay"), (int) ReconnectPolicy.DEFAULT_DELAY_MS),
+			parseDouble(props.getProperty("network.retry.backoff.multiplier"), ReconnectPolicy.DEFAULT_MULTIPLIER));
+		chatClient.setTcpNoDelay(Boolean.parseBoolean(props.getProperty("network.tcp.no.delay", "true").trim()));
+		chatClient.setWriteTimeout(parseInt(props.getProperty("network.timeout.write"), 5000));
+		chatClient.setPreferredFraming("binary".equalsIgnoreCase(props.getProperty("websocket.framing", "json").trim())
+			? WebSocketClient.Framing.BINARY
+			: WebSocketClient.Framing.JSON);
 
 		String wsUrl = props.getProperty("websocket.url", "ws://" + host + ":" + chatPort + "/chat");
 		try {
@@ -869,7 +1771,118 @@ public class ConnectionManager {
 
 		audioPort = parseInt(props.getProperty("udp.audio.port.start"), audioPort);
 		videoPort = parseInt(props.getProperty("udp.video.port.start"), videoPort);
+		audioLatencyTargetMs = parseInt(props.getProperty("audio.latency.target"), audioLatencyTargetMs);
+		audioClient.setLatencyTarget(audioLatencyTargetMs);
+		audioClient.setCodecSettings(
+			parseInt(props.getProperty("audio.bitrate"), 64000),
+			parseInt(props.getProperty("audio.frame.size"), 960),
+			Boolean.parseBoolean(props.getProperty("audio.fec.enabled", "true")),
+			Boolean.parseBoolean(props.getProperty("audio.dtx.enabled", "false")));
+		String[] resolution = props.getProperty("video.resolution", "640x480").split("x");
+		if (resolution.length == 2) {
+			videoClient.setVideoSettings(
+				parseInt(resolution[0], 640),
+				parseInt(resolution[1], 480),
+				parseInt(props.getProperty("video.framerate"), 15));
+		}
+		videoClient.setMtu(parseInt(props.getProperty("udp.mtu"), 1500));
+		videoClient.setReassemblyTimeout(parseInt(props.getProperty("video.reassembly.timeout"), 500));
+		videoClient.setCodecSettings(
+			parseInt(props.getProperty("video.bitrate"), 2000000),
+			parseInt(props.getProperty("video.keyframe.interval"), 60));
+		mediaTransport.setSocketBufferSizes(
+			parseInt(props.getProperty("udp.send.buffer.size"), 0),
+			parseInt(props.getProperty("udp.receive.buffer.size"), 0));
 		enableTwoFaByDefault = Boolean.parseBoolean(props.getProperty("security.2fa.enabled", "true"));
+
+		apiPort = parseInt(props.getProperty("server.port"), apiPort);
+		apiClient = new ApiClient("http://" + host + ":" + apiPort + "/api",
+			parseInt(props.getProperty("network.timeout.connection"), ApiClient.DEFAULT_CONNECT_TIMEOUT_MS),
+			parseInt(props.getProperty("network.timeout.read"), ApiClient.DEFAULT_READ_TIMEOUT_MS));
+		contactSearch = new ContactSearchService(this::fetchSearchResults,
+			ContactSearchService.DEFAULT_DEBOUNCE_MS,
+			Boolean.parseBoolean(props.getProperty("cache.enabled", "true").trim()),
+			parseInt(props.getProperty("cache.max.size"), ContactSearchService.DEFAULT_MAX_ENTRIES),
+			parseInt(props.getProperty("cache.ttl"), (int) ContactSearchService.DEFAULT_TTL_MS));
+		messageStore = new MessageStore(
+			Math.max(1, parseInt(props.getProperty("ui.chat.history.window"), MessageStore.DEFAULT_WINDOW)),
+			Math.max(1, parseInt(props.getProperty("ui.chat.history.page.size"), MessageStore.DEFAULT_PAGE_SIZE)));
+		// the store writes through to the log and pages older history from it
+		messageStore.addListener(new MessageStore.Listener() {
+			@Override
+			public void onAppended(String conversation, ChatMessage message, boolean evictedOldest) {
+				MessageLog log = messageLog;
+				if (log != null && message.getSequence() < 0) {
+					try {
+						log.append(conversation, message);
+					} catch (IOException e) {
+						Logger.error("Erreur écriture historique: " + e.getMessage());
+					}
+				}
+			}
+
+			@Override
+			public void onPrepended(String conversation, int count, int evictedNewest) {
+			}
+
+			@Override
+			public void onNewerLoaded(String conversation, int count, int evictedOldest) {
+			}
+		});
+		messageStore.setHistoryLoader(new MessageStore.HistoryLoader() {
+			@Override
+			public List<ChatMessage> loadBefore(String conversation, ChatMessage oldest, int limit) {
+				MessageLog log = messageLog;
+				if (log == null || (oldest != null && oldest.getSequence() < 0)) {
+					return new ArrayList<>();
+				}
+				try {
+					return log.readBefore(conversation, oldest != null ? oldest.getSequence() : -1, limit);
+				} catch (IOException e) {
+					Logger.error("Erreur lecture historique: " + e.getMessage());
+					return new ArrayList<>();
+				}
+			}
+
+			@Override
+			public List<ChatMessage> loadAfter(String conversation, ChatMessage newest, int limit) {
+				MessageLog log = messageLog;
+				if (log == null || newest.getSequence() < 0) {
+					return new ArrayList<>();
+				}
+				try {
+					return log.readAfter(conversation, newest.getSequence(), limit);
+				} catch (IOException e) {
+					Logger.error("Erreur lecture historique: " + e.getMessage());
+					return new ArrayList<>();
+				}
+			}
+		});
+		mediaEncryption = Boolean.parseBoolean(props.getProperty("experimental.e2e.encryption", "false").trim());
+		mediaRekeyPackets = parseInt(props.getProperty("security.media.rekey.packets"), (int) KeySchedule.DEFAULT_PACKET_BUDGET);
+		mediaRekeyIntervalMs = parseInt(props.getProperty("security.media.rekey.interval"), (int) KeySchedule.DEFAULT_TIME_BUDGET_MS);
+		storageEnabled = Boolean.parseBoolean(props.getProperty("storage.enabled", "true").trim());
+		String dataDir = props.getProperty("storage.data.dir", "").trim();
+		storageDir = dataDir.isEmpty() ? Paths.get(System.getProperty("user.home"), ".securephone") : Paths.get(dataDir);
+		storageSegmentSize = parseInt(props.getProperty("storage.segment.size"), (int) MessageLog.DEFAULT_SEGMENT_SIZE);
+		storageFsyncIntervalMs = parseInt(props.getProperty("storage.fsync.interval"), (int) MessageLog.DEFAULT_FSYNC_INTERVAL_MS);
+		fileTransferEnabled = Boolean.parseBoolean(props.getProperty("experimental.file.transfer", "false").trim());
+		fileTransferPort = parseInt(props.getProperty("file.transfer.port"), fileTransferPort);
+		fileChunkSize = parseInt(props.getProperty("file.transfer.chunk.size"), fileChunkSize);
+		fileTransfers.setWindow(parseInt(props.getProperty("file.transfer.window"), FileTransferClient.DEFAULT_WINDOW_CHUNKS));
+		String fileDir = props.getProperty("file.transfer.dir", "").trim();
+		downloadDir = fileDir.isEmpty() ? Paths.get(System.getProperty("user.home"), "Downloads") : Paths.get(fileDir);
+	}
+
+	private double parseDouble(String value, double fallback) {
+		if (value == null) {
+			return fallback;
+		}
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			return fallback;
+		}
 	}
 
 	private int parseInt(String value, int fallback) {
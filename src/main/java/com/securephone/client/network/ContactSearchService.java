@@ -0,0 +1,267 @@
+package com.securephone.client.network;
+
+import com.securephone.client.network.ConnectionManager.SearchResult;
+import com.securephone.client.network.ConnectionManager.SearchResultListener;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Contact search as the user types.
+ *
+ * Keystrokes are debounced, and a newer query supersedes the pending or
+ * in-flight one, whose results are then dropped. Results are kept in an
+ * LRU cache with a TTL. A query that refines a cached one (same prefix)
+ * is answered by filtering the cached list when that list is complete,
+ * i.e. shorter than what the server may truncate to.
+ */
+public class ContactSearchService {
+
+	public static final long DEFAULT_DEBOUNCE_MS = 250;
+	public static final int DEFAULT_MAX_ENTRIES = 100;
+	public static final long DEFAULT_TTL_MS = 300000;
+	/** Lists this long may have been cut by the server, so refinements are fetched again. */
+	public static final int DEFAULT_TRUNCATION_LIMIT = 20;
+
+	private static final class CacheEntry {
+		final List<SearchResult> results;
+		final long storedNanos;
+
+		CacheEntry(List<SearchResult> results, long storedNanos) {
+			this.results = results;
+			this.storedNanos = storedNanos;
+		}
+	}
+
+	private final Function<String, CompletableFuture<List<SearchResult>>> fetcher;
+	private final long debounceMs;
+	private final boolean cacheEnabled;
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final int truncationLimit;
+	private final LongSupplier clock;
+
+	private final Map<String, CacheEntry> cache;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ContactSearchThread");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// guarded by this
+	private long generation;
+	private ScheduledFuture<?> pendingTask;
+	private CompletableFuture<List<SearchResult>> inFlight;
+	private long hits;
+	private long misses;
+	private long requests;
+
+	public ContactSearchService(Function<String, CompletableFuture<List<SearchResult>>> fetcher,
+			long debounceMs, boolean cacheEnabled, int maxEntries, long ttlMs) {
+		this(fetcher, debounceMs, cacheEnabled, maxEntries, ttlMs, DEFAULT_TRUNCATION_LIMIT, System::nanoTime);
+	}
+
+	ContactSearchService(Function<String, CompletableFuture<List<SearchResult>>> fetcher,
+			long debounceMs, boolean cacheEnabled, int maxEntries, long ttlMs,
+			int truncationLimit, LongSupplier clock) {
+		this.fetcher = fetcher;
+		this.debounceMs = Math.max(0, debounceMs);
+		this.cacheEnabled = cacheEnabled && maxEntries > 0 && ttlMs > 0;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMs));
+		this.truncationLimit = Math.max(1, truncationLimit);
+		this.clock = clock;
+		this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > ContactSearchService.this.maxEntries;
+			}
+		};
+	}
+
+	/** Debounced search, for keystrokes. The listener runs on the EDT, only for the latest query. */
+	public void search(String query, SearchResultListener listener) {
+		submit(query, listener, debounceMs);
+	}
+
+	/** Immediate search, for Enter or the search button. */
+	public void searchNow(String query, SearchResultListener listener) {
+		submit(query, listener, 0);
+	}
+
+	/** Drops the pending and in-flight queries; their listeners will not be called. */
+	public synchronized void cancel() {
+		generation++;
+		cancelPending();
+	}
+
+	/** Forgets cached results, e.g. after a contact was added or the session changed. */
+	public synchronized void invalidate() {
+		cache.clear();
+	}
+
+	public void shutdown() {
+		cancel();
+		scheduler.shutdownNow();
+	}
+
+	public synchronized long getCacheHits() {
+		return hits;
+	}
+
+	public synchronized long getCacheMisses() {
+		return misses;
+	}
+
+	/** Queries actually sent to the server. */
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	public synchronized int getCacheSize() {
+		return cache.size();
+	}
+
+	private void submit(String query, SearchResultListener listener, long delayMs) {
+		String key = normalize(query);
+		List<SearchResult> cached;
+		long id;
+		synchronized (this) {
+			id = ++generation;
+			cancelPending();
+			if (key.isEmpty()) {
+				return;
+			}
+			cached = lookup(key);
+			if (cached == null) {
+				misses++;
+				if (delayMs > 0) {
+					pendingTask = scheduler.schedule(() -> fetch(key, id, listener), delayMs, TimeUnit.MILLISECONDS);
+				}
+			} else {
+				hits++;
+			}
+		}
+		if (cached != null) {
+			deliver(cached, listener);
+		} else if (delayMs == 0) {
+			fetch(key, id, listener);
+		}
+	}
+
+	private void fetch(String key, long id, SearchResultListener listener) {
+		CompletableFuture<List<SearchResult>> future;
+		synchronized (this) {
+			if (id != generation) {
+				return;
+			}
+			requests++;
+			future = fetcher.apply(key);
+			inFlight = future;
+		}
+		future.whenComplete((results, error) -> {
+			synchronized (this) {
+				if (inFlight == future) {
+					inFlight = null;
+				}
+				if (error != null || results == null) {
+					return;
+				}
+				store(key, results);
+				if (id != generation) {
+					return;
+				}
+			}
+			deliver(results, listener);
+		});
+	}
+
+	private void cancelPending() {
+		if (pendingTask != null) {
+			pendingTask.cancel(false);
+			pendingTask = null;
+		}
+		if (inFlight != null) {
+			inFlight.cancel(false);
+			inFlight = null;
+		}
+	}
+
+	// caller holds the lock
+	private List<SearchResult> lookup(String key) {
+		if (!cacheEnabled) {
+			return null;
+		}
+		long now = clock.getAsLong();
+		CacheEntry exact = cache.get(key);
+		if (exact != null) {
+			if (now - exact.storedNanos <= ttlNanos) {
+				return exact.results;
+			}
+			cache.remove(key);
+		}
+		// longest fresh, complete prefix wins
+		for (int end = key.length() - 1; end > 0; end--) {
+			CacheEntry prefix = cache.get(key.substring(0, end));
+			if (prefix == null || now - prefix.storedNanos > ttlNanos || prefix.results.size() >= truncationLimit) {
+				continue;
+			}
+			List<SearchResult> filtered = new ArrayList<>();
+			for (SearchResult result : prefix.results) {
+				if (matches(result, key)) {
+					filtered.add(result);
+				}
+			}
+			List<SearchResult> refined = Collections.unmodifiableList(filtered);
+			cache.put(key, new CacheEntry(refined, prefix.storedNanos));
+			return refined;
+		}
+		return null;
+	}
+
+	// caller holds the lock
+	private void store(String key, List<SearchResult> results) {
+		if (!cacheEnabled) {
+			return;
+		}
+		cache.put(key, new CacheEntry(Collections.unmodifiableList(new ArrayList<>(results)), clock.getAsLong()));
+		long now = clock.getAsLong();
+		Iterator<CacheEntry> it = cache.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().storedNanos > ttlNanos) {
+				it.remove();
+			}
+		}
+	}
+
+	private static boolean matches(SearchResult result, String key) {
+		return contains(result.username, key) || contains(result.email, key);
+	}
+
+	private static boolean contains(String value, String key) {
+		return value != null && value.toLowerCase(Locale.ROOT).contains(key);
+	}
+
+	private static String normalize(String query) {
+		return query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+	}
+
+	private static void deliver(List<SearchResult> results, SearchResultListener listener) {
+		if (listener != null) {
+			SwingUtilities.invokeLater(() -> listener.onSearchResult(results));
+		}
+	}
+}
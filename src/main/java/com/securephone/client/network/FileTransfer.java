@@ -0,0 +1,112 @@
+package com.securephone.client.network;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * FileTransfer - Un transfert de fichier, envoi ou réception
+ *
+ * Public state is read-only; the rest belongs to FileTransferClient and
+ * is guarded by its lock.
+ */
+public class FileTransfer {
+
+	public enum Direction {
+		UPLOAD,
+		DOWNLOAD
+	}
+
+	public enum State {
+		/** Waiting for the peer to accept, or for the channel. */
+		PENDING,
+		ACTIVE,
+		COMPLETED,
+		FAILED,
+		CANCELLED
+	}
+
+	private final long id;
+	private final Direction direction;
+	private volatile Path path;
+	private final long size;
+	private final int chunkSize;
+	private volatile State state = State.PENDING;
+	private volatile long transferred;
+
+	// upload: next offset to send, window in bytes, current mapping of the source
+	long next;
+	long window;
+	boolean accepted;
+	// the receiver answered our OPEN on the current channel
+	boolean peerReady;
+	MappedByteBuffer region;
+	long regionStart;
+	// download: offset a RESEND was last asked for, so gaps are reported once
+	long resendAsked = -1;
+	FileChannel file;
+	long progressReported;
+
+	FileTransfer(long id, Direction direction, Path path, long size, int chunkSize) {
+		this.id = id;
+		this.direction = direction;
+		this.path = path;
+		this.size = size;
+		this.chunkSize = chunkSize;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * Source of an upload, final destination of a download. A download
+	 * that would overwrite an existing file is renamed when it completes.
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/** Bytes acknowledged by the receiver (upload) or verified and written (download). */
+	public long getTransferred() {
+		return transferred;
+	}
+
+	public boolean isDone() {
+		State current = state;
+		return current == State.COMPLETED || current == State.FAILED || current == State.CANCELLED;
+	}
+
+	void setState(State state) {
+		this.state = state;
+	}
+
+	void setTransferred(long transferred) {
+		this.transferred = transferred;
+	}
+
+	void setPath(Path path) {
+		this.path = path;
+	}
+
+	@Override
+	public String toString() {
+		return direction + " " + path.getFileName() + " " + transferred + "/" + size + " (" + state + ")";
+	}
+}
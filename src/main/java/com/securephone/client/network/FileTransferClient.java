@@ -0,0 +1,706 @@
+package com.securephone.client.network;
+
+import com.securephone.client.utils.Logger;
+import com.securephone.shared.protocol.FileFrame;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * FileTransferClient - Transferts de fichiers sur un canal dédié
+ *
+ * Files travel over their own TCP connection, so a large transfer never
+ * queues behind or in front of chat packets. The connection is shared:
+ * the send thread interleaves chunks of every active upload, each one
+ * limited to a window of unacknowledged bytes, and the read thread
+ * writes incoming chunks straight to disk once their CRC32C checks out.
+ * Only the send thread writes to the socket: acknowledgements and other
+ * control frames are queued for it and go out ahead of the next chunk,
+ * so the read thread keeps draining even when the peer stops reading.
+ *
+ * Sources are memory-mapped a region at a time and written to the socket
+ * with a gathering write, without copying through the heap. Downloads
+ * go to a ".part" file named after the transfer id, renamed once
+ * complete, so two downloads of the same name never share one. After a
+ * reconnect every unfinished transfer is reopened: uploads restart from
+ * the last acknowledged offset and downloads tell the sender where they
+ * stand as soon as it is back.
+ */
+public class FileTransferClient {
+
+	public interface Listener {
+		void onProgress(FileTransfer transfer);
+
+		/** Completed, failed or cancelled; error is null on success. */
+		void onFinished(FileTransfer transfer, String error);
+
+		default void onDisconnected() {
+		}
+	}
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int DEFAULT_WINDOW_CHUNKS = 16;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+	private static final long MAP_REGION_SIZE = 8L << 20;
+	private static final int PROGRESS_STEPS = 100;
+	private static final int IPTOS_THROUGHPUT = 0x08;
+	private static final String PART_SUFFIX = ".part";
+	private static final int MAX_NAME_SUFFIX = 1000;
+
+	private final Object lock = new Object();
+	private final Object closeLock = new Object();
+	// guarded by lock
+	private final Map<Long, FileTransfer> transfers = new LinkedHashMap<>();
+	private final List<FileTransfer> uploads = new ArrayList<>();
+	private final ArrayDeque<ByteBuffer> controlFrames = new ArrayDeque<>();
+	private int rotation;
+
+	// send thread only
+	private final ByteBuffer frameHeader = ByteBuffer.allocateDirect(FileFrame.HEADER_SIZE);
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+
+	private volatile SocketChannel channel;
+	private volatile boolean running;
+	private Thread readThread;
+	private Thread sendThread;
+	private volatile Listener listener;
+	private String host = "localhost";
+	private int port;
+	private String sessionId;
+	private int windowChunks = DEFAULT_WINDOW_CHUNKS;
+	private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+
+	public void configure(String host, int port, String sessionId) {
+		this.host = host;
+		this.port = port;
+		this.sessionId = sessionId;
+	}
+
+	/** Unacknowledged chunks allowed in flight per upload. */
+	public void setWindow(int chunks) {
+		this.windowChunks = Math.max(1, chunks);
+	}
+
+	/** A black-holed file port fails the connect after this long instead of the OS timeout. */
+	public void setConnectTimeout(int timeoutMs) {
+		this.connectTimeoutMs = Math.max(1, timeoutMs);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Opens the channel and reopens every unfinished transfer on it. Blocks
+	 * until connected, at most the connect timeout; call it off the EDT.
+	 */
+	public synchronized void connect() throws IOException {
+		if (running) {
+			return;
+		}
+		awaitThreads();
+		SocketChannel socket = SocketChannel.open();
+		try {
+			socket.socket().setTrafficClass(IPTOS_THROUGHPUT);
+		} catch (IOException ignored) {
+			// only a hint
+		}
+		socket.socket().setTcpNoDelay(true);
+		try {
+			socket.socket().connect(new InetSocketAddress(host, port), connectTimeoutMs);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		channel = socket;
+		running = true;
+		synchronized (lock) {
+			// whatever was queued for the previous channel is stale
+			controlFrames.clear();
+			for (FileTransfer transfer : new ArrayList<>(transfers.values())) {
+				openTransfer(transfer);
+			}
+		}
+		Logger.info("📁 Canal de transfert connecté (" + transfers.size() + " transfert(s) en cours)");
+
+		sendThread = new Thread(this::sendLoop, "FileTransferSendThread");
+		sendThread.setDaemon(true);
+		sendThread.start();
+		readThread = new Thread(this::readLoop, "FileTransferReadThread");
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	public boolean isConnected() {
+		return running;
+	}
+
+	/** Closes the channel; unfinished transfers wait for the next connect(). */
+	public void disconnect() {
+		close(false);
+	}
+
+	/** Registers an upload; nothing is sent before {@link #start}. */
+	public FileTransfer upload(long id, Path source, int chunkSize) throws IOException {
+		checkChunkSize(chunkSize);
+		FileChannel file = FileChannel.open(source, StandardOpenOption.READ);
+		FileTransfer transfer = new FileTransfer(id, FileTransfer.Direction.UPLOAD, source, file.size(), chunkSize);
+		transfer.file = file;
+		transfer.window = (long) windowChunks * chunkSize;
+		synchronized (lock) {
+			transfers.put(id, transfer);
+		}
+		return transfer;
+	}
+
+	/** The receiver accepted the upload: start sending. */
+	public void start(long id) {
+		synchronized (lock) {
+			FileTransfer transfer = transfers.get(id);
+			if (transfer == null || transfer.getDirection() != FileTransfer.Direction.UPLOAD
+				|| transfer.accepted || transfer.isDone()) {
+				return;
+			}
+			transfer.accepted = true;
+			transfer.setState(FileTransfer.State.ACTIVE);
+			uploads.add(transfer);
+			if (running) {
+				openTransfer(transfer);
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Registers a download to {@code target}. A ".part" file left by an
+	 * earlier attempt at this same transfer is kept up to its last whole
+	 * chunk, and the transfer resumes from there.
+	 */
+	public FileTransfer download(long id, Path target, long size, int chunkSize) throws IOException {
+		checkChunkSize(chunkSize);
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid size: " + size);
+		}
+		FileTransfer transfer = new FileTransfer(id, FileTransfer.Direction.DOWNLOAD, target, size, chunkSize);
+		FileChannel file = FileChannel.open(partPath(target, id),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long kept = Math.min(size, file.size() - file.size() % chunkSize);
+		file.truncate(kept);
+		transfer.file = file;
+		transfer.setTransferred(kept);
+		transfer.progressReported = kept;
+		transfer.setState(FileTransfer.State.ACTIVE);
+		synchronized (lock) {
+			transfers.put(id, transfer);
+			if (running) {
+				openTransfer(transfer);
+			}
+		}
+		return transfer;
+	}
+
+	/** Abandons a transfer and tells the peer, if the channel is up. */
+	public void cancel(long id) {
+		FileTransfer transfer;
+		synchronized (lock) {
+			transfer = transfers.get(id);
+		}
+		if (transfer == null || transfer.isDone()) {
+			return;
+		}
+		queueControl(FileFrame.CANCEL, id, 0, null);
+		finish(transfer, FileTransfer.State.CANCELLED, "Transfert annulé");
+	}
+
+	public FileTransfer get(long id) {
+		synchronized (lock) {
+			return transfers.get(id);
+		}
+	}
+
+	public List<FileTransfer> getTransfers() {
+		synchronized (lock) {
+			return new ArrayList<>(transfers.values());
+		}
+	}
+
+	/** True while some transfer still needs the channel. */
+	public boolean hasActiveTransfers() {
+		synchronized (lock) {
+			for (FileTransfer transfer : transfers.values()) {
+				if (!transfer.isDone()) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** Drops every transfer without notifying anyone, e.g. on logout. */
+	public void clear() {
+		List<FileTransfer> all;
+		synchronized (lock) {
+			all = new ArrayList<>(transfers.values());
+			transfers.clear();
+			uploads.clear();
+		}
+		for (FileTransfer transfer : all) {
+			transfer.setState(FileTransfer.State.CANCELLED);
+			closeFile(transfer);
+		}
+	}
+
+	/**
+	 * Where a download offered under {@code name} goes in {@code directory}.
+	 * The name comes from the peer: only its last path element is kept, and
+	 * names that would not denote a file of the directory are refused.
+	 *
+	 * @throws IllegalArgumentException if no usable file name is left
+	 */
+	static Path downloadTarget(Path directory, String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Missing file name");
+		}
+		String base = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+		if (base.isEmpty() || base.equals(".") || base.equals("..")) {
+			throw new IllegalArgumentException("Invalid file name: " + name);
+		}
+		for (int i = 0; i < base.length(); i++) {
+			if (Character.isISOControl(base.charAt(i))) {
+				throw new IllegalArgumentException("Invalid file name: " + name);
+			}
+		}
+		// InvalidPathException is an IllegalArgumentException too
+		Path target = directory.resolve(base);
+		if (!directory.equals(target.getParent())) {
+			throw new IllegalArgumentException("Invalid file name: " + name);
+		}
+		return target;
+	}
+
+	// keyed by transfer id: a ".part" of another transfer of the same name must never be resumed
+	static Path partPath(Path target, long id) {
+		return target.resolveSibling(target.getFileName() + "." + Long.toHexString(id) + PART_SUFFIX);
+	}
+
+	// ========== CHANNEL ==========
+
+	// caller holds lock
+	private void openTransfer(FileTransfer transfer) {
+		long id = transfer.getId();
+		if (transfer.getDirection() == FileTransfer.Direction.UPLOAD) {
+			if (!transfer.accepted) {
+				return;
+			}
+			// nothing goes out before the receiver says where it stands:
+			// data sent before the server paired us would be lost
+			transfer.peerReady = false;
+			queueControl(FileFrame.OPEN, id, 0, FileFrame.openPayload(FileFrame.ROLE_SENDER, sessionId));
+		} else {
+			// our position goes out once the sender is there, see onPeerOpen
+			queueControl(FileFrame.OPEN, id, 0, FileFrame.openPayload(FileFrame.ROLE_RECEIVER, sessionId));
+		}
+	}
+
+	// never blocks on the socket: the send thread writes the frame ahead of the next chunk
+	private void queueControl(byte type, long id, long offset, byte[] payload) {
+		if (!running) {
+			return;
+		}
+		int length = payload != null ? payload.length : 0;
+		ByteBuffer frame = ByteBuffer.allocate(FileFrame.HEADER_SIZE + length);
+		FileFrame.putHeader(frame, type, id, offset, length, 0);
+		if (payload != null) {
+			frame.put(payload);
+		}
+		frame.flip();
+		synchronized (lock) {
+			controlFrames.add(frame);
+			lock.notifyAll();
+		}
+	}
+
+	// send thread only
+	private void sendChunk(SocketChannel socket, long id, long offset, ByteBuffer payload, int checksum) throws IOException {
+		frameHeader.clear();
+		FileFrame.putHeader(frameHeader, FileFrame.DATA, id, offset, payload.remaining(), checksum);
+		frameHeader.flip();
+		gather[0] = frameHeader;
+		gather[1] = payload;
+		try {
+			while (payload.hasRemaining()) {
+				socket.write(gather);
+			}
+		} finally {
+			gather[1] = null;
+		}
+	}
+
+	private void sendLoop() {
+		CRC32C crc = new CRC32C();
+		SocketChannel socket = channel;
+		try {
+			while (running) {
+				ByteBuffer control;
+				FileTransfer transfer = null;
+				long offset = 0;
+				ByteBuffer chunk = null;
+				synchronized (lock) {
+					control = controlFrames.poll();
+					if (control == null) {
+						transfer = nextReady();
+						if (transfer == null) {
+							lock.wait(200);
+							continue;
+						}
+						offset = transfer.next;
+						int length = (int) Math.min(transfer.getChunkSize(), transfer.getSize() - offset);
+						chunk = slice(transfer, offset, length);
+						transfer.next = offset + length;
+					}
+				}
+				if (control != null) {
+					while (control.hasRemaining()) {
+						socket.write(control);
+					}
+					continue;
+				}
+				crc.reset();
+				crc.update(chunk.duplicate());
+				sendChunk(socket, transfer.getId(), offset, chunk, (int) crc.getValue());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if (running) {
+				Logger.error("❌ Erreur envoi fichier: " + e.getMessage());
+				close(true);
+			}
+		}
+	}
+
+	// caller holds lock; round robin so that parallel uploads share the channel
+	private FileTransfer nextReady() {
+		int count = uploads.size();
+		for (int i = 0; i < count; i++) {
+			FileTransfer transfer = uploads.get((rotation + i) % count);
+			if (transfer.peerReady && transfer.next < transfer.getSize()
+				&& transfer.next - transfer.getTransferred() < transfer.window) {
+				rotation = (rotation + i + 1) % count;
+				return transfer;
+			}
+		}
+		return null;
+	}
+
+	// caller holds lock
+	private static ByteBuffer slice(FileTransfer transfer, long offset, int length) throws IOException {
+		if (transfer.region == null || offset < transfer.regionStart
+			|| offset + length > transfer.regionStart + transfer.region.capacity()) {
+			long regionSize = Math.max(transfer.getChunkSize(),
+				MAP_REGION_SIZE / transfer.getChunkSize() * transfer.getChunkSize());
+			long start = offset - offset % regionSize;
+			transfer.region = transfer.file.map(FileChannel.MapMode.READ_ONLY, start,
+				Math.min(regionSize, transfer.getSize() - start));
+			transfer.regionStart = start;
+		}
+		ByteBuffer view = transfer.region.duplicate();
+		int position = (int) (offset - transfer.regionStart);
+		view.limit(position + length);
+		view.position(position);
+		return view;
+	}
+
+	private void readLoop() {
+		ByteBuffer header = ByteBuffer.allocate(FileFrame.HEADER_SIZE);
+		ByteBuffer payload = ByteBuffer.allocateDirect(DEFAULT_CHUNK_SIZE);
+		CRC32C crc = new CRC32C();
+		SocketChannel socket = channel;
+		try {
+			while (running) {
+				header.clear();
+				if (!readFully(socket, header)) {
+					break;
+				}
+				int length = FileFrame.length(header);
+				if (length < 0 || length > FileFrame.MAX_PAYLOAD) {
+					throw new IOException("Taille de trame fichier invalide: " + length);
+				}
+				if (payload.capacity() < length) {
+					payload = ByteBuffer.allocateDirect(length);
+				}
+				payload.clear();
+				payload.limit(length);
+				if (!readFully(socket, payload)) {
+					throw new EOFException("Trame fichier incomplète");
+				}
+				payload.flip();
+				handleFrame(header, payload, crc);
+			}
+		} catch (IOException e) {
+			if (running) {
+				Logger.error("❌ Erreur réception fichier: " + e.getMessage());
+			}
+		} finally {
+			close(true);
+		}
+	}
+
+	private void handleFrame(ByteBuffer header, ByteBuffer payload, CRC32C crc) {
+		long id = FileFrame.transferId(header);
+		long offset = FileFrame.offset(header);
+		FileTransfer transfer = get(id);
+		if (transfer == null || transfer.isDone()) {
+			return;
+		}
+		switch (FileFrame.type(header)) {
+			case FileFrame.DATA:
+				if (transfer.getDirection() == FileTransfer.Direction.DOWNLOAD) {
+					onData(transfer, offset, payload, FileFrame.checksum(header), crc);
+				}
+				break;
+			case FileFrame.OPEN:
+				if (transfer.getDirection() == FileTransfer.Direction.DOWNLOAD) {
+					onPeerOpen(transfer);
+				}
+				break;
+			case FileFrame.ACK:
+			case FileFrame.RESEND:
+				if (transfer.getDirection() == FileTransfer.Direction.UPLOAD) {
+					onAck(transfer, offset, FileFrame.type(header) == FileFrame.RESEND);
+				}
+				break;
+			case FileFrame.CANCEL:
+				finish(transfer, FileTransfer.State.CANCELLED, "Transfert annulé par le correspondant");
+				break;
+			default:
+				break;
+		}
+	}
+
+	// read thread only: the sender (re)joined, tell it where to continue from
+	private void onPeerOpen(FileTransfer transfer) {
+		long received = transfer.getTransferred();
+		if (received == transfer.getSize()) {
+			queueControl(FileFrame.ACK, transfer.getId(), received, null);
+			completeDownload(transfer);
+		} else {
+			transfer.resendAsked = received;
+			queueControl(FileFrame.RESEND, transfer.getId(), received, null);
+		}
+	}
+
+	// read thread only: downloads are written in order, a gap or a bad chunk asks for a resend
+	private void onData(FileTransfer transfer, long offset, ByteBuffer payload, int checksum, CRC32C crc) {
+		long received = transfer.getTransferred();
+		int expected = (int) Math.min(transfer.getChunkSize(), transfer.getSize() - received);
+		if (offset != received || payload.remaining() != expected) {
+			askResend(transfer, received);
+			return;
+		}
+		crc.reset();
+		crc.update(payload.duplicate());
+		if ((int) crc.getValue() != checksum) {
+			Logger.warn("⚠️ Bloc corrompu à " + offset + " dans le transfert " + transfer.getId());
+			askResend(transfer, received);
+			return;
+		}
+		try {
+			while (payload.hasRemaining()) {
+				transfer.file.write(payload, offset + payload.position());
+			}
+		} catch (IOException e) {
+			if (!transfer.isDone()) {
+				Logger.error("❌ Écriture du fichier reçu impossible: " + e.getMessage());
+				queueControl(FileFrame.CANCEL, transfer.getId(), 0, null);
+				finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+			}
+			return;
+		}
+		long total = received + expected;
+		transfer.setTransferred(total);
+		transfer.resendAsked = -1;
+		queueControl(FileFrame.ACK, transfer.getId(), total, null);
+		if (total == transfer.getSize()) {
+			completeDownload(transfer);
+		} else {
+			reportProgress(transfer);
+		}
+	}
+
+	private void askResend(FileTransfer transfer, long received) {
+		// chunks already in flight behind a gap would each ask again
+		if (transfer.resendAsked != received) {
+			transfer.resendAsked = received;
+			queueControl(FileFrame.RESEND, transfer.getId(), received, null);
+		}
+	}
+
+	private void onAck(FileTransfer transfer, long offset, boolean resend) {
+		boolean complete;
+		synchronized (lock) {
+			long acked = Math.min(transfer.getSize(), Math.max(transfer.getTransferred(), offset));
+			transfer.setTransferred(acked);
+			if (resend && offset <= transfer.getSize()) {
+				transfer.next = offset;
+			}
+			transfer.peerReady = true;
+			complete = acked == transfer.getSize();
+			lock.notifyAll();
+		}
+		if (complete) {
+			finish(transfer, FileTransfer.State.COMPLETED, null);
+		} else {
+			reportProgress(transfer);
+		}
+	}
+
+	private void completeDownload(FileTransfer transfer) {
+		try {
+			transfer.file.force(true);
+			transfer.file.close();
+			moveToFreeName(transfer);
+		} catch (IOException e) {
+			finish(transfer, FileTransfer.State.FAILED, e.getMessage());
+			return;
+		}
+		finish(transfer, FileTransfer.State.COMPLETED, null);
+	}
+
+	// never overwrite: "name.ext" already there becomes "name (1).ext", and so on
+	private static void moveToFreeName(FileTransfer transfer) throws IOException {
+		Path part = partPath(transfer.getPath(), transfer.getId());
+		Path target = transfer.getPath();
+		String name = target.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String stem = dot > 0 ? name.substring(0, dot) : name;
+		String extension = dot > 0 ? name.substring(dot) : "";
+		for (int n = 1; ; n++) {
+			try {
+				Files.move(part, target);
+				transfer.setPath(target);
+				return;
+			} catch (FileAlreadyExistsException e) {
+				if (n > MAX_NAME_SUFFIX) {
+					throw e;
+				}
+				target = target.resolveSibling(stem + " (" + n + ")" + extension);
+			}
+		}
+	}
+
+	private void finish(FileTransfer transfer, FileTransfer.State state, String error) {
+		synchronized (lock) {
+			if (transfer.isDone()) {
+				return;
+			}
+			transfer.setState(state);
+			uploads.remove(transfer);
+			transfers.remove(transfer.getId());
+			lock.notifyAll();
+		}
+		closeFile(transfer);
+		if (state == FileTransfer.State.COMPLETED) {
+			Logger.info("✅ Transfert terminé: " + transfer);
+		} else {
+			Logger.warn("⚠️ Transfert interrompu: " + transfer + " - " + error);
+		}
+		Listener current = listener;
+		if (current != null) {
+			current.onFinished(transfer, error);
+		}
+	}
+
+	private void reportProgress(FileTransfer transfer) {
+		long step = Math.max(transfer.getChunkSize(), transfer.getSize() / PROGRESS_STEPS);
+		long transferred = transfer.getTransferred();
+		if (transferred - transfer.progressReported < step) {
+			return;
+		}
+		transfer.progressReported = transferred;
+		Listener current = listener;
+		if (current != null) {
+			current.onProgress(transfer);
+		}
+	}
+
+	private static void closeFile(FileTransfer transfer) {
+		try {
+			if (transfer.file != null) {
+				transfer.file.close();
+			}
+		} catch (IOException ignored) {
+		}
+		transfer.region = null;
+	}
+
+	private static boolean readFully(SocketChannel socket, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (socket.read(buffer) < 0) {
+				if (buffer.position() == 0) {
+					return false;
+				}
+				throw new EOFException("Trame fichier incomplète");
+			}
+		}
+		return true;
+	}
+
+	private static void checkChunkSize(int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > FileFrame.MAX_PAYLOAD) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+	}
+
+	private void close(boolean lost) {
+		boolean wasRunning;
+		synchronized (closeLock) {
+			wasRunning = running;
+			running = false;
+		}
+		SocketChannel socket = channel;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		Listener current = listener;
+		if (wasRunning && lost && current != null) {
+			Logger.warn("⚠️ Canal de transfert perdu");
+			current.onDisconnected();
+		}
+	}
+
+	private void awaitThreads() {
+		Thread current = Thread.currentThread();
+		for (Thread thread : new Thread[] {readThread, sendThread}) {
+			if (thread != null && thread != current) {
+				try {
+					thread.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
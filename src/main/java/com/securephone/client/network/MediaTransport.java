@@ -0,0 +1,250 @@
+package com.securephone.client.network;
+
+import com.securephone.client.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Shared UDP transport for the audio and video flows.
+ *
+ * Each flow is a connected non-blocking DatagramChannel; a single selector
+ * thread reads all of them into reusable direct buffers and hands each
+ * datagram to the flow's handler. Sends never block: a datagram that does
+ * not fit in the socket buffer is dropped, as UDP would.
+ */
+public class MediaTransport {
+
+	public interface PacketHandler {
+		/**
+		 * Called on the transport thread. The buffer is reused for the next
+		 * datagram and must not be retained.
+		 */
+		void onPacket(ByteBuffer packet);
+	}
+
+	public static final class Flow {
+		private final String name;
+		private final DatagramChannel channel;
+		private final PacketHandler handler;
+		private final ByteBuffer receiveBuffer;
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong sendDropped = new AtomicLong();
+		private final AtomicLong received = new AtomicLong();
+
+		private Flow(String name, DatagramChannel channel, PacketHandler handler, int bufferSize) {
+			this.name = name;
+			this.channel = channel;
+			this.handler = handler;
+			this.receiveBuffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+
+		public long getSent() {
+			return sent.get();
+		}
+
+		public long getSendDropped() {
+			return sendDropped.get();
+		}
+
+		public long getReceived() {
+			return received.get();
+		}
+	}
+
+	private static final int MAX_READS_PER_WAKEUP = 32;
+
+	private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+	private final Object lifecycleLock = new Object();
+	private final Consumer<SelectionKey> readyHandler = this::onReady;
+
+	private volatile Selector selector;
+	private volatile boolean running;
+	private int flowCount;
+	private int sendBufferSize;
+	private int receiveBufferSize;
+
+	/**
+	 * Socket buffer sizes applied to flows opened afterwards; 0 keeps the
+	 * system default.
+	 */
+	public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	public Flow open(String name, InetSocketAddress remote, int maxPacketSize, PacketHandler handler) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (sendBufferSize > 0) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+			}
+			if (receiveBufferSize > 0) {
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+			}
+			channel.connect(remote);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		Flow flow = new Flow(name, channel, handler, maxPacketSize);
+		synchronized (lifecycleLock) {
+			ensureStarted();
+			flowCount++;
+			Selector target = selector;
+			pendingTasks.add(() -> {
+				try {
+					channel.register(target, SelectionKey.OP_READ, flow);
+				} catch (IOException e) {
+					Logger.error("Enregistrement flux " + name + " impossible: " + e.getMessage());
+				}
+			});
+			target.wakeup();
+		}
+		return flow;
+	}
+
+	/**
+	 * Writes the remaining bytes of {@code packet} as one datagram.
+	 * Returns false if the datagram was dropped.
+	 */
+	public boolean send(Flow flow, ByteBuffer packet) {
+		if (flow == null || !flow.channel.isOpen()) {
+			return false;
+		}
+		try {
+			if (flow.channel.write(packet) == 0) {
+				flow.sendDropped.incrementAndGet();
+				return false;
+			}
+			flow.sent.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			flow.sendDropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	public void close(Flow flow) {
+		if (flow == null || !flow.channel.isOpen()) {
+			return;
+		}
+		try {
+			flow.channel.close();
+		} catch (IOException ignored) {
+		}
+		synchronized (lifecycleLock) {
+			flowCount--;
+			if (flowCount <= 0) {
+				shutdown();
+			} else if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	public void shutdown() {
+		synchronized (lifecycleLock) {
+			running = false;
+			flowCount = 0;
+			pendingTasks.clear();
+			if (selector != null) {
+				selector.wakeup();
+			}
+			selector = null;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void ensureStarted() throws IOException {
+		if (running && selector != null) {
+			return;
+		}
+		Selector newSelector = Selector.open();
+		selector = newSelector;
+		running = true;
+		Thread selectorThread = new Thread(() -> selectLoop(newSelector), "MediaTransportThread");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	private void selectLoop(Selector selector) {
+		try {
+			while (running && this.selector == selector) {
+				selector.select(readyHandler);
+				runPendingTasks();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				Logger.error("Erreur transport media: " + e.getMessage());
+			}
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void onReady(SelectionKey key) {
+		if (key.isValid() && key.isReadable()) {
+			readBatch((Flow) key.attachment());
+		}
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void readBatch(Flow flow) {
+		ByteBuffer buffer = flow.receiveBuffer;
+		for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+			buffer.clear();
+			int read;
+			try {
+				read = flow.channel.read(buffer);
+			} catch (PortUnreachableException e) {
+				continue;
+			} catch (IOException e) {
+				return;
+			}
+			if (read <= 0) {
+				return;
+			}
+			buffer.flip();
+			flow.received.incrementAndGet();
+			try {
+				flow.handler.onPacket(buffer);
+			} catch (RuntimeException e) {
+				// malformed datagram: drop it
+			}
+		}
+	}
+}
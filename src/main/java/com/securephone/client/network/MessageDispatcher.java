@@ -0,0 +1,131 @@
+package com.securephone.client.network;
+
+import com.securephone.client.utils.Logger;
+import com.securephone.shared.protocol.ChatPacket;
+import com.securephone.shared.protocol.MessageType;
+
+import javax.swing.SwingUtilities;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes inbound chat packets to the handlers subscribed to their type.
+ *
+ * Each subscription says where its handler runs: INLINE on the socket read
+ * thread (for short handlers), WORKER on a single background thread that
+ * keeps arrival order (for anything that may block, like starting media),
+ * or EDT for handlers that touch Swing.
+ */
+public class MessageDispatcher {
+
+	public enum Context {
+		INLINE,
+		WORKER,
+		EDT
+	}
+
+	public interface Handler {
+		void handle(ChatPacket packet) throws Exception;
+	}
+
+	/** Returned by {@link #subscribe}; cancelling it removes the handler. */
+	public interface Subscription {
+		void cancel();
+	}
+
+	private static final class Entry implements Subscription {
+		final MessageType type;
+		final Context context;
+		final Handler handler;
+		final List<Entry> owner;
+
+		Entry(MessageType type, Context context, Handler handler, List<Entry> owner) {
+			this.type = type;
+			this.context = context;
+			this.handler = handler;
+			this.owner = owner;
+		}
+
+		@Override
+		public void cancel() {
+			owner.remove(this);
+		}
+	}
+
+	// filled for every type up front, so lookups need no locking
+	private final Map<MessageType, List<Entry>> handlers = new EnumMap<>(MessageType.class);
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ChatDispatchWorker");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicLong unhandled = new AtomicLong();
+
+	public MessageDispatcher() {
+		for (MessageType type : MessageType.values()) {
+			handlers.put(type, new CopyOnWriteArrayList<>());
+		}
+	}
+
+	public Subscription subscribe(MessageType type, Context context, Handler handler) {
+		if (type == null || context == null || handler == null) {
+			throw new IllegalArgumentException("Type, contexte et handler requis");
+		}
+		List<Entry> entries = handlers.get(type);
+		Entry entry = new Entry(type, context, handler, entries);
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Hands the packet to every handler of its type, in subscription order.
+	 * Returns false if nobody is subscribed.
+	 */
+	public boolean dispatch(ChatPacket packet) {
+		if (packet.getType() == null) {
+			unhandled.incrementAndGet();
+			return false;
+		}
+		List<Entry> entries = handlers.get(packet.getType());
+		if (entries.isEmpty()) {
+			unhandled.incrementAndGet();
+			return false;
+		}
+		for (Entry entry : entries) {
+			switch (entry.context) {
+				case WORKER:
+					worker.execute(() -> run(entry, packet));
+					break;
+				case EDT:
+					SwingUtilities.invokeLater(() -> run(entry, packet));
+					break;
+				default:
+					run(entry, packet);
+					break;
+			}
+		}
+		return true;
+	}
+
+	public int getSubscriberCount(MessageType type) {
+		return handlers.get(type).size();
+	}
+
+	/** Packets received for a type nobody subscribed to. */
+	public long getUnhandledCount() {
+		return unhandled.get();
+	}
+
+	private static void run(Entry entry, ChatPacket packet) {
+		try {
+			entry.handler.handle(packet);
+		} catch (Exception e) {
+			Logger.error("Erreur traitement message " + entry.type + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.securephone.client.network;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for chat reconnects.
+ *
+ * The delay before attempt n is delay * multiplier^n, capped, then drawn
+ * uniformly from its upper half so clients dropped together do not all
+ * come back at the same instant.
+ */
+public class ReconnectPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_DELAY_MS = 3000;
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	public static final long MAX_DELAY_MS = 60_000;
+
+	private final int maxAttempts;
+	private final long baseDelayMs;
+	private final double multiplier;
+
+	public ReconnectPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_DELAY_MS, DEFAULT_MULTIPLIER);
+	}
+
+	public ReconnectPolicy(int maxAttempts, long baseDelayMs, double multiplier) {
+		this.maxAttempts = Math.max(0, maxAttempts);
+		this.baseDelayMs = Math.max(1, baseDelayMs);
+		this.multiplier = Math.max(1.0, multiplier);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/** Upper bound of the delay before the given attempt, counting from zero. */
+	public long getMaxDelayMs(int attempt) {
+		double delay = baseDelayMs * Math.pow(multiplier, Math.max(0, attempt));
+		return (long) Math.min(delay, MAX_DELAY_MS);
+	}
+
+	public long nextDelayMs(int attempt) {
+		long max = getMaxDelayMs(attempt);
+		long half = max / 2;
+		return half + ThreadLocalRandom.current().nextLong(max - half + 1);
+	}
+}
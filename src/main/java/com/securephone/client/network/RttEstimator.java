@@ -0,0 +1,112 @@
+package com.securephone.client.network;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip time statistics from chat heartbeats.
+ *
+ * The smoothed RTT and its variation follow the TCP estimator (RFC 6298,
+ * gains 1/8 and 1/4). The last samples are kept in a ring for the minimum
+ * and percentiles, so a single slow PONG does not hide the baseline.
+ */
+public class RttEstimator {
+
+	public static final int DEFAULT_WINDOW = 64;
+
+	private static final double ALPHA = 0.125;
+	private static final double BETA = 0.25;
+
+	private final double[] samples;
+	private final double[] sorted;
+	private int next;
+	private int count;
+	private long total;
+
+	private double smoothedMs;
+	private double variationMs;
+	private double lastMs;
+
+	public RttEstimator() {
+		this(DEFAULT_WINDOW);
+	}
+
+	public RttEstimator(int window) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("Window must be positive");
+		}
+		this.samples = new double[window];
+		this.sorted = new double[window];
+	}
+
+	public synchronized void record(double rttMs) {
+		if (rttMs < 0) {
+			return;
+		}
+		if (total == 0) {
+			smoothedMs = rttMs;
+			variationMs = rttMs / 2;
+		} else {
+			variationMs += BETA * (Math.abs(smoothedMs - rttMs) - variationMs);
+			smoothedMs += ALPHA * (rttMs - smoothedMs);
+		}
+		lastMs = rttMs;
+		samples[next] = rttMs;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+		total++;
+	}
+
+	public synchronized void reset() {
+		next = 0;
+		count = 0;
+		total = 0;
+		smoothedMs = 0;
+		variationMs = 0;
+		lastMs = 0;
+	}
+
+	public synchronized long getSampleCount() {
+		return total;
+	}
+
+	public synchronized double getSmoothedMs() {
+		return smoothedMs;
+	}
+
+	public synchronized double getVariationMs() {
+		return variationMs;
+	}
+
+	public synchronized double getLastMs() {
+		return lastMs;
+	}
+
+	/** Lowest RTT in the window: the path delay without queueing. */
+	public synchronized double getMinMs() {
+		if (count == 0) {
+			return 0;
+		}
+		double min = samples[0];
+		for (int i = 1; i < count; i++) {
+			min = Math.min(min, samples[i]);
+		}
+		return min;
+	}
+
+	/** Nearest-rank percentile over the window, p in [0, 100]. */
+	public synchronized double getPercentileMs(double p) {
+		if (count == 0) {
+			return 0;
+		}
+		System.arraycopy(samples, 0, sorted, 0, count);
+		Arrays.sort(sorted, 0, count);
+		int rank = (int) Math.ceil(Math.max(0, Math.min(100, p)) / 100.0 * count);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("RTT{srtt=%.1fms, var=%.1fms, min=%.1fms, p50=%.1fms, p95=%.1fms, samples=%d}",
+			smoothedMs, variationMs, getMinMs(), getPercentileMs(50), getPercentileMs(95), total);
+	}
+}
@@ -1,95 +1,501 @@
 package com.securephone.client.network;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import com.securephone.client.utils.Logger;
+import com.securephone.shared.protocol.ChatCodec;
+import com.securephone.shared.protocol.ChatPacket;
+import com.securephone.shared.protocol.MessageType;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 public class WebSocketClient {
 
-	public interface MessageListener {
-		void onMessage(String message);
+	/**
+	 * Wire format of the chat channel. JSON sends one packet per line;
+	 * BINARY sends a 4-byte length followed by a {@link ChatCodec} frame.
+	 */
+	public enum Framing {
+		JSON,
+		BINARY
+	}
+
+	public interface PacketListener {
+		void onPacket(ChatPacket packet);
 	}
 
 	public interface ConnectionListener {
 		void onConnected();
-		void onDisconnected();
+
+		/**
+		 * Called once per connection. lost is true when the connection
+		 * failed rather than being closed with {@link WebSocketClient#disconnect()}.
+		 */
+		void onDisconnected(boolean lost);
+	}
+
+	/** A packet waiting for the writer thread. */
+	private static final class Outbound {
+		final ChatPacket packet;
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		Outbound(ChatPacket packet) {
+			this.packet = packet;
+		}
 	}
 
+	private static final int NEGOTIATION_TIMEOUT_MS = 2000;
+	private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+	private static final int QUEUE_CAPACITY = 256;
+	private static final int MAX_BATCH = 64;
+	private static final ScheduledThreadPoolExecutor WRITE_WATCHDOG = createWatchdog();
+	// servers that did not take the binary framing: reconnects skip the offer
+	private static final Set<String> JSON_ONLY_SERVERS = ConcurrentHashMap.newKeySet();
+
 	private Socket socket;
-	private BufferedReader reader;
-	private BufferedWriter writer;
+	private InputStream input;
+	private OutputStream output;
 	private Thread readThread;
-	private MessageListener messageListener;
+	private Thread writeThread;
+	private PacketListener packetListener;
 	private ConnectionListener connectionListener;
 	private volatile boolean running;
+	private volatile long lastReceivedNanos;
+
+	private Framing preferredFraming = Framing.JSON;
+	private volatile Framing framing = Framing.JSON;
+	// packets the server sent before answering the negotiation, delivered first
+	private final List<String> pendingLines = new ArrayList<>();
+	private boolean tcpNoDelay = true;
+	private int writeTimeoutMs = 5000;
+	private final BlockingQueue<Outbound> outbound = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+	// read thread only
+	private byte[] lineBuffer = new byte[1024];
+	private int lineLength;
+	private byte[] frameBuffer = new byte[1024];
+
+	// write thread only
+	private final ChatCodec codec = new ChatCodec();
+	private final List<Outbound> batch = new ArrayList<>(MAX_BATCH);
 
-	public void setMessageListener(MessageListener listener) {
-		this.messageListener = listener;
+	public void setPacketListener(PacketListener listener) {
+		this.packetListener = listener;
 	}
 
 	public void setConnectionListener(ConnectionListener listener) {
 		this.connectionListener = listener;
 	}
 
+	/**
+	 * Framing offered to the server on the next connect. JSON skips the
+	 * negotiation entirely, for servers that only speak newline JSON.
+	 */
+	public void setPreferredFraming(Framing framing) {
+		this.preferredFraming = framing == null ? Framing.JSON : framing;
+	}
+
+	public void setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * A batch still not written after this long means the peer stopped
+	 * reading; the connection is closed instead of blocking the writer.
+	 * Zero disables the check.
+	 */
+	public void setWriteTimeout(int writeTimeoutMs) {
+		this.writeTimeoutMs = Math.max(0, writeTimeoutMs);
+	}
+
+	/** Framing in use on the current connection. */
+	public Framing getFraming() {
+		return framing;
+	}
+
 	public void connect(String host, int port, int timeoutMs) throws Exception {
 		if (running) {
 			return;
 		}
+		awaitThreads();
 		socket = new Socket();
+		socket.setTcpNoDelay(tcpNoDelay);
 		socket.connect(new InetSocketAddress(host, port), timeoutMs);
-		reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-		writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-		running = true;
+		input = new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE);
+		output = new BufferedOutputStream(socket.getOutputStream(), STREAM_BUFFER_SIZE);
+		lineLength = 0;
+		framing = Framing.JSON;
+		pendingLines.clear();
+		String server = host + ":" + port;
+		if (preferredFraming == Framing.BINARY && !JSON_ONLY_SERVERS.contains(server)) {
+			try {
+				negotiate(timeoutMs, server);
+			} catch (IOException e) {
+				closeQuietly();
+				throw e;
+			}
+		}
+		lastReceivedNanos = System.nanoTime();
+		synchronized (this) {
+			running = true;
+		}
+		Logger.info("🔌 Canal chat connecté (mode " + framing + ")");
 
 		if (connectionListener != null) {
 			connectionListener.onConnected();
 		}
 
+		writeThread = new Thread(this::writeLoop, "ChatSocketWriteThread");
+		writeThread.setDaemon(true);
+		writeThread.start();
+
 		readThread = new Thread(this::readLoop, "ChatSocketReadThread");
 		readThread.setDaemon(true);
 		readThread.start();
 	}
 
+	/**
+	 * Offers the binary framing in a JSON PROTOCOL_NEGOTIATE packet. The
+	 * connection switches only if the server answers with framing=binary;
+	 * any other answer, or none in time, keeps JSON and is remembered for
+	 * this server. Lines read before the answer are kept for the read loop.
+	 */
+	private void negotiate(int timeoutMs, String server) throws IOException {
+		JSONObject data = new JSONObject();
+		data.put("framing", new JSONArray().put("binary").put("json"));
+		data.put("version", ChatCodec.VERSION);
+		writeLine(new ChatPacket(MessageType.PROTOCOL_NEGOTIATE, data).toJson());
+		output.flush();
+
+		int previousTimeout = socket.getSoTimeout();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeoutMs, NEGOTIATION_TIMEOUT_MS));
+		try {
+			while (true) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					throw new SocketTimeoutException();
+				}
+				socket.setSoTimeout((int) remaining);
+				String line = readLine();
+				if (line == null) {
+					throw new EOFException("Connexion fermée pendant la négociation");
+				}
+				ChatPacket reply = null;
+				try {
+					reply = ChatPacket.fromJson(line);
+				} catch (RuntimeException ignored) {
+					// not the answer: delivered, and reported, by the read loop
+				}
+				if (reply == null || reply.getType() != MessageType.PROTOCOL_NEGOTIATE) {
+					pendingLines.add(line);
+					continue;
+				}
+				if ("binary".equals(reply.getData().optString("framing"))) {
+					framing = Framing.BINARY;
+				} else {
+					JSON_ONLY_SERVERS.add(server);
+				}
+				return;
+			}
+		} catch (SocketTimeoutException e) {
+			Logger.warn("⚠️ Pas de réponse à la négociation, mode JSON conservé pour " + server);
+			JSON_ONLY_SERVERS.add(server);
+		} finally {
+			socket.setSoTimeout(previousTimeout);
+		}
+	}
+
 	private void readLoop() {
 		try {
-			String line;
-			while (running && (line = reader.readLine()) != null) {
-				if (messageListener != null) {
-					messageListener.onMessage(line);
+			for (String line : pendingLines) {
+				deliverLine(line);
+			}
+			pendingLines.clear();
+			while (running) {
+				if (framing == Framing.BINARY) {
+					ChatPacket packet = readFrame();
+					if (packet == null) {
+						break;
+					}
+					deliver(packet);
+				} else {
+					String line = readLine();
+					if (line == null) {
+						break;
+					}
+					deliverLine(line);
 				}
 			}
 		} catch (Exception e) {
-			Logger.error("❌ Erreur socket lecture: " + e.getMessage());
+			if (running) {
+				Logger.error("❌ Erreur socket lecture: " + e.getMessage());
+			}
 		} finally {
-			disconnect();
+			close(true);
 		}
 	}
 
-	public synchronized void send(String message) throws Exception {
-		if (!running || writer == null) {
+	private void deliverLine(String line) {
+		ChatPacket packet;
+		try {
+			packet = ChatPacket.fromJson(line);
+		} catch (RuntimeException e) {
+			Logger.error("❌ Message chat invalide: " + e.getMessage());
 			return;
 		}
-		writer.write(message);
-		writer.newLine();
-		writer.flush();
+		deliver(packet);
+	}
+
+	private void deliver(ChatPacket packet) {
+		lastReceivedNanos = System.nanoTime();
+		if (packetListener != null) {
+			packetListener.onPacket(packet);
+		}
+	}
+
+	/**
+	 * Reads one newline-terminated UTF-8 line. Bytes read before a timeout
+	 * are kept, so the next call resumes the same line.
+	 */
+	private String readLine() throws IOException {
+		int b;
+		while ((b = input.read()) != -1) {
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && lineBuffer[length - 1] == '\r') {
+					length--;
+				}
+				lineLength = 0;
+				return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+			}
+			if (lineLength == lineBuffer.length) {
+				if (lineLength >= ChatCodec.MAX_FRAME_SIZE) {
+					throw new IOException("Ligne chat trop longue");
+				}
+				byte[] grown = new byte[lineBuffer.length * 2];
+				System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+				lineBuffer = grown;
+			}
+			lineBuffer[lineLength++] = (byte) b;
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the next valid binary frame. A frame that fails to decode is
+	 * skipped: it was fully consumed, so the stream is still in sync.
+	 */
+	private ChatPacket readFrame() throws IOException {
+		while (true) {
+			int b0 = input.read();
+			if (b0 == -1) {
+				return null;
+			}
+			int length = (b0 << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+			if (length <= 0 || length > ChatCodec.MAX_FRAME_SIZE) {
+				throw new IOException("Taille de trame chat invalide: " + length);
+			}
+			if (frameBuffer.length < length) {
+				frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+			}
+			int read = 0;
+			while (read < length) {
+				int n = input.read(frameBuffer, read, length - read);
+				if (n == -1) {
+					throw new EOFException("Trame chat incomplète");
+				}
+				read += n;
+			}
+			try {
+				return ChatCodec.decode(frameBuffer, 0, length);
+			} catch (IllegalArgumentException e) {
+				Logger.error("❌ Trame chat invalide: " + e.getMessage());
+			}
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = input.read();
+		if (b == -1) {
+			throw new EOFException("Trame chat incomplète");
+		}
+		return b;
+	}
+
+	/**
+	 * Queues a packet for the writer thread and returns at once. The future
+	 * completes once the packet has been flushed to the socket, or fails if
+	 * the queue is full or the connection is lost first.
+	 */
+	public CompletableFuture<Void> send(ChatPacket packet) {
+		Outbound message = new Outbound(packet);
+		if (!running) {
+			message.future.completeExceptionally(new IOException("Canal chat non connecté"));
+			return message.future;
+		}
+		if (!outbound.offer(message)) {
+			message.future.completeExceptionally(new IOException("File d'envoi chat pleine"));
+			return message.future;
+		}
+		if (!running && outbound.remove(message)) {
+			// raced with disconnect after the writer drained the queue
+			message.future.completeExceptionally(new IOException("Canal chat non connecté"));
+		}
+		return message.future;
+	}
+
+	/** Packets queued but not yet written. */
+	public int getPendingWrites() {
+		return outbound.size();
+	}
+
+	/**
+	 * Writes everything queued at the time it wakes up with a single flush,
+	 * so a burst of packets costs one syscall instead of one each.
+	 */
+	private void writeLoop() {
+		try {
+			while (running) {
+				Outbound first = outbound.poll(200, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				outbound.drainTo(batch, MAX_BATCH - 1);
+				writeBatch();
+				for (Outbound message : batch) {
+					message.future.complete(null);
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			if (running) {
+				Logger.error("❌ Erreur socket écriture: " + e.getMessage());
+			}
+			// close first so callbacks of the failed futures see the connection down
+			close(true);
+			failAll(batch, e);
+		} finally {
+			batch.clear();
+			outbound.drainTo(batch);
+			failAll(batch, new IOException("Canal chat fermé"));
+			batch.clear();
+		}
+	}
+
+	private void writeBatch() throws IOException {
+		ScheduledFuture<?> watchdog = null;
+		if (writeTimeoutMs > 0) {
+			watchdog = WRITE_WATCHDOG.schedule(this::abortStalledWrite, writeTimeoutMs, TimeUnit.MILLISECONDS);
+		}
+		try {
+			for (Outbound message : batch) {
+				if (framing == Framing.BINARY) {
+					int length = codec.encode(message.packet);
+					output.write(length >>> 24);
+					output.write(length >>> 16);
+					output.write(length >>> 8);
+					output.write(length);
+					output.write(codec.getBuffer(), 0, length);
+				} else {
+					writeLine(message.packet.toJson());
+				}
+			}
+			output.flush();
+		} finally {
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+		}
+	}
+
+	private void abortStalledWrite() {
+		if (running) {
+			Logger.error("⏱️ Écriture chat bloquée depuis " + writeTimeoutMs + " ms, connexion fermée");
+			close(true);
+		}
+	}
+
+	private static void failAll(List<Outbound> messages, Throwable error) {
+		for (Outbound message : messages) {
+			message.future.completeExceptionally(error);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createWatchdog() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "ChatWriteWatchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
+
+	private void writeLine(String line) throws IOException {
+		output.write(line.getBytes(StandardCharsets.UTF_8));
+		output.write('\n');
 	}
 
 	public void disconnect() {
-		running = false;
+		close(false);
+	}
+
+	/**
+	 * Closes the connection as lost, for a peer that stopped answering
+	 * while the socket still looks open.
+	 */
+	public void abort() {
+		close(true);
+	}
+
+	/** System.nanoTime() of the last packet received. */
+	public long getLastReceivedNanos() {
+		return lastReceivedNanos;
+	}
+
+	private void close(boolean lost) {
+		boolean wasRunning;
+		synchronized (this) {
+			wasRunning = running;
+			running = false;
+		}
+		closeQuietly();
+		if (wasRunning && connectionListener != null) {
+			connectionListener.onDisconnected(lost);
+		}
+	}
+
+	private void closeQuietly() {
 		try {
-			if (reader != null) {
-				reader.close();
+			if (input != null) {
+				input.close();
 			}
 		} catch (Exception ignored) {
 		}
 		try {
-			if (writer != null) {
-				writer.close();
+			if (output != null) {
+				output.close();
 			}
 		} catch (Exception ignored) {
 		}
@@ -99,9 +505,15 @@ public class WebSocketClient {
 			}
 		} catch (Exception ignored) {
 		}
+	}
 
-		if (connectionListener != null) {
-			connectionListener.onDisconnected();
+	/** Lets the threads of a previous connection finish before reusing the buffers. */
+	private void awaitThreads() throws InterruptedException {
+		Thread current = Thread.currentThread();
+		for (Thread thread : new Thread[] {readThread, writeThread}) {
+			if (thread != null && thread != current) {
+				thread.join(1000);
+			}
 		}
 	}
 
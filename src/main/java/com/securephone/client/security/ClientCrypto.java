@@ -56,6 +56,35 @@ public class ClientCrypto {
 		return Base64.getEncoder().encodeToString(buffer.array());
 	}
 
+	/** AES-GCM over raw bytes; returns iv || ciphertext || tag. */
+	public static byte[] encrypt(byte[] plaintext, byte[] aad, SecretKey key) throws Exception {
+		byte[] iv = new byte[IV_BYTES];
+		RANDOM.nextBytes(iv);
+
+		Cipher cipher = Cipher.getInstance(AES_GCM);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+		if (aad != null) {
+			cipher.updateAAD(aad);
+		}
+		byte[] payload = new byte[IV_BYTES + cipher.getOutputSize(plaintext.length)];
+		System.arraycopy(iv, 0, payload, 0, IV_BYTES);
+		cipher.doFinal(plaintext, 0, plaintext.length, payload, IV_BYTES);
+		return payload;
+	}
+
+	/** Inverse of {@link #encrypt}; fails if the payload or the associated data was altered. */
+	public static byte[] decrypt(byte[] payload, int offset, int length, byte[] aad, SecretKey key) throws Exception {
+		if (length < IV_BYTES) {
+			throw new IllegalArgumentException("Payload trop court");
+		}
+		Cipher cipher = Cipher.getInstance(AES_GCM);
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, payload, offset, IV_BYTES));
+		if (aad != null) {
+			cipher.updateAAD(aad);
+		}
+		return cipher.doFinal(payload, offset + IV_BYTES, length - IV_BYTES);
+	}
+
 	public static String decryptFromBase64(String base64, SecretKey key) throws Exception {
 		byte[] payload = Base64.getDecoder().decode(base64);
 		if (payload.length < IV_BYTES) {
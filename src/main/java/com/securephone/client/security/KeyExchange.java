@@ -1,18 +1,26 @@
 package com.securephone.client.security;
 
 import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class KeyExchange {
 
+	private static final String HMAC_SHA256 = "HmacSHA256";
+	private static final int HASH_BYTES = 32;
+	private static final byte[] AES_KEY_INFO = "securephone aes-128".getBytes(StandardCharsets.US_ASCII);
+
 	public static KeyPair generateKeyPair() throws Exception {
 		KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
 		generator.initialize(256);
@@ -36,9 +44,55 @@ public class KeyExchange {
 		return agreement.generateSecret();
 	}
 
+	/** AES-128 key from an ECDH secret, through HKDF rather than raw truncation. */
 	public static SecretKey deriveAesKey(byte[] sharedSecret) {
-		byte[] keyBytes = new byte[16];
-		System.arraycopy(sharedSecret, 0, keyBytes, 0, Math.min(sharedSecret.length, 16));
-		return new SecretKeySpec(keyBytes, "AES");
+		byte[] prk = hkdfExtract(null, sharedSecret);
+		byte[] keyBytes = hkdfExpand(prk, AES_KEY_INFO, 16);
+		Arrays.fill(prk, (byte) 0);
+		SecretKey key = new SecretKeySpec(keyBytes, "AES");
+		Arrays.fill(keyBytes, (byte) 0);
+		return key;
+	}
+
+	/** HKDF-Extract (RFC 5869) with HMAC-SHA256; a null salt means 32 zero bytes. */
+	public static byte[] hkdfExtract(byte[] salt, byte[] inputKeyMaterial) {
+		byte[] key = salt != null && salt.length > 0 ? salt : new byte[HASH_BYTES];
+		Mac mac = hmac(key);
+		return mac.doFinal(inputKeyMaterial);
+	}
+
+	/** HKDF-Expand (RFC 5869) with HMAC-SHA256. */
+	public static byte[] hkdfExpand(byte[] prk, byte[] info, int length) {
+		if (length <= 0 || length > 255 * HASH_BYTES) {
+			throw new IllegalArgumentException("Invalid HKDF length: " + length);
+		}
+		Mac mac = hmac(prk);
+		byte[] okm = new byte[length];
+		byte[] block = new byte[0];
+		int offset = 0;
+		for (int counter = 1; offset < length; counter++) {
+			mac.update(block);
+			if (info != null) {
+				mac.update(info);
+			}
+			mac.update((byte) counter);
+			Arrays.fill(block, (byte) 0);
+			block = mac.doFinal();
+			int n = Math.min(block.length, length - offset);
+			System.arraycopy(block, 0, okm, offset, n);
+			offset += n;
+		}
+		Arrays.fill(block, (byte) 0);
+		return okm;
+	}
+
+	private static Mac hmac(byte[] key) {
+		try {
+			Mac mac = Mac.getInstance(HMAC_SHA256);
+			mac.init(new SecretKeySpec(key, HMAC_SHA256));
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HMAC-SHA256 indisponible", e);
+		}
 	}
 }
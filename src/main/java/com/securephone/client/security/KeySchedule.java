@@ -0,0 +1,252 @@
+package com.securephone.client.security;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * KeySchedule - Clés directionnelles d'une session, dérivées par HKDF
+ *
+ * Both peers run the same schedule from the ECDH secret. HKDF-Extract,
+ * salted with the session id, gives a root key; each direction of each
+ * stream then has its own chain. One chain step yields an epoch's AES
+ * key and the next chain key, and the old chain is wiped, so a leaked
+ * key says nothing about earlier epochs.
+ *
+ * The sender moves to the next epoch once the packet or time budget of
+ * the current one is spent. Epochs are not signalled: the receiver
+ * keeps the previous, current and next keys and advances when a packet
+ * only opens under the next one.
+ */
+public class KeySchedule {
+
+	public static final long DEFAULT_PACKET_BUDGET = 1L << 20;
+	public static final long DEFAULT_TIME_BUDGET_MS = 10 * 60 * 1000;
+
+	private static final int KEY_BYTES = 16;
+	private static final int CHAIN_BYTES = 32;
+	private static final byte[] KEY_INFO = "key".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CHAIN_INFO = "chain".getBytes(StandardCharsets.US_ASCII);
+
+	private final boolean initiator;
+	private final long packetBudget;
+	private final long timeBudgetNanos;
+	private final LongSupplier clock;
+	private final Map<Integer, Sender> senders = new HashMap<>();
+	private final Map<Integer, Receiver> receivers = new HashMap<>();
+	// guarded by this
+	private byte[] rootKey;
+
+	public KeySchedule(byte[] sharedSecret, byte[] sessionId, boolean initiator) {
+		this(sharedSecret, sessionId, initiator, DEFAULT_PACKET_BUDGET, DEFAULT_TIME_BUDGET_MS, System::nanoTime);
+	}
+
+	public KeySchedule(byte[] sharedSecret, byte[] sessionId, boolean initiator,
+			long packetBudget, long timeBudgetMs) {
+		this(sharedSecret, sessionId, initiator, packetBudget, timeBudgetMs, System::nanoTime);
+	}
+
+	KeySchedule(byte[] sharedSecret, byte[] sessionId, boolean initiator,
+			long packetBudget, long timeBudgetMs, LongSupplier clock) {
+		this.rootKey = KeyExchange.hkdfExtract(sessionId, sharedSecret);
+		this.initiator = initiator;
+		this.packetBudget = packetBudget > 0 ? packetBudget : Long.MAX_VALUE;
+		this.timeBudgetNanos = timeBudgetMs > 0 ? TimeUnit.MILLISECONDS.toNanos(timeBudgetMs) : Long.MAX_VALUE;
+		this.clock = clock;
+	}
+
+	/** Key for the next outgoing packet of a stream; rotates when the budget is spent. */
+	public synchronized SecretKey nextSendKey(int stream) {
+		Sender sender = senders.get(stream);
+		if (sender == null) {
+			sender = new Sender(new Chain(chainKey(initiator, stream)), clock.getAsLong());
+			senders.put(stream, sender);
+		}
+		long now = clock.getAsLong();
+		if (sender.packets >= packetBudget || now - sender.started >= timeBudgetNanos) {
+			sender.key.destroy();
+			sender.key = sender.chain.step();
+			sender.packets = 0;
+			sender.started = now;
+		}
+		sender.packets++;
+		return sender.key;
+	}
+
+	/**
+	 * Receive key of a stream, {@code offset} epochs away from the current
+	 * one: -1, 0 or 1. Null for the previous key before the first rotation.
+	 */
+	public synchronized SecretKey receiveKey(int stream, int offset) {
+		Receiver receiver = receiver(stream);
+		switch (offset) {
+			case -1:
+				return receiver.previous;
+			case 0:
+				return receiver.current;
+			case 1:
+				return receiver.next;
+			default:
+				throw new IllegalArgumentException("Invalid epoch offset: " + offset);
+		}
+	}
+
+	/** Called once a packet has opened under the next key: the peer has rotated. */
+	public synchronized void advanceReceive(int stream) {
+		Receiver receiver = receiver(stream);
+		if (receiver.previous != null) {
+			receiver.previous.destroy();
+		}
+		receiver.previous = receiver.current;
+		receiver.current = receiver.next;
+		receiver.next = receiver.chain.step();
+		receiver.epoch++;
+	}
+
+	public synchronized int getSendEpoch(int stream) {
+		Sender sender = senders.get(stream);
+		return sender != null ? sender.chain.epoch : 0;
+	}
+
+	public synchronized int getReceiveEpoch(int stream) {
+		Receiver receiver = receivers.get(stream);
+		return receiver != null ? receiver.epoch : 0;
+	}
+
+	public synchronized boolean isDestroyed() {
+		return rootKey == null;
+	}
+
+	/** Wipes the root key and every chain and key derived so far. */
+	public synchronized void destroy() {
+		if (rootKey == null) {
+			return;
+		}
+		Arrays.fill(rootKey, (byte) 0);
+		rootKey = null;
+		for (Sender sender : senders.values()) {
+			sender.key.destroy();
+			sender.chain.destroy();
+		}
+		for (Receiver receiver : receivers.values()) {
+			if (receiver.previous != null) {
+				receiver.previous.destroy();
+			}
+			receiver.current.destroy();
+			receiver.next.destroy();
+			receiver.chain.destroy();
+		}
+		senders.clear();
+		receivers.clear();
+	}
+
+	private Receiver receiver(int stream) {
+		Receiver receiver = receivers.get(stream);
+		if (receiver == null) {
+			receiver = new Receiver(new Chain(chainKey(!initiator, stream)));
+			receivers.put(stream, receiver);
+		}
+		return receiver;
+	}
+
+	// the initiator's sending chain is the responder's receiving chain
+	private byte[] chainKey(boolean fromInitiator, int stream) {
+		if (rootKey == null) {
+			throw new IllegalStateException("Key schedule destroyed");
+		}
+		String label = "securephone media " + (fromInitiator ? "i2r" : "r2i") + " " + stream;
+		return KeyExchange.hkdfExpand(rootKey, label.getBytes(StandardCharsets.US_ASCII), CHAIN_BYTES);
+	}
+
+	private static final class Chain {
+		private byte[] key;
+		private int epoch = -1;
+
+		Chain(byte[] key) {
+			this.key = key;
+		}
+
+		MediaKey step() {
+			MediaKey next = new MediaKey(KeyExchange.hkdfExpand(key, KEY_INFO, KEY_BYTES));
+			byte[] chain = KeyExchange.hkdfExpand(key, CHAIN_INFO, CHAIN_BYTES);
+			Arrays.fill(key, (byte) 0);
+			key = chain;
+			epoch++;
+			return next;
+		}
+
+		void destroy() {
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	private static final class Sender {
+		final Chain chain;
+		MediaKey key;
+		long packets;
+		long started;
+
+		Sender(Chain chain, long started) {
+			this.chain = chain;
+			this.key = chain.step();
+			this.started = started;
+		}
+	}
+
+	private static final class Receiver {
+		final Chain chain;
+		MediaKey previous;
+		MediaKey current;
+		MediaKey next;
+		int epoch;
+
+		Receiver(Chain chain) {
+			this.chain = chain;
+			this.current = chain.step();
+			this.next = chain.step();
+		}
+	}
+
+	/** AES key whose bytes can be wiped, unlike SecretKeySpec. */
+	static final class MediaKey implements SecretKey {
+		private final byte[] bytes;
+		private volatile boolean destroyed;
+
+		MediaKey(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public String getAlgorithm() {
+			return "AES";
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			if (destroyed) {
+				throw new IllegalStateException("Key destroyed");
+			}
+			return bytes.clone();
+		}
+
+		@Override
+		public void destroy() {
+			Arrays.fill(bytes, (byte) 0);
+			destroyed = true;
+		}
+
+		@Override
+		public boolean isDestroyed() {
+			return destroyed;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.securephone.client.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MediaCrypto - Chiffrement AES-GCM des paquets audio/vidéo
+ *
+ * Packets are sealed in place: the header stays readable and is
+ * authenticated as associated data, the payload is replaced by its
+ * ciphertext followed by the tag. The nonce never travels; both sides
+ * rebuild it from the header as sender id, stream and a per-sender
+ * counter, so a key must never outlive the call it was agreed for.
+ * With a KeySchedule, each direction has its own key and keys rotate;
+ * an incoming packet is tried under the current, next and previous
+ * receive keys.
+ *
+ * Cipher instances are kept per thread and reinitialised for each packet.
+ */
+public class MediaCrypto {
+
+	public static final int TAG_BYTES = 16;
+	public static final int STREAM_AUDIO = 1;
+	public static final int STREAM_VIDEO = 2;
+
+	private static final String AES_GCM = "AES/GCM/NoPadding";
+	private static final int NONCE_BYTES = 12;
+	private static final long MAX_COUNTER = (1L << 56) - 1;
+
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(AES_GCM);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-GCM indisponible", e);
+		}
+	});
+	private static final ThreadLocal<byte[]> NONCES = ThreadLocal.withInitial(() -> new byte[NONCE_BYTES]);
+
+	private final SecretKey key;
+	private final KeySchedule schedule;
+	private final int stream;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** One key for both directions and the whole session. */
+	public MediaCrypto(SecretKey key, int stream) {
+		this(key, null, stream);
+	}
+
+	public MediaCrypto(KeySchedule schedule, int stream) {
+		this(null, schedule, stream);
+	}
+
+	private MediaCrypto(SecretKey key, KeySchedule schedule, int stream) {
+		if (stream <= 0 || stream > 0xFF) {
+			throw new IllegalArgumentException("Invalid stream: " + stream);
+		}
+		this.key = key;
+		this.schedule = schedule;
+		this.stream = stream;
+	}
+
+	/**
+	 * Encrypts the bytes between {@code headerLength} and the limit, in
+	 * place, and moves the limit past the appended tag. Returns the new
+	 * packet length. The buffer needs {@link #TAG_BYTES} of spare capacity.
+	 */
+	public int seal(ByteBuffer packet, int headerLength, int senderId, long counter) throws GeneralSecurityException {
+		int start = packet.position();
+		int end = packet.limit();
+		int payload = start + headerLength;
+		if (payload > end || end + TAG_BYTES > packet.capacity()) {
+			throw new IllegalArgumentException("Buffer too small for media packet");
+		}
+		SecretKey sendKey = schedule != null ? schedule.nextSendKey(stream) : key;
+		Cipher cipher = init(Cipher.ENCRYPT_MODE, sendKey, senderId, counter);
+		cipher.updateAAD(slice(packet, start, payload));
+		ByteBuffer output = slice(packet, payload, end + TAG_BYTES);
+		cipher.doFinal(slice(packet, payload, end), output);
+		packet.limit(end + TAG_BYTES);
+		return end + TAG_BYTES - start;
+	}
+
+	/**
+	 * Decrypts in place and moves the limit back over the tag. Returns
+	 * false, leaving the packet to be dropped, when it is too short or
+	 * was not sealed by this key for this sender and counter.
+	 */
+	public boolean open(ByteBuffer packet, int headerLength, int senderId, long counter) {
+		int start = packet.position();
+		int end = packet.limit();
+		int payload = start + headerLength;
+		if (end - payload < TAG_BYTES) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		boolean opened;
+		if (schedule == null) {
+			opened = tryOpen(packet, start, payload, end, key, senderId, counter);
+		} else if (tryOpen(packet, start, payload, end, schedule.receiveKey(stream, 0), senderId, counter)) {
+			opened = true;
+		} else if (tryOpen(packet, start, payload, end, schedule.receiveKey(stream, 1), senderId, counter)) {
+			schedule.advanceReceive(stream);
+			opened = true;
+		} else {
+			// late packet from before the peer's last rotation
+			opened = tryOpen(packet, start, payload, end, schedule.receiveKey(stream, -1), senderId, counter);
+		}
+		if (!opened) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		packet.limit(end - TAG_BYTES);
+		return true;
+	}
+
+	/** Packets dropped because they failed authentication. */
+	public long getRejectedPackets() {
+		return rejected.get();
+	}
+
+	// a failed attempt leaves the packet as it was: GCM checks the tag before writing
+	private boolean tryOpen(ByteBuffer packet, int start, int payload, int end, SecretKey candidate,
+			int senderId, long counter) {
+		if (candidate == null) {
+			return false;
+		}
+		try {
+			Cipher cipher = init(Cipher.DECRYPT_MODE, candidate, senderId, counter);
+			cipher.updateAAD(slice(packet, start, payload));
+			cipher.doFinal(slice(packet, payload, end), slice(packet, payload, end));
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private Cipher init(int mode, SecretKey key, int senderId, long counter) throws GeneralSecurityException {
+		if (counter < 0 || counter > MAX_COUNTER) {
+			throw new IllegalArgumentException("Counter out of range: " + counter);
+		}
+		byte[] nonce = NONCES.get();
+		nonce[0] = (byte) (senderId >>> 24);
+		nonce[1] = (byte) (senderId >>> 16);
+		nonce[2] = (byte) (senderId >>> 8);
+		nonce[3] = (byte) senderId;
+		nonce[4] = (byte) stream;
+		for (int i = 0; i < 7; i++) {
+			nonce[NONCE_BYTES - 1 - i] = (byte) (counter >>> (8 * i));
+		}
+		Cipher cipher = CIPHERS.get();
+		// the spec copies the nonce, so the array can be reused for the next packet
+		cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+		return cipher;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(to);
+		view.position(from);
+		return view;
+	}
+}
@@ -0,0 +1,334 @@
+package com.securephone.client.security;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * StreamCrypto - Chiffrement AEAD par blocs des fichiers et médias
+ *
+ * A stream is a header (version, chunk size, salt, nonce prefix)
+ * followed by chunks of chunkSize plaintext bytes, each sealed with
+ * AES-GCM into chunkSize + 16 bytes; only the last one may be shorter.
+ * Every stream gets its own key, HKDF of the master key with the header
+ * salt, and chunk i uses the nonce prefix || i || last-flag with the
+ * header as associated data, so chunks cannot be reordered, cut off at
+ * the end or moved to another stream. Chunk offsets are fixed, which
+ * lets any chunk be decrypted alone; memory use is a few chunks whatever
+ * the size of the stream.
+ */
+public class StreamCrypto {
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int TAG_BYTES = 16;
+	public static final int HEADER_SIZE = 28;
+
+	private static final byte VERSION = 1;
+	private static final int SALT_BYTES = 16;
+	private static final int PREFIX_BYTES = 7;
+	private static final int NONCE_BYTES = 12;
+	private static final int MAX_CHUNK_SIZE = 1 << 24;
+	private static final String AES_GCM = "AES/GCM/NoPadding";
+	private static final byte[] KEY_INFO = "securephone stream v1".getBytes(StandardCharsets.US_ASCII);
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final byte[] masterKey;
+
+	public StreamCrypto(SecretKey key) {
+		this.masterKey = key.getEncoded();
+	}
+
+	/** Encryptor for a new stream, with a fresh salt and nonce prefix. */
+	public Encryptor newEncryptor(int chunkSize, byte[] aad) throws GeneralSecurityException {
+		checkChunkSize(chunkSize);
+		byte[] header = new byte[HEADER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		buffer.put(VERSION);
+		buffer.putInt(chunkSize);
+		byte[] random = new byte[SALT_BYTES + PREFIX_BYTES];
+		RANDOM.nextBytes(random);
+		buffer.put(random);
+		return new Encryptor(header, aad);
+	}
+
+	/**
+	 * Encryptor for an existing stream, from its header. Chunks come out
+	 * identical to the first time, so an interrupted upload can resume;
+	 * the plaintext must not have changed, or two chunks would share a nonce.
+	 */
+	public Encryptor resumeEncryptor(byte[] header, byte[] aad) throws GeneralSecurityException {
+		return new Encryptor(checkHeader(header), aad);
+	}
+
+	public Decryptor newDecryptor(byte[] header, byte[] aad) throws GeneralSecurityException {
+		return new Decryptor(checkHeader(header), aad);
+	}
+
+	/** Header plus chunks, with its own header; returns the bytes written. */
+	public long encrypt(InputStream in, OutputStream out, byte[] aad) throws IOException, GeneralSecurityException {
+		WritableByteChannel target = Channels.newChannel(out);
+		Encryptor encryptor = newEncryptor(DEFAULT_CHUNK_SIZE, aad);
+		writeFully(target, ByteBuffer.wrap(encryptor.getHeader()));
+		return HEADER_SIZE + encryptor.encrypt(Channels.newChannel(in), target);
+	}
+
+	/** Inverse of {@link #encrypt}; returns the plaintext bytes written. */
+	public long decrypt(InputStream in, OutputStream out, byte[] aad) throws IOException, GeneralSecurityException {
+		ReadableByteChannel source = Channels.newChannel(in);
+		return newDecryptor(readHeader(source), aad).decrypt(source, Channels.newChannel(out));
+	}
+
+	public static byte[] readHeader(ReadableByteChannel in) throws IOException, GeneralSecurityException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		fill(in, header);
+		if (header.hasRemaining()) {
+			throw new GeneralSecurityException("Flux chiffré tronqué");
+		}
+		return header.array();
+	}
+
+	public static int chunkSizeOf(byte[] header) {
+		return ByteBuffer.wrap(header).getInt(1);
+	}
+
+	/** Number of chunks for a plaintext; an empty one still has one (empty) chunk. */
+	public static long chunkCount(long plaintextSize, int chunkSize) {
+		return plaintextSize == 0 ? 1 : (plaintextSize + chunkSize - 1) / chunkSize;
+	}
+
+	/** Size of the whole stream, header included. */
+	public static long ciphertextSize(long plaintextSize, int chunkSize) {
+		return HEADER_SIZE + plaintextSize + chunkCount(plaintextSize, chunkSize) * TAG_BYTES;
+	}
+
+	/** Plaintext size of a whole stream, or -1 if no stream has this size. */
+	public static long plaintextSize(long ciphertextSize, int chunkSize) {
+		long body = ciphertextSize - HEADER_SIZE;
+		if (body < TAG_BYTES) {
+			return -1;
+		}
+		long sealed = chunkSize + TAG_BYTES;
+		long chunks = (body + sealed - 1) / sealed;
+		long lastLength = body - (chunks - 1) * sealed;
+		return lastLength < TAG_BYTES ? -1 : body - chunks * TAG_BYTES;
+	}
+
+	private static void checkChunkSize(int chunkSize) {
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+		}
+	}
+
+	private static byte[] checkHeader(byte[] header) throws GeneralSecurityException {
+		if (header == null || header.length != HEADER_SIZE || header[0] != VERSION) {
+			throw new GeneralSecurityException("En-tête de flux chiffré invalide");
+		}
+		int chunkSize = chunkSizeOf(header);
+		if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new GeneralSecurityException("En-tête de flux chiffré invalide");
+		}
+		return header.clone();
+	}
+
+	// reads until the buffer is full or the channel ends; channels must be blocking
+	private static void fill(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+		}
+	}
+
+	private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/** Key, nonce and associated data of one stream. */
+	public abstract class Chunks {
+		final byte[] header;
+		final int chunkSize;
+		private final SecretKey key;
+		private final byte[] aad;
+		private final Cipher cipher;
+		private final byte[] nonce = new byte[NONCE_BYTES];
+
+		Chunks(byte[] header, byte[] aad) throws GeneralSecurityException {
+			this.header = header;
+			this.chunkSize = chunkSizeOf(header);
+			this.aad = aad;
+			byte[] prk = KeyExchange.hkdfExtract(Arrays.copyOfRange(header, 5, 5 + SALT_BYTES), masterKey);
+			byte[] keyBytes = KeyExchange.hkdfExpand(prk, KEY_INFO, masterKey.length);
+			this.key = new SecretKeySpec(keyBytes, "AES");
+			Arrays.fill(prk, (byte) 0);
+			Arrays.fill(keyBytes, (byte) 0);
+			this.cipher = Cipher.getInstance(AES_GCM);
+			System.arraycopy(header, 5 + SALT_BYTES, nonce, 0, PREFIX_BYTES);
+		}
+
+		public byte[] getHeader() {
+			return header.clone();
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		Cipher init(int mode, long index, boolean last) throws GeneralSecurityException {
+			if (index < 0 || index > 0xFFFFFFFFL) {
+				throw new IllegalArgumentException("Invalid chunk index: " + index);
+			}
+			nonce[7] = (byte) (index >>> 24);
+			nonce[8] = (byte) (index >>> 16);
+			nonce[9] = (byte) (index >>> 8);
+			nonce[10] = (byte) index;
+			nonce[11] = (byte) (last ? 1 : 0);
+			cipher.init(mode, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+			cipher.updateAAD(header);
+			if (aad != null) {
+				cipher.updateAAD(aad);
+			}
+			return cipher;
+		}
+	}
+
+	/** Not thread-safe; one per stream and thread. */
+	public final class Encryptor extends Chunks {
+
+		Encryptor(byte[] header, byte[] aad) throws GeneralSecurityException {
+			super(header, aad);
+		}
+
+		/**
+		 * Seals one chunk into {@code out}: a full chunk of plaintext, or
+		 * at most that for the last one. Returns the bytes written. The JDK
+		 * refuses to seal the same chunk twice in a row; resend the sealed
+		 * bytes instead.
+		 */
+		public int sealChunk(long index, boolean last, ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+			int length = plaintext.remaining();
+			if (length > chunkSize || (!last && length != chunkSize)) {
+				throw new IllegalArgumentException("Invalid chunk length: " + length);
+			}
+			return init(Cipher.ENCRYPT_MODE, index, last).doFinal(plaintext, out);
+		}
+
+		/** Seals everything left in {@code in}, without the header; returns the bytes written. */
+		public long encrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+			ByteBuffer current = ByteBuffer.allocate(chunkSize);
+			ByteBuffer next = ByteBuffer.allocate(chunkSize);
+			ByteBuffer sealed = ByteBuffer.allocate(chunkSize + TAG_BYTES);
+			long written = 0;
+			fill(in, current);
+			for (long index = 0; ; index++) {
+				// a chunk is only known to be the last once the next read comes back empty
+				boolean last = current.hasRemaining();
+				if (!last) {
+					next.clear();
+					fill(in, next);
+					last = next.position() == 0;
+				}
+				current.flip();
+				sealed.clear();
+				sealChunk(index, last, current, sealed);
+				sealed.flip();
+				written += sealed.remaining();
+				writeFully(out, sealed);
+				if (last) {
+					return written;
+				}
+				ByteBuffer swap = current;
+				current = next;
+				next = swap;
+			}
+		}
+	}
+
+	/** Not thread-safe; one per stream and thread. */
+	public final class Decryptor extends Chunks {
+
+		private ByteBuffer readBuffer;
+
+		Decryptor(byte[] header, byte[] aad) throws GeneralSecurityException {
+			super(header, aad);
+		}
+
+		/** Opens one sealed chunk into {@code out}; returns the plaintext length. */
+		public int openChunk(long index, boolean last, ByteBuffer ciphertext, ByteBuffer out) throws GeneralSecurityException {
+			int length = ciphertext.remaining();
+			if (length < TAG_BYTES || length > chunkSize + TAG_BYTES || (!last && length != chunkSize + TAG_BYTES)) {
+				throw new AEADBadTagException("Invalid sealed chunk length: " + length);
+			}
+			return init(Cipher.DECRYPT_MODE, index, last).doFinal(ciphertext, out);
+		}
+
+		/** Opens every chunk left in {@code in}, header already read; returns the plaintext bytes written. */
+		public long decrypt(ReadableByteChannel in, WritableByteChannel out) throws IOException, GeneralSecurityException {
+			ByteBuffer current = ByteBuffer.allocate(chunkSize + TAG_BYTES);
+			ByteBuffer next = ByteBuffer.allocate(chunkSize + TAG_BYTES);
+			ByteBuffer plain = ByteBuffer.allocate(chunkSize);
+			long written = 0;
+			fill(in, current);
+			for (long index = 0; ; index++) {
+				boolean last = current.hasRemaining();
+				if (!last) {
+					next.clear();
+					fill(in, next);
+					last = next.position() == 0;
+				}
+				current.flip();
+				plain.clear();
+				openChunk(index, last, current, plain);
+				plain.flip();
+				written += plain.remaining();
+				writeFully(out, plain);
+				if (last) {
+					return written;
+				}
+				ByteBuffer swap = current;
+				current = next;
+				next = swap;
+			}
+		}
+
+		/**
+		 * Random access: decrypts chunk {@code index} of a whole stream
+		 * stored at the start of {@code file}. Returns the plaintext length.
+		 */
+		public int readChunk(FileChannel file, long index, ByteBuffer out) throws IOException, GeneralSecurityException {
+			long size = file.size();
+			long plaintext = plaintextSize(size, chunkSize);
+			long chunks = chunkCount(plaintext, chunkSize);
+			if (plaintext < 0 || index < 0 || index >= chunks) {
+				throw new IllegalArgumentException("No chunk " + index + " in a stream of " + size + " bytes");
+			}
+			long sealedSize = chunkSize + TAG_BYTES;
+			long position = HEADER_SIZE + index * sealedSize;
+			if (readBuffer == null) {
+				readBuffer = ByteBuffer.allocate((int) sealedSize);
+			}
+			ByteBuffer sealed = readBuffer;
+			sealed.clear();
+			sealed.limit((int) Math.min(sealedSize, size - position));
+			while (sealed.hasRemaining()) {
+				if (file.read(sealed, position + sealed.position()) < 0) {
+					throw new GeneralSecurityException("Flux chiffré tronqué");
+				}
+			}
+			sealed.flip();
+			return openChunk(index, index == chunks - 1, sealed, out);
+		}
+	}
+}
@@ -0,0 +1,636 @@
+package com.securephone.client.storage;
+
+import com.securephone.client.models.ChatMessage;
+import com.securephone.client.security.ClientCrypto;
+import com.securephone.client.utils.Logger;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, encrypted chat history on disk.
+ *
+ * Each conversation gets a directory of segments named after the sequence
+ * number of their first record. A record is [length][crc32][seq] followed
+ * by an AES-GCM payload holding the timestamp, sender and content; the
+ * conversation and sequence are bound as associated data, so records
+ * cannot be swapped between places. Every INDEX_INTERVAL records the
+ * segment's .idx file gets a (seq, timestamp, offset) entry: reads seek to
+ * the nearest entry instead of scanning, and opening a conversation only
+ * scans what follows the last entry. Segments are read through read-only
+ * memory maps.
+ *
+ * Appends reach the page cache at once; fsync runs on a timer for all
+ * dirty conversations, so a crash of the OS (not of the process) may lose
+ * the last interval. A torn record at the tail is cut off on open.
+ */
+public class MessageLog implements Closeable {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+	public static final long DEFAULT_FSYNC_INTERVAL_MS = 1000;
+
+	static final int INDEX_INTERVAL = 64;
+	private static final int HEADER_BYTES = 16;
+	private static final int INDEX_ENTRY_BYTES = 20;
+	private static final int MAX_PAYLOAD_BYTES = 1 << 20;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String SALT_FILE = "salt";
+	private static final String KEY_CHECK_FILE = "key.check";
+	private static final byte[] KEY_CHECK = "securephone-history".getBytes(StandardCharsets.UTF_8);
+
+	private static final class Segment {
+		final long baseSeq;
+		final Path dataPath;
+		final Path indexPath;
+		FileChannel data;
+		FileChannel index;
+		long size;
+		long nextSeq;
+		int sinceIndex;
+
+		// sparse index, sorted by seq
+		long[] indexSeqs = new long[16];
+		long[] indexTimes = new long[16];
+		long[] indexOffsets = new long[16];
+		int indexCount;
+
+		MappedByteBuffer map;
+
+		Segment(Path dir, long baseSeq) {
+			this.baseSeq = baseSeq;
+			this.nextSeq = baseSeq;
+			String name = String.format("%020d", baseSeq);
+			this.dataPath = dir.resolve(name + SEGMENT_SUFFIX);
+			this.indexPath = dir.resolve(name + INDEX_SUFFIX);
+		}
+
+		void addIndexEntry(long seq, long timestamp, long offset) {
+			if (indexCount == indexSeqs.length) {
+				indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+				indexTimes = Arrays.copyOf(indexTimes, indexCount * 2);
+				indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+			}
+			indexSeqs[indexCount] = seq;
+			indexTimes[indexCount] = timestamp;
+			indexOffsets[indexCount] = offset;
+			indexCount++;
+		}
+
+		// last index entry at or before seq, or -1
+		int floorBySeq(long seq) {
+			int lo = 0;
+			int hi = indexCount - 1;
+			int found = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (indexSeqs[mid] <= seq) {
+					found = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			return found;
+		}
+
+		ByteBuffer view() throws IOException {
+			if (map == null || map.capacity() < size) {
+				map = data.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			return map.duplicate();
+		}
+
+		void close() throws IOException {
+			map = null;
+			if (data != null) {
+				data.close();
+			}
+			if (index != null) {
+				index.close();
+			}
+		}
+	}
+
+	private static final class Conversation {
+		final String id;
+		final Path dir;
+		final byte[] idBytes;
+		final TreeMap<Long, Segment> segments = new TreeMap<>();
+		boolean dirty;
+
+		Conversation(String id, Path dir) {
+			this.id = id;
+			this.dir = dir;
+			this.idBytes = id.getBytes(StandardCharsets.UTF_8);
+		}
+
+		Segment active() {
+			return segments.lastEntry().getValue();
+		}
+
+		long nextSeq() {
+			return segments.isEmpty() ? 0 : active().nextSeq;
+		}
+	}
+
+	private final Path root;
+	private final SecretKey key;
+	private final long segmentSize;
+	private final long fsyncIntervalMs;
+	private final Map<String, Conversation> conversations = new HashMap<>();
+	private final ScheduledExecutorService flusher;
+	private boolean closed;
+
+	public MessageLog(Path root, SecretKey key) throws IOException {
+		this(root, key, DEFAULT_SEGMENT_SIZE, DEFAULT_FSYNC_INTERVAL_MS);
+	}
+
+	/** fsyncIntervalMs of 0 forces every append to disk. */
+	public MessageLog(Path root, SecretKey key, long segmentSize, long fsyncIntervalMs) throws IOException {
+		this.root = root;
+		this.key = key;
+		this.segmentSize = Math.max(4096, segmentSize);
+		this.fsyncIntervalMs = Math.max(0, fsyncIntervalMs);
+		Files.createDirectories(root);
+		if (this.fsyncIntervalMs > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "MessageLogFlushThread");
+				thread.setDaemon(true);
+				return thread;
+			});
+			flusher.scheduleWithFixedDelay(this::flushQuietly, this.fsyncIntervalMs, this.fsyncIntervalMs, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Derives the history key for a directory from the user's password. The
+	 * salt and a check value are created on first use; a different password
+	 * later fails with a GeneralSecurityException instead of writing records
+	 * nobody can read back.
+	 */
+	public static SecretKey deriveKey(Path root, String password) throws IOException, GeneralSecurityException {
+		Files.createDirectories(root);
+		Path saltPath = root.resolve(SALT_FILE);
+		Path checkPath = root.resolve(KEY_CHECK_FILE);
+		try {
+			if (!Files.exists(saltPath)) {
+				Files.write(saltPath, ClientCrypto.randomSalt(16));
+			}
+			SecretKey key = ClientCrypto.deriveKeyFromPassword(password, Files.readAllBytes(saltPath));
+			if (!Files.exists(checkPath)) {
+				Files.write(checkPath, ClientCrypto.encrypt(KEY_CHECK, null, key));
+			} else {
+				byte[] check = Files.readAllBytes(checkPath);
+				if (!Arrays.equals(KEY_CHECK, ClientCrypto.decrypt(check, 0, check.length, null, key))) {
+					throw new GeneralSecurityException("Clé d'historique invalide");
+				}
+			}
+			return key;
+		} catch (IOException | GeneralSecurityException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new GeneralSecurityException(e);
+		}
+	}
+
+	/** Appends the message, sets its sequence number and returns it. */
+	public synchronized long append(String conversation, ChatMessage message) throws IOException {
+		ensureOpen();
+		Conversation conv = conversation(conversation);
+		long seq = conv.nextSeq();
+		byte[] payload = seal(conv, seq, message);
+
+		Segment segment = conv.segments.isEmpty() ? null : conv.active();
+		if (segment == null || (segment.size > 0 && segment.size + HEADER_BYTES + payload.length > segmentSize)) {
+			if (segment != null) {
+				// sealed: no more writes, keep it mapped for reads
+				segment.data.force(false);
+				segment.index.force(false);
+			}
+			segment = createSegment(conv, seq);
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+		record.putInt(payload.length);
+		record.putInt(crc(seq, payload, 0, payload.length));
+		record.putLong(seq);
+		record.put(payload);
+		record.flip();
+		long offset = segment.size;
+		writeFully(segment.data, record, offset);
+		segment.size += record.limit();
+
+		if (segment.sinceIndex == 0) {
+			ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+			entry.putLong(seq).putLong(message.getTimestampMillis()).putInt((int) offset).flip();
+			writeFully(segment.index, entry, (long) segment.indexCount * INDEX_ENTRY_BYTES);
+			segment.addIndexEntry(seq, message.getTimestampMillis(), offset);
+		}
+		segment.sinceIndex = (segment.sinceIndex + 1) % INDEX_INTERVAL;
+		segment.nextSeq = seq + 1;
+
+		if (fsyncIntervalMs == 0) {
+			segment.data.force(false);
+			segment.index.force(false);
+		} else {
+			conv.dirty = true;
+		}
+		message.setSequence(seq);
+		return seq;
+	}
+
+	/**
+	 * Up to limit messages with a sequence below beforeSeq, oldest first. A
+	 * negative beforeSeq reads the tail.
+	 */
+	public synchronized List<ChatMessage> readBefore(String conversation, long beforeSeq, int limit) throws IOException {
+		ensureOpen();
+		Conversation conv = conversation(conversation);
+		long end = beforeSeq < 0 ? conv.nextSeq() : Math.min(beforeSeq, conv.nextSeq());
+		List<ChatMessage> page = new ArrayList<>();
+		// unreadable records are skipped; keep going back so that a short
+		// page only ever means the start of the history
+		while (page.size() < limit && end > 0) {
+			long start = Math.max(0, end - (limit - page.size()));
+			page.addAll(0, read(conv, start, end));
+			end = start;
+		}
+		return page;
+	}
+
+	/** Up to limit messages with a sequence above afterSeq, oldest first. */
+	public synchronized List<ChatMessage> readAfter(String conversation, long afterSeq, int limit) throws IOException {
+		ensureOpen();
+		Conversation conv = conversation(conversation);
+		long next = conv.nextSeq();
+		long start = Math.max(0, afterSeq + 1);
+		List<ChatMessage> page = new ArrayList<>();
+		// as in readBefore, a short page only ever means the end of the history
+		while (page.size() < limit && start < next) {
+			long end = Math.min(next, start + (limit - page.size()));
+			page.addAll(read(conv, start, end));
+			start = end;
+		}
+		return page;
+	}
+
+	/** Number of messages stored for the conversation, i.e. its next sequence. */
+	public synchronized long size(String conversation) throws IOException {
+		ensureOpen();
+		return conversation(conversation).nextSeq();
+	}
+
+	/**
+	 * Sequence of the first message at or after the timestamp, or the
+	 * conversation size if there is none. Assumes timestamps roughly
+	 * follow arrival order.
+	 */
+	public synchronized long findSequence(String conversation, long timestamp) throws IOException {
+		ensureOpen();
+		Conversation conv = conversation(conversation);
+		long from = -1;
+		for (Segment segment : conv.segments.values()) {
+			for (int i = 0; i < segment.indexCount; i++) {
+				if (segment.indexTimes[i] >= timestamp) {
+					break;
+				}
+				from = segment.indexSeqs[i];
+			}
+		}
+		// the next index entry is already at or past the timestamp, so one
+		// interval from the entry normally holds the answer
+		long next = conv.nextSeq();
+		for (long start = Math.max(0, from); start < next; start += INDEX_INTERVAL) {
+			for (ChatMessage message : read(conv, start, Math.min(start + INDEX_INTERVAL, next))) {
+				if (message.getTimestampMillis() >= timestamp) {
+					return message.getSequence();
+				}
+			}
+		}
+		return next;
+	}
+
+	public synchronized void flush() throws IOException {
+		for (Conversation conv : conversations.values()) {
+			if (conv.dirty && !conv.segments.isEmpty()) {
+				conv.active().data.force(false);
+				conv.active().index.force(false);
+				conv.dirty = false;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (flusher != null) {
+			// let a running fsync finish: interrupting it would close the channels
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flush();
+			closed = true;
+			for (Conversation conv : conversations.values()) {
+				for (Segment segment : conv.segments.values()) {
+					segment.close();
+				}
+			}
+			conversations.clear();
+		}
+	}
+
+	/**
+	 * Periodic fsync. The dirty channels are picked under the lock but forced
+	 * outside it, so appends and reads do not wait for the disk.
+	 */
+	private void flushQuietly() {
+		List<FileChannel> dirty = new ArrayList<>();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			for (Conversation conv : conversations.values()) {
+				if (conv.dirty && !conv.segments.isEmpty()) {
+					dirty.add(conv.active().data);
+					dirty.add(conv.active().index);
+					conv.dirty = false;
+				}
+			}
+		}
+		for (FileChannel channel : dirty) {
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// close() gave up waiting for this fsync
+			} catch (IOException e) {
+				Logger.error("Erreur fsync historique: " + e.getMessage());
+			}
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Historique fermé");
+		}
+	}
+
+	private List<ChatMessage> read(Conversation conv, long start, long end) throws IOException {
+		List<ChatMessage> messages = new ArrayList<>();
+		if (start >= end) {
+			return messages;
+		}
+		Long firstBase = conv.segments.floorKey(start);
+		Map<Long, Segment> range = firstBase != null
+			? conv.segments.subMap(firstBase, true, end, false)
+			: conv.segments.headMap(end, false);
+		for (Segment segment : range.values()) {
+			int entry = segment.floorBySeq(start);
+			long offset = entry >= 0 ? segment.indexOffsets[entry] : 0;
+			long expected = entry >= 0 ? segment.indexSeqs[entry] : segment.baseSeq;
+			ByteBuffer view = segment.view();
+			while (offset + HEADER_BYTES <= segment.size) {
+				view.position((int) offset);
+				int length = view.getInt();
+				int crc = view.getInt();
+				long seq = view.getLong();
+				// same checks as recoverTail: past a bad header the segment cannot be walked
+				if (length <= 0 || length > MAX_PAYLOAD_BYTES || seq != expected
+						|| offset + HEADER_BYTES + length > segment.size) {
+					Logger.warn("⚠️ Historique " + conv.dir.getFileName() + ": enregistrement corrompu à " + offset
+						+ " dans le segment " + segment.baseSeq);
+					break;
+				}
+				if (seq >= end) {
+					break;
+				}
+				if (seq >= start) {
+					byte[] payload = new byte[length];
+					view.get(payload);
+					ChatMessage message = crc(seq, payload, 0, length) == crc ? open(conv, seq, payload) : null;
+					if (message != null) {
+						messages.add(message);
+					}
+				}
+				offset += HEADER_BYTES + length;
+				expected++;
+			}
+		}
+		return messages;
+	}
+
+	private Conversation conversation(String id) throws IOException {
+		Conversation conv = conversations.get(id);
+		if (conv == null) {
+			conv = new Conversation(id, root.resolve(directoryName(id)));
+			load(conv);
+			conversations.put(id, conv);
+		}
+		return conv;
+	}
+
+	private void load(Conversation conv) throws IOException {
+		if (!Files.isDirectory(conv.dir)) {
+			return;
+		}
+		List<Long> bases = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(conv.dir, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException ignored) {
+				}
+			}
+		}
+		bases.sort(null);
+		for (int i = 0; i < bases.size(); i++) {
+			Segment segment = new Segment(conv.dir, bases.get(i));
+			openChannels(segment);
+			segment.size = segment.data.size();
+			loadIndex(segment);
+			if (i + 1 < bases.size()) {
+				segment.nextSeq = bases.get(i + 1);
+			} else {
+				recoverTail(conv, segment);
+			}
+			conv.segments.put(segment.baseSeq, segment);
+		}
+	}
+
+	private void loadIndex(Segment segment) throws IOException {
+		long entries = segment.index.size() / INDEX_ENTRY_BYTES;
+		ByteBuffer buffer = ByteBuffer.allocate((int) entries * INDEX_ENTRY_BYTES);
+		segment.index.read(buffer, 0);
+		buffer.flip();
+		for (int i = 0; i < entries; i++) {
+			long seq = buffer.getLong();
+			long time = buffer.getLong();
+			long offset = buffer.getInt() & 0xFFFFFFFFL;
+			// the index may be ahead of data that never reached the disk
+			if (offset >= segment.size) {
+				break;
+			}
+			segment.addIndexEntry(seq, time, offset);
+		}
+		segment.index.truncate((long) segment.indexCount * INDEX_ENTRY_BYTES);
+	}
+
+	// walks from the last index entry to the end, cutting off a torn record
+	private void recoverTail(Conversation conv, Segment segment) throws IOException {
+		long offset = 0;
+		long seq = segment.baseSeq;
+		int count = 0;
+		if (segment.indexCount > 0) {
+			offset = segment.indexOffsets[segment.indexCount - 1];
+			seq = segment.indexSeqs[segment.indexCount - 1];
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (offset + HEADER_BYTES <= segment.size) {
+			header.clear();
+			segment.data.read(header, offset);
+			header.flip();
+			int length = header.getInt();
+			int crc = header.getInt();
+			long recordSeq = header.getLong();
+			if (length <= 0 || length > MAX_PAYLOAD_BYTES || recordSeq != seq
+					|| offset + HEADER_BYTES + length > segment.size) {
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			segment.data.read(payload, offset + HEADER_BYTES);
+			if (crc(recordSeq, payload.array(), 0, length) != crc) {
+				break;
+			}
+			offset += HEADER_BYTES + length;
+			seq++;
+			count++;
+		}
+		if (offset < segment.size) {
+			Logger.warn("⚠️ Historique " + conv.dir.getFileName() + ": fin de segment tronquée à " + offset + " octets");
+			segment.data.truncate(offset);
+			segment.size = offset;
+		}
+		segment.nextSeq = seq;
+		segment.sinceIndex = count % INDEX_INTERVAL;
+	}
+
+	private Segment createSegment(Conversation conv, long baseSeq) throws IOException {
+		Files.createDirectories(conv.dir);
+		Segment segment = new Segment(conv.dir, baseSeq);
+		openChannels(segment);
+		conv.segments.put(baseSeq, segment);
+		return segment;
+	}
+
+	private static void openChannels(Segment segment) throws IOException {
+		segment.data = FileChannel.open(segment.dataPath,
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment.index = FileChannel.open(segment.indexPath,
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private byte[] seal(Conversation conv, long seq, ChatMessage message) throws IOException {
+		byte[] sender = (message.getSender() != null ? message.getSender() : "").getBytes(StandardCharsets.UTF_8);
+		byte[] content = (message.getContent() != null ? message.getContent() : "").getBytes(StandardCharsets.UTF_8);
+		if (sender.length > 0xFFFF) {
+			throw new IOException("Expéditeur trop long");
+		}
+		ByteBuffer plain = ByteBuffer.allocate(8 + 2 + sender.length + content.length);
+		plain.putLong(message.getTimestampMillis());
+		plain.putShort((short) sender.length);
+		plain.put(sender);
+		plain.put(content);
+		try {
+			byte[] payload = ClientCrypto.encrypt(plain.array(), aad(conv, seq), key);
+			if (payload.length > MAX_PAYLOAD_BYTES) {
+				throw new IOException("Message trop long pour l'historique");
+			}
+			return payload;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Chiffrement historique impossible", e);
+		}
+	}
+
+	private ChatMessage open(Conversation conv, long seq, byte[] payload) {
+		try {
+			ByteBuffer plain = ByteBuffer.wrap(ClientCrypto.decrypt(payload, 0, payload.length, aad(conv, seq), key));
+			long timestamp = plain.getLong();
+			byte[] sender = new byte[plain.getShort() & 0xFFFF];
+			plain.get(sender);
+			byte[] content = new byte[plain.remaining()];
+			plain.get(content);
+			ChatMessage message = new ChatMessage(new String(sender, StandardCharsets.UTF_8),
+				new String(content, StandardCharsets.UTF_8), timestamp, null);
+			message.setSequence(seq);
+			return message;
+		} catch (Exception e) {
+			Logger.warn("⚠️ Message " + seq + " illisible dans l'historique: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static byte[] aad(Conversation conv, long seq) {
+		return ByteBuffer.allocate(conv.idBytes.length + 8).put(conv.idBytes).putLong(seq).array();
+	}
+
+	private static int crc(long seq, byte[] payload, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putLong(seq).array());
+		crc.update(payload, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/** Names on disk do not reveal who the conversation is with. */
+	public static String directoryName(String conversation) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(conversation.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -2,10 +2,10 @@ package com.securephone.client.ui.components;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.ArrayList;
 import java.util.List;
 import com.securephone.client.ui.UIManager;
 import com.securephone.client.models.Contact;
+import com.securephone.client.models.ContactIndex;
 
 /**
  * ContactList - Composant pour afficher la liste des contacts
@@ -24,13 +24,13 @@ import com.securephone.client.models.Contact;
 public class ContactList extends JPanel {
     
     // ========== COMPOSANTS ==========
-    private JList<ContactListItem> contactJList;
-    private DefaultListModel<ContactListItem> listModel;
+    private JList<Contact> contactJList;
+    private ContactListModel listModel;
     private JTextField searchField;
     
     // ========== VARIABLES ==========
-    private List<Contact> contacts = new ArrayList<>();
-    private List<ContactListItem> displayedItems = new ArrayList<>();
+    private final ContactIndex index = new ContactIndex();
+    private String currentQuery = "";
     
     // ========== CONSTRUCTEUR ==========
     public ContactList() {
@@ -44,7 +44,7 @@ public class ContactList extends JPanel {
      */
     private void initComponents() {
         // Model de liste
-        listModel = new DefaultListModel<>();
+        listModel = new ContactListModel();
         
         // Liste
         contactJList = new JList<>(listModel);
@@ -86,69 +86,71 @@ public class ContactList extends JPanel {
      * Ajoute un contact à la liste
      */
     public void addContact(Contact contact) {
-        contacts.add(contact);
-        ContactListItem item = new ContactListItem(contact);
-        displayedItems.add(item);
-        listModel.addElement(item);
+        index.put(contact);
+        updateListDisplay();
     }
     
     /**
      * Supprime un contact de la liste
      */
     public void removeContact(Contact contact) {
-        contacts.remove(contact);
-        displayedItems.removeIf(item -> item.contact.equals(contact));
+        index.remove(ContactIndex.keyOf(contact));
         updateListDisplay();
     }
     
+    /**
+     * Remplace tous les contacts, en ne réindexant que ceux qui ont changé
+     */
+    public void setContacts(List<Contact> contacts) {
+        index.replaceAll(contacts);
+        updateListDisplay();
+    }
+    
+    /**
+     * Met à jour le statut d'un contact sans reconstruire la liste
+     */
+    public void updateStatus(String key, String status) {
+        Contact contact = index.updateStatus(key, status);
+        if (contact != null) {
+            listModel.contactChanged(contact);
+        }
+    }
+    
     /**
      * Récupère le contact sélectionné
      */
     public Contact getSelectedContact() {
-        ContactListItem selected = contactJList.getSelectedValue();
-        return selected != null ? selected.contact : null;
+        return contactJList.getSelectedValue();
     }
     
     /**
      * Filtre la liste par recherche
      */
     public void filterBySearch(String query) {
-        listModel.clear();
-        String lowerQuery = query.toLowerCase();
-        
-        for (ContactListItem item : displayedItems) {
-            if (item.contact.getName().toLowerCase().contains(lowerQuery)) {
-                listModel.addElement(item);
-            }
-        }
+        currentQuery = query == null ? "" : query;
+        listModel.setContacts(index.search(currentQuery));
     }
     
     /**
      * Réinitialise le filtre
      */
     public void resetFilter() {
-        listModel.clear();
-        for (ContactListItem item : displayedItems) {
-            listModel.addElement(item);
-        }
+        currentQuery = "";
+        listModel.setContacts(index.all());
     }
     
     /**
      * Met à jour l'affichage
      */
     private void updateListDisplay() {
-        listModel.clear();
-        for (ContactListItem item : displayedItems) {
-            listModel.addElement(item);
-        }
+        listModel.setContacts(currentQuery.isEmpty() ? index.all() : index.search(currentQuery));
     }
     
     /**
      * Vide la liste
      */
     public void clear() {
-        contacts.clear();
-        displayedItems.clear();
+        index.clear();
         listModel.clear();
     }
     
@@ -163,22 +165,6 @@ public class ContactList extends JPanel {
     
     // ========== CLASSE INTERNE ==========
     
-    /**
-     * Représente un élément dans la liste
-     */
-    static class ContactListItem {
-        Contact contact;
-        
-        ContactListItem(Contact contact) {
-            this.contact = contact;
-        }
-        
-        @Override
-        public String toString() {
-            return contact.getName();
-        }
-    }
-    
     /**
      * Renderer personnalisé pour afficher les contacts avec avatar et statut
      */
@@ -190,9 +176,8 @@ public class ContactList extends JPanel {
             
             JPanel panel = new JPanel(new BorderLayout(10, 5));
             
-            if (value instanceof ContactListItem) {
-                ContactListItem item = (ContactListItem) value;
-                Contact contact = item.contact;
+            if (value instanceof Contact) {
+                Contact contact = (Contact) value;
                 
                 // Avatar
                 JLabel avatarLabel = new JLabel(getInitials(contact.getName()));
@@ -0,0 +1,89 @@
+package com.securephone.client.ui.components;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.securephone.client.models.Contact;
+import com.securephone.client.models.ContactIndex;
+
+/**
+ * ContactListModel - Modèle de liste des contacts
+ *
+ * Replacing the contents fires at most three events (changed, added,
+ * removed ranges) instead of one per element like DefaultListModel, and a
+ * single added, removed or changed contact touches only its row.
+ */
+public class ContactListModel extends AbstractListModel<Contact> {
+
+    private List<Contact> contacts = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    @Override
+    public int getSize() {
+        return contacts.size();
+    }
+
+    @Override
+    public Contact getElementAt(int index) {
+        return contacts.get(index);
+    }
+
+    public void setContacts(List<Contact> updated) {
+        int oldSize = contacts.size();
+        int newSize = updated.size();
+        contacts = new ArrayList<>(updated);
+        positions.clear();
+        for (int i = 0; i < newSize; i++) {
+            positions.put(ContactIndex.keyOf(contacts.get(i)), i);
+        }
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+        int common = Math.min(oldSize, newSize);
+        if (common > 0) {
+            fireContentsChanged(this, 0, common - 1);
+        }
+    }
+
+    /** Repaints the row of this contact, if shown. */
+    public void contactChanged(Contact contact) {
+        Integer index = positions.get(ContactIndex.keyOf(contact));
+        if (index != null) {
+            fireContentsChanged(this, index, index);
+        }
+    }
+
+    /** Appends the contact, or replaces the row with the same key. */
+    public void add(Contact contact) {
+        String key = ContactIndex.keyOf(contact);
+        Integer index = positions.get(key);
+        if (index != null) {
+            contacts.set(index, contact);
+            fireContentsChanged(this, index, index);
+            return;
+        }
+        contacts.add(contact);
+        positions.put(key, contacts.size() - 1);
+        fireIntervalAdded(this, contacts.size() - 1, contacts.size() - 1);
+    }
+
+    public void remove(Contact contact) {
+        Integer index = positions.remove(ContactIndex.keyOf(contact));
+        if (index == null) {
+            return;
+        }
+        contacts.remove((int) index);
+        for (int i = index; i < contacts.size(); i++) {
+            positions.put(ContactIndex.keyOf(contacts.get(i)), i);
+        }
+        fireIntervalRemoved(this, index, index);
+    }
+
+    public void clear() {
+        setContacts(new ArrayList<>());
+    }
+}
@@ -0,0 +1,92 @@
+package com.securephone.client.ui.components;
+
+import javax.swing.AbstractListModel;
+import com.securephone.client.models.ChatMessage;
+import com.securephone.client.models.MessageStore;
+
+/**
+ * ConversationListModel - Modèle de liste d'une conversation
+ *
+ * Reads straight from the conversation's window in the MessageStore, so
+ * nothing is copied, and turns store changes into row events: switching
+ * conversations or appending never rebuilds the whole list.
+ */
+public class ConversationListModel extends AbstractListModel<ChatMessage> implements MessageStore.Listener {
+
+    private final MessageStore store;
+    private String conversation;
+    private MessageStore.Conversation window;
+
+    public ConversationListModel(MessageStore store) {
+        this.store = store;
+        store.addListener(this);
+    }
+
+    public void setConversation(String conversation) {
+        int oldSize = getSize();
+        this.conversation = conversation;
+        this.window = conversation != null ? store.get(conversation) : null;
+        int newSize = getSize();
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+        int common = Math.min(oldSize, newSize);
+        if (common > 0) {
+            fireContentsChanged(this, 0, common - 1);
+        }
+    }
+
+    public String getConversation() {
+        return conversation;
+    }
+
+    @Override
+    public int getSize() {
+        return window != null ? window.size() : 0;
+    }
+
+    @Override
+    public ChatMessage getElementAt(int index) {
+        return window.get(index);
+    }
+
+    @Override
+    public void onAppended(String conversation, ChatMessage message, boolean evictedOldest) {
+        if (!conversation.equals(this.conversation) || window.hasNewer()) {
+            return;
+        }
+        if (evictedOldest) {
+            fireIntervalRemoved(this, 0, 0);
+        }
+        int last = window.size() - 1;
+        fireIntervalAdded(this, last, last);
+    }
+
+    @Override
+    public void onPrepended(String conversation, int count, int evictedNewest) {
+        if (!conversation.equals(this.conversation)) {
+            return;
+        }
+        if (evictedNewest > 0) {
+            int oldSize = window.size() - count + evictedNewest;
+            fireIntervalRemoved(this, oldSize - evictedNewest, oldSize - 1);
+        }
+        if (count > 0) {
+            fireIntervalAdded(this, 0, count - 1);
+        }
+    }
+
+    @Override
+    public void onNewerLoaded(String conversation, int count, int evictedOldest) {
+        if (!conversation.equals(this.conversation)) {
+            return;
+        }
+        if (evictedOldest > 0) {
+            fireIntervalRemoved(this, 0, evictedOldest - 1);
+        }
+        int size = window.size();
+        fireIntervalAdded(this, size - count, size - 1);
+    }
+}
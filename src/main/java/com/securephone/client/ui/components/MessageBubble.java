@@ -146,6 +146,26 @@ public class MessageBubble extends JPanel {
         return initials.toString().toUpperCase();
     }
     
+    /**
+     * Change le message affiché, pour réutiliser la bulle comme renderer
+     */
+    public void setMessage(String senderName, String messageContent, String timestamp) {
+        this.senderName = senderName;
+        this.messageContent = messageContent;
+        this.timestamp = timestamp;
+        avatarLabel.setText(getInitials(senderName));
+        senderLabel.setText(senderName);
+        messageTextArea.setText(messageContent);
+        timeLabel.setText(timestamp);
+    }
+    
+    /**
+     * Largeur à laquelle le texte est replié; la hauteur préférée en dépend
+     */
+    public void setWrapWidth(int width) {
+        messageTextArea.setSize(Math.max(1, width), Short.MAX_VALUE);
+    }
+    
     // ========== GETTERS ==========
     public String getSenderName() {
         return senderName;
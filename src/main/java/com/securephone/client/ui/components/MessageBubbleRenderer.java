@@ -0,0 +1,37 @@
+package com.securephone.client.ui.components;
+
+import javax.swing.*;
+import java.awt.*;
+import com.securephone.client.models.ChatMessage;
+
+/**
+ * MessageBubbleRenderer - Affiche les messages d'une JList en bulles
+ *
+ * Two MessageBubble instances (sent and received) are reused for every
+ * row, so a conversation costs no components per message and only the
+ * visible rows are painted.
+ */
+public class MessageBubbleRenderer implements ListCellRenderer<ChatMessage> {
+
+    // the bubble text takes at most this share of the list width
+    private static final double TEXT_WIDTH_RATIO = 0.7;
+
+    private final MessageBubble sentBubble = new MessageBubble("", "", "", true);
+    private final MessageBubble receivedBubble = new MessageBubble("", "", "", false);
+    private String localUser = "";
+
+    /** Messages from this sender are drawn as sent. */
+    public void setLocalUser(String localUser) {
+        this.localUser = localUser != null ? localUser : "";
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatMessage> list, ChatMessage message,
+            int index, boolean isSelected, boolean cellHasFocus) {
+        MessageBubble bubble = localUser.equals(message.getSender()) ? sentBubble : receivedBubble;
+        bubble.setMessage(message.getSender(), message.getContent(), message.getTimestamp());
+        int width = list.getWidth() > 0 ? list.getWidth() : 400;
+        bubble.setWrapWidth((int) (width * TEXT_WIDTH_RATIO));
+        return bubble;
+    }
+}
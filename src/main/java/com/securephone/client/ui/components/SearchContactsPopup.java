@@ -2,6 +2,8 @@ package com.securephone.client.ui.components;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.util.List;
 import com.securephone.client.ui.UIManager;
@@ -17,6 +19,7 @@ public class SearchContactsPopup extends JDialog {
     private JList<ContactResult> resultsList;
     private SearchContactListener onAddContact;
     private SearchListener onSearch;
+    private SearchListener onQueryChanged;
     
     public SearchContactsPopup(Frame owner) {
         super(owner, "Add Contacts", false);
@@ -50,6 +53,22 @@ public class SearchContactsPopup extends JDialog {
         searchField.setBorder(BorderFactory.createLineBorder(UIManager.getBorder(), 1));
         searchField.setPreferredSize(new Dimension(0, 30));
         searchField.addActionListener(e -> performSearch());
+        // search as you type; the listener is expected to debounce
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                queryChanged();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                queryChanged();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
         searchPanel.add(searchField, BorderLayout.CENTER);
         
         JButton searchButton = new JButton("🔍");
@@ -107,6 +126,12 @@ public class SearchContactsPopup extends JDialog {
         }
     }
     
+    private void queryChanged() {
+        if (onQueryChanged != null) {
+            onQueryChanged.onSearch(getSearchQuery());
+        }
+    }
+    
     public String getSearchQuery() {
         return searchField.getText().trim();
     }
@@ -126,6 +151,11 @@ public class SearchContactsPopup extends JDialog {
         this.onSearch = callback;
     }
     
+    /** Called on every edit of the search field. */
+    public void setOnQueryChanged(SearchListener callback) {
+        this.onQueryChanged = callback;
+    }
+    
     public void setOnAddContact(SearchContactListener callback) {
         this.onAddContact = callback;
     }
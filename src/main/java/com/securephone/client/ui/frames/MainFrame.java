@@ -3,6 +3,8 @@ package com.securephone.client.ui.frames;
 import javax.swing.*;
 import java.awt.*;
 import com.securephone.client.SecurePhoneApp;
+import com.securephone.client.network.ConnectionManager;
+import com.securephone.client.network.ContactSearchService;
 import com.securephone.client.ui.UIManager;
 import com.securephone.client.ui.components.Sidebar;
 import com.securephone.client.ui.components.NotificationsPopup;
@@ -188,15 +190,15 @@ public class MainFrame extends JFrame {
         
         // Search contacts handler
         searchContactsPopup.setOnSearch(query -> {
-            if (!query.isEmpty()) {
-                SecurePhoneApp.getConnectionManager().searchContacts(query, results -> {
-                    searchContactsPopup.setSearchResults(results.stream()
-                        .map(r -> new SearchContactsPopup.ContactResult(
-                            r.id, r.username, r.email, r.status, r.isContact
-                        ))
-                        .collect(java.util.stream.Collectors.toList())
-                    );
-                });
+            SecurePhoneApp.getConnectionManager().getContactSearch().searchNow(query, this::showSearchResults);
+        });
+        searchContactsPopup.setOnQueryChanged(query -> {
+            ContactSearchService search = SecurePhoneApp.getConnectionManager().getContactSearch();
+            if (query.isEmpty()) {
+                search.cancel();
+                searchContactsPopup.setSearchResults(java.util.Collections.emptyList());
+            } else {
+                search.search(query, this::showSearchResults);
             }
         });
         
@@ -230,6 +232,15 @@ public class MainFrame extends JFrame {
         });
     }
     
+    private void showSearchResults(java.util.List<ConnectionManager.SearchResult> results) {
+        searchContactsPopup.setSearchResults(results.stream()
+            .map(r -> new SearchContactsPopup.ContactResult(
+                r.id, r.username, r.email, r.status, r.isContact
+            ))
+            .collect(java.util.stream.Collectors.toList())
+        );
+    }
+    
     // ========== GETTERS ==========
     public LoginPage getLoginFrame() {
         return loginPage;
@@ -3,11 +3,14 @@ package com.securephone.client.ui.pages;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import com.securephone.client.models.ChatMessage;
 import com.securephone.client.models.Contact;
+import com.securephone.client.models.ContactIndex;
+import com.securephone.client.models.MessageStore;
+import com.securephone.client.ui.components.ContactListModel;
+import com.securephone.client.ui.components.ConversationListModel;
+import com.securephone.client.ui.components.MessageBubbleRenderer;
 import com.securephone.client.ui.UIManager;
 import com.securephone.client.ui.frames.MainFrame;
 import com.securephone.client.SecurePhoneApp;
@@ -22,12 +25,15 @@ public class AppPage extends JPanel {
     private MainFrame mainFrame;
     private String currentUsername = "";
     private JLabel statusLabel;
-    private DefaultListModel<String> contactsListModel;
-    private JList<String> contactsList;
+    private ContactListModel contactsListModel;
+    private JList<Contact> contactsList;
     private JScrollPane contactsScrollPane;
     
     // Chat components
-    private JTextArea chatArea;
+    private JList<ChatMessage> messageList;
+    private ConversationListModel messageListModel;
+    private MessageBubbleRenderer messageRenderer;
+    private JScrollPane messageScrollPane;
     private JTextField messageInput;
     private JButton sendButton;
     private JButton audioCallButton;
@@ -36,13 +42,15 @@ public class AppPage extends JPanel {
     
     // Track selected contact
     private String selectedContactName = null;
-    private List<Contact> allContacts = new ArrayList<>();
+    private final ContactIndex contactIndex = new ContactIndex();
     
-    // Message history per contact
-    private Map<String, StringBuilder> messageHistory = new HashMap<>();
+    // Message history per contact, bounded per conversation
+    private MessageStore messageStore;
     
     public AppPage(MainFrame mainFrame) {
         this.mainFrame = mainFrame;
+        ConnectionManager cm = SecurePhoneApp.getConnectionManager();
+        messageStore = cm != null ? cm.getMessageStore() : new MessageStore();
         initUI();
         setupListeners();
     }
@@ -107,7 +115,7 @@ public class AppPage extends JPanel {
         sidebar.add(contactsTitle, BorderLayout.NORTH);
         
         // Liste des contacts
-        contactsListModel = new DefaultListModel<>();
+        contactsListModel = new ContactListModel();
         contactsList = new JList<>(contactsListModel);
         contactsList.setBackground(UIManager.getSurface());
         contactsList.setForeground(UIManager.getOnSurface());
@@ -182,21 +190,45 @@ public class AppPage extends JPanel {
         panel.setBackground(UIManager.getBackground());
         panel.setBorder(new EmptyBorder(5, 5, 5, 5));
         
-        // Chat area with scroll
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setBackground(UIManager.getSurface());
-        chatArea.setForeground(UIManager.getOnSurface());
-        chatArea.setFont(new Font("Monospaced", Font.PLAIN, 11));
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setBorder(new EmptyBorder(5, 5, 5, 5));
+        // Messages: only the visible rows are rendered
+        messageListModel = new ConversationListModel(messageStore);
+        messageRenderer = new MessageBubbleRenderer();
+        messageList = new JList<>(messageListModel);
+        messageList.setCellRenderer(messageRenderer);
+        messageList.setBackground(UIManager.getSurface());
+        messageList.setForeground(UIManager.getOnSurface());
+        messageList.setBorder(new EmptyBorder(5, 5, 5, 5));
+        messageList.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // messages are not selectable
+            }
+        });
+        messageList.addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentResized(java.awt.event.ComponentEvent e) {
+                // row heights depend on the wrap width, drop the cached ones
+                messageList.setFixedCellHeight(1);
+                messageList.setFixedCellHeight(-1);
+            }
+        });
         
-        JScrollPane scrollPane = new JScrollPane(chatArea);
-        scrollPane.getViewport().setBackground(UIManager.getSurface());
-        scrollPane.setBorder(BorderFactory.createLineBorder(UIManager.getBorder()));
+        messageScrollPane = new JScrollPane(messageList);
+        messageScrollPane.getViewport().setBackground(UIManager.getSurface());
+        messageScrollPane.setBorder(BorderFactory.createLineBorder(UIManager.getBorder()));
+        messageScrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            // reaching the top pages in older history, the bottom newer history
+            if (e.getValueIsAdjusting() || selectedContactName == null || messageListModel.getSize() == 0) {
+                return;
+            }
+            if (e.getValue() == 0) {
+                loadOlderMessages();
+            } else if (isScrolledToBottom() && messageStore.get(selectedContactName).hasNewer()) {
+                loadNewerMessages();
+            }
+        });
         
-        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(messageScrollPane, BorderLayout.CENTER);
         
         return panel;
     }
@@ -238,9 +270,8 @@ public class AppPage extends JPanel {
         // Contact selection listener
         contactsList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting() && contactsList.getSelectedIndex() >= 0) {
-                int index = contactsList.getSelectedIndex();
-                if (index < allContacts.size()) {
-                    Contact contact = allContacts.get(index);
+                Contact contact = contactsList.getSelectedValue();
+                if (contact != null) {
                     selectContact(contact.getName());
                 }
             }
@@ -251,20 +282,8 @@ public class AppPage extends JPanel {
         if (cm != null) {
             cm.setChatListener(message -> {
                 SwingUtilities.invokeLater(() -> {
-                    String senderName = message.getSender();
-                    String messageText = "[" + senderName + "]: " + message.getContent();
-                    
-                    // Save to sender's history
-                    StringBuilder history = messageHistory.computeIfAbsent(senderName, k -> new StringBuilder());
-                    if (history.length() > 0) {
-                        history.append("\n");
-                    }
-                    history.append(messageText);
-                    
-                    // Display in chat area if sender is currently selected
-                    if (senderName.equals(selectedContactName)) {
-                        appendMessage(messageText);
-                    }
+                    // the model shows it if the sender is the selected contact
+                    addToConversation(message.getSender(), message);
                 });
             });
         }
@@ -274,14 +293,14 @@ public class AppPage extends JPanel {
         this.selectedContactName = contactName;
         selectedContactLabel.setText("Chat avec: " + contactName);
         
-        // Load or initialize history for this contact
-        String history = messageHistory.computeIfAbsent(contactName, k -> new StringBuilder()).toString();
-        chatArea.setText(history);
+        // Switch the view to this contact's window, loading a first page if empty
+        messageListModel.setConversation(contactName);
+        if (messageListModel.getSize() == 0) {
+            messageStore.loadOlder(contactName);
+        }
         
         // Auto scroll to bottom
-        if (chatArea.getDocument().getLength() > 0) {
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        }
+        scrollToLatest();
         
         messageInput.setEnabled(true);
         sendButton.setEnabled(true);
@@ -305,7 +324,7 @@ public class AppPage extends JPanel {
             }
             com.securephone.client.utils.Logger.info("   Appel à cm.initiateCall()");
             cm.initiateCall(selectedContactName, "audio");
-            appendMessage("[SYSTEM]: Appel audio initialisé avec " + selectedContactName + "...");
+            appendSystemMessage("Appel audio initialisé avec " + selectedContactName + "...");
         } catch (Exception ex) {
             com.securephone.client.utils.Logger.error("❌ Exception appel audio: " + ex.getMessage());
             ex.printStackTrace();
@@ -329,7 +348,7 @@ public class AppPage extends JPanel {
             }
             com.securephone.client.utils.Logger.info("   Appel à cm.initiateCall()");
             cm.initiateCall(selectedContactName, "video");
-            appendMessage("[SYSTEM]: Appel vidéo initialisé avec " + selectedContactName + "...");
+            appendSystemMessage("Appel vidéo initialisé avec " + selectedContactName + "...");
         } catch (Exception ex) {
             com.securephone.client.utils.Logger.error("❌ Exception appel vidéo: " + ex.getMessage());
             ex.printStackTrace();
@@ -346,50 +365,119 @@ public class AppPage extends JPanel {
         try {
             ConnectionManager cm = SecurePhoneApp.getConnectionManager();
             cm.sendChatMessage(message, selectedContactName);
-            appendMessage("[Vous]: " + message);
+            addToConversation(selectedContactName,
+                new ChatMessage(currentUsername, message, System.currentTimeMillis(), null));
             messageInput.setText("");
         } catch (Exception ex) {
             JOptionPane.showMessageDialog(this, "Erreur envoi: " + ex.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
         }
     }
     
-    private void appendMessage(String text) {
-        // Save to history if a contact is selected
+    private void appendSystemMessage(String text) {
         if (selectedContactName != null) {
-            StringBuilder history = messageHistory.computeIfAbsent(selectedContactName, k -> new StringBuilder());
-            if (history.length() > 0) {
-                history.append("\n");
+            addToConversation(selectedContactName, new ChatMessage("SYSTEM", text, System.currentTimeMillis(), null));
+        }
+    }
+    
+    private void addToConversation(String contactName, ChatMessage message) {
+        boolean visible = contactName.equals(selectedContactName);
+        boolean own = currentUsername.equals(message.getSender());
+        boolean atBottom = visible && isScrolledToBottom();
+        if (visible && own) {
+            // the window may have slid back into older history
+            messageStore.loadLatest(contactName);
+        }
+        messageStore.append(contactName, message);
+        // follow new messages only if the user was not reading older ones
+        if (atBottom || (visible && own)) {
+            scrollToLatest();
+        }
+    }
+    
+    private void loadOlderMessages() {
+        int anchor = messageList.getFirstVisibleIndex();
+        int offset = rowOffset(anchor);
+        int added = messageStore.loadOlder(selectedContactName);
+        if (added > 0 && anchor >= 0) {
+            // keep the message that was at the top in place
+            restoreRowOffset(anchor + added, offset);
+        }
+    }
+    
+    private void loadNewerMessages() {
+        int anchor = messageList.getLastVisibleIndex();
+        int offset = rowOffset(anchor);
+        int oldSize = messageListModel.getSize();
+        int added = messageStore.loadNewer(selectedContactName);
+        if (added > 0 && anchor >= 0) {
+            // rows evicted from the top move the message that was at the bottom up
+            restoreRowOffset(anchor - (oldSize + added - messageListModel.getSize()), offset);
+        }
+    }
+    
+    private int rowOffset(int row) {
+        Rectangle bounds = row >= 0 ? messageList.getCellBounds(row, row) : null;
+        return bounds != null ? bounds.y - messageScrollPane.getVerticalScrollBar().getValue() : 0;
+    }
+    
+    private void restoreRowOffset(int row, int offset) {
+        SwingUtilities.invokeLater(() -> {
+            Rectangle bounds = messageList.getCellBounds(row, row);
+            if (bounds != null) {
+                messageScrollPane.getVerticalScrollBar().setValue(bounds.y - offset);
             }
-            history.append(text);
+        });
+    }
+    
+    private boolean isScrolledToBottom() {
+        JScrollBar bar = messageScrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+    
+    private void scrollToLatest() {
+        int last = messageListModel.getSize() - 1;
+        if (last >= 0) {
+            SwingUtilities.invokeLater(() -> messageList.ensureIndexIsVisible(messageListModel.getSize() - 1));
         }
-        
-        // Display in chat area
-        chatArea.append(text + "\n");
-        // Auto scroll to bottom
-        chatArea.setCaretPosition(chatArea.getDocument().getLength());
     }
     
     public void setUsername(String username) {
         this.currentUsername = username;
+        messageRenderer.setLocalUser(username);
         if (statusLabel != null) {
             statusLabel.setText("Connected as: " + username);
         }
     }
     
     public void displayContacts(List<Contact> contacts) {
-        contactsListModel.clear();
-        this.allContacts = new ArrayList<>(contacts);
-        for (Contact contact : contacts) {
-            String status = contact.getStatus() != null ? " (" + contact.getStatus() + ")" : "";
-            contactsListModel.addElement(contact.getName() + status);
-        }
+        contactIndex.replaceAll(contacts);
+        contactsListModel.setContacts(contactIndex.all());
+    }
+    
+    /**
+     * Ajoute ou met à jour un seul contact; seule sa ligne est touchée
+     */
+    public void updateContact(Contact contact) {
+        contactIndex.put(contact);
+        contactsListModel.add(contact);
+    }
+    
+    public void removeContact(Contact contact) {
+        contactIndex.remove(ContactIndex.keyOf(contact));
+        contactsListModel.remove(contact);
     }
     
     // Custom renderer pour les contacts avec bonnes couleurs
     private class ContactListRenderer extends DefaultListCellRenderer {
         @Override
         public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
-            Component c = super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            Object text = value;
+            if (value instanceof Contact) {
+                Contact contact = (Contact) value;
+                String status = contact.getStatus() != null ? " (" + contact.getStatus() + ")" : "";
+                text = contact.getName() + status;
+            }
+            Component c = super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
             
             if (isSelected) {
                 c.setBackground(UIManager.getPrimary());
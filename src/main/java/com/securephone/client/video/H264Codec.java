@@ -1,27 +1,949 @@
 package com.securephone.client.video;
 
+import com.securephone.shared.protocol.VideoPacket;
+
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * Inter-frame video codec.
+ *
+ * Frames are converted to YCbCr 4:2:0 and coded as 16x16 macroblocks of
+ * 8x8 DCT blocks. Keyframes code every macroblock on its own; delta frames
+ * predict each macroblock from the previously reconstructed frame with a
+ * motion vector, code the residual, and skip macroblocks that did not
+ * change. The quantized coefficients are deflated, and the quantizer is
+ * adjusted after every frame to hold the target bitrate. The bitstream is
+ * specific to this client; legacy JPEG frames are still decoded.
+ *
+ * Frame: magic(1) type(1) width(2) height(2) quantizer(1) deflated macroblocks...
+ *
+ * Encoding and decoding keep separate state; each direction is
+ * single-threaded.
+ */
 public class H264Codec {
 
+    public static final int DEFAULT_BITRATE = 2000000;
+    public static final int DEFAULT_FPS = 15;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    private static final int MAGIC = 0x56;
+    private static final int HEADER_SIZE = 7;
+    private static final int BLOCK = 8;
+    private static final int MACROBLOCK = 16;
+    private static final int BLOCKS_PER_MACROBLOCK = 6;
+    private static final int MODE_SKIP = 0;
+    private static final int MODE_INTER = 1;
+    private static final int MODE_INTRA = 2;
+    private static final int END_OF_BLOCK = 64;
+    private static final int MAX_MOTION = 15;
+    private static final int INTRA_BIAS = 512;
+    private static final int[] DIAMOND_X = {0, 1, 0, -1, 1, 1, -1, -1};
+    private static final int[] DIAMOND_Y = {-1, 0, 1, 0, -1, 1, 1, -1};
+
+    private static final int MIN_QUANTIZER = 2;
+    private static final int MAX_QUANTIZER = 63;
+    private static final int INITIAL_QUANTIZER = 12;
+    private static final int KEYFRAME_BUDGET = 3;
+    // frame sizes are untrusted header fields: bound what a decoder allocates
+    private static final int MAX_DIMENSION = 4096;
+    // the most a macroblock can take: mode, vector, pattern, then per block
+    // 64 coefficients of a run byte and a 4-byte level, and the end marker
+    private static final int MAX_MACROBLOCK_BYTES = 4 + BLOCKS_PER_MACROBLOCK * (64 * 5 + 1);
+
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /** COSINE[u * 8 + x] = alpha(u) * cos((2x + 1) * u * pi / 16). */
+    private static final float[] COSINE = new float[64];
+
+    static {
+        for (int u = 0; u < BLOCK; u++) {
+            double alpha = u == 0 ? Math.sqrt(1.0 / BLOCK) : Math.sqrt(2.0 / BLOCK);
+            for (int x = 0; x < BLOCK; x++) {
+                COSINE[u * BLOCK + x] = (float) (alpha * Math.cos((2 * x + 1) * u * Math.PI / (2 * BLOCK)));
+            }
+        }
+    }
+
+    private int bitrate;
+    private final int fps;
+    private final int keyframeInterval;
+
+    // Encoder state
+    private Planes source;
+    private Planes encodeReference;
+    private Planes encodeTarget;
+    private int[] rgbScratch = new int[0];
+    private final ByteSink raw = new ByteSink();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Transform encodeTransform = new Transform();
+    private final int[][] macroblockLevels = new int[BLOCKS_PER_MACROBLOCK][64];
+    private final int[] prediction = new int[64];
+    private int bestX;
+    private int bestY;
+    private int bestSad;
+    private int quantizer = INITIAL_QUANTIZER;
+    private int framesSinceKeyframe;
+    // set from the send and decode threads
+    private final AtomicBoolean keyframeRequested = new AtomicBoolean(true);
+    private long bucketBits;
+    private int lastFrameType;
+    private byte[] spill = new byte[0];
+
+    // Decoder state
+    private Planes decodeReference;
+    private Planes decodeTarget;
+    private byte[] inflated = new byte[64 * 1024];
+    private int inflatedLength;
+    private int readPosition;
+    private final Inflater inflater = new Inflater();
+    private final Transform decodeTransform = new Transform();
+    private final int[] decodePrediction = new int[64];
+
+    public H264Codec() {
+        this(DEFAULT_BITRATE, DEFAULT_FPS, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public H264Codec(int bitrate, int fps, int keyframeInterval) {
+        this.bitrate = Math.max(1, bitrate);
+        this.fps = Math.max(1, fps);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
     public byte[] encode(BufferedImage image) throws IOException {
         if (image == null) {
             return new byte[0];
         }
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ImageIO.write(image, "jpg", out);
-        return out.toByteArray();
+        int length = encode(image, null);
+        return Arrays.copyOf(spill, length);
+    }
+
+    /**
+     * Encodes one frame into {@code out} and returns its length, or 0 when
+     * the frame cannot fit even at the coarsest quantizer and was dropped.
+     * With a null {@code out} the frame is kept in an internal buffer.
+     */
+    public int encode(BufferedImage image, byte[] out) {
+        if (image == null) {
+            return 0;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (source == null || source.width != width || source.height != height) {
+            source = new Planes(width, height);
+            encodeReference = new Planes(width, height);
+            encodeTarget = new Planes(width, height);
+            keyframeRequested.set(true);
+        }
+        loadImage(image, source);
+
+        boolean requested = keyframeRequested.getAndSet(false);
+        boolean keyframe = requested || framesSinceKeyframe >= keyframeInterval - 1;
+        while (true) {
+            codeFrame(keyframe);
+            byte[] target = out;
+            if (target == null) {
+                int bound = HEADER_SIZE + raw.size + raw.size / 8 + 64;
+                if (spill.length < bound) {
+                    spill = new byte[bound];
+                }
+                target = spill;
+            }
+            int length = compress(keyframe, width, height, target);
+            if (length > 0) {
+                Planes previous = encodeReference;
+                encodeReference = encodeTarget;
+                encodeTarget = previous;
+                if (keyframe) {
+                    framesSinceKeyframe = 0;
+                } else {
+                    framesSinceKeyframe++;
+                }
+                lastFrameType = keyframe ? VideoPacket.FRAME_TYPE_KEY : VideoPacket.FRAME_TYPE_DELTA;
+                updateRate(length, keyframe);
+                return length;
+            }
+            if (quantizer == MAX_QUANTIZER) {
+                if (requested) {
+                    // dropped: the next frame still has to be a keyframe
+                    keyframeRequested.set(true);
+                }
+                return 0;
+            }
+            quantizer = Math.min(MAX_QUANTIZER, quantizer + Math.max(2, quantizer / 2));
+        }
+    }
+
+    /**
+     * Forces the next encoded frame to be a keyframe.
+     */
+    public void requestKeyframe() {
+        keyframeRequested.set(true);
+    }
+
+    /**
+     * Frame type of the last encoded frame, as stored in {@link VideoPacket}.
+     */
+    public int getLastFrameType() {
+        return lastFrameType;
+    }
+
+    public int getQuantizer() {
+        return quantizer;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Changes the target bitrate from the next frame on. Call from the
+     * encoding thread.
+     */
+    public void setBitrate(int bitrate) {
+        this.bitrate = Math.max(1, bitrate);
+        bucketBits = Math.max(-this.bitrate / 4, Math.min(this.bitrate, bucketBits));
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
     }
 
     public BufferedImage decode(byte[] data) throws IOException {
         if (data == null || data.length == 0) {
             return null;
         }
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-        return ImageIO.read(in);
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes one frame. Returns null for a delta frame that arrives before
+     * its keyframe.
+     */
+    public BufferedImage decode(byte[] data, int offset, int length) throws IOException {
+        if (data == null || length <= 0) {
+            return null;
+        }
+        if (length >= 2 && data[offset] == (byte) 0xFF && data[offset + 1] == (byte) 0xD8) {
+            return ImageIO.read(new ByteArrayInputStream(data, offset, length));
+        }
+        if (length < HEADER_SIZE || (data[offset] & 0xFF) != MAGIC) {
+            throw new IOException("Format de trame video inconnu");
+        }
+        int frameType = data[offset + 1] & 0xFF;
+        int width = ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+        int height = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        int frameQuantizer = data[offset + 6] & 0xFF;
+        if (width == 0 || height == 0 || frameQuantizer < MIN_QUANTIZER || frameQuantizer > MAX_QUANTIZER) {
+            throw new IOException("En-tete de trame video invalide");
+        }
+        if (width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IOException("Trame video trop grande: " + width + "x" + height);
+        }
+
+        boolean keyframe = frameType == VideoPacket.FRAME_TYPE_KEY;
+        if (decodeReference == null || decodeReference.width != width || decodeReference.height != height) {
+            if (!keyframe) {
+                return null;
+            }
+            decodeReference = new Planes(width, height);
+            decodeTarget = new Planes(width, height);
+        }
+
+        int macroblocks = (decodeTarget.lumaWidth / MACROBLOCK) * (decodeTarget.lumaHeight / MACROBLOCK);
+        inflate(data, offset + HEADER_SIZE, length - HEADER_SIZE, macroblocks * MAX_MACROBLOCK_BYTES);
+        readPosition = 0;
+        decodeTransform.setQuantizer(frameQuantizer);
+        for (int my = 0; my < decodeTarget.lumaHeight; my += MACROBLOCK) {
+            for (int mx = 0; mx < decodeTarget.lumaWidth; mx += MACROBLOCK) {
+                readMacroblock(mx, my, keyframe);
+            }
+        }
+
+        Planes previous = decodeReference;
+        decodeReference = decodeTarget;
+        decodeTarget = previous;
+        return toImage(decodeReference);
+    }
+
+    /**
+     * Reads the frame type of an encoded frame without decoding it; legacy
+     * JPEG frames count as keyframes. Returns 0 if the data is not a frame.
+     */
+    public static int peekFrameType(byte[] data, int offset, int length) {
+        if (length >= 2 && data[offset] == (byte) 0xFF && data[offset + 1] == (byte) 0xD8) {
+            return VideoPacket.FRAME_TYPE_KEY;
+        }
+        if (length < HEADER_SIZE || (data[offset] & 0xFF) != MAGIC) {
+            return 0;
+        }
+        return data[offset + 1] & 0xFF;
+    }
+
+    private void codeFrame(boolean keyframe) {
+        raw.reset();
+        encodeTransform.setQuantizer(quantizer);
+        int stride = source.lumaWidth;
+        int skipThreshold = quantizer * 8;
+        for (int my = 0; my < source.lumaHeight; my += MACROBLOCK) {
+            int predictedX = 0;
+            int predictedY = 0;
+            for (int mx = 0; mx < stride; mx += MACROBLOCK) {
+                if (keyframe) {
+                    writeMacroblock(mx, my, MODE_INTRA, 0, 0);
+                    continue;
+                }
+                int zeroSad = sad16(source.y, encodeReference.y, stride, mx, my, 0, 0, Integer.MAX_VALUE);
+                if (zeroSad < skipThreshold) {
+                    raw.write(MODE_SKIP);
+                    copyMacroblock(encodeReference, encodeTarget, mx, my);
+                    continue;
+                }
+                searchMotion(mx, my, zeroSad, predictedX, predictedY);
+                if (intraCost(mx, my) + INTRA_BIAS < bestSad) {
+                    writeMacroblock(mx, my, MODE_INTRA, 0, 0);
+                    predictedX = 0;
+                    predictedY = 0;
+                } else {
+                    writeMacroblock(mx, my, MODE_INTER, bestX, bestY);
+                    predictedX = bestX;
+                    predictedY = bestY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Diamond search around the zero vector and the left neighbour's vector;
+     * leaves the result in bestX, bestY and bestSad.
+     */
+    private void searchMotion(int mx, int my, int zeroSad, int predictedX, int predictedY) {
+        int stride = source.lumaWidth;
+        bestX = 0;
+        bestY = 0;
+        bestSad = zeroSad;
+        if ((predictedX != 0 || predictedY != 0) && inBounds(mx, my, predictedX, predictedY)) {
+            int cost = sad16(source.y, encodeReference.y, stride, mx, my, predictedX, predictedY, bestSad);
+            if (cost < bestSad) {
+                bestX = predictedX;
+                bestY = predictedY;
+                bestSad = cost;
+            }
+        }
+        for (int step = MAX_MOTION / 2 + 1; step >= 1; step >>= 1) {
+            boolean moved = true;
+            for (int rounds = 0; moved && rounds < MAX_MOTION; rounds++) {
+                moved = false;
+                int centerX = bestX;
+                int centerY = bestY;
+                for (int i = 0; i < DIAMOND_X.length; i++) {
+                    int dx = centerX + DIAMOND_X[i] * step;
+                    int dy = centerY + DIAMOND_Y[i] * step;
+                    if (Math.abs(dx) > MAX_MOTION || Math.abs(dy) > MAX_MOTION || !inBounds(mx, my, dx, dy)) {
+                        continue;
+                    }
+                    int cost = sad16(source.y, encodeReference.y, stride, mx, my, dx, dy, bestSad);
+                    if (cost < bestSad) {
+                        bestX = dx;
+                        bestY = dy;
+                        bestSad = cost;
+                        moved = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean inBounds(int mx, int my, int dx, int dy) {
+        return mx + dx >= 0 && my + dy >= 0
+            && mx + dx + MACROBLOCK <= source.lumaWidth && my + dy + MACROBLOCK <= source.lumaHeight;
+    }
+
+    /** Sum of absolute deviations from the mean, a cheap estimate of intra cost. */
+    private int intraCost(int mx, int my) {
+        int stride = source.lumaWidth;
+        byte[] plane = source.y;
+        int sum = 0;
+        for (int y = 0; y < MACROBLOCK; y++) {
+            int row = (my + y) * stride + mx;
+            for (int x = 0; x < MACROBLOCK; x++) {
+                sum += plane[row + x] & 0xFF;
+            }
+        }
+        int mean = sum / (MACROBLOCK * MACROBLOCK);
+        int deviation = 0;
+        for (int y = 0; y < MACROBLOCK; y++) {
+            int row = (my + y) * stride + mx;
+            for (int x = 0; x < MACROBLOCK; x++) {
+                deviation += Math.abs((plane[row + x] & 0xFF) - mean);
+            }
+        }
+        return deviation;
+    }
+
+    private int compress(boolean keyframe, int width, int height, byte[] out) {
+        if (out.length < HEADER_SIZE) {
+            return 0;
+        }
+        out[0] = (byte) MAGIC;
+        out[1] = (byte) (keyframe ? VideoPacket.FRAME_TYPE_KEY : VideoPacket.FRAME_TYPE_DELTA);
+        out[2] = (byte) (width >> 8);
+        out[3] = (byte) width;
+        out[4] = (byte) (height >> 8);
+        out[5] = (byte) height;
+        out[6] = (byte) quantizer;
+
+        deflater.reset();
+        deflater.setInput(raw.data, 0, raw.size);
+        deflater.finish();
+        int position = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (position == out.length) {
+                return 0;
+            }
+            position += deflater.deflate(out, position, out.length - position);
+        }
+        return position;
+    }
+
+    /**
+     * Leaky-bucket rate control: the quantizer rises when a frame overshoots
+     * its share or the bucket runs ahead of the bitrate, and falls slowly
+     * otherwise. Keyframes get a larger share.
+     */
+    private void updateRate(int length, boolean keyframe) {
+        long bits = length * 8L;
+        long bitsPerFrame = bitrate / fps;
+        long budget = keyframe ? bitsPerFrame * KEYFRAME_BUDGET : bitsPerFrame;
+        bucketBits = Math.max(-bitrate / 4, Math.min(bitrate, bucketBits + bits - bitsPerFrame));
+
+        double load = (double) bits / budget + (double) bucketBits / bitrate;
+        if (load > 1.15) {
+            quantizer = Math.min(MAX_QUANTIZER, quantizer + Math.max(1, quantizer / 8));
+        } else if (load < 0.85) {
+            quantizer = Math.max(MIN_QUANTIZER, quantizer - 1);
+        }
+    }
+
+    /**
+     * Codes the six blocks of a macroblock (four luma, two chroma) against
+     * the intra or motion-compensated prediction, then reconstructs them.
+     * An inter macroblock with no motion and no residual becomes a skip.
+     */
+    private void writeMacroblock(int mx, int my, int mode, int dx, int dy) {
+        boolean intra = mode == MODE_INTRA;
+        int[] block = encodeTransform.block;
+        int pattern = 0;
+        for (int b = 0; b < BLOCKS_PER_MACROBLOCK; b++) {
+            byte[] plane = plane(source, b);
+            int stride = stride(source, b);
+            int x = blockX(mx, b);
+            int y = blockY(my, b);
+            predict(plane(encodeReference, b), stride, x, y, dx, dy, b, intra, prediction);
+            for (int row = 0; row < BLOCK; row++) {
+                int origin = (y + row) * stride + x;
+                for (int col = 0; col < BLOCK; col++) {
+                    block[row * BLOCK + col] = (plane[origin + col] & 0xFF) - prediction[row * BLOCK + col];
+                }
+            }
+            if (encodeTransform.forwardQuantize(intra)) {
+                pattern |= 1 << b;
+                System.arraycopy(encodeTransform.levels, 0, macroblockLevels[b], 0, 64);
+            }
+        }
+
+        if (!intra && pattern == 0 && dx == 0 && dy == 0) {
+            raw.write(MODE_SKIP);
+            copyMacroblock(encodeReference, encodeTarget, mx, my);
+            return;
+        }
+        raw.write(mode);
+        if (!intra) {
+            raw.write(dx);
+            raw.write(dy);
+        }
+        raw.write(pattern);
+        for (int b = 0; b < BLOCKS_PER_MACROBLOCK; b++) {
+            if ((pattern & (1 << b)) != 0) {
+                writeLevels(macroblockLevels[b]);
+            }
+        }
+
+        for (int b = 0; b < BLOCKS_PER_MACROBLOCK; b++) {
+            int stride = stride(source, b);
+            int x = blockX(mx, b);
+            int y = blockY(my, b);
+            predict(plane(encodeReference, b), stride, x, y, dx, dy, b, intra, prediction);
+            if ((pattern & (1 << b)) != 0) {
+                System.arraycopy(macroblockLevels[b], 0, encodeTransform.levels, 0, 64);
+                encodeTransform.dequantizeInverse();
+                store(plane(encodeTarget, b), stride, x, y, prediction, block);
+            } else {
+                store(plane(encodeTarget, b), stride, x, y, prediction, null);
+            }
+        }
+    }
+
+    private void writeLevels(int[] levels) {
+        int run = 0;
+        for (int k = 0; k < 64; k++) {
+            int level = levels[ZIGZAG[k]];
+            if (level == 0) {
+                run++;
+                continue;
+            }
+            raw.write(run);
+            raw.writeSigned(level);
+            run = 0;
+        }
+        raw.write(END_OF_BLOCK);
+    }
+
+    private void readMacroblock(int mx, int my, boolean keyframe) throws IOException {
+        int mode = next();
+        if (keyframe && mode != MODE_INTRA) {
+            throw new IOException("Macrobloc predit dans une image cle");
+        }
+        if (mode == MODE_SKIP) {
+            copyMacroblock(decodeReference, decodeTarget, mx, my);
+            return;
+        }
+        if (mode != MODE_INTER && mode != MODE_INTRA) {
+            throw new IOException("Mode de macrobloc invalide: " + mode);
+        }
+        boolean intra = mode == MODE_INTRA;
+        int dx = 0;
+        int dy = 0;
+        if (!intra) {
+            dx = (byte) next();
+            dy = (byte) next();
+            if (mx + dx < 0 || my + dy < 0 || mx + dx + MACROBLOCK > decodeTarget.lumaWidth
+                || my + dy + MACROBLOCK > decodeTarget.lumaHeight) {
+                throw new IOException("Vecteur de mouvement hors image");
+            }
+        }
+        int pattern = next();
+        int[] levels = decodeTransform.levels;
+        for (int b = 0; b < BLOCKS_PER_MACROBLOCK; b++) {
+            int stride = stride(decodeTarget, b);
+            int x = blockX(mx, b);
+            int y = blockY(my, b);
+            predict(plane(decodeReference, b), stride, x, y, dx, dy, b, intra, decodePrediction);
+            if ((pattern & (1 << b)) == 0) {
+                store(plane(decodeTarget, b), stride, x, y, decodePrediction, null);
+                continue;
+            }
+            Arrays.fill(levels, 0);
+            int k = 0;
+            while (true) {
+                int run = next();
+                if (run == END_OF_BLOCK) {
+                    break;
+                }
+                k += run;
+                if (k >= 64) {
+                    throw new IOException("Coefficient hors bloc");
+                }
+                levels[ZIGZAG[k++]] = readSigned();
+            }
+            decodeTransform.dequantizeInverse();
+            store(plane(decodeTarget, b), stride, x, y, decodePrediction, decodeTransform.block);
+        }
+    }
+
+    private static byte[] plane(Planes planes, int b) {
+        return b < 4 ? planes.y : (b == 4 ? planes.cb : planes.cr);
+    }
+
+    private static int stride(Planes planes, int b) {
+        return b < 4 ? planes.lumaWidth : planes.chromaWidth;
+    }
+
+    private static int blockX(int mx, int b) {
+        return b < 4 ? mx + (b & 1) * BLOCK : mx / 2;
+    }
+
+    private static int blockY(int my, int b) {
+        return b < 4 ? my + (b >> 1) * BLOCK : my / 2;
+    }
+
+    /**
+     * Builds the prediction for block {@code b} at (x, y). Chroma vectors are
+     * half the luma vector; odd luma vectors average the two neighbouring
+     * chroma samples.
+     */
+    private static void predict(byte[] reference, int stride, int x, int y, int dx, int dy, int b,
+                                boolean intra, int[] prediction) {
+        if (intra) {
+            Arrays.fill(prediction, 128);
+            return;
+        }
+        boolean chroma = b >= 4;
+        int halfX = chroma ? dx & 1 : 0;
+        int halfY = chroma ? dy & 1 : 0;
+        x += chroma ? dx >> 1 : dx;
+        y += chroma ? dy >> 1 : dy;
+        if ((halfX | halfY) == 0) {
+            for (int row = 0; row < BLOCK; row++) {
+                int origin = (y + row) * stride + x;
+                for (int col = 0; col < BLOCK; col++) {
+                    prediction[row * BLOCK + col] = reference[origin + col] & 0xFF;
+                }
+            }
+            return;
+        }
+        int down = halfY * stride;
+        for (int row = 0; row < BLOCK; row++) {
+            int origin = (y + row) * stride + x;
+            for (int col = 0; col < BLOCK; col++) {
+                int index = origin + col;
+                prediction[row * BLOCK + col] = ((reference[index] & 0xFF) + (reference[index + halfX] & 0xFF)
+                    + (reference[index + down] & 0xFF) + (reference[index + halfX + down] & 0xFF) + 2) >> 2;
+            }
+        }
+    }
+
+    private static void store(byte[] target, int stride, int x, int y, int[] prediction, int[] residual) {
+        for (int row = 0; row < BLOCK; row++) {
+            int origin = (y + row) * stride + x;
+            for (int col = 0; col < BLOCK; col++) {
+                int value = prediction[row * BLOCK + col];
+                if (residual != null) {
+                    value = clamp(value + residual[row * BLOCK + col]);
+                }
+                target[origin + col] = (byte) value;
+            }
+        }
+    }
+
+    private static void copyMacroblock(Planes from, Planes to, int mx, int my) {
+        for (int y = 0; y < MACROBLOCK; y++) {
+            int origin = (my + y) * from.lumaWidth + mx;
+            System.arraycopy(from.y, origin, to.y, origin, MACROBLOCK);
+        }
+        int half = MACROBLOCK / 2;
+        for (int y = 0; y < half; y++) {
+            int origin = (my / 2 + y) * from.chromaWidth + mx / 2;
+            System.arraycopy(from.cb, origin, to.cb, origin, half);
+            System.arraycopy(from.cr, origin, to.cr, origin, half);
+        }
+    }
+
+    /** 16x16 luma SAD; stops early once it exceeds {@code limit}. */
+    private static int sad16(byte[] plane, byte[] reference, int stride, int mx, int my, int dx, int dy, int limit) {
+        int sum = 0;
+        for (int y = 0; y < MACROBLOCK; y++) {
+            int row = (my + y) * stride + mx;
+            int refRow = (my + dy + y) * stride + mx + dx;
+            for (int x = 0; x < MACROBLOCK; x++) {
+                sum += Math.abs((plane[row + x] & 0xFF) - (reference[refRow + x] & 0xFF));
+            }
+            if (sum >= limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /** Inflates the frame body, failing once it would exceed {@code maxLength}, the most a legal frame codes to. */
+    private void inflate(byte[] data, int offset, int length, int maxLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        inflatedLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflatedLength == inflated.length) {
+                    inflated = Arrays.copyOf(inflated, (int) Math.min(inflated.length * 2L, maxLength + 1L));
+                }
+                int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Trame video tronquee");
+                }
+                inflatedLength += count;
+                if (inflatedLength > maxLength) {
+                    throw new IOException("Trame video trop grande une fois decompressee");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Trame video corrompue", e);
+        }
+    }
+
+    private int next() throws IOException {
+        if (readPosition >= inflatedLength) {
+            throw new IOException("Trame video tronquee");
+        }
+        return inflated[readPosition++] & 0xFF;
+    }
+
+    private int readSigned() throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = next();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 28);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void loadImage(BufferedImage image, Planes planes) {
+        int width = planes.width;
+        int height = planes.height;
+        int type = image.getType();
+        byte[] bgr = null;
+        int[] rgb;
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            rgb = null;
+        } else if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB) {
+            rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        } else {
+            if (rgbScratch.length < width * height) {
+                rgbScratch = new int[width * height];
+            }
+            rgb = image.getRGB(0, 0, width, height, rgbScratch, 0, width);
+        }
+
+        byte[] luma = planes.y;
+        int lumaWidth = planes.lumaWidth;
+        int chromaWidth = planes.chromaWidth;
+        for (int y = 0; y < height; y++) {
+            int lumaRow = y * lumaWidth;
+            int chromaRow = (y >> 1) * chromaWidth;
+            boolean chromaLine = (y & 1) == 0;
+            for (int x = 0; x < width; x++) {
+                int r;
+                int g;
+                int b;
+                if (bgr != null) {
+                    int index = (y * width + x) * 3;
+                    b = bgr[index] & 0xFF;
+                    g = bgr[index + 1] & 0xFF;
+                    r = bgr[index + 2] & 0xFF;
+                } else {
+                    int pixel = rgb[y * width + x];
+                    r = (pixel >> 16) & 0xFF;
+                    g = (pixel >> 8) & 0xFF;
+                    b = pixel & 0xFF;
+                }
+                luma[lumaRow + x] = (byte) ((77 * r + 150 * g + 29 * b) >> 8);
+                if (chromaLine && (x & 1) == 0) {
+                    planes.cb[chromaRow + (x >> 1)] = (byte) clamp(((-43 * r - 85 * g + 128 * b) >> 8) + 128);
+                    planes.cr[chromaRow + (x >> 1)] = (byte) clamp(((128 * r - 107 * g - 21 * b) >> 8) + 128);
+                }
+            }
+        }
+        planes.padEdges();
+    }
+
+    private static BufferedImage toImage(Planes planes) {
+        int width = planes.width;
+        BufferedImage image = new BufferedImage(width, planes.height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < planes.height; y++) {
+            int lumaRow = y * planes.lumaWidth;
+            int chromaRow = (y >> 1) * planes.chromaWidth;
+            for (int x = 0; x < width; x++) {
+                int luma = planes.y[lumaRow + x] & 0xFF;
+                int cb = (planes.cb[chromaRow + (x >> 1)] & 0xFF) - 128;
+                int cr = (planes.cr[chromaRow + (x >> 1)] & 0xFF) - 128;
+                int r = clamp(luma + ((359 * cr) >> 8));
+                int g = clamp(luma - ((88 * cb + 183 * cr) >> 8));
+                int b = clamp(luma + ((454 * cb) >> 8));
+                pixels[y * width + x] = (r << 16) | (g << 8) | b;
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /** YCbCr 4:2:0 planes padded to whole macroblocks. */
+    private static final class Planes {
+        final int width;
+        final int height;
+        final int lumaWidth;
+        final int lumaHeight;
+        final int chromaWidth;
+        final int chromaHeight;
+        final byte[] y;
+        final byte[] cb;
+        final byte[] cr;
+
+        Planes(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.lumaWidth = (width + MACROBLOCK - 1) / MACROBLOCK * MACROBLOCK;
+            this.lumaHeight = (height + MACROBLOCK - 1) / MACROBLOCK * MACROBLOCK;
+            this.chromaWidth = lumaWidth / 2;
+            this.chromaHeight = lumaHeight / 2;
+            this.y = new byte[lumaWidth * lumaHeight];
+            this.cb = new byte[chromaWidth * chromaHeight];
+            this.cr = new byte[chromaWidth * chromaHeight];
+        }
+
+        /** Replicates the last column and row into the macroblock padding. */
+        void padEdges() {
+            pad(y, lumaWidth, lumaHeight, width, height);
+            pad(cb, chromaWidth, chromaHeight, (width + 1) / 2, (height + 1) / 2);
+            pad(cr, chromaWidth, chromaHeight, (width + 1) / 2, (height + 1) / 2);
+        }
+
+        private static void pad(byte[] plane, int stride, int rows, int usedWidth, int usedHeight) {
+            if (usedWidth < stride) {
+                for (int row = 0; row < usedHeight; row++) {
+                    int start = row * stride;
+                    Arrays.fill(plane, start + usedWidth, start + stride, plane[start + usedWidth - 1]);
+                }
+            }
+            for (int row = usedHeight; row < rows; row++) {
+                System.arraycopy(plane, (usedHeight - 1) * stride, plane, row * stride, stride);
+            }
+        }
+    }
+
+    /** 8x8 DCT with a quantizer that grows with frequency. */
+    private static final class Transform {
+        final int[] block = new int[64];
+        final int[] levels = new int[64];
+        private final float[] coefficients = new float[64];
+        private final float[] temp = new float[64];
+        private final float[] steps = new float[64];
+        private int quantizer = -1;
+
+        void setQuantizer(int quantizer) {
+            if (this.quantizer == quantizer) {
+                return;
+            }
+            this.quantizer = quantizer;
+            for (int v = 0; v < BLOCK; v++) {
+                for (int u = 0; u < BLOCK; u++) {
+                    steps[v * BLOCK + u] = quantizer * (BLOCK + u + v) / (float) BLOCK;
+                }
+            }
+        }
+
+        /** Transforms and quantizes {@link #block}; false if every level is zero. */
+        boolean forwardQuantize(boolean intra) {
+            float rounding = intra ? 0.5f : 0.33f;
+            if (isFlat()) {
+                // only the DC term survives; skip the transform
+                Arrays.fill(levels, 0);
+                float dc = block[0] * BLOCK;
+                int level = (int) (Math.abs(dc) / steps[0] + rounding);
+                levels[0] = dc < 0 ? -level : level;
+                return level != 0;
+            }
+            for (int y = 0; y < BLOCK; y++) {
+                for (int u = 0; u < BLOCK; u++) {
+                    float sum = 0;
+                    for (int x = 0; x < BLOCK; x++) {
+                        sum += COSINE[u * BLOCK + x] * block[y * BLOCK + x];
+                    }
+                    temp[y * BLOCK + u] = sum;
+                }
+            }
+            boolean nonZero = false;
+            for (int v = 0; v < BLOCK; v++) {
+                for (int u = 0; u < BLOCK; u++) {
+                    float sum = 0;
+                    for (int y = 0; y < BLOCK; y++) {
+                        sum += COSINE[v * BLOCK + y] * temp[y * BLOCK + u];
+                    }
+                    int index = v * BLOCK + u;
+                    int level = (int) (Math.abs(sum) / steps[index] + rounding);
+                    levels[index] = sum < 0 ? -level : level;
+                    nonZero |= level != 0;
+                }
+            }
+            return nonZero;
+        }
+
+        private boolean isFlat() {
+            int first = block[0];
+            for (int i = 1; i < 64; i++) {
+                if (block[i] != first) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Rebuilds {@link #block} from the quantized levels. */
+        void dequantizeInverse() {
+            boolean dcOnly = true;
+            for (int i = 1; i < 64 && dcOnly; i++) {
+                dcOnly = levels[i] == 0;
+            }
+            if (dcOnly) {
+                Arrays.fill(block, Math.round(levels[0] * steps[0] / BLOCK));
+                return;
+            }
+            for (int i = 0; i < 64; i++) {
+                coefficients[i] = levels[i] * steps[i];
+            }
+            for (int v = 0; v < BLOCK; v++) {
+                for (int x = 0; x < BLOCK; x++) {
+                    float sum = 0;
+                    for (int u = 0; u < BLOCK; u++) {
+                        sum += COSINE[u * BLOCK + x] * coefficients[v * BLOCK + u];
+                    }
+                    temp[v * BLOCK + x] = sum;
+                }
+            }
+            for (int y = 0; y < BLOCK; y++) {
+                for (int x = 0; x < BLOCK; x++) {
+                    float sum = 0;
+                    for (int v = 0; v < BLOCK; v++) {
+                        sum += COSINE[v * BLOCK + y] * temp[v * BLOCK + x];
+                    }
+                    block[y * BLOCK + x] = Math.round(sum);
+                }
+            }
+        }
+    }
+
+    /** Growable byte buffer reused across frames. */
+    private static final class ByteSink {
+        byte[] data = new byte[64 * 1024];
+        int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        void write(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeSigned(int value) {
+            int zigzag = (value << 1) ^ (value >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                write((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            write(zigzag);
+        }
     }
 }
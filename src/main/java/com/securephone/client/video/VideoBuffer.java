@@ -1,38 +1,122 @@
 package com.securephone.client.video;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+/**
+ * Bounded hand-off queue between two video pipeline stages.
+ *
+ * {@link #pushLatest} never blocks the producer: when the queue is full
+ * the oldest frame is evicted and returned so it can be recycled. The
+ * enqueue time of every frame is kept so the consumer can read how long
+ * the last polled frame waited.
+ */
+public class VideoBuffer<T> {
 
-public class VideoBuffer {
-
-    private final BlockingQueue<byte[]> queue;
+    private final Object[] items;
+    private final long[] enqueuedAt;
+    private int head;
+    private int count;
+    private long dropped;
+    private long lastWaitNanos;
 
     public VideoBuffer(int capacity) {
-        this.queue = new LinkedBlockingQueue<>(capacity);
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.items = new Object[capacity];
+        this.enqueuedAt = new long[capacity];
+    }
+
+    public synchronized boolean push(T frame) {
+        if (count == items.length) {
+            dropped++;
+            return false;
+        }
+        insert(frame);
+        return true;
+    }
+
+    public synchronized boolean push(T frame, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (count == items.length) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                dropped++;
+                return false;
+            }
+            wait(Math.max(1, remaining / 1_000_000L));
+        }
+        insert(frame);
+        return true;
+    }
+
+    /**
+     * Adds a frame, evicting the oldest one when full.
+     * Returns the evicted frame, or null if nothing was dropped.
+     */
+    public synchronized T pushLatest(T frame) {
+        T evicted = null;
+        if (count == items.length) {
+            evicted = take();
+            dropped++;
+        }
+        insert(frame);
+        return evicted;
+    }
+
+    public synchronized T poll() {
+        if (count == 0) {
+            return null;
+        }
+        return take();
+    }
+
+    public synchronized T poll(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (count == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(Math.max(1, remaining / 1_000_000L));
+        }
+        return take();
     }
 
-    public boolean push(byte[] frame) {
-        return queue.offer(frame);
+    public synchronized void clear() {
+        while (count > 0) {
+            take();
+        }
     }
 
-    public boolean push(byte[] frame, long timeoutMs) throws InterruptedException {
-        return queue.offer(frame, timeoutMs, TimeUnit.MILLISECONDS);
+    public synchronized int size() {
+        return count;
     }
 
-    public byte[] poll() {
-        return queue.poll();
+    /** Frames rejected or evicted because the queue was full. */
+    public synchronized long getDropped() {
+        return dropped;
     }
 
-    public byte[] poll(long timeoutMs) throws InterruptedException {
-        return queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    /** How long the most recently polled frame waited in the queue. */
+    public synchronized long getLastWaitNanos() {
+        return lastWaitNanos;
     }
 
-    public void clear() {
-        queue.clear();
+    private void insert(T frame) {
+        int tail = (head + count) % items.length;
+        items[tail] = frame;
+        enqueuedAt[tail] = System.nanoTime();
+        count++;
+        notifyAll();
     }
 
-    public int size() {
-        return queue.size();
+    @SuppressWarnings("unchecked")
+    private T take() {
+        T frame = (T) items[head];
+        items[head] = null;
+        lastWaitNanos = System.nanoTime() - enqueuedAt[head];
+        head = (head + 1) % items.length;
+        count--;
+        notifyAll();
+        return frame;
     }
 }
@@ -4,67 +4,171 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
 
 public class VideoCapture {
 
+	/**
+	 * Receives captured frames. The image belongs to a small ring owned by
+	 * the capture and must be handed back with {@link VideoCapture#release}
+	 * once it has been encoded.
+	 */
 	public interface VideoFrameListener {
 		void onFrame(BufferedImage image);
 	}
 
+	private static final int RING_SIZE = 3;
+	private static final Font TITLE_FONT = new Font("SansSerif", Font.BOLD, 20);
+	private static final Font INFO_FONT = new Font("SansSerif", Font.PLAIN, 14);
+	private static final Color[] BACKGROUNDS = new Color[200];
+
+	static {
+		for (int i = 0; i < BACKGROUNDS.length; i++) {
+			BACKGROUNDS[i] = new Color(20 + i, 50, 90);
+		}
+	}
+
 	private Thread captureThread;
 	private volatile boolean running;
+	private volatile BlockingQueue<BufferedImage> freeFrames = new ArrayBlockingQueue<>(RING_SIZE);
+	private final char[] text = new char[32];
+	private volatile int frameWidth;
+	private volatile int frameHeight;
+
+	private volatile long capturedFrames;
+	private volatile long skippedFrames;
+	private volatile long lateFrames;
 
 	public void start(int width, int height, int fps, VideoFrameListener listener) {
 		if (running) {
 			return;
 		}
+		BlockingQueue<BufferedImage> ring = new ArrayBlockingQueue<>(RING_SIZE);
+		for (int i = 0; i < RING_SIZE; i++) {
+			ring.add(new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR));
+		}
+		frameWidth = width;
+		frameHeight = height;
+		freeFrames = ring;
 		running = true;
-		captureThread = new Thread(() -> captureLoop(width, height, fps, listener), "VideoCaptureThread");
+		captureThread = new Thread(() -> captureLoop(ring, fps, listener), "VideoCaptureThread");
 		captureThread.setDaemon(true);
 		captureThread.start();
 	}
 
-	private void captureLoop(int width, int height, int fps, VideoFrameListener listener) {
-		long frameDelay = Math.max(1, 1000 / Math.max(1, fps));
-		int tick = 0;
+	/**
+	 * Returns a frame delivered to the listener to the ring.
+	 */
+	public void release(BufferedImage image) {
+		if (image != null && image.getWidth() == frameWidth && image.getHeight() == frameHeight) {
+			freeFrames.offer(image);
+		}
+	}
 
-		while (running) {
-			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-			Graphics2D g = image.createGraphics();
+	/**
+	 * Runs on absolute deadlines (start + n / fps) so encode time and
+	 * scheduling jitter do not accumulate. Deadlines missed by more than a
+	 * period are skipped rather than caught up in a burst.
+	 */
+	private void captureLoop(BlockingQueue<BufferedImage> ring, int fps, VideoFrameListener listener) {
+		int rate = Math.max(1, fps);
+		long period = 1_000_000_000L / rate;
+		long start = System.nanoTime();
+		long frame = 0;
+
+		while (running && ring == freeFrames) {
+			BufferedImage image = ring.poll();
+			if (image == null) {
+				// encoder still holds every buffer
+				skippedFrames++;
+			} else {
+				draw(image, (int) frame);
+				capturedFrames++;
+				if (listener != null) {
+					listener.onFrame(image);
+				} else {
+					ring.offer(image);
+				}
+			}
+
+			frame++;
+			long deadline = start + frame * 1_000_000_000L / rate;
+			long behind = System.nanoTime() - deadline;
+			if (behind > period) {
+				long missed = behind / period;
+				lateFrames += missed;
+				frame += missed;
+				deadline = start + frame * 1_000_000_000L / rate;
+			}
+			long wait;
+			while (running && (wait = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+			}
+		}
+	}
 
-			Color bg = new Color(20 + (tick % 200), 50, 90);
-			g.setColor(bg);
-			g.fillRect(0, 0, width, height);
+	private void draw(BufferedImage image, int tick) {
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(BACKGROUNDS[tick % BACKGROUNDS.length]);
+			g.fillRect(0, 0, image.getWidth(), image.getHeight());
 
 			g.setColor(Color.WHITE);
-			g.setFont(new Font("SansSerif", Font.BOLD, 20));
+			g.setFont(TITLE_FONT);
 			g.drawString("SecurePhone Video", 20, 30);
-			g.setFont(new Font("SansSerif", Font.PLAIN, 14));
-			g.drawString("Frame: " + tick, 20, 55);
-			g.drawString("Time: " + System.currentTimeMillis(), 20, 75);
-
+			g.setFont(INFO_FONT);
+			drawLabel(g, "Frame: ", tick, 20, 55);
+			drawLabel(g, "Time: ", System.currentTimeMillis(), 20, 75);
+		} finally {
 			g.dispose();
+		}
+	}
 
-			if (listener != null) {
-				listener.onFrame(image);
-			}
-
-			tick++;
-
-			try {
-				Thread.sleep(frameDelay);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				break;
-			}
+	/** Draws label + value from a reused char buffer instead of a new String. */
+	private void drawLabel(Graphics2D g, String label, long value, int x, int y) {
+		int length = label.length();
+		label.getChars(0, length, text, 0);
+		int digitsStart = length;
+		do {
+			text[length++] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		for (int i = digitsStart, j = length - 1; i < j; i++, j--) {
+			char c = text[i];
+			text[i] = text[j];
+			text[j] = c;
 		}
+		g.drawChars(text, 0, length, x, y);
 	}
 
 	public void stop() {
 		running = false;
+		Thread thread = captureThread;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
 	}
 
 	public boolean isRunning() {
 		return running;
 	}
+
+	public long getCapturedFrames() {
+		return capturedFrames;
+	}
+
+	/** Frames not captured because every buffer was still being encoded. */
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	/** Deadlines missed because a frame took longer than a period. */
+	public long getLateFrames() {
+		return lateFrames;
+	}
 }
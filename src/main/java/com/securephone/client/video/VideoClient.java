@@ -1,40 +1,113 @@
 package com.securephone.client.video;
 
+import com.securephone.client.network.MediaTransport;
+import com.securephone.client.security.MediaCrypto;
+import com.securephone.client.utils.Logger;
+import com.securephone.shared.protocol.PacketBufferPool;
 import com.securephone.shared.protocol.VideoPacket;
+import com.securephone.shared.protocol.VideoPacketView;
 
 import java.awt.image.BufferedImage;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Sends and receives video as two pipelines of stages, each on its own
+ * thread and joined by bounded latest-wins {@link VideoBuffer}s:
+ * capture -> encode -> send, and receive -> decode -> render.
+ * A slow stage loses frames instead of stalling the stages before it;
+ * losing an encoded frame forces a keyframe so the receiver recovers.
+ */
 public class VideoClient {
 
 	public interface FrameListener {
 		void onFrame(BufferedImage image);
 	}
 
-	private final H264Codec codec = new H264Codec();
+	private static final int RECEIVE_BUFFER_SIZE =
+		VideoPacket.HEADER_SIZE + VideoPacket.FRAGMENT_HEADER_SIZE + VideoPacket.MAX_VIDEO_SIZE;
+	private static final int DEFAULT_MTU = 1500;
+	private static final int SEND_FRAMES = 4;
+	private static final int RECEIVE_FRAMES = 6;
+	private static final long STAGE_POLL_MS = 100;
+	private static final int MIN_ADAPTIVE_BITRATE = 100_000;
+	private static final double QUEUEING_HIGH_MS = 100;
+	private static final double QUEUEING_LOW_MS = 30;
+
+	/** Encoded frame handed between stages; pooled per direction. */
+	private static final class EncodedFrame {
+		byte[] data = new byte[64 * 1024];
+		int length;
+		int frameNumber;
+		int frameType;
+		long timestamp;
+
+		void set(byte[] source, int sourceLength) {
+			if (data.length < sourceLength) {
+				data = Arrays.copyOf(data, Math.max(sourceLength, data.length * 2));
+			}
+			System.arraycopy(source, 0, data, 0, sourceLength);
+			length = sourceLength;
+		}
+	}
+
+	private final MediaTransport transport;
+	private H264Codec codec = new H264Codec();
+	private int bitrate = H264Codec.DEFAULT_BITRATE;
+	private volatile int targetBitrate = H264Codec.DEFAULT_BITRATE;
+	private int keyframeInterval = H264Codec.DEFAULT_KEYFRAME_INTERVAL;
 	private final VideoCapture capture = new VideoCapture();
 
-	private DatagramSocket socket;
-	private InetAddress serverAddress;
-	private int serverPort;
+	private MediaTransport.Flow flow;
 	private int userId;
 	private int width = 640;
 	private int height = 480;
 	private int fps = 15;
 	private volatile boolean running;
-	private Thread receiveThread;
 	private final AtomicInteger frameCounter = new AtomicInteger();
 	private FrameListener frameListener;
+	private int fragmentPayload = VideoPacket.maxFragmentPayload(DEFAULT_MTU);
+	private PacketBufferPool sendPool = new PacketBufferPool(4, DEFAULT_MTU, true);
+	private final byte[] encodeBuffer = new byte[VideoFrameAssembler.DEFAULT_MAX_FRAME_SIZE];
+	private final VideoPacketView view = new VideoPacketView();
+	private final VideoFrameAssembler assembler = new VideoFrameAssembler();
+	private int lastDecodedFrame;
+	private boolean awaitingKeyframe = true;
+	private volatile boolean receiverReset;
+	private volatile MediaCrypto crypto;
+
+	private final VideoBuffer<BufferedImage> encodeQueue = new VideoBuffer<>(1);
+	private final VideoBuffer<EncodedFrame> sendQueue = new VideoBuffer<>(2);
+	private final VideoBuffer<EncodedFrame> decodeQueue = new VideoBuffer<>(RECEIVE_FRAMES - 2);
+	private final VideoBuffer<BufferedImage> renderQueue = new VideoBuffer<>(1);
+	private BlockingQueue<EncodedFrame> freeSendFrames = new ArrayBlockingQueue<>(SEND_FRAMES);
+	private BlockingQueue<EncodedFrame> freeReceiveFrames = new ArrayBlockingQueue<>(RECEIVE_FRAMES);
+	private final List<Thread> stageThreads = new ArrayList<>();
+
+	private final VideoStageStats encodeStats = new VideoStageStats("encode");
+	private final VideoStageStats sendStats = new VideoStageStats("send");
+	private final VideoStageStats decodeStats = new VideoStageStats("decode");
+	private final VideoStageStats renderStats = new VideoStageStats("render");
+
+	public VideoClient() {
+		this(new MediaTransport());
+	}
+
+	public VideoClient(MediaTransport transport) {
+		this.transport = transport;
+	}
 
 	public void configure(String host, int port, int userId) throws Exception {
-		this.serverAddress = InetAddress.getByName(host);
-		this.serverPort = port;
 		this.userId = userId;
-		if (socket == null || socket.isClosed()) {
-			socket = new DatagramSocket();
+		if (flow == null || !flow.isOpen()) {
+			flow = transport.open("video", new InetSocketAddress(host, port), RECEIVE_BUFFER_SIZE + 64, this::onPacket);
 		}
 	}
 
@@ -42,6 +115,76 @@ public class VideoClient {
 		this.width = width;
 		this.height = height;
 		this.fps = fps;
+		codec = new H264Codec(bitrate, fps, keyframeInterval);
+	}
+
+	/**
+	 * Applies video.bitrate and video.keyframe.interval; takes effect on the
+	 * next call.
+	 */
+	public void setCodecSettings(int bitrate, int keyframeInterval) {
+		this.bitrate = bitrate;
+		this.targetBitrate = bitrate;
+		this.keyframeInterval = keyframeInterval;
+		codec = new H264Codec(bitrate, fps, keyframeInterval);
+	}
+
+	/**
+	 * Delay-based rate adaptation from the chat RTT. An RTT well above its
+	 * minimum means packets are queueing on the path, so the encoder backs
+	 * off; it climbs back toward the configured bitrate once the queue drains.
+	 */
+	public void setNetworkRtt(double smoothedMs, double minMs) {
+		double queueing = smoothedMs - minMs;
+		int target = targetBitrate;
+		if (queueing > QUEUEING_HIGH_MS) {
+			target = Math.max(Math.min(MIN_ADAPTIVE_BITRATE, bitrate), (int) (target * 0.85));
+		} else if (queueing < QUEUEING_LOW_MS) {
+			target = Math.min(bitrate, (int) (target * 1.05) + 1);
+		}
+		targetBitrate = target;
+	}
+
+	/** Bitrate the encoder currently aims for, at most the configured one. */
+	public int getTargetBitrate() {
+		return targetBitrate;
+	}
+
+	/**
+	 * Frames are split so that no datagram exceeds {@code mtu} bytes.
+	 */
+	public void setMtu(int mtu) {
+		int payload = VideoPacket.maxFragmentPayload(mtu);
+		if (payload <= 0) {
+			return;
+		}
+		fragmentPayload = payload;
+		sendPool = new PacketBufferPool(4, mtu, true);
+	}
+
+	/**
+	 * Encrypts outgoing fragments and requires incoming ones to be sealed
+	 * with the same key; null sends and accepts them in clear.
+	 */
+	public void setMediaCrypto(MediaCrypto crypto) {
+		this.crypto = crypto;
+	}
+
+	public void setReassemblyTimeout(int timeoutMs) {
+		assembler.setTimeoutMs(timeoutMs);
+	}
+
+	public VideoFrameAssembler getFrameAssembler() {
+		return assembler;
+	}
+
+	/** Per-stage counters in pipeline order: encode, send, decode, render. */
+	public List<VideoStageStats> getStageStats() {
+		return Collections.unmodifiableList(Arrays.asList(encodeStats, sendStats, decodeStats, renderStats));
+	}
+
+	public VideoCapture getCapture() {
+		return capture;
 	}
 
 	public void setFrameListener(FrameListener listener) {
@@ -52,57 +195,302 @@ public class VideoClient {
 		if (running) {
 			return;
 		}
+		encodeQueue.clear();
+		sendQueue.clear();
+		decodeQueue.clear();
+		renderQueue.clear();
+		freeSendFrames = newFramePool(SEND_FRAMES);
+		freeReceiveFrames = newFramePool(RECEIVE_FRAMES);
+		awaitingKeyframe = true;
+		receiverReset = true;
+		codec.requestKeyframe();
 		running = true;
-		startReceiver();
-		capture.start(width, height, fps, this::sendFrame);
+
+		startStage("VideoEncodeThread", this::encodeLoop);
+		startStage("VideoSendThread", this::sendLoop);
+		startStage("VideoDecodeThread", this::decodeLoop);
+		startStage("VideoRenderThread", this::renderLoop);
+		capture.start(width, height, fps, this::onCapturedFrame);
 	}
 
 	public void stop() {
 		running = false;
 		capture.stop();
-		if (socket != null && !socket.isClosed()) {
-			socket.close();
+		for (Thread thread : stageThreads) {
+			thread.interrupt();
+		}
+		stageThreads.clear();
+		transport.close(flow);
+		flow = null;
+		Logger.info("📊 Pipeline video: " + getStageStats() + " " + assembler);
+	}
+
+	private static BlockingQueue<EncodedFrame> newFramePool(int size) {
+		BlockingQueue<EncodedFrame> pool = new ArrayBlockingQueue<>(size);
+		for (int i = 0; i < size; i++) {
+			pool.add(new EncodedFrame());
+		}
+		return pool;
+	}
+
+	private void startStage(String name, Runnable loop) {
+		Thread thread = new Thread(() -> {
+			try {
+				loop.run();
+			} catch (RuntimeException e) {
+				Logger.error("Etape video " + name + " arretee: " + e.getMessage());
+			}
+		}, name);
+		thread.setDaemon(true);
+		stageThreads.add(thread);
+		thread.start();
+	}
+
+	// Capture thread
+	private void onCapturedFrame(BufferedImage image) {
+		BufferedImage evicted = encodeQueue.pushLatest(image);
+		if (evicted != null) {
+			encodeStats.drop();
+			capture.release(evicted);
 		}
 	}
 
-	private void sendFrame(BufferedImage image) {
+	private void encodeLoop() {
+		BlockingQueue<EncodedFrame> pool = freeSendFrames;
+		while (running) {
+			BufferedImage image;
+			try {
+				image = encodeQueue.poll(STAGE_POLL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (image == null) {
+				continue;
+			}
+			long queued = encodeQueue.getLastWaitNanos();
+			long started = System.nanoTime();
+			int target = targetBitrate;
+			if (codec.getBitrate() != target) {
+				codec.setBitrate(target);
+			}
+			int length;
+			try {
+				length = flow != null ? codec.encode(image, encodeBuffer) : 0;
+			} finally {
+				capture.release(image);
+			}
+			EncodedFrame frame = length > 0 ? pool.poll() : null;
+			if (frame == null) {
+				encodeStats.drop();
+				if (length > 0) {
+					codec.requestKeyframe();
+				}
+				continue;
+			}
+			frame.set(encodeBuffer, length);
+			frame.frameNumber = frameCounter.incrementAndGet();
+			frame.frameType = codec.getLastFrameType();
+			frame.timestamp = System.currentTimeMillis();
+			encodeStats.record(queued, System.nanoTime() - started);
+
+			EncodedFrame evicted = sendQueue.pushLatest(frame);
+			if (evicted != null) {
+				// the receiver cannot decode past a missing frame
+				sendStats.drop();
+				pool.offer(evicted);
+				codec.requestKeyframe();
+			}
+		}
+	}
+
+	private void sendLoop() {
+		BlockingQueue<EncodedFrame> pool = freeSendFrames;
+		while (running) {
+			EncodedFrame frame;
+			try {
+				frame = sendQueue.poll(STAGE_POLL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (frame == null) {
+				continue;
+			}
+			long queued = sendQueue.getLastWaitNanos();
+			long started = System.nanoTime();
+			try {
+				sendFrame(frame);
+			} finally {
+				pool.offer(frame);
+			}
+			sendStats.record(queued, System.nanoTime() - started);
+		}
+	}
+
+	private void sendFrame(EncodedFrame frame) {
+		MediaTransport.Flow current = flow;
+		if (current == null) {
+			return;
+		}
+		int length = frame.length;
+		MediaCrypto sealer = crypto;
+		// the tag must fit in the datagram too
+		int payload = sealer != null ? fragmentPayload - MediaCrypto.TAG_BYTES : fragmentPayload;
+		int count = (length + payload - 1) / payload;
+		if (count > VideoPacket.MAX_FRAGMENTS) {
+			codec.requestKeyframe();
+			return;
+		}
+		PacketBufferPool pool = sendPool;
+		for (int index = 0; index < count; index++) {
+			int offset = index * payload;
+			int size = Math.min(payload, length - offset);
+			ByteBuffer buffer = pool.acquire();
+			try {
+				int header;
+				if (count == 1) {
+					VideoPacket.encode(buffer, userId, frame.frameNumber, frame.frameType, frame.timestamp,
+						width, height, frame.data, 0, length);
+					header = VideoPacket.HEADER_SIZE;
+				} else {
+					VideoPacket.encodeFragment(buffer, userId, frame.frameNumber, frame.frameType, frame.timestamp,
+						width, height, index, count, offset, length, frame.data, offset, size);
+					header = VideoPacket.HEADER_SIZE + VideoPacket.FRAGMENT_HEADER_SIZE;
+				}
+				buffer.flip();
+				if (sealer != null) {
+					sealer.seal(buffer, header, userId, nonceCounter(frame.frameNumber, index));
+				}
+				transport.send(current, buffer);
+			} catch (Exception e) {
+				// ignore transient frame send errors
+			} finally {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	// Transport thread: reassemble only, never decode here
+	private void onPacket(ByteBuffer packet) {
+		if (!running) {
+			return;
+		}
+		int start = packet.position();
+		int sender = packet.getInt(start);
+		if (sender == userId) {
+			return;
+		}
+		MediaCrypto opener = crypto;
+		if (opener != null && !openPacket(opener, packet, start, sender)) {
+			return;
+		}
+		view.wrap(packet);
+		if (receiverReset) {
+			receiverReset = false;
+			assembler.clear();
+		}
+		VideoFrameAssembler.Frame frame = assembler.accept(view);
+		if (frame == null) {
+			return;
+		}
+		EncodedFrame holder = freeReceiveFrames.poll();
+		if (holder == null) {
+			decodeStats.drop();
+			return;
+		}
+		holder.set(frame.getData(), frame.getLength());
+		holder.frameNumber = frame.getFrameNumber();
+		holder.frameType = frame.getFrameType();
+		holder.timestamp = frame.getTimestamp();
+		EncodedFrame evicted = decodeQueue.pushLatest(holder);
+		if (evicted != null) {
+			decodeStats.drop();
+			freeReceiveFrames.offer(evicted);
+		}
+	}
+
+	private static boolean openPacket(MediaCrypto opener, ByteBuffer packet, int start, int sender) {
+		int header = VideoPacket.HEADER_SIZE;
+		int fragment = 0;
+		if ((packet.getInt(start + 8) & VideoPacket.FLAG_FRAGMENT) != 0) {
+			header += VideoPacket.FRAGMENT_HEADER_SIZE;
+			fragment = packet.getShort(start + VideoPacket.HEADER_SIZE) & 0xFFFF;
+		}
+		return opener.open(packet, header, sender, nonceCounter(packet.getInt(start + 4), fragment));
+	}
+
+	// frame number and fragment index together never repeat within a call
+	private static long nonceCounter(int frameNumber, int fragmentIndex) {
+		return (frameNumber & 0xFFFFFFFFL) << 16 | fragmentIndex;
+	}
+
+	private void decodeLoop() {
+		BlockingQueue<EncodedFrame> pool = freeReceiveFrames;
+		while (running) {
+			EncodedFrame frame;
+			try {
+				frame = decodeQueue.poll(STAGE_POLL_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (frame == null) {
+				continue;
+			}
+			long queued = decodeQueue.getLastWaitNanos();
+			long started = System.nanoTime();
+			BufferedImage image;
+			try {
+				image = decode(frame);
+			} finally {
+				pool.offer(frame);
+			}
+			if (image == null) {
+				continue;
+			}
+			decodeStats.record(queued, System.nanoTime() - started);
+			if (renderQueue.pushLatest(image) != null) {
+				renderStats.drop();
+			}
+		}
+	}
+
+	private BufferedImage decode(EncodedFrame frame) {
+		// a delta frame after a lost frame would decode against the wrong reference
+		boolean keyframe = frame.frameType != VideoPacket.FRAME_TYPE_DELTA;
+		if (!keyframe && (awaitingKeyframe || frame.frameNumber != lastDecodedFrame + 1)) {
+			awaitingKeyframe = true;
+			decodeStats.drop();
+			return null;
+		}
 		try {
-			byte[] encoded = codec.encode(image);
-			VideoPacket packet = new VideoPacket(userId, encoded, encoded.length, width, height, 0);
-			packet.setFrameNumber(frameCounter.incrementAndGet());
-			byte[] data = packet.toBytes();
-			DatagramPacket datagram = new DatagramPacket(data, data.length, serverAddress, serverPort);
-			socket.send(datagram);
+			BufferedImage image = codec.decode(frame.data, 0, frame.length);
+			lastDecodedFrame = frame.frameNumber;
+			awaitingKeyframe = false;
+			return image;
 		} catch (Exception e) {
-			// ignore transient frame send errors
-		}
-	}
-
-	private void startReceiver() {
-		receiveThread = new Thread(() -> {
-			byte[] buffer = new byte[VideoPacket.MAX_VIDEO_SIZE + 64];
-			while (running && socket != null && !socket.isClosed()) {
-				try {
-					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-					socket.receive(packet);
-					byte[] data = new byte[packet.getLength()];
-					System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
-					VideoPacket videoPacket = VideoPacket.fromBytes(data);
-					if (videoPacket.getUserId() == userId) {
-						continue;
-					}
-					BufferedImage image = codec.decode(videoPacket.getVideoData());
-					if (frameListener != null && image != null) {
-						frameListener.onFrame(image);
-					}
-				} catch (Exception e) {
-					if (!running) {
-						break;
-					}
-				}
+			awaitingKeyframe = true;
+			decodeStats.drop();
+			return null;
+		}
+	}
+
+	private void renderLoop() {
+		while (running) {
+			BufferedImage image;
+			try {
+				image = renderQueue.poll(STAGE_POLL_MS);
+			} catch (InterruptedException e) {
+				return;
 			}
-		}, "VideoReceiveThread");
-		receiveThread.setDaemon(true);
-		receiveThread.start();
+			if (image == null) {
+				continue;
+			}
+			long queued = renderQueue.getLastWaitNanos();
+			long started = System.nanoTime();
+			FrameListener listener = frameListener;
+			if (listener != null) {
+				listener.onFrame(image);
+			}
+			renderStats.record(queued, System.nanoTime() - started);
+		}
 	}
 }
@@ -0,0 +1,288 @@
+package com.securephone.client.video;
+
+import com.securephone.shared.protocol.VideoPacketView;
+
+import java.util.Arrays;
+
+/**
+ * Reassembles video frames sent as several fragments.
+ *
+ * A few frames may be in flight at once, so a slow fragment of one frame
+ * never holds up the next. A frame still incomplete when a newer frame
+ * completes, when it times out, or when its slot is needed is discarded.
+ * Single-threaded: call from the receive thread only.
+ */
+public class VideoFrameAssembler {
+
+	public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
+	public static final int DEFAULT_TIMEOUT_MS = 500;
+
+	private static final int SLOTS = 4;
+	private static final int RESET_DISTANCE = 1000;
+
+	/**
+	 * A frame being assembled. A completed frame returned by
+	 * {@link #accept} stays valid until the next call.
+	 */
+	public static final class Frame {
+		private int userId;
+		private int frameNumber;
+		private int frameType;
+		private long timestamp;
+		private int width;
+		private int height;
+		private byte[] data = new byte[0];
+		private int length;
+		private int fragmentCount;
+		private int received;
+		private long[] receivedMask = new long[0];
+		private long startedNanos;
+		private boolean active;
+
+		public int getUserId() {
+			return userId;
+		}
+
+		public int getFrameNumber() {
+			return frameNumber;
+		}
+
+		public int getFrameType() {
+			return frameType;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getFragmentCount() {
+			return fragmentCount;
+		}
+
+		private void start(VideoPacketView view, int frameLength, int fragments, long now) {
+			userId = view.getUserId();
+			frameNumber = view.getFrameNumber();
+			frameType = view.getFrameType();
+			timestamp = view.getTimestamp();
+			width = view.getWidth();
+			height = view.getHeight();
+			length = frameLength;
+			fragmentCount = fragments;
+			received = 0;
+			startedNanos = now;
+			active = true;
+			if (data.length < frameLength) {
+				data = new byte[Math.max(frameLength, data.length * 2)];
+			}
+			int words = (fragments + 63) >>> 6;
+			if (receivedMask.length < words) {
+				receivedMask = new long[words];
+			} else {
+				Arrays.fill(receivedMask, 0, words, 0L);
+			}
+		}
+
+		/** Marks a fragment received; false if it was a duplicate. */
+		private boolean mark(int index) {
+			long bit = 1L << (index & 63);
+			if ((receivedMask[index >>> 6] & bit) != 0) {
+				return false;
+			}
+			receivedMask[index >>> 6] |= bit;
+			received++;
+			return true;
+		}
+	}
+
+	private final Frame[] slots = new Frame[SLOTS];
+	private final Frame single = new Frame();
+	private final int maxFrameSize;
+	private long timeoutNanos;
+
+	private boolean hasCompleted;
+	private int lastUserId;
+	private int lastCompleted;
+
+	private long completedFrames;
+	private long droppedFrames;
+	private long lateFragments;
+	private long invalidFragments;
+
+	public VideoFrameAssembler() {
+		this(DEFAULT_MAX_FRAME_SIZE, DEFAULT_TIMEOUT_MS);
+	}
+
+	public VideoFrameAssembler(int maxFrameSize, int timeoutMs) {
+		this.maxFrameSize = maxFrameSize;
+		this.timeoutNanos = timeoutMs * 1_000_000L;
+		for (int i = 0; i < SLOTS; i++) {
+			slots[i] = new Frame();
+		}
+	}
+
+	public void setTimeoutMs(int timeoutMs) {
+		this.timeoutNanos = timeoutMs * 1_000_000L;
+	}
+
+	/**
+	 * Adds one received packet. Returns the frame it completes, or null
+	 * while the frame is still missing fragments.
+	 */
+	public Frame accept(VideoPacketView view) {
+		long now = System.nanoTime();
+		expire(now);
+
+		int userId = view.getUserId();
+		int frameNumber = view.getFrameNumber();
+		if (hasCompleted && userId == lastUserId && isStale(frameNumber)) {
+			lateFragments++;
+			return null;
+		}
+
+		if (!view.isFragment()) {
+			single.start(view, view.getDataLength(), 1, now);
+			view.copyData(single.data, 0);
+			single.mark(0);
+			complete(single);
+			return single;
+		}
+
+		int count = view.getFragmentCount();
+		int index = view.getFragmentIndex();
+		int frameLength = view.getFrameLength();
+		int offset = view.getFragmentOffset();
+		if (count == 0 || index >= count || frameLength <= 0 || frameLength > maxFrameSize
+			|| offset < 0 || offset + view.getDataLength() > frameLength) {
+			invalidFragments++;
+			return null;
+		}
+
+		Frame frame = find(userId, frameNumber);
+		if (frame == null) {
+			frame = claimSlot();
+			frame.start(view, frameLength, count, now);
+		} else if (frame.fragmentCount != count || frame.length != frameLength) {
+			invalidFragments++;
+			return null;
+		}
+		if (!frame.mark(index)) {
+			return null;
+		}
+		view.copyData(frame.data, offset);
+		if (frame.received < frame.fragmentCount) {
+			return null;
+		}
+		complete(frame);
+		return frame;
+	}
+
+	public void clear() {
+		for (Frame frame : slots) {
+			frame.active = false;
+		}
+		hasCompleted = false;
+	}
+
+	public long getCompletedFrames() {
+		return completedFrames;
+	}
+
+	/** Frames discarded before all their fragments arrived. */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/** Fragments of frames already completed or discarded. */
+	public long getLateFragments() {
+		return lateFragments;
+	}
+
+	public long getInvalidFragments() {
+		return invalidFragments;
+	}
+
+	public int getPendingFrames() {
+		int pending = 0;
+		for (Frame frame : slots) {
+			if (frame.active) {
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	@Override
+	public String toString() {
+		return "VideoFrameAssembler{completed=" + completedFrames + ", dropped=" + droppedFrames
+			+ ", late=" + lateFragments + ", pending=" + getPendingFrames() + "}";
+	}
+
+	private boolean isStale(int frameNumber) {
+		int distance = frameNumber - lastCompleted;
+		// a large jump backwards means the sender restarted its counter
+		return distance <= 0 && distance > -RESET_DISTANCE;
+	}
+
+	private Frame find(int userId, int frameNumber) {
+		for (Frame frame : slots) {
+			if (frame.active && frame.userId == userId && frame.frameNumber == frameNumber) {
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	private Frame claimSlot() {
+		Frame oldest = null;
+		for (Frame frame : slots) {
+			if (!frame.active) {
+				return frame;
+			}
+			if (oldest == null || frame.startedNanos < oldest.startedNanos) {
+				oldest = frame;
+			}
+		}
+		droppedFrames++;
+		return oldest;
+	}
+
+	private void complete(Frame completed) {
+		completed.active = false;
+		completedFrames++;
+		hasCompleted = true;
+		lastUserId = completed.userId;
+		lastCompleted = completed.frameNumber;
+		for (Frame frame : slots) {
+			if (frame.active && frame.userId == completed.userId
+				&& frame.frameNumber - completed.frameNumber < 0) {
+				frame.active = false;
+				droppedFrames++;
+			}
+		}
+	}
+
+	private void expire(long now) {
+		for (Frame frame : slots) {
+			if (frame.active && now - frame.startedNanos > timeoutNanos) {
+				frame.active = false;
+				droppedFrames++;
+			}
+		}
+	}
+}
@@ -1,26 +1,76 @@
 package com.securephone.client.video;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Displays decoded video frames.
+ *
+ * Frames land in a single slot; a frame replaced before the EDT painted it
+ * is dropped, so a slow EDT never queues work. The scaled frame is kept in
+ * a VolatileImage that is only redrawn when a new frame arrives and only
+ * reallocated when the drawn size changes.
+ */
 public class VideoPlayer extends JPanel {
 
+    private final AtomicReference<BufferedImage> pendingFrame = new AtomicReference<>();
+    private final AtomicLong displayedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    // EDT only
     private BufferedImage currentFrame;
+    private VolatileImage scaledFrame;
+    private boolean scaledStale = true;
 
     public VideoPlayer() {
         setBackground(Color.BLACK);
     }
 
+    /**
+     * May be called from any thread. A null frame clears the display.
+     */
     public void setFrame(BufferedImage frame) {
-        this.currentFrame = frame;
+        if (frame == null) {
+            pendingFrame.set(null);
+            SwingUtilities.invokeLater(this::clearFrame);
+            return;
+        }
+        BufferedImage previous = pendingFrame.getAndSet(frame);
+        if (previous != null) {
+            droppedFrames.incrementAndGet();
+            return;
+        }
         repaint();
     }
 
+    /** Frames painted at least once. */
+    public long getDisplayedFrames() {
+        return displayedFrames.get();
+    }
+
+    /** Frames replaced by a newer one before they could be painted. */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
+        BufferedImage next = pendingFrame.getAndSet(null);
+        if (next != null) {
+            currentFrame = next;
+            scaledStale = true;
+            displayedFrames.incrementAndGet();
+        }
         if (currentFrame == null) {
             return;
         }
@@ -33,9 +83,77 @@ public class VideoPlayer extends JPanel {
         double scale = Math.min((double) panelWidth / imgWidth, (double) panelHeight / imgHeight);
         int drawWidth = (int) (imgWidth * scale);
         int drawHeight = (int) (imgHeight * scale);
+        if (drawWidth <= 0 || drawHeight <= 0) {
+            return;
+        }
         int x = (panelWidth - drawWidth) / 2;
         int y = (panelHeight - drawHeight) / 2;
 
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        if (config == null) {
+            g.drawImage(currentFrame, x, y, drawWidth, drawHeight, null);
+            return;
+        }
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (!prepareScaledFrame(config, drawWidth, drawHeight)) {
+                break;
+            }
+            g.drawImage(scaledFrame, x, y, null);
+            if (!scaledFrame.contentsLost()) {
+                return;
+            }
+            scaledStale = true;
+        }
         g.drawImage(currentFrame, x, y, drawWidth, drawHeight, null);
     }
+
+    /**
+     * Makes sure the cached image has the right size and holds the current
+     * frame. Returns false if no accelerated image could be created.
+     */
+    private boolean prepareScaledFrame(GraphicsConfiguration config, int width, int height) {
+        if (scaledFrame == null || scaledFrame.getWidth() != width || scaledFrame.getHeight() != height) {
+            disposeScaledFrame();
+            scaledFrame = config.createCompatibleVolatileImage(width, height);
+            if (scaledFrame == null) {
+                return false;
+            }
+            scaledStale = true;
+        }
+        int status = scaledFrame.validate(config);
+        if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+            disposeScaledFrame();
+            scaledFrame = config.createCompatibleVolatileImage(width, height);
+            if (scaledFrame == null) {
+                return false;
+            }
+            scaledStale = true;
+        } else if (status == VolatileImage.IMAGE_RESTORED) {
+            scaledStale = true;
+        }
+        if (scaledStale) {
+            Graphics2D g = scaledFrame.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(currentFrame, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            scaledStale = false;
+        }
+        return true;
+    }
+
+    private void clearFrame() {
+        currentFrame = null;
+        disposeScaledFrame();
+        repaint();
+    }
+
+    private void disposeScaledFrame() {
+        if (scaledFrame != null) {
+            scaledFrame.flush();
+            scaledFrame = null;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package com.securephone.client.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and drop counters for one video pipeline stage.
+ * Latencies are exponentially smoothed; queue time is how long a frame
+ * waited before the stage picked it up, service time how long the stage
+ * worked on it.
+ */
+public class VideoStageStats {
+
+	private static final double SMOOTHING = 0.1;
+
+	private final String name;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long processed;
+	private volatile double queueMs;
+	private volatile double serviceMs;
+	private volatile double maxServiceMs;
+
+	public VideoStageStats(String name) {
+		this.name = name;
+	}
+
+	/** Called by the stage thread after each frame. */
+	void record(long queueNanos, long serviceNanos) {
+		double queue = queueNanos / 1_000_000.0;
+		double service = serviceNanos / 1_000_000.0;
+		if (processed == 0) {
+			queueMs = queue;
+			serviceMs = service;
+		} else {
+			queueMs += SMOOTHING * (queue - queueMs);
+			serviceMs += SMOOTHING * (service - serviceMs);
+		}
+		maxServiceMs = Math.max(maxServiceMs, service);
+		processed++;
+	}
+
+	void drop() {
+		dropped.incrementAndGet();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getProcessed() {
+		return processed;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public double getQueueMs() {
+		return queueMs;
+	}
+
+	public double getServiceMs() {
+		return serviceMs;
+	}
+
+	/** Total time spent in this stage, waiting plus working. */
+	public double getLatencyMs() {
+		return queueMs + serviceMs;
+	}
+
+	public double getMaxServiceMs() {
+		return maxServiceMs;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s{processed=%d, dropped=%d, queue=%.1fms, service=%.1fms, max=%.1fms}",
+			name, processed, getDropped(), queueMs, serviceMs, maxServiceMs);
+	}
+}
@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 
 public class AudioPacket {
     public static final int MAX_AUDIO_SIZE = 4096;
-    private static final int HEADER_SIZE = 20;
+    public static final int HEADER_SIZE = 20;
 
     private int userId;
     private int sequenceNumber;
@@ -63,12 +63,32 @@ public class AudioPacket {
 
     public byte[] toBytes() {
         ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + dataLength);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        return encode(buffer, userId, sequenceNumber, timestamp, audioData, 0, dataLength);
+    }
+
+    /**
+     * Writes a packet at the buffer's current position without allocating.
+     * Returns the number of bytes written.
+     */
+    public static int encode(ByteBuffer buffer, int userId, int sequenceNumber, long timestamp,
+                             byte[] data, int offset, int length) {
+        if (length > MAX_AUDIO_SIZE) {
+            throw new IllegalArgumentException("Audio data too large: " + length);
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            throw new IllegalArgumentException("Buffer too small for audio packet");
+        }
         buffer.putInt(userId);
         buffer.putInt(sequenceNumber);
         buffer.putLong(timestamp);
-        buffer.putInt(dataLength);
-        buffer.put(audioData, 0, dataLength);
-        return buffer.array();
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+        return HEADER_SIZE + length;
     }
 
     public static AudioPacket fromBytes(byte[] data) {
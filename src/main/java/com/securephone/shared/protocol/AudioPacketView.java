@@ -0,0 +1,77 @@
+package com.securephone.shared.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight read view over a received audio packet.
+ * Fields are read in place from the wrapped buffer; the view can be
+ * re-wrapped for every datagram so the receive path allocates nothing.
+ */
+public class AudioPacketView {
+
+    private ByteBuffer buffer;
+    private int base;
+    private int dataLength;
+
+    /**
+     * Wraps the bytes between the buffer's position and limit.
+     */
+    public AudioPacketView wrap(ByteBuffer buffer) {
+        int available = buffer.remaining();
+        if (available < AudioPacket.HEADER_SIZE) {
+            throw new IllegalArgumentException("Audio packet too small");
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start + 16);
+        if (length < 0 || length > AudioPacket.MAX_AUDIO_SIZE) {
+            throw new IllegalArgumentException("Audio data too large: " + length);
+        }
+        if (available < AudioPacket.HEADER_SIZE + length) {
+            throw new IllegalArgumentException("Audio packet data incomplete");
+        }
+        this.buffer = buffer;
+        this.base = start;
+        this.dataLength = length;
+        return this;
+    }
+
+    public int getUserId() {
+        return buffer.getInt(base);
+    }
+
+    public int getSequenceNumber() {
+        return buffer.getInt(base + 4);
+    }
+
+    public long getTimestamp() {
+        return buffer.getLong(base + 8);
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Absolute index of the payload in the wrapped buffer.
+     */
+    public int getDataOffset() {
+        return base + AudioPacket.HEADER_SIZE;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int copyData(byte[] target, int offset) {
+        int start = getDataOffset();
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + start, target, offset, dataLength);
+        } else {
+            int position = buffer.position();
+            buffer.position(start);
+            buffer.get(target, offset, dataLength);
+            buffer.position(position);
+        }
+        return dataLength;
+    }
+}
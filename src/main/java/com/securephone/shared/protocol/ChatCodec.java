@@ -0,0 +1,309 @@
+package com.securephone.shared.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary form of a {@link ChatPacket}, used by the length-prefixed
+ * framing mode of the chat channel.
+ *
+ * Layout: type ordinal (1 byte), timestamp (8 bytes), then the data object
+ * as tagged values. Integers are zig-zag varints and strings are
+ * length-prefixed UTF-8, so presence and typing packets stay a few dozen
+ * bytes and decode without a JSON tokenizer.
+ */
+public class ChatCodec {
+    public static final int VERSION = 1;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_OBJECT = 6;
+    private static final int TAG_ARRAY = 7;
+    private static final int TAG_DECIMAL = 8;
+
+    private static final int MAX_DEPTH = 32;
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private byte[] buffer;
+    private int position;
+
+    public ChatCodec() {
+        this(256);
+    }
+
+    public ChatCodec(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Encodes a packet into the internal buffer and returns its length.
+     * The bytes in {@link #getBuffer()} stay valid until the next call.
+     */
+    public int encode(ChatPacket packet) {
+        if (packet.getType() == null) {
+            throw new IllegalArgumentException("Chat packet without type");
+        }
+        position = 0;
+        writeByte(packet.getType().ordinal());
+        writeLong(packet.getTimestamp());
+        JSONObject data = packet.getData();
+        writeObject(data == null ? new JSONObject() : data, 0);
+        if (position > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Chat packet too large: " + position);
+        }
+        return position;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public static ChatPacket decode(byte[] data, int offset, int length) {
+        Reader reader = new Reader(data, offset, length);
+        int ordinal = reader.readByte();
+        if (ordinal >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown chat packet type: " + ordinal);
+        }
+        ChatPacket packet = new ChatPacket(TYPES[ordinal]);
+        packet.setTimestamp(reader.readLong());
+        if (reader.readByte() != TAG_OBJECT) {
+            throw new IllegalArgumentException("Chat packet data is not an object");
+        }
+        packet.setData(reader.readObject(0));
+        if (reader.position != reader.limit) {
+            throw new IllegalArgumentException("Trailing bytes in chat packet");
+        }
+        return packet;
+    }
+
+    private void writeObject(JSONObject object, int depth) {
+        checkDepth(depth);
+        writeByte(TAG_OBJECT);
+        writeVarint(object.length());
+        for (String key : object.keySet()) {
+            writeString(key);
+            writeValue(object.opt(key), depth + 1);
+        }
+    }
+
+    private void writeArray(JSONArray array, int depth) {
+        checkDepth(depth);
+        writeByte(TAG_ARRAY);
+        int length = array.length();
+        writeVarint(length);
+        for (int i = 0; i < length; i++) {
+            writeValue(array.opt(i), depth + 1);
+        }
+    }
+
+    private void writeValue(Object value, int depth) {
+        if (value == null || value == JSONObject.NULL) {
+            writeByte(TAG_NULL);
+        } else if (value instanceof String) {
+            writeByte(TAG_STRING);
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writeByte(TAG_INT);
+            long v = ((Number) value).longValue();
+            writeVarint((v << 1) ^ (v >> 63));
+        } else if (value instanceof Double || value instanceof Float) {
+            writeByte(TAG_DOUBLE);
+            writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            writeByte(TAG_DECIMAL);
+            writeString(value.toString());
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value, depth);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value, depth);
+        } else {
+            writeByte(TAG_STRING);
+            writeString(value.toString());
+        }
+    }
+
+    private void writeString(String value) {
+        int chars = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < chars; i++) {
+            if (value.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (ascii) {
+            writeVarint(chars);
+            ensureCapacity(chars);
+            for (int i = 0; i < chars; i++) {
+                buffer[position++] = (byte) value.charAt(i);
+            }
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, position + extra)];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    private static void checkDepth(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Chat packet nested too deeply");
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] data, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > data.length) {
+                throw new IllegalArgumentException("Invalid chat packet bounds");
+            }
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        JSONObject readObject(int depth) {
+            checkDepth(depth);
+            int count = readCount();
+            JSONObject object = new JSONObject();
+            for (int i = 0; i < count; i++) {
+                String key = readString();
+                object.put(key, readValue(depth + 1));
+            }
+            return object;
+        }
+
+        JSONArray readArray(int depth) {
+            checkDepth(depth);
+            int count = readCount();
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                array.put(readValue(depth + 1));
+            }
+            return array;
+        }
+
+        Object readValue(int depth) {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return JSONObject.NULL;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_INT: {
+                    long raw = readVarint();
+                    long v = (raw >>> 1) ^ -(raw & 1);
+                    if (v == (int) v) {
+                        return (int) v;
+                    }
+                    return v;
+                }
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(readLong());
+                case TAG_STRING:
+                    return readString();
+                case TAG_OBJECT:
+                    return readObject(depth);
+                case TAG_ARRAY:
+                    return readArray(depth);
+                case TAG_DECIMAL:
+                    return new BigDecimal(readString());
+                default:
+                    throw new IllegalArgumentException("Unknown chat value tag: " + tag);
+            }
+        }
+
+        String readString() {
+            int length = readCount();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /** Reads a collection or string size, which can never exceed the bytes left. */
+        int readCount() {
+            long count = readVarint();
+            if (count < 0 || count > limit - position) {
+                throw new IllegalArgumentException("Chat packet length out of range: " + count);
+            }
+            return (int) count;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in chat packet");
+        }
+
+        long readLong() {
+            if (limit - position < 8) {
+                throw new IllegalArgumentException("Chat packet truncated");
+            }
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readByte() {
+            if (position >= limit) {
+                throw new IllegalArgumentException("Chat packet truncated");
+            }
+            return data[position++] & 0xFF;
+        }
+    }
+}
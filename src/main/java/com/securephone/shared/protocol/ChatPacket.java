@@ -63,4 +63,16 @@ public class ChatPacket {
         packet.timestamp = json.getLong("timestamp");
         return packet;
     }
+
+    public byte[] toBytes() {
+        ChatCodec codec = new ChatCodec();
+        int length = codec.encode(this);
+        byte[] bytes = new byte[length];
+        System.arraycopy(codec.getBuffer(), 0, bytes, 0, length);
+        return bytes;
+    }
+
+    public static ChatPacket fromBytes(byte[] data) {
+        return ChatCodec.decode(data, 0, data.length);
+    }
 }
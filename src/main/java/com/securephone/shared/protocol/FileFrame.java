@@ -0,0 +1,78 @@
+package com.securephone.shared.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames of the file-transfer channel, a TCP connection of its own next
+ * to the chat channel. Every frame is a fixed header followed by
+ * {@code length} payload bytes; the server relays frames between the
+ * sender and receiver connections that opened the same transfer.
+ *
+ * OPEN    payload = role + session id: binds this connection to a transfer;
+ *         once both sides are bound the server hands each one the other's OPEN,
+ *         and the sender waits for the receiver's ACK or RESEND before any DATA
+ * DATA    payload = file bytes at offset, checksum = CRC32C of the payload
+ * ACK     offset = bytes the receiver has verified and written
+ * RESEND  offset = where the sender must continue from (gap, bad checksum, resume)
+ * CANCEL  the transfer is abandoned
+ */
+public final class FileFrame {
+    public static final int HEADER_SIZE = 25;
+    public static final int MAX_PAYLOAD = 1 << 20;
+
+    public static final byte OPEN = 1;
+    public static final byte DATA = 2;
+    public static final byte ACK = 3;
+    public static final byte RESEND = 4;
+    public static final byte CANCEL = 5;
+
+    public static final byte ROLE_SENDER = 0;
+    public static final byte ROLE_RECEIVER = 1;
+
+    private FileFrame() {
+    }
+
+    /** Writes a header at the buffer's position; the payload follows separately. */
+    public static void putHeader(ByteBuffer buffer, byte type, long transferId, long offset,
+                                 int length, int checksum) {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("File frame too large: " + length);
+        }
+        buffer.put(type);
+        buffer.putLong(transferId);
+        buffer.putLong(offset);
+        buffer.putInt(length);
+        buffer.putInt(checksum);
+    }
+
+    public static byte[] openPayload(byte role, String sessionId) {
+        byte[] session = sessionId != null ? sessionId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] payload = new byte[1 + session.length];
+        payload[0] = role;
+        System.arraycopy(session, 0, payload, 1, session.length);
+        return payload;
+    }
+
+    // header fields, read in place from a buffer holding a header at position 0
+
+    public static byte type(ByteBuffer header) {
+        return header.get(0);
+    }
+
+    public static long transferId(ByteBuffer header) {
+        return header.getLong(1);
+    }
+
+    public static long offset(ByteBuffer header) {
+        return header.getLong(9);
+    }
+
+    public static int length(ByteBuffer header) {
+        return header.getInt(17);
+    }
+
+    public static int checksum(ByteBuffer header) {
+        return header.getInt(21);
+    }
+}
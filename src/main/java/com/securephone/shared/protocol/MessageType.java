@@ -1,5 +1,9 @@
 package com.securephone.shared.protocol;
 
+/**
+ * Chat packet types. The binary framing sends the ordinal, so new types
+ * must be appended at the end.
+ */
 public enum MessageType {
     // Authentication
     LOGIN_REQUEST,
@@ -61,5 +65,8 @@ public enum MessageType {
 
     // Push
     PUSH_REGISTER,
-    PUSH_NOTIFICATION
+    PUSH_NOTIFICATION,
+
+    // Connection setup
+    PROTOCOL_NEGOTIATE
 }
@@ -0,0 +1,65 @@
+package com.securephone.shared.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of packet buffers for the media path.
+ * Buffers are cleared on release and handed out again on acquire; a new
+ * buffer is only allocated when the pool is empty.
+ */
+public class PacketBufferPool {
+
+    private final BlockingQueue<ByteBuffer> pool;
+    private final int bufferSize;
+    private final boolean direct;
+    private final AtomicLong misses = new AtomicLong();
+
+    public PacketBufferPool(int poolSize, int bufferSize, boolean direct) {
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        for (int i = 0; i < poolSize; i++) {
+            pool.offer(allocate());
+        }
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return allocate();
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int available() {
+        return pool.size();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ByteBuffer allocate() {
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+}
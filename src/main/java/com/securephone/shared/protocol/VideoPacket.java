@@ -4,7 +4,17 @@ import java.nio.ByteBuffer;
 
 public class VideoPacket {
     public static final int MAX_VIDEO_SIZE = 65536;
-    private static final int HEADER_SIZE = 32;
+    public static final int HEADER_SIZE = 32;
+    public static final int FRAME_TYPE_KEY = 1;
+    public static final int FRAME_TYPE_DELTA = 2;
+
+    /** Set in the frame type field when a fragment extension follows the header. */
+    public static final int FLAG_FRAGMENT = 0x10000;
+    public static final int FRAME_TYPE_MASK = 0xFFFF;
+    /** index(2) count(2) offset(4) frameLength(4) */
+    public static final int FRAGMENT_HEADER_SIZE = 12;
+    public static final int MAX_FRAGMENTS = 0xFFFF;
+    private static final int IP_UDP_OVERHEAD = 28;
 
     private int userId;
     private int frameNumber;
@@ -14,6 +24,10 @@ public class VideoPacket {
     private int height;
     private byte[] videoData;
     private int dataLength;
+    private int fragmentIndex;
+    private int fragmentCount = 1;
+    private int fragmentOffset;
+    private int frameLength;
 
     public VideoPacket() {}
 
@@ -92,17 +106,114 @@ public class VideoPacket {
         this.dataLength = dataLength;
     }
 
+    public int getFragmentIndex() {
+        return fragmentIndex;
+    }
+
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    public int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /**
+     * Length of the whole encoded frame; equals the data length when the
+     * frame is not fragmented.
+     */
+    public int getFrameLength() {
+        return fragmentCount > 1 ? frameLength : dataLength;
+    }
+
+    public void setFragment(int index, int count, int offset, int frameLength) {
+        this.fragmentIndex = index;
+        this.fragmentCount = count;
+        this.fragmentOffset = offset;
+        this.frameLength = frameLength;
+    }
+
+    public boolean isFragment() {
+        return fragmentCount > 1;
+    }
+
     public byte[] toBytes() {
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + dataLength);
+        ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public int writeTo(ByteBuffer buffer) {
+        if (isFragment()) {
+            return encodeFragment(buffer, userId, frameNumber, frameType, timestamp, width, height,
+                fragmentIndex, fragmentCount, fragmentOffset, frameLength, videoData, 0, dataLength);
+        }
+        return encode(buffer, userId, frameNumber, frameType, timestamp, width, height,
+            videoData, 0, dataLength);
+    }
+
+    /**
+     * Largest fragment payload that keeps a datagram within {@code mtu}.
+     */
+    public static int maxFragmentPayload(int mtu) {
+        return Math.min(MAX_VIDEO_SIZE, mtu - IP_UDP_OVERHEAD - HEADER_SIZE - FRAGMENT_HEADER_SIZE);
+    }
+
+    /**
+     * Writes one fragment of a frame: the regular header with
+     * {@link #FLAG_FRAGMENT} set, the fragment extension, then the slice
+     * of the frame starting at {@code fragmentOffset}.
+     */
+    public static int encodeFragment(ByteBuffer buffer, int userId, int frameNumber, int frameType,
+                                     long timestamp, int width, int height,
+                                     int fragmentIndex, int fragmentCount, int fragmentOffset, int frameLength,
+                                     byte[] data, int offset, int length) {
+        if (length > MAX_VIDEO_SIZE) {
+            throw new IllegalArgumentException("Video data too large: " + length);
+        }
+        if (fragmentCount < 1 || fragmentCount > MAX_FRAGMENTS || fragmentIndex >= fragmentCount) {
+            throw new IllegalArgumentException("Invalid fragment " + fragmentIndex + "/" + fragmentCount);
+        }
+        if (buffer.remaining() < HEADER_SIZE + FRAGMENT_HEADER_SIZE + length) {
+            throw new IllegalArgumentException("Buffer too small for video packet");
+        }
+        buffer.putInt(userId);
+        buffer.putInt(frameNumber);
+        buffer.putInt((frameType & FRAME_TYPE_MASK) | FLAG_FRAGMENT);
+        buffer.putLong(timestamp);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(length);
+        buffer.putShort((short) fragmentIndex);
+        buffer.putShort((short) fragmentCount);
+        buffer.putInt(fragmentOffset);
+        buffer.putInt(frameLength);
+        buffer.put(data, offset, length);
+        return HEADER_SIZE + FRAGMENT_HEADER_SIZE + length;
+    }
+
+    /**
+     * Writes a packet at the buffer's current position without allocating.
+     * Returns the number of bytes written.
+     */
+    public static int encode(ByteBuffer buffer, int userId, int frameNumber, int frameType,
+                             long timestamp, int width, int height,
+                             byte[] data, int offset, int length) {
+        if (length > MAX_VIDEO_SIZE) {
+            throw new IllegalArgumentException("Video data too large: " + length);
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            throw new IllegalArgumentException("Buffer too small for video packet");
+        }
         buffer.putInt(userId);
         buffer.putInt(frameNumber);
         buffer.putInt(frameType);
         buffer.putLong(timestamp);
         buffer.putInt(width);
         buffer.putInt(height);
-        buffer.putInt(dataLength);
-        buffer.put(videoData, 0, dataLength);
-        return buffer.array();
+        buffer.putInt(length);
+        buffer.put(data, offset, length);
+        return HEADER_SIZE + length;
     }
 
     public static VideoPacket fromBytes(byte[] data) {
@@ -124,7 +235,20 @@ public class VideoPacket {
             throw new IllegalArgumentException("Video data too large: " + packet.dataLength);
         }
 
-        if (data.length < HEADER_SIZE + packet.dataLength) {
+        int headerSize = HEADER_SIZE;
+        if ((packet.frameType & FLAG_FRAGMENT) != 0) {
+            headerSize += FRAGMENT_HEADER_SIZE;
+            if (data.length < headerSize) {
+                throw new IllegalArgumentException("Video packet too small");
+            }
+            packet.frameType &= FRAME_TYPE_MASK;
+            packet.fragmentIndex = buffer.getShort() & 0xFFFF;
+            packet.fragmentCount = buffer.getShort() & 0xFFFF;
+            packet.fragmentOffset = buffer.getInt();
+            packet.frameLength = buffer.getInt();
+        }
+
+        if (data.length < headerSize + packet.dataLength) {
             throw new IllegalArgumentException("Video packet data incomplete");
         }
 
@@ -134,6 +258,6 @@ public class VideoPacket {
     }
 
     public int getSize() {
-        return HEADER_SIZE + dataLength;
+        return HEADER_SIZE + (isFragment() ? FRAGMENT_HEADER_SIZE : 0) + dataLength;
     }
 }
@@ -0,0 +1,118 @@
+package com.securephone.shared.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight read view over a received video packet.
+ * Fields are read in place from the wrapped buffer; the view can be
+ * re-wrapped for every datagram so the receive path allocates nothing.
+ */
+public class VideoPacketView {
+
+    private ByteBuffer buffer;
+    private int base;
+    private int headerSize;
+    private int dataLength;
+
+    /**
+     * Wraps the bytes between the buffer's position and limit.
+     */
+    public VideoPacketView wrap(ByteBuffer buffer) {
+        int available = buffer.remaining();
+        if (available < VideoPacket.HEADER_SIZE) {
+            throw new IllegalArgumentException("Video packet too small");
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start + 28);
+        if (length < 0 || length > VideoPacket.MAX_VIDEO_SIZE) {
+            throw new IllegalArgumentException("Video data too large: " + length);
+        }
+        int header = VideoPacket.HEADER_SIZE;
+        if ((buffer.getInt(start + 8) & VideoPacket.FLAG_FRAGMENT) != 0) {
+            header += VideoPacket.FRAGMENT_HEADER_SIZE;
+        }
+        if (available < header + length) {
+            throw new IllegalArgumentException("Video packet data incomplete");
+        }
+        this.buffer = buffer;
+        this.base = start;
+        this.headerSize = header;
+        this.dataLength = length;
+        return this;
+    }
+
+    public int getUserId() {
+        return buffer.getInt(base);
+    }
+
+    public int getFrameNumber() {
+        return buffer.getInt(base + 4);
+    }
+
+    public int getFrameType() {
+        return buffer.getInt(base + 8) & VideoPacket.FRAME_TYPE_MASK;
+    }
+
+    public long getTimestamp() {
+        return buffer.getLong(base + 12);
+    }
+
+    public int getWidth() {
+        return buffer.getInt(base + 20);
+    }
+
+    public int getHeight() {
+        return buffer.getInt(base + 24);
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    public boolean isFragment() {
+        return headerSize > VideoPacket.HEADER_SIZE;
+    }
+
+    public int getFragmentIndex() {
+        return isFragment() ? buffer.getShort(base + 32) & 0xFFFF : 0;
+    }
+
+    public int getFragmentCount() {
+        return isFragment() ? buffer.getShort(base + 34) & 0xFFFF : 1;
+    }
+
+    /**
+     * Position of this payload within the whole frame.
+     */
+    public int getFragmentOffset() {
+        return isFragment() ? buffer.getInt(base + 36) : 0;
+    }
+
+    public int getFrameLength() {
+        return isFragment() ? buffer.getInt(base + 40) : dataLength;
+    }
+
+    /**
+     * Absolute index of the payload in the wrapped buffer.
+     */
+    public int getDataOffset() {
+        return base + headerSize;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int copyData(byte[] target, int offset) {
+        int start = getDataOffset();
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + start, target, offset, dataLength);
+        } else {
+            int position = buffer.position();
+            buffer.position(start);
+            buffer.get(target, offset, dataLength);
+            buffer.position(position);
+        }
+        return dataLength;
+    }
+}
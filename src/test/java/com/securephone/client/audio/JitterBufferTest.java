@@ -0,0 +1,218 @@
+package com.securephone.client.audio;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for JitterBuffer reordering, late loss, FEC recovery, concealment and delay growth.
+ */
+public class JitterBufferTest {
+
+    private JitterBuffer buffer;
+    private byte[] out;
+
+    @Before
+    public void setUp() {
+        buffer = new JitterBuffer(20, 60);
+        out = new byte[64];
+    }
+
+    private static byte[] frame(int value) {
+        byte[] data = new byte[8];
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = (byte) value;
+            data[i + 1] = 0;
+        }
+        return data;
+    }
+
+    @Test
+    public void testPrefillBeforePlayout() {
+        buffer.put(1, 0, frame(1), 8);
+        buffer.put(2, 20, frame(2), 8);
+        assertEquals("Should not play before target depth", 0, buffer.poll(out));
+        buffer.put(3, 40, frame(3), 8);
+        assertEquals("Should play once target depth reached", 8, buffer.poll(out));
+        assertEquals(1, out[0]);
+    }
+
+    @Test
+    public void testReordersBySequence() {
+        buffer.put(3, 40, frame(3), 8);
+        buffer.put(1, 0, frame(1), 8);
+        buffer.put(2, 20, frame(2), 8);
+
+        buffer.poll(out);
+        assertEquals(1, out[0]);
+        buffer.poll(out);
+        assertEquals(2, out[0]);
+        buffer.poll(out);
+        assertEquals(3, out[0]);
+        assertEquals(0, buffer.getConcealedFrames());
+    }
+
+    @Test
+    public void testLateFrameDropped() {
+        for (int seq = 1; seq <= 3; seq++) {
+            buffer.put(seq, seq * 20, frame(seq), 8);
+        }
+        buffer.poll(out);
+        buffer.poll(out);
+        assertFalse("Frame behind playout point should be dropped", buffer.put(1, 20, frame(1), 8));
+        assertEquals(1, buffer.getLateFrames());
+    }
+
+    @Test
+    public void testGapIsConcealed() {
+        buffer.put(1, 0, frame(8), 8);
+        buffer.put(3, 40, frame(3), 8);
+        buffer.put(4, 60, frame(4), 8);
+
+        assertEquals(8, buffer.poll(out));
+        assertEquals(8, out[0]);
+        assertEquals("Missing frame should be concealed", 8, buffer.poll(out));
+        assertEquals("Concealment attenuates the last frame", 4, out[0]);
+        assertEquals(1, buffer.getConcealedFrames());
+        buffer.poll(out);
+        assertEquals(3, out[0]);
+    }
+
+    /** Packets are {value, fecValue}; FEC value 0 means none. PCM is filled with the value. */
+    private static final class FakeDecoder implements JitterBuffer.FrameDecoder {
+        int concealed;
+
+        @Override
+        public int decode(byte[] packet, int length, byte[] pcm) {
+            return fill(pcm, packet[0]);
+        }
+
+        @Override
+        public int decodeFec(byte[] next, int length, byte[] pcm) {
+            return next[1] == 0 ? 0 : fill(pcm, next[1]);
+        }
+
+        @Override
+        public int conceal(byte[] pcm) {
+            concealed++;
+            return fill(pcm, (byte) 99);
+        }
+
+        private static int fill(byte[] pcm, byte value) {
+            for (int i = 0; i < 8; i++) {
+                pcm[i] = value;
+            }
+            return 8;
+        }
+    }
+
+    private static byte[] packet(int value, int fec) {
+        return new byte[] {(byte) value, (byte) fec};
+    }
+
+    @Test
+    public void testLostFrameRecoveredFromNextPacketFec() {
+        buffer.setDecoder(new FakeDecoder());
+        buffer.put(1, 0, packet(1, 0), 2);
+        buffer.put(3, 40, packet(3, 2), 2);
+        buffer.put(4, 60, packet(4, 3), 2);
+
+        assertEquals(8, buffer.poll(out));
+        assertEquals(1, out[0]);
+        assertEquals(8, buffer.poll(out));
+        assertEquals("Frame 2 comes from packet 3's FEC", 2, out[0]);
+        buffer.poll(out);
+        assertEquals(3, out[0]);
+        assertEquals(1, buffer.getRecoveredFrames());
+        assertEquals(0, buffer.getConcealedFrames());
+    }
+
+    @Test
+    public void testCodecConcealsWhenFecIsMissing() {
+        FakeDecoder decoder = new FakeDecoder();
+        buffer.setDecoder(decoder);
+        buffer.put(1, 0, packet(1, 0), 2);
+        buffer.put(4, 60, packet(4, 3), 2);
+        buffer.put(5, 80, packet(5, 4), 2);
+
+        buffer.poll(out);
+        assertEquals(8, buffer.poll(out));
+        assertEquals("Frame 2 has no later packet to recover from", 99, out[0]);
+        buffer.poll(out);
+        assertEquals("Frame 3 is in packet 4's FEC", 3, out[0]);
+        buffer.poll(out);
+        assertEquals(4, out[0]);
+        assertEquals(1, decoder.concealed);
+        assertEquals(1, buffer.getConcealedFrames());
+        assertEquals(1, buffer.getRecoveredFrames());
+        assertEquals(0.25, buffer.getConcealmentRate(), 1e-9);
+        assertEquals(0.25, buffer.getRecoveryRate(), 1e-9);
+    }
+
+    @Test
+    public void testLossAtTailIsConcealedOnce() {
+        FakeDecoder decoder = new FakeDecoder();
+        buffer.setDecoder(decoder);
+        for (int seq = 1; seq <= 3; seq++) {
+            buffer.put(seq, (seq - 1) * 20, packet(seq, seq - 1), 2);
+        }
+        for (int seq = 1; seq <= 3; seq++) {
+            buffer.poll(out);
+            assertEquals(seq, out[0]);
+        }
+        // packet 4 is lost with nothing buffered behind it
+        assertEquals(8, buffer.poll(out));
+        assertEquals(99, out[0]);
+        buffer.put(5, 80, packet(5, 4), 2);
+        assertEquals(8, buffer.poll(out));
+        assertEquals("Frame 4 was already concealed, its FEC must not play too", 5, out[0]);
+        assertFalse("Frame 4 is behind the playout point", buffer.put(4, 60, packet(4, 3), 2));
+        assertEquals(1, buffer.getConcealedFrames());
+        assertEquals(0, buffer.getRecoveredFrames());
+    }
+
+    @Test
+    public void testGrowingDelayIsNotCountedAsLoss() {
+        FakeDecoder decoder = new FakeDecoder();
+        buffer.setDecoder(decoder);
+        for (int seq = 1; seq <= 12; seq++) {
+            buffer.put(seq, (seq - 1) * 20, packet(seq, seq - 1), 2);
+        }
+        buffer.poll(out);
+        buffer.setTargetDelayMs(200);
+        for (int seq = 2; seq <= 9; seq++) {
+            buffer.poll(out);
+            assertEquals(seq, out[0]);
+        }
+        assertEquals(8, buffer.poll(out));
+        assertEquals("Playout is held for one frame", 99, out[0]);
+        buffer.poll(out);
+        assertEquals(10, out[0]);
+        assertEquals(1, decoder.concealed);
+        assertEquals(1, buffer.getHeldFrames());
+        assertEquals(0, buffer.getConcealedFrames());
+        assertEquals(0.0, buffer.getConcealmentRate(), 1e-9);
+    }
+
+    @Test
+    public void testDuplicateIgnored() {
+        assertTrue(buffer.put(1, 0, frame(1), 8));
+        assertFalse(buffer.put(1, 0, frame(1), 8));
+        assertEquals(1, buffer.getDepth());
+    }
+
+    @Test
+    public void testPlayoutDelayFollowsTarget() {
+        assertEquals(60, buffer.getPlayoutDelayMs());
+        buffer.setTargetDelayMs(200);
+        assertEquals(200, buffer.getPlayoutDelayMs());
+    }
+
+    @Test
+    public void testClear() {
+        buffer.put(1, 0, frame(1), 8);
+        buffer.clear();
+        assertEquals(0, buffer.getDepth());
+        assertEquals(0, buffer.poll(out));
+    }
+}
@@ -57,24 +57,116 @@ public class OpusCodecTest {
     }
 
     @Test
-    public void testEncodePreservesLength() {
-        byte[] pcm = new byte[960]; // 20ms @ 48kHz 16-bit mono
+    public void testEncodeCompressesFrame() {
+        byte[] pcm = tone(960, 4000);
         byte[] encoded = codec.encode(pcm);
-        assertEquals("Current stub preserves length", 960, encoded.length);
+        assertTrue("Encoded frame should be much smaller than PCM", encoded.length < pcm.length / 2);
     }
 
     @Test
-    public void testDecodePreservesLength() {
-        byte[] compressed = new byte[480]; // Example compressed size
-        byte[] decoded = codec.decode(compressed);
-        assertEquals("Current stub preserves length", 480, decoded.length);
+    public void testEncodedSizeFitsBitrate() {
+        for (int bitrate : new int[] {32000, 64000}) {
+            OpusCodec limited = new OpusCodec(bitrate, 960, true, false);
+            byte[] encoded = null;
+            // the first packet has no previous frame to carry as FEC
+            for (int i = 0; i < 3; i++) {
+                encoded = limited.encode(tone(960, 4000));
+            }
+            int bitsPerSecond = encoded.length * 8 * (1000 / limited.getFrameMillis());
+            assertTrue("Packet rate " + bitsPerSecond + " exceeds bitrate " + bitrate, bitsPerSecond <= bitrate);
+        }
+    }
+
+    @Test
+    public void testDecodeRestoresFrame() {
+        byte[] decoded = null;
+        for (int i = 0; i < 5; i++) {
+            decoded = codec.decode(codec.encode(tone(960, 4000)));
+        }
+        assertEquals("Decoded frame should be one full frame", codec.getFrameBytes(), decoded.length);
+        double rms = rms(decoded);
+        assertTrue("Decoded energy should match the input, was " + rms, rms > 4000 * 0.5 && rms < 4000 * 1.2);
+    }
+
+    @Test
+    public void testDecodeIntoSamples() {
+        byte[] encoded = codec.encode(tone(960, 4000));
+        short[] samples = new short[960];
+        assertEquals(960, codec.decode(encoded, 0, encoded.length, samples));
+    }
+
+    @Test
+    public void testFecRecoversPreviousFrame() {
+        codec.encode(tone(960, 4000));
+        byte[] next = codec.encode(tone(960, 4000));
+        byte[] recovered = new byte[codec.getFrameBytes()];
+        assertEquals(codec.getFrameBytes(), codec.decodeFec(next, 0, next.length, recovered));
+        assertTrue("FEC frame should carry signal", rms(recovered) > 4000 * 0.3);
+    }
+
+    @Test
+    public void testDtxSilenceIsFlagged() {
+        OpusCodec dtx = new OpusCodec(64000, 960, true, true);
+        byte[] out = new byte[dtx.getMaxPacketBytes()];
+        int length = 0;
+        for (int i = 0; i < 10; i++) {
+            length = dtx.encode(new byte[1920], 1920, out);
+        }
+        assertTrue("Silent frame should be marked as DTX", dtx.isSilencePacket(out, length));
+        assertFalse(codec.isSilencePacket(out, length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFrameSizeRejected() {
+        new OpusCodec(64000, 1000);
+    }
+
+    private static byte[] tone(int samples, int amplitude) {
+        byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            short value = (short) (amplitude * Math.sqrt(2) * Math.sin(2 * Math.PI * 440 * i / 48000.0));
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        return pcm;
+    }
+
+    private static double rms(byte[] pcm) {
+        double sum = 0;
+        int samples = pcm.length / 2;
+        for (int i = 0; i < samples; i++) {
+            short value = (short) ((pcm[2 * i] & 0xFF) | (pcm[2 * i + 1] << 8));
+            sum += value * (double) value;
+        }
+        return Math.sqrt(sum / Math.max(1, samples));
+    }
+
+    @Test
+    public void testMixedEnginePairUnderstandEachOther() {
+        OpusCodec fallbackPeer = new OpusCodec(64000, 960, true, false, false);
+        assertEquals(OpusCodec.ENGINE_NAME_ADPCM, fallbackPeer.getEngineName());
+
+        // whatever this machine has, it must not send Opus to a peer without libopus
+        codec.negotiate(fallbackPeer.getEngineName());
+        fallbackPeer.negotiate(codec.getEngineName());
+        assertEquals(OpusCodec.ENGINE_NAME_ADPCM, codec.getEncoderName());
+        assertEquals(OpusCodec.ENGINE_NAME_ADPCM, fallbackPeer.getEncoderName());
+
+        byte[] pcm = new byte[codec.getFrameBytes()];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            short sample = (short) (8000 * Math.sin(i * 2 * Math.PI * 440 / OpusCodec.SAMPLE_RATE));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        assertEquals(codec.getFrameBytes(), fallbackPeer.decode(codec.encode(pcm)).length);
+        assertEquals(codec.getFrameBytes(), codec.decode(fallbackPeer.encode(pcm)).length);
     }
 
     @Test
-    public void testEncodeDecode() {
-        byte[] original = new byte[]{1, 2, 3, 4, 5, 6, 7, 8};
-        byte[] encoded = codec.encode(original);
-        byte[] decoded = codec.decode(encoded);
-        assertArrayEquals("Round-trip encode/decode should preserve data (stub)", original, decoded);
+    public void testUnknownPeerEngineFallsBackToAdpcm() {
+        codec.negotiate(null);
+        assertEquals(OpusCodec.ENGINE_NAME_ADPCM, codec.getEncoderName());
+        codec.negotiate(OpusCodec.ENGINE_NAME_OPUS);
+        assertEquals(codec.getEngineName(), codec.getEncoderName());
     }
 }
@@ -0,0 +1,79 @@
+package com.securephone.client.models;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the contact search index.
+ */
+public class ContactIndexTest {
+
+    private ContactIndex index;
+
+    @Before
+    public void setUp() {
+        index = new ContactIndex();
+        index.replaceAll(Arrays.asList(
+                new Contact("1", "Zoé Martin", "", "online", ""),
+                new Contact("2", "Alice Durand", "", "offline", ""),
+                new Contact("3", "Martine Alix", "", "away", ""),
+                new Contact("4", "Bob", "", "online", "")));
+    }
+
+    private static List<String> names(List<Contact> contacts) {
+        List<String> names = new ArrayList<>();
+        for (Contact contact : contacts) {
+            names.add(contact.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testSubstringSearchRanksPrefixesFirst() {
+        assertEquals(Arrays.asList("Martine Alix", "Zoé Martin"), names(index.search("mart")));
+        assertEquals(Arrays.asList("Alice Durand", "Martine Alix"), names(index.search("ALI")));
+        assertEquals(Arrays.asList("Bob"), names(index.search("b")));
+    }
+
+    @Test
+    public void testAccentsAreIgnored() {
+        assertEquals(Arrays.asList("Zoé Martin"), names(index.search("zoe")));
+        assertEquals(Arrays.asList("Zoé Martin"), names(index.search("Zoé")));
+    }
+
+    @Test
+    public void testFuzzyFallbackToleratesATypo() {
+        assertFalse(index.search("durant").isEmpty());
+        assertEquals("Alice Durand", index.search("durant").get(0).getName());
+        assertTrue(index.search("xyzzy").isEmpty());
+    }
+
+    @Test
+    public void testIncrementalUpdates() {
+        index.put(new Contact("4", "Robert", "", "online", ""));
+        assertTrue(index.search("bob").isEmpty());
+        assertEquals(Arrays.asList("Robert"), names(index.search("rob")));
+
+        index.updateStatus("2", "online");
+        assertEquals("online", index.get("2").getStatus());
+
+        index.replaceAll(Arrays.asList(
+                new Contact("3", "Martine Alix", "", "away", ""),
+                new Contact("5", "Carla", "", "online", "")));
+        assertEquals(2, index.size());
+        assertNull(index.get("1"));
+        assertTrue(index.search("zoe").isEmpty());
+        assertEquals(Arrays.asList("Martine Alix", "Carla"), names(index.all()));
+    }
+
+    @Test
+    public void testEmptyQueryReturnsEverything() {
+        assertEquals(4, index.search("  ").size());
+    }
+}
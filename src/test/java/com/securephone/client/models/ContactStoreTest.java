@@ -0,0 +1,108 @@
+package com.securephone.client.models;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the versioned contact store.
+ */
+public class ContactStoreTest {
+
+    private ContactStore store;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        store = new ContactStore();
+        store.setListener(new ContactStore.Listener() {
+            @Override
+            public void onReset(List<Contact> contacts) {
+                events.add("reset:" + contacts.size());
+            }
+
+            @Override
+            public void onAdded(Contact contact) {
+                events.add("added:" + contact.getName());
+            }
+
+            @Override
+            public void onRemoved(Contact contact) {
+                events.add("removed:" + contact.getName());
+            }
+
+            @Override
+            public void onChanged(Contact contact) {
+                events.add("changed:" + contact.getName() + ":" + contact.getStatus());
+            }
+        });
+        store.applySnapshot(10, Arrays.asList(
+                new Contact("1", "alice", "", "online", ""),
+                new Contact("2", "bob", "", "offline", "")));
+    }
+
+    private static ContactStore.Change change(ContactStore.Op op, String id, String name, String status) {
+        return new ContactStore.Change(op, new Contact(id, name, "", status, ""));
+    }
+
+    @Test
+    public void testSnapshotSetsCursor() {
+        assertEquals(10, store.getVersion());
+        assertEquals(2, store.size());
+        assertEquals(Collections.singletonList("reset:2"), events);
+    }
+
+    @Test
+    public void testDeltaEmitsFineGrainedEvents() {
+        ContactStore.Result result = store.applyDelta(10, 12, Arrays.asList(
+                change(ContactStore.Op.UPSERT, "3", "carol", "online"),
+                change(ContactStore.Op.REMOVE, "1", "alice", null),
+                change(ContactStore.Op.STATUS, "2", "bob", "away")));
+
+        assertEquals(ContactStore.Result.APPLIED, result);
+        assertEquals(12, store.getVersion());
+        assertEquals(Arrays.asList("reset:2", "added:carol", "removed:alice", "changed:bob:away"), events);
+        assertNull(store.get("1"));
+        assertEquals("away", store.get("2").getStatus());
+    }
+
+    @Test
+    public void testStaleAndOutOfOrderDeltasAreRefused() {
+        assertEquals(ContactStore.Result.STALE, store.applyDelta(8, 10,
+                Collections.singletonList(change(ContactStore.Op.REMOVE, "1", "alice", null))));
+        assertEquals(ContactStore.Result.GAP, store.applyDelta(11, 12,
+                Collections.singletonList(change(ContactStore.Op.REMOVE, "2", "bob", null))));
+        assertEquals(10, store.getVersion());
+        assertEquals(2, store.size());
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testUnversionedStatusMatchesByNameAndSkipsNoOps() {
+        store.applyUnversioned(Arrays.asList(
+                change(ContactStore.Op.STATUS, "", "bob", "online"),
+                change(ContactStore.Op.STATUS, "1", "alice", "online"),
+                change(ContactStore.Op.STATUS, "9", "nobody", "online")));
+
+        assertEquals(10, store.getVersion());
+        assertEquals(Arrays.asList("reset:2", "changed:bob:online"), events);
+    }
+
+    @Test
+    public void testUpsertKeepsPositionAndListenersGetCopies() {
+        store.applyDelta(10, 11, Collections.singletonList(change(ContactStore.Op.UPSERT, "1", "alicia", "online")));
+        List<Contact> contacts = store.getContacts();
+        assertEquals("alicia", contacts.get(0).getName());
+        assertEquals("1", store.findKey(null, "alicia"));
+        assertNull(store.findKey(null, "alice"));
+
+        contacts.get(0).setStatus("tampered");
+        assertEquals("online", store.get("1").getStatus());
+    }
+}
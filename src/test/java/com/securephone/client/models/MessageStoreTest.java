@@ -0,0 +1,183 @@
+package com.securephone.client.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the bounded per-conversation message store.
+ */
+public class MessageStoreTest {
+
+    private static ChatMessage message(int n) {
+        return new ChatMessage("alice", "m" + n, n, null);
+    }
+
+    private static List<String> contents(MessageStore.Conversation conversation) {
+        List<String> contents = new ArrayList<>();
+        for (int i = 0; i < conversation.size(); i++) {
+            contents.add(conversation.get(i).getContent());
+        }
+        return contents;
+    }
+
+    /** Serves messages m1..mN, found by timestamp, as the log would. */
+    private static final class ListLoader implements MessageStore.HistoryLoader {
+        final List<ChatMessage> history = new ArrayList<>();
+        final List<Long> requestedBefore = new ArrayList<>();
+        int calls;
+
+        ListLoader(int count) {
+            for (int i = 1; i <= count; i++) {
+                history.add(message(i));
+            }
+        }
+
+        @Override
+        public List<ChatMessage> loadBefore(String conversation, ChatMessage oldest, int limit) {
+            calls++;
+            requestedBefore.add(oldest != null ? oldest.getTimestampMillis() : -1L);
+            int end = oldest != null ? (int) oldest.getTimestampMillis() - 1 : history.size();
+            return new ArrayList<>(history.subList(Math.max(0, end - limit), end));
+        }
+
+        @Override
+        public List<ChatMessage> loadAfter(String conversation, ChatMessage newest, int limit) {
+            calls++;
+            int start = (int) newest.getTimestampMillis();
+            return new ArrayList<>(history.subList(start, Math.min(history.size(), start + limit)));
+        }
+    }
+
+    /** Records listener calls as strings. */
+    private static final class RecordingListener implements MessageStore.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onAppended(String conversation, ChatMessage message, boolean evictedOldest) {
+            events.add("appended " + message.getContent() + (evictedOldest ? " -1" : ""));
+        }
+
+        @Override
+        public void onPrepended(String conversation, int count, int evictedNewest) {
+            events.add("prepended " + count + " -" + evictedNewest);
+        }
+
+        @Override
+        public void onNewerLoaded(String conversation, int count, int evictedOldest) {
+            events.add("newer " + count + " -" + evictedOldest);
+        }
+    }
+
+    @Test
+    public void testWindowEvictsOldest() {
+        MessageStore store = new MessageStore(3, 2);
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener);
+        for (int i = 1; i <= 5; i++) {
+            store.append("alice", message(i));
+        }
+        assertEquals(List.of("m3", "m4", "m5"), contents(store.get("alice")));
+        assertEquals(List.of("appended m1", "appended m2", "appended m3", "appended m4 -1", "appended m5 -1"),
+                listener.events);
+        assertEquals(0, store.get("bob").size());
+    }
+
+    @Test
+    public void testOlderPagesSlideTheWindowBack() {
+        MessageStore store = new MessageStore(5, 2);
+        ListLoader loader = new ListLoader(11);
+        store.setHistoryLoader(loader);
+        RecordingListener listener = new RecordingListener();
+        store.append("alice", message(10));
+        store.append("alice", message(11));
+        store.addListener(listener);
+
+        assertEquals(2, store.loadOlder("alice"));
+        assertEquals(List.of("m8", "m9", "m10", "m11"), contents(store.get("alice")));
+        assertFalse(store.get("alice").hasNewer());
+        // the window is full: the next page evicts from the newest end
+        assertEquals(2, store.loadOlder("alice"));
+        assertEquals(List.of("m6", "m7", "m8", "m9", "m10"), contents(store.get("alice")));
+        assertTrue(store.get("alice").hasNewer());
+        for (int i = 0; i < 3; i++) {
+            store.loadOlder("alice");
+        }
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), contents(store.get("alice")));
+        assertTrue(store.get("alice").isHistoryExhausted());
+        assertEquals(0, store.loadOlder("alice"));
+        assertEquals(List.of(10L, 8L, 6L, 4L, 2L), loader.requestedBefore);
+        assertEquals(List.of("prepended 2 -0", "prepended 2 -1", "prepended 2 -2", "prepended 2 -2",
+                "prepended 1 -1"), listener.events);
+    }
+
+    @Test
+    public void testNewerPagesSlideTheWindowForward() {
+        MessageStore store = new MessageStore(4, 3);
+        ListLoader loader = new ListLoader(8);
+        store.setHistoryLoader(loader);
+        store.loadOlder("alice");
+        store.loadOlder("alice");
+        store.loadOlder("alice");
+        assertEquals(List.of("m1", "m2", "m3", "m4"), contents(store.get("alice")));
+
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener);
+        assertEquals(3, store.loadNewer("alice"));
+        assertEquals(List.of("m4", "m5", "m6", "m7"), contents(store.get("alice")));
+        assertFalse(store.get("alice").isHistoryExhausted());
+        assertTrue(store.get("alice").hasNewer());
+        // short page: the window reaches the newest message again
+        assertEquals(1, store.loadNewer("alice"));
+        assertEquals(List.of("m5", "m6", "m7", "m8"), contents(store.get("alice")));
+        assertFalse(store.get("alice").hasNewer());
+        assertEquals(0, store.loadNewer("alice"));
+        assertEquals(List.of("newer 3 -3", "newer 1 -1"), listener.events);
+    }
+
+    @Test
+    public void testAppendBehindTheWindowComesBackWithNewerPages() {
+        MessageStore store = new MessageStore(3, 2);
+        ListLoader loader = new ListLoader(10);
+        store.setHistoryLoader(loader);
+        store.loadOlder("alice");
+        store.loadOlder("alice");
+        assertEquals(List.of("m7", "m8", "m9"), contents(store.get("alice")));
+
+        RecordingListener listener = new RecordingListener();
+        store.addListener(listener);
+        ChatMessage latest = message(11);
+        store.append("alice", latest);
+        // persisted by the listeners, not shown until the window gets there
+        loader.history.add(latest);
+        assertEquals(List.of("m7", "m8", "m9"), contents(store.get("alice")));
+
+        assertEquals(2, store.loadLatest("alice"));
+        assertEquals(List.of("m10", "m11"), contents(store.get("alice")));
+        assertFalse(store.get("alice").hasNewer());
+        assertEquals(List.of("appended m11", "prepended 2 -3"), listener.events);
+    }
+
+    @Test
+    public void testShortPageMarksHistoryExhausted() {
+        MessageStore store = new MessageStore(10, 4);
+        ListLoader loader = new ListLoader(1);
+        store.setHistoryLoader(loader);
+        assertEquals(1, store.loadOlder("alice"));
+        assertTrue(store.get("alice").isHistoryExhausted());
+        assertEquals(0, store.loadOlder("alice"));
+        assertEquals(0, store.loadNewer("alice"));
+        assertEquals(1, loader.calls);
+    }
+
+    @Test
+    public void testNoLoaderMeansNoOlderHistory() {
+        MessageStore store = new MessageStore();
+        store.append("alice", message(1));
+        assertEquals(0, store.loadOlder("alice"));
+        assertEquals(MessageStore.DEFAULT_WINDOW, store.get("alice").capacity());
+    }
+}
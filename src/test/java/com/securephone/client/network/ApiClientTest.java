@@ -0,0 +1,99 @@
+package com.securephone.client.network;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the REST client against a local HTTP server.
+ */
+public class ApiClientTest {
+
+    private HttpServer server;
+    private ApiClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/echo", exchange -> {
+            byte[] body = new JSONObject()
+                    .put("status", "success")
+                    .put("query", exchange.getRequestURI().getRawQuery())
+                    .toString().getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                gzip.write(body);
+            }
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, gzipped.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                gzipped.writeTo(out);
+            }
+        });
+        server.createContext("/api/fail", exchange -> {
+            byte[] body = "{\"message\":\"introuvable\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        client = new ApiClient("http://127.0.0.1:" + server.getAddress().getPort() + "/api", 2000, 2000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testGzipResponseIsDecoded() throws Exception {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("q", "alice bob");
+        JSONObject json = client.get("/echo", params);
+        assertEquals("success", json.getString("status"));
+        assertEquals("q=alice+bob", json.getString("query"));
+    }
+
+    @Test
+    public void testErrorStatusFailsTheFuture() {
+        try {
+            client.getAsync("/fail", null).join();
+            fail("Expected failure");
+        } catch (Exception e) {
+            Throwable cause = ApiClient.unwrap(e);
+            assertTrue(cause instanceof IOException);
+            assertEquals("HTTP 404: introuvable", cause.getMessage());
+        }
+    }
+
+    @Test
+    public void testPostSendsFormBody() throws Exception {
+        server.createContext("/api/form", exchange -> {
+            String form = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] body = new JSONObject().put("form", form).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("username", "alice");
+        params.put("password", "é&=");
+        JSONObject json = client.post("/form", params);
+        assertEquals("username=alice&password=%C3%A9%26%3D", json.getString("form"));
+    }
+}
@@ -0,0 +1,164 @@
+package com.securephone.client.network;
+
+import com.securephone.client.models.UserSession;
+import com.securephone.shared.protocol.ChatPacket;
+import com.securephone.shared.protocol.MessageType;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests session resume and message replay against a local socket standing in for the server.
+ */
+public class ConnectionManagerTest {
+
+    private static final int MESSAGES = 60;
+
+    private ServerSocket server;
+    private ConnectionManager manager;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final CountDownLatch releaseFirst = new CountDownLatch(1);
+    private final Set<Integer> firstConnection = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> replayed = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        server.setReceiveBufferSize(4096);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    int index = connections.getAndIncrement();
+                    // only the first connection is meant to choke
+                    server.setReceiveBufferSize(1 << 20);
+                    new Thread(() -> serve(socket, index == 0 ? firstConnection : replayed, index == 0)).start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        manager = new ConnectionManager();
+        manager.setServer("localhost", server.getLocalPort(), new ReconnectPolicy(5, 50, 1.0));
+        manager.getChatClient().setPreferredFraming(WebSocketClient.Framing.JSON);
+        manager.getChatClient().setWriteTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        releaseFirst.countDown();
+        manager.disconnect();
+        server.close();
+    }
+
+    /** Answers logins and resumes, then records the chat messages it reads; the first connection stalls. */
+    private void serve(Socket socket, Set<Integer> messages, boolean stall) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ChatPacket packet;
+                try {
+                    packet = ChatPacket.fromJson(line);
+                } catch (Exception e) {
+                    continue;
+                }
+                if (packet.getType() == MessageType.LOGIN_REQUEST) {
+                    JSONObject reply = new JSONObject()
+                            .put("status", "success")
+                            .put("session_id", "session-1")
+                            .put("user_id", 7)
+                            .put("username", "alice");
+                    out.write((new ChatPacket(MessageType.LOGIN_RESPONSE, reply).toJson() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    if (stall) {
+                        // stop reading until the client has given up on this connection
+                        releaseFirst.await(10, TimeUnit.SECONDS);
+                    }
+                } else if (packet.getType() == MessageType.TEXT_MESSAGE) {
+                    String content = packet.getData().getString("content");
+                    messages.add(Integer.parseInt(content.substring(0, content.indexOf(':'))));
+                }
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private Set<Integer> received() {
+        Set<Integer> all = new HashSet<>(firstConnection);
+        all.addAll(replayed);
+        return all;
+    }
+
+    @Test
+    public void testWritesPendingWhenConnectionDropsAreReplayed() throws Exception {
+        CountDownLatch loggedIn = new CountDownLatch(1);
+        manager.setAuthListener(new ConnectionManager.AuthListener() {
+            @Override
+            public void onLoginSuccess(UserSession session) {
+                loggedIn.countDown();
+            }
+
+            @Override
+            public void onLoginRequires2FA(String message) {
+            }
+
+            @Override
+            public void onLoginFailed(String reason) {
+            }
+
+            @Override
+            public void onRegisterSuccess(String message) {
+            }
+
+            @Override
+            public void onRegisterFailed(String reason) {
+            }
+        });
+        assertTrue(manager.connect());
+        manager.login("alice", null, null);
+        assertTrue(loggedIn.await(5, TimeUnit.SECONDS));
+
+        // far more than the socket buffers hold: the writer stalls and the watchdog drops the connection
+        String padding = new String(new char[128 * 1024]).replace('\0', 'x');
+        for (int i = 0; i < MESSAGES; i++) {
+            manager.sendChatMessage(i + ":" + padding, "bob");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connections.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("client reconnected", 2, connections.get());
+        releaseFirst.countDown();
+
+        deadline = System.currentTimeMillis() + 10_000;
+        while (received().size() < MESSAGES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("every message reached the server", MESSAGES, received().size());
+        assertFalse("writes that failed with the connection were replayed", replayed.isEmpty());
+        assertFalse(manager.isReconnecting());
+    }
+}
@@ -0,0 +1,144 @@
+package com.securephone.client.network;
+
+import com.securephone.client.network.ConnectionManager.SearchResult;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for debouncing, superseding and caching of contact search.
+ */
+public class ContactSearchServiceTest {
+
+    private final List<String> fetched = new CopyOnWriteArrayList<>();
+    private final List<CompletableFuture<List<SearchResult>>> pending = new CopyOnWriteArrayList<>();
+    private final List<List<SearchResult>> delivered = new CopyOnWriteArrayList<>();
+    private final AtomicLong clock = new AtomicLong();
+    private ContactSearchService service;
+
+    private ContactSearchService newService(long debounceMs, boolean cacheEnabled) {
+        service = new ContactSearchService(query -> {
+            fetched.add(query);
+            CompletableFuture<List<SearchResult>> future = new CompletableFuture<>();
+            pending.add(future);
+            return future;
+        }, debounceMs, cacheEnabled, 10, 1000, 5, clock::get);
+        return service;
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    private static List<SearchResult> users(String... names) {
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < names.length; i++) {
+            results.add(new SearchResult(i + 1, names[i], names[i] + "@mail.test", "online", false));
+        }
+        return results;
+    }
+
+    private static void flushEdt() throws Exception {
+        SwingUtilities.invokeAndWait(() -> { });
+    }
+
+    @Test
+    public void testKeystrokesAreDebounced() throws Exception {
+        newService(100, true);
+        service.search("a", delivered::add);
+        service.search("al", delivered::add);
+        service.search("ali", delivered::add);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (fetched.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(150);
+        assertEquals(Arrays.asList("ali"), fetched);
+    }
+
+    @Test
+    public void testSupersededResultsAreDropped() throws Exception {
+        newService(0, true);
+        service.searchNow("bo", delivered::add);
+        service.searchNow("bob", delivered::add);
+        assertEquals(2, pending.size());
+        assertTrue(pending.get(0).isCancelled());
+
+        pending.get(1).complete(users("bob"));
+        flushEdt();
+        assertEquals(1, delivered.size());
+        assertEquals("bob", delivered.get(0).get(0).username);
+    }
+
+    @Test
+    public void testRepeatedAndRefinedQueriesHitTheCache() throws Exception {
+        newService(0, true);
+        service.searchNow("al", delivered::add);
+        pending.get(0).complete(users("alice", "albert", "alan"));
+        flushEdt();
+
+        service.searchNow("AL ", delivered::add);
+        service.searchNow("ali", delivered::add);
+        flushEdt();
+
+        assertEquals(1, service.getRequestCount());
+        assertEquals(2, service.getCacheHits());
+        assertEquals(3, delivered.size());
+        assertEquals(1, delivered.get(2).size());
+        assertEquals("alice", delivered.get(2).get(0).username);
+    }
+
+    @Test
+    public void testTruncatedListsAreNotRefinedLocally() throws Exception {
+        newService(0, true);
+        service.searchNow("a", delivered::add);
+        pending.get(0).complete(users("a1", "a2", "a3", "a4", "a5"));
+        flushEdt();
+
+        service.searchNow("a1", delivered::add);
+        assertEquals(2, service.getRequestCount());
+    }
+
+    @Test
+    public void testEntriesExpireAndErrorsAreNotCached() throws Exception {
+        newService(0, true);
+        service.searchNow("carl", delivered::add);
+        pending.get(0).completeExceptionally(new RuntimeException("down"));
+        flushEdt();
+        assertEquals(0, service.getCacheSize());
+        assertTrue(delivered.isEmpty());
+
+        service.searchNow("carl", delivered::add);
+        pending.get(1).complete(users("carl"));
+        flushEdt();
+        assertEquals(1, service.getCacheSize());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1001));
+        service.searchNow("carl", delivered::add);
+        assertEquals(3, service.getRequestCount());
+    }
+
+    @Test
+    public void testCacheCanBeDisabled() throws Exception {
+        newService(0, false);
+        service.searchNow("dan", delivered::add);
+        pending.get(0).complete(users("dan"));
+        flushEdt();
+        service.searchNow("dan", delivered::add);
+        assertEquals(2, service.getRequestCount());
+    }
+}
@@ -0,0 +1,373 @@
+package com.securephone.client.network;
+
+import com.securephone.shared.protocol.FileFrame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the file-transfer channel, against a minimal relay.
+ */
+public class FileTransferClientTest {
+
+    private static final int CHUNK = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Relay relay;
+    private FileTransferClient sender;
+    private FileTransferClient receiver;
+    private final Map<Long, CountDownLatch> finished = new ConcurrentHashMap<>();
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private final AtomicInteger disconnects = new AtomicInteger();
+
+    /** Pairs the sender and receiver of each transfer and forwards frames between them. */
+    private static final class Relay implements AutoCloseable {
+        final ServerSocket server = new ServerSocket(0);
+        final Map<String, Connection> routes = new ConcurrentHashMap<>();
+        final List<Connection> connections = new CopyOnWriteArrayList<>();
+        final AtomicInteger dataFrames = new AtomicInteger();
+        volatile int corruptFrame = -1;
+        volatile int dropAfterFrame = -1;
+
+        Relay() throws IOException {
+            Thread thread = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Connection connection = new Connection(server.accept());
+                        connections.add(connection);
+                        new Thread(connection::run).start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void dropAll() {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            connections.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            dropAll();
+        }
+
+        final class Connection {
+            final Socket socket;
+            final DataOutputStream out;
+            final Map<Long, Byte> roles = new ConcurrentHashMap<>();
+
+            Connection(Socket socket) throws IOException {
+                this.socket = socket;
+                socket.setTcpNoDelay(true);
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+
+            void run() {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                    while (true) {
+                        byte type = in.readByte();
+                        long id = in.readLong();
+                        long offset = in.readLong();
+                        int length = in.readInt();
+                        int checksum = in.readInt();
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        if (type == FileFrame.OPEN) {
+                            byte role = payload[0];
+                            roles.put(id, role);
+                            routes.put(id + ":" + role, this);
+                            byte peerRole = role == FileFrame.ROLE_SENDER ? FileFrame.ROLE_RECEIVER : FileFrame.ROLE_SENDER;
+                            Connection peer = routes.get(id + ":" + peerRole);
+                            if (peer != null) {
+                                peer.forward(type, id, 0, 0, payload);
+                                forward(type, id, 0, 0, FileFrame.openPayload(peerRole, "session"));
+                            }
+                            continue;
+                        }
+                        if (type == FileFrame.DATA) {
+                            int n = dataFrames.incrementAndGet();
+                            if (n == corruptFrame) {
+                                payload[0] ^= 1;
+                            }
+                            if (n == dropAfterFrame) {
+                                dropAll();
+                                return;
+                            }
+                        }
+                        byte peerRole = roles.get(id) == FileFrame.ROLE_SENDER ? FileFrame.ROLE_RECEIVER : FileFrame.ROLE_SENDER;
+                        Connection peer = routes.get(id + ":" + peerRole);
+                        if (peer != null) {
+                            peer.forward(type, id, offset, checksum, payload);
+                        }
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            synchronized void forward(byte type, long id, long offset, int checksum, byte[] payload) {
+                try {
+                    out.writeByte(type);
+                    out.writeLong(id);
+                    out.writeLong(offset);
+                    out.writeInt(payload.length);
+                    out.writeInt(checksum);
+                    out.write(payload);
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private FileTransferClient client() {
+        FileTransferClient client = new FileTransferClient();
+        client.configure("localhost", relay.server.getLocalPort(), "session");
+        client.setWindow(4);
+        client.setListener(new FileTransferClient.Listener() {
+            @Override
+            public void onProgress(FileTransfer transfer) {
+            }
+
+            @Override
+            public void onFinished(FileTransfer transfer, String error) {
+                if (error != null) {
+                    errors.add(error);
+                }
+                finished.computeIfAbsent(transfer.getId() * 2 + transfer.getDirection().ordinal(),
+                        k -> new CountDownLatch(1)).countDown();
+            }
+
+            @Override
+            public void onDisconnected() {
+                disconnects.incrementAndGet();
+            }
+        });
+        return client;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        relay = new Relay();
+        sender = client();
+        receiver = client();
+        sender.connect();
+        receiver.connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sender.disconnect();
+        receiver.disconnect();
+        relay.close();
+    }
+
+    private Path file(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return Files.write(folder.getRoot().toPath().resolve(name), data);
+    }
+
+    private FileTransfer transfer(long id, Path source) throws IOException {
+        Path target = folder.getRoot().toPath().resolve("received-" + source.getFileName());
+        FileTransfer upload = sender.upload(id, source, CHUNK);
+        receiver.download(id, target, upload.getSize(), CHUNK);
+        sender.start(id);
+        return upload;
+    }
+
+    private void await(long id) throws InterruptedException {
+        for (FileTransfer.Direction direction : FileTransfer.Direction.values()) {
+            CountDownLatch latch = finished.computeIfAbsent(id * 2 + direction.ordinal(), k -> new CountDownLatch(1));
+            assertTrue("transfer " + id + " " + direction, latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private void assertSameContent(long id, Path source) throws IOException {
+        Path target = folder.getRoot().toPath().resolve("received-" + source.getFileName());
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+        assertFalse(Files.exists(FileTransferClient.partPath(target, id)));
+    }
+
+    @Test
+    public void testParallelTransfersShareTheChannel() throws Exception {
+        Path big = file("big.bin", 300 * CHUNK + 123);
+        Path small = file("small.bin", 10 * CHUNK);
+        Path empty = file("empty.bin", 0);
+        FileTransfer first = transfer(1, big);
+        transfer(2, small);
+        transfer(3, empty);
+        await(2);
+        await(1);
+        await(3);
+        assertEquals(FileTransfer.State.COMPLETED, first.getState());
+        assertSameContent(1, big);
+        assertSameContent(2, small);
+        assertSameContent(3, empty);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testBothSidesUploadAtOnce() throws Exception {
+        sender.setWindow(FileTransferClient.DEFAULT_WINDOW_CHUNKS);
+        receiver.setWindow(FileTransferClient.DEFAULT_WINDOW_CHUNKS);
+        Path there = file("there.bin", 400 * CHUNK);
+        Path back = file("back.bin", 400 * CHUNK + 1);
+        Path backTarget = folder.getRoot().toPath().resolve("received-back.bin");
+        transfer(8, there);
+        receiver.upload(9, back, CHUNK);
+        sender.download(9, backTarget, Files.size(back), CHUNK);
+        receiver.start(9);
+        await(8);
+        await(9);
+        assertSameContent(8, there);
+        assertSameContent(9, back);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testConnectGivesUpAfterTimeout() throws Exception {
+        // a listener that never accepts: once its backlog is full, SYNs go unanswered
+        try (ServerSocket blackHole = new ServerSocket(0, 1)) {
+            List<Socket> backlog = new CopyOnWriteArrayList<>();
+            try {
+                for (int i = 0; i < 4; i++) {
+                    Socket socket = new Socket();
+                    backlog.add(socket);
+                    socket.connect(blackHole.getLocalSocketAddress(), 200);
+                }
+            } catch (IOException full) {
+                // the backlog is full
+            }
+            FileTransferClient client = new FileTransferClient();
+            client.configure("localhost", blackHole.getLocalPort(), "session");
+            client.setConnectTimeout(200);
+            long start = System.nanoTime();
+            try {
+                client.connect();
+                fail("Connect to a full backlog should time out");
+            } catch (IOException expected) {
+            } finally {
+                for (Socket socket : backlog) {
+                    socket.close();
+                }
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            assertFalse(client.isConnected());
+        }
+    }
+
+    @Test
+    public void testCorruptedChunkIsSentAgain() throws Exception {
+        relay.corruptFrame = 5;
+        Path source = file("doc.bin", 40 * CHUNK + 7);
+        transfer(4, source);
+        await(4);
+        assertSameContent(4, source);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testPartFileOfAnotherTransferIsNotResumed() throws Exception {
+        Path source = file("report.bin", 30 * CHUNK);
+        Path target = folder.getRoot().toPath().resolve("received-report.bin");
+        Path stale = FileTransferClient.partPath(target, 99);
+        Files.write(stale, new byte[20 * CHUNK]);
+        transfer(6, source);
+        await(6);
+        assertSameContent(6, source);
+        assertEquals(20 * CHUNK, Files.size(stale));
+    }
+
+    @Test
+    public void testExistingFileIsNotOverwritten() throws Exception {
+        Path source = file("notes.txt", 3 * CHUNK);
+        Path target = folder.getRoot().toPath().resolve("received-notes.txt");
+        Files.write(target, new byte[] {1, 2, 3});
+        sender.upload(7, source, CHUNK);
+        FileTransfer download = receiver.download(7, target, Files.size(source), CHUNK);
+        sender.start(7);
+        await(7);
+        assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target));
+        Path renamed = folder.getRoot().toPath().resolve("received-notes (1).txt");
+        assertEquals(renamed, download.getPath());
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(renamed));
+    }
+
+    @Test
+    public void testPeerChosenNameStaysInTheDownloadDirectory() {
+        Path dir = folder.getRoot().toPath();
+        assertEquals(dir.resolve("a.txt"), FileTransferClient.downloadTarget(dir, "a.txt"));
+        assertEquals(dir.resolve("passwd"), FileTransferClient.downloadTarget(dir, "../../etc/passwd"));
+        assertEquals(dir.resolve("b.doc"), FileTransferClient.downloadTarget(dir, "C:\\Users\\x\\b.doc"));
+        for (String name : new String[] {null, "", " ", ".", "..", "/", "dir/..", "a\u0000b"}) {
+            try {
+                FileTransferClient.downloadTarget(dir, name);
+                fail("Expected a refused name: " + name);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testResumesFromAcknowledgedOffsetAfterReconnect() throws Exception {
+        relay.dropAfterFrame = 60;
+        Path source = file("video.bin", 200 * CHUNK);
+        FileTransfer upload = transfer(5, source);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (disconnects.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(upload.isDone());
+        long resumedFrom = receiver.get(5).getTransferred();
+        assertTrue(resumedFrom > 0 && resumedFrom < upload.getSize());
+        assertEquals(2, disconnects.get());
+
+        relay.dropAfterFrame = -1;
+        sender.connect();
+        receiver.connect();
+        await(5);
+        assertSameContent(5, source);
+        // only what was not acknowledged went out again
+        assertTrue(relay.dataFrames.get() < 200 + 60);
+    }
+}
@@ -0,0 +1,91 @@
+package com.securephone.client.network;
+
+import com.securephone.shared.protocol.ChatPacket;
+import com.securephone.shared.protocol.MessageType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for inbound packet routing.
+ */
+public class MessageDispatcherTest {
+
+    @Test
+    public void testAllSubscribersCalledInOrder() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<String> calls = new ArrayList<>();
+        dispatcher.subscribe(MessageType.TEXT_MESSAGE, MessageDispatcher.Context.INLINE, p -> calls.add("a"));
+        dispatcher.subscribe(MessageType.TEXT_MESSAGE, MessageDispatcher.Context.INLINE, p -> calls.add("b"));
+        dispatcher.subscribe(MessageType.PING, MessageDispatcher.Context.INLINE, p -> calls.add("ping"));
+
+        assertTrue(dispatcher.dispatch(new ChatPacket(MessageType.TEXT_MESSAGE)));
+        assertEquals(2, calls.size());
+        assertEquals("a", calls.get(0));
+        assertEquals("b", calls.get(1));
+    }
+
+    @Test
+    public void testCancelAndUnhandled() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<ChatPacket> calls = new ArrayList<>();
+        MessageDispatcher.Subscription subscription =
+                dispatcher.subscribe(MessageType.ERROR, MessageDispatcher.Context.INLINE, calls::add);
+        subscription.cancel();
+
+        assertFalse(dispatcher.dispatch(new ChatPacket(MessageType.ERROR)));
+        assertTrue(calls.isEmpty());
+        assertEquals(0, dispatcher.getSubscriberCount(MessageType.ERROR));
+        assertEquals(1, dispatcher.getUnhandledCount());
+    }
+
+    @Test
+    public void testFailingHandlerDoesNotStopOthers() {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        List<String> calls = new ArrayList<>();
+        dispatcher.subscribe(MessageType.ERROR, MessageDispatcher.Context.INLINE, p -> {
+            throw new IllegalStateException("boom");
+        });
+        dispatcher.subscribe(MessageType.ERROR, MessageDispatcher.Context.INLINE, p -> calls.add("ok"));
+
+        dispatcher.dispatch(new ChatPacket(MessageType.ERROR));
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void testWorkerRunsOffCallerThreadInOrder() throws Exception {
+        MessageDispatcher dispatcher = new MessageDispatcher();
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicReference<Thread> workerThread = new AtomicReference<>();
+        List<MessageType> order = new ArrayList<>();
+        dispatcher.subscribe(MessageType.CALL_ACCEPT, MessageDispatcher.Context.WORKER, p -> {
+            workerThread.set(Thread.currentThread());
+            blocked.await(2, TimeUnit.SECONDS);
+            order.add(p.getType());
+            done.countDown();
+        });
+        dispatcher.subscribe(MessageType.CALL_END, MessageDispatcher.Context.WORKER, p -> {
+            order.add(p.getType());
+            done.countDown();
+        });
+
+        long start = System.nanoTime();
+        dispatcher.dispatch(new ChatPacket(MessageType.CALL_ACCEPT));
+        dispatcher.dispatch(new ChatPacket(MessageType.CALL_END));
+        // a slow handler must not hold up the dispatching thread
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        blocked.countDown();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), workerThread.get());
+        assertEquals(MessageType.CALL_ACCEPT, order.get(0));
+        assertEquals(MessageType.CALL_END, order.get(1));
+    }
+}
@@ -0,0 +1,42 @@
+package com.securephone.client.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for reconnect backoff.
+ */
+public class ReconnectPolicyTest {
+
+    @Test
+    public void testDelayGrowsAndStaysInUpperHalf() {
+        ReconnectPolicy policy = new ReconnectPolicy(5, 1000, 2.0);
+        assertEquals(1000, policy.getMaxDelayMs(0));
+        assertEquals(2000, policy.getMaxDelayMs(1));
+        assertEquals(8000, policy.getMaxDelayMs(3));
+
+        for (int attempt = 0; attempt < 5; attempt++) {
+            long max = policy.getMaxDelayMs(attempt);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.nextDelayMs(attempt);
+                assertTrue(delay >= max / 2);
+                assertTrue(delay <= max);
+            }
+        }
+    }
+
+    @Test
+    public void testDelayIsCapped() {
+        ReconnectPolicy policy = new ReconnectPolicy(50, 3000, 2.0);
+        assertEquals(ReconnectPolicy.MAX_DELAY_MS, policy.getMaxDelayMs(40));
+        assertTrue(policy.nextDelayMs(40) <= ReconnectPolicy.MAX_DELAY_MS);
+    }
+
+    @Test
+    public void testInvalidSettingsAreClamped() {
+        ReconnectPolicy policy = new ReconnectPolicy(-1, 0, 0.5);
+        assertEquals(0, policy.getMaxAttempts());
+        assertEquals(policy.getMaxDelayMs(0), policy.getMaxDelayMs(5));
+    }
+}
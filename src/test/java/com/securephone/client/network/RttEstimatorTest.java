@@ -0,0 +1,51 @@
+package com.securephone.client.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for heartbeat RTT statistics.
+ */
+public class RttEstimatorTest {
+
+    @Test
+    public void testFirstSampleInitializes() {
+        RttEstimator estimator = new RttEstimator();
+        estimator.record(40);
+        assertEquals(40, estimator.getSmoothedMs(), 0.001);
+        assertEquals(20, estimator.getVariationMs(), 0.001);
+        assertEquals(40, estimator.getMinMs(), 0.001);
+    }
+
+    @Test
+    public void testSmoothingFollowsSlowly() {
+        RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 50; i++) {
+            estimator.record(20);
+        }
+        estimator.record(220);
+        assertEquals(220, estimator.getLastMs(), 0.001);
+        assertTrue(estimator.getSmoothedMs() < 50);
+        assertTrue(estimator.getVariationMs() > 40);
+        assertEquals(20, estimator.getMinMs(), 0.001);
+    }
+
+    @Test
+    public void testPercentilesOverWindow() {
+        RttEstimator estimator = new RttEstimator(100);
+        for (int i = 1; i <= 100; i++) {
+            estimator.record(i);
+        }
+        assertEquals(50, estimator.getPercentileMs(50), 0.001);
+        assertEquals(95, estimator.getPercentileMs(95), 0.001);
+        assertEquals(100, estimator.getPercentileMs(100), 0.001);
+
+        // older samples leave the window
+        for (int i = 0; i < 100; i++) {
+            estimator.record(500);
+        }
+        assertEquals(500, estimator.getMinMs(), 0.001);
+        assertEquals(200, estimator.getSampleCount());
+    }
+}
@@ -0,0 +1,286 @@
+package com.securephone.client.network;
+
+import com.securephone.shared.protocol.ChatPacket;
+import com.securephone.shared.protocol.MessageType;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests framing negotiation against a local socket standing in for the server.
+ */
+public class WebSocketClientTest {
+    private ServerSocket server;
+    private WebSocketClient client;
+    private final BlockingQueue<ChatPacket> received = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        client = new WebSocketClient();
+        client.setPacketListener(received::add);
+        client.setPreferredFraming(WebSocketClient.Framing.BINARY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.disconnect();
+        server.close();
+    }
+
+    @Test
+    public void testBinaryFramingWhenServerAccepts() throws Exception {
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                ChatPacket hello = ChatPacket.fromJson(reader.readLine());
+                assertEquals(MessageType.PROTOCOL_NEGOTIATE, hello.getType());
+                OutputStream out = socket.getOutputStream();
+                JSONObject reply = new JSONObject().put("framing", "binary");
+                out.write((new ChatPacket(MessageType.PROTOCOL_NEGOTIATE, reply).toJson() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+
+                // echo one binary frame back
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                DataOutputStream dataOut = new DataOutputStream(out);
+                dataOut.writeInt(frame.length);
+                dataOut.write(frame);
+                dataOut.flush();
+                in.read();
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.start();
+
+        client.connect("localhost", server.getLocalPort(), 2000);
+        assertEquals(WebSocketClient.Framing.BINARY, client.getFraming());
+
+        client.send(new ChatPacket(MessageType.TYPING_INDICATOR, new JSONObject().put("typing", true)));
+        ChatPacket echoed = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(echoed);
+        assertEquals(MessageType.TYPING_INDICATOR, echoed.getType());
+        assertTrue(echoed.getData().getBoolean("typing"));
+    }
+
+    @Test
+    public void testJsonKeptWhenServerAnswersOtherwise() throws Exception {
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                reader.readLine();
+                OutputStream out = socket.getOutputStream();
+                JSONObject error = new JSONObject().put("message", "type inconnu");
+                out.write((new ChatPacket(MessageType.ERROR, error).toJson() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.write((reader.readLine() + "\n").getBytes(StandardCharsets.UTF_8));
+                reader.readLine();
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.start();
+
+        client.connect("localhost", server.getLocalPort(), 2000);
+        assertEquals(WebSocketClient.Framing.JSON, client.getFraming());
+
+        ChatPacket error = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(error);
+        assertEquals(MessageType.ERROR, error.getType());
+
+        client.send(new ChatPacket(MessageType.PING));
+        ChatPacket echoed = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(echoed);
+        assertEquals(MessageType.PING, echoed.getType());
+    }
+
+    @Test
+    public void testPacketPushedBeforeReplyIsKept() throws Exception {
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                reader.readLine();
+                OutputStream out = socket.getOutputStream();
+                JSONObject presence = new JSONObject().put("status", "online");
+                out.write((new ChatPacket(MessageType.PRESENCE_UPDATE, presence).toJson() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                JSONObject reply = new JSONObject().put("framing", "binary");
+                out.write((new ChatPacket(MessageType.PROTOCOL_NEGOTIATE, reply).toJson() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                socket.getInputStream().read();
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.start();
+
+        client.connect("localhost", server.getLocalPort(), 2000);
+        assertEquals("The pushed packet must not end the negotiation",
+                WebSocketClient.Framing.BINARY, client.getFraming());
+        ChatPacket presence = received.poll(2, TimeUnit.SECONDS);
+        assertNotNull(presence);
+        assertEquals(MessageType.PRESENCE_UPDATE, presence.getType());
+    }
+
+    @Test
+    public void testJsonServerIsNotAskedAgain() throws Exception {
+        BlockingQueue<String> firstLines = new LinkedBlockingQueue<>();
+        Thread serverThread = new Thread(() -> {
+            for (int i = 0; i < 2; i++) {
+                try (Socket socket = server.accept()) {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    String line = reader.readLine();
+                    firstLines.add(line);
+                    if (ChatPacket.fromJson(line).getType() == MessageType.PROTOCOL_NEGOTIATE) {
+                        JSONObject reply = new JSONObject().put("framing", "json");
+                        socket.getOutputStream().write((new ChatPacket(MessageType.PROTOCOL_NEGOTIATE, reply)
+                                .toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+                        reader.readLine();
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        serverThread.start();
+
+        client.connect("localhost", server.getLocalPort(), 2000);
+        assertEquals(WebSocketClient.Framing.JSON, client.getFraming());
+        client.disconnect();
+
+        long started = System.nanoTime();
+        client.connect("localhost", server.getLocalPort(), 2000);
+        client.send(new ChatPacket(MessageType.PING)).get(2, TimeUnit.SECONDS);
+        assertEquals(MessageType.PROTOCOL_NEGOTIATE, ChatPacket.fromJson(firstLines.poll(2, TimeUnit.SECONDS)).getType());
+        assertEquals("Reconnect goes straight to JSON",
+                MessageType.PING, ChatPacket.fromJson(firstLines.poll(2, TimeUnit.SECONDS)).getType());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testFuturesCompleteOnceWritten() throws Exception {
+        client.setPreferredFraming(WebSocketClient.Framing.JSON);
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        Thread serverThread = new Thread(() -> {
+            try (Socket socket = server.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.start();
+        client.connect("localhost", server.getLocalPort(), 2000);
+
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[20];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = client.send(new ChatPacket(MessageType.TYPING_INDICATOR,
+                    new JSONObject().put("seq", i)));
+        }
+        CompletableFuture.allOf(futures).get(2, TimeUnit.SECONDS);
+        for (int i = 0; i < futures.length; i++) {
+            String line = lines.poll(2, TimeUnit.SECONDS);
+            assertNotNull(line);
+            assertEquals(i, ChatPacket.fromJson(line).getData().getInt("seq"));
+        }
+    }
+
+    @Test
+    public void testSendWhileDisconnectedFails() {
+        CompletableFuture<Void> future = client.send(new ChatPacket(MessageType.PING));
+        assertTrue(future.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testStalledPeerClosesConnection() throws Exception {
+        client.setPreferredFraming(WebSocketClient.Framing.JSON);
+        client.setWriteTimeout(300);
+        server.setReceiveBufferSize(4096);
+        Thread serverThread = new Thread(() -> {
+            try {
+                Socket socket = server.accept();
+                try {
+                    // keep it open but never read
+                    Thread.sleep(10_000);
+                } finally {
+                    socket.close();
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        client.connect("localhost", server.getLocalPort(), 2000);
+
+        String chunk = new String(new char[256 * 1024]).replace('\0', 'x');
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 200 && client.isConnected(); i++) {
+            last = client.send(new ChatPacket(MessageType.TEXT_MESSAGE, new JSONObject().put("content", chunk)));
+        }
+        try {
+            last.get(5, TimeUnit.SECONDS);
+            fail("Write to a stalled peer completed");
+        } catch (ExecutionException expected) {
+            // expected
+        }
+        assertFalse(client.isConnected());
+    }
+
+    @Test
+    public void testDisconnectReportsWhetherConnectionWasLost() throws Exception {
+        client.setPreferredFraming(WebSocketClient.Framing.JSON);
+        BlockingQueue<Boolean> events = new LinkedBlockingQueue<>();
+        client.setConnectionListener(new WebSocketClient.ConnectionListener() {
+            @Override
+            public void onConnected() {
+            }
+
+            @Override
+            public void onDisconnected(boolean lost) {
+                events.add(lost);
+            }
+        });
+
+        // server hangs up
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.accept().close();
+                server.accept();
+            } catch (Exception ignored) {
+            }
+        });
+        serverThread.start();
+        client.connect("localhost", server.getLocalPort(), 2000);
+        assertEquals(Boolean.TRUE, events.poll(2, TimeUnit.SECONDS));
+
+        // client closes on purpose, reported once
+        client.connect("localhost", server.getLocalPort(), 2000);
+        client.disconnect();
+        client.disconnect();
+        assertEquals(Boolean.FALSE, events.poll(2, TimeUnit.SECONDS));
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
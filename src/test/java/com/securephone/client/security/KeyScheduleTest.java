@@ -0,0 +1,78 @@
+package com.securephone.client.security;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the HKDF key schedule.
+ */
+public class KeyScheduleTest {
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static KeySchedule schedule(boolean initiator, long packets, long timeMs, long[] clock) {
+        return new KeySchedule(new byte[32], "call".getBytes(StandardCharsets.UTF_8), initiator,
+                packets, timeMs, () -> clock[0]);
+    }
+
+    @Test
+    public void testHkdfMatchesRfc5869() {
+        // RFC 5869, test case 1
+        byte[] prk = KeyExchange.hkdfExtract(hex("000102030405060708090a0b0c"), hex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"));
+        assertArrayEquals(hex("077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5"), prk);
+        assertArrayEquals(hex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865"),
+                KeyExchange.hkdfExpand(prk, hex("f0f1f2f3f4f5f6f7f8f9"), 42));
+    }
+
+    @Test
+    public void testDirectionsMirrorEachOther() {
+        long[] clock = {0};
+        KeySchedule caller = schedule(true, 0, 0, clock);
+        KeySchedule callee = schedule(false, 0, 0, clock);
+
+        SecretKey callerSend = caller.nextSendKey(1);
+        assertArrayEquals(callerSend.getEncoded(), callee.receiveKey(1, 0).getEncoded());
+        assertArrayEquals(callee.nextSendKey(1).getEncoded(), caller.receiveKey(1, 0).getEncoded());
+        assertFalse(Arrays.equals(callerSend.getEncoded(), caller.receiveKey(1, 0).getEncoded()));
+        assertFalse(Arrays.equals(callerSend.getEncoded(), caller.nextSendKey(2).getEncoded()));
+        assertNull(callee.receiveKey(1, -1));
+    }
+
+    @Test
+    public void testRotatesOnTimeBudgetAndWipesOldKeys() {
+        long[] clock = {0};
+        KeySchedule caller = schedule(true, 0, 1000, clock);
+        KeySchedule callee = schedule(false, 0, 1000, clock);
+
+        SecretKey first = caller.nextSendKey(1);
+        assertSame(first, caller.nextSendKey(1));
+        clock[0] += 1_000_000_000L;
+        SecretKey second = caller.nextSendKey(1);
+        assertEquals(1, caller.getSendEpoch(1));
+        assertTrue(first.isDestroyed());
+        assertArrayEquals(second.getEncoded(), callee.receiveKey(1, 1).getEncoded());
+
+        callee.advanceReceive(1);
+        assertArrayEquals(second.getEncoded(), callee.receiveKey(1, 0).getEncoded());
+        assertNotNull(callee.receiveKey(1, -1));
+
+        caller.destroy();
+        assertTrue(second.isDestroyed());
+        try {
+            caller.nextSendKey(1);
+            fail("Expected a destroyed schedule");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
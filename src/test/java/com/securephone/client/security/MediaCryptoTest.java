@@ -0,0 +1,156 @@
+package com.securephone.client.security;
+
+import com.securephone.shared.protocol.AudioPacket;
+import com.securephone.shared.protocol.AudioPacketView;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for in-place media packet encryption.
+ */
+public class MediaCryptoTest {
+
+    private static final byte[] VOICE = "opus frame payload".getBytes(StandardCharsets.UTF_8);
+
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        key = ClientCrypto.generateRandomKey();
+    }
+
+    private static ByteBuffer packet(boolean direct, int seq) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(256) : ByteBuffer.allocate(256);
+        AudioPacket.encode(buffer, 7, seq, 1234L, VOICE, 0, VOICE.length);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] payload(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.limit() - AudioPacket.HEADER_SIZE];
+        ByteBuffer view = packet.duplicate();
+        view.position(AudioPacket.HEADER_SIZE);
+        view.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSealAndOpenInPlace() throws Exception {
+        MediaCrypto crypto = new MediaCrypto(key, MediaCrypto.STREAM_AUDIO);
+        for (boolean direct : new boolean[] {false, true}) {
+            int seq = direct ? 43 : 42;
+            ByteBuffer packet = packet(direct, seq);
+            int length = crypto.seal(packet, AudioPacket.HEADER_SIZE, 7, seq);
+            assertEquals(AudioPacket.HEADER_SIZE + VOICE.length + MediaCrypto.TAG_BYTES, length);
+            assertEquals(length, packet.limit());
+            assertFalse(new String(payload(packet), StandardCharsets.ISO_8859_1).contains("opus"));
+
+            assertTrue(crypto.open(packet, AudioPacket.HEADER_SIZE, 7, seq));
+            AudioPacketView view = new AudioPacketView().wrap(packet);
+            assertEquals(seq, view.getSequenceNumber());
+            byte[] data = new byte[VOICE.length];
+            assertEquals(VOICE.length, view.copyData(data, 0));
+            assertArrayEquals(VOICE, data);
+        }
+    }
+
+    @Test
+    public void testTamperingIsRejected() throws Exception {
+        MediaCrypto crypto = new MediaCrypto(key, MediaCrypto.STREAM_AUDIO);
+
+        ByteBuffer header = packet(false, 1);
+        crypto.seal(header, AudioPacket.HEADER_SIZE, 7, 1);
+        header.putLong(8, 9999L);
+        assertFalse(crypto.open(header, AudioPacket.HEADER_SIZE, 7, 1));
+
+        ByteBuffer body = packet(false, 2);
+        crypto.seal(body, AudioPacket.HEADER_SIZE, 7, 2);
+        body.put(AudioPacket.HEADER_SIZE, (byte) (body.get(AudioPacket.HEADER_SIZE) ^ 1));
+        assertFalse(crypto.open(body, AudioPacket.HEADER_SIZE, 7, 2));
+
+        ByteBuffer truncated = packet(false, 3);
+        truncated.limit(AudioPacket.HEADER_SIZE + 4);
+        assertFalse(crypto.open(truncated, AudioPacket.HEADER_SIZE, 7, 3));
+        assertEquals(3, crypto.getRejectedPackets());
+    }
+
+    @Test
+    public void testNonceBindsSenderCounterAndStream() throws Exception {
+        MediaCrypto audio = new MediaCrypto(key, MediaCrypto.STREAM_AUDIO);
+        MediaCrypto video = new MediaCrypto(key, MediaCrypto.STREAM_VIDEO);
+
+        ByteBuffer packet = packet(false, 5);
+        audio.seal(packet, AudioPacket.HEADER_SIZE, 7, 5);
+        int limit = packet.limit();
+        assertFalse(audio.open(packet, AudioPacket.HEADER_SIZE, 8, 5));
+        assertFalse(audio.open(packet, AudioPacket.HEADER_SIZE, 7, 6));
+        assertFalse(video.open(packet, AudioPacket.HEADER_SIZE, 7, 5));
+        // failed opens leave the packet untouched
+        assertEquals(limit, packet.limit());
+        assertTrue(audio.open(packet, AudioPacket.HEADER_SIZE, 7, 5));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testCounterReuseIsRefused() throws Exception {
+        MediaCrypto crypto = new MediaCrypto(key, MediaCrypto.STREAM_AUDIO);
+        crypto.seal(packet(false, 1), AudioPacket.HEADER_SIZE, 7, 1);
+        crypto.seal(packet(false, 1), AudioPacket.HEADER_SIZE, 7, 1);
+    }
+
+    @Test
+    public void testPeersAgreeThroughKeyExchange() throws Exception {
+        KeyPair caller = KeyExchange.generateKeyPair();
+        KeyPair callee = KeyExchange.generateKeyPair();
+        byte[] session = "call-1".getBytes(StandardCharsets.UTF_8);
+        KeySchedule callerKeys = new KeySchedule(
+                KeyExchange.deriveSharedSecret(caller.getPrivate(), callee.getPublic()), session, true);
+        KeySchedule calleeKeys = new KeySchedule(
+                KeyExchange.deriveSharedSecret(callee.getPrivate(), caller.getPublic()), session, false);
+        MediaCrypto sender = new MediaCrypto(callerKeys, MediaCrypto.STREAM_AUDIO);
+        MediaCrypto receiver = new MediaCrypto(calleeKeys, MediaCrypto.STREAM_AUDIO);
+
+        ByteBuffer packet = packet(true, 9);
+        sender.seal(packet, AudioPacket.HEADER_SIZE, 7, 9);
+        assertTrue(receiver.open(packet, AudioPacket.HEADER_SIZE, 7, 9));
+        assertArrayEquals(VOICE, payload(packet));
+
+        // directional keys: a packet cannot be reflected back to its sender
+        ByteBuffer reflected = packet(false, 10);
+        sender.seal(reflected, AudioPacket.HEADER_SIZE, 7, 10);
+        assertFalse(new MediaCrypto(callerKeys, MediaCrypto.STREAM_AUDIO).open(reflected, AudioPacket.HEADER_SIZE, 7, 10));
+    }
+
+    @Test
+    public void testReceiverFollowsSenderRotation() throws Exception {
+        byte[] secret = new byte[32];
+        byte[] session = "call-2".getBytes(StandardCharsets.UTF_8);
+        KeySchedule senderKeys = new KeySchedule(secret, session, true, 2, 0);
+        KeySchedule receiverKeys = new KeySchedule(secret, session, false, 2, 0);
+        MediaCrypto sender = new MediaCrypto(senderKeys, MediaCrypto.STREAM_AUDIO);
+        MediaCrypto receiver = new MediaCrypto(receiverKeys, MediaCrypto.STREAM_AUDIO);
+
+        ByteBuffer[] packets = new ByteBuffer[5];
+        for (int seq = 0; seq < packets.length; seq++) {
+            packets[seq] = packet(true, seq);
+            sender.seal(packets[seq], AudioPacket.HEADER_SIZE, 7, seq);
+        }
+        assertEquals(2, senderKeys.getSendEpoch(MediaCrypto.STREAM_AUDIO));
+
+        assertTrue(receiver.open(packets[0], AudioPacket.HEADER_SIZE, 7, 0));
+        assertTrue(receiver.open(packets[2], AudioPacket.HEADER_SIZE, 7, 2));
+        assertEquals(1, receiverKeys.getReceiveEpoch(MediaCrypto.STREAM_AUDIO));
+        // reordered packet from the previous epoch still opens
+        assertTrue(receiver.open(packets[1], AudioPacket.HEADER_SIZE, 7, 1));
+        assertTrue(receiver.open(packets[4], AudioPacket.HEADER_SIZE, 7, 4));
+        assertTrue(receiver.open(packets[3], AudioPacket.HEADER_SIZE, 7, 3));
+        assertEquals(0, receiver.getRejectedPackets());
+    }
+}
@@ -0,0 +1,145 @@
+package com.securephone.client.security;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for chunked stream encryption.
+ */
+public class StreamCryptoTest {
+
+    private static final int CHUNK = 64;
+    private static final byte[] AAD = "file-42".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StreamCrypto crypto;
+
+    @Before
+    public void setUp() throws Exception {
+        crypto = new StreamCrypto(ClientCrypto.generateRandomKey());
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private byte[] seal(byte[] plaintext) throws Exception {
+        StreamCrypto.Encryptor encryptor = crypto.newEncryptor(CHUNK, AAD);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encryptor.getHeader());
+        encryptor.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private byte[] open(byte[] sealed, byte[] aad) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        crypto.decrypt(new ByteArrayInputStream(sealed), out, aad);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTripAtChunkBoundaries() throws Exception {
+        for (int length : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 3 * CHUNK + 7}) {
+            byte[] plaintext = data(length);
+            byte[] sealed = seal(plaintext);
+            assertEquals(StreamCrypto.ciphertextSize(length, CHUNK), sealed.length);
+            assertEquals(length, StreamCrypto.plaintextSize(sealed.length, CHUNK));
+            assertArrayEquals(plaintext, open(sealed, AAD));
+        }
+        assertEquals(-1, StreamCrypto.plaintextSize(StreamCrypto.HEADER_SIZE + CHUNK + StreamCrypto.TAG_BYTES + 3, CHUNK));
+    }
+
+    @Test
+    public void testDefaultChunksThroughStreams() throws Exception {
+        byte[] plaintext = data(3 * StreamCrypto.DEFAULT_CHUNK_SIZE + 100);
+        ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+        long written = crypto.encrypt(new ByteArrayInputStream(plaintext), sealed, AAD);
+        assertEquals(sealed.size(), written);
+        assertArrayEquals(plaintext, open(sealed.toByteArray(), AAD));
+    }
+
+    @Test
+    public void testTruncationReorderAndContextAreDetected() throws Exception {
+        byte[] sealed = seal(data(3 * CHUNK));
+        int sealedChunk = CHUNK + StreamCrypto.TAG_BYTES;
+
+        assertFails(Arrays.copyOf(sealed, StreamCrypto.HEADER_SIZE + 2 * sealedChunk), AAD);
+
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, StreamCrypto.HEADER_SIZE, swapped, StreamCrypto.HEADER_SIZE + sealedChunk, sealedChunk);
+        System.arraycopy(sealed, StreamCrypto.HEADER_SIZE + sealedChunk, swapped, StreamCrypto.HEADER_SIZE, sealedChunk);
+        assertFails(swapped, AAD);
+
+        assertFails(sealed, "file-43".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void assertFails(byte[] sealed, byte[] aad) throws Exception {
+        try {
+            open(sealed, aad);
+            fail("Expected an authentication failure");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void testRandomAccessReadsOneChunk() throws Exception {
+        byte[] plaintext = data(5 * CHUNK + 10);
+        byte[] sealed = seal(plaintext);
+        // corrupt chunk 1: the others must still open
+        sealed[StreamCrypto.HEADER_SIZE + CHUNK + StreamCrypto.TAG_BYTES + 3] ^= 1;
+        Path file = folder.newFile("attachment.enc").toPath();
+        Files.write(file, sealed);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            StreamCrypto.Decryptor decryptor = crypto.newDecryptor(StreamCrypto.readHeader(channel), AAD);
+            ByteBuffer out = ByteBuffer.allocate(CHUNK);
+            assertEquals(10, decryptor.readChunk(channel, 5, out));
+            assertArrayEquals(Arrays.copyOfRange(plaintext, 5 * CHUNK, 5 * CHUNK + 10), Arrays.copyOf(out.array(), 10));
+
+            out.clear();
+            assertEquals(CHUNK, decryptor.readChunk(channel, 2, out));
+            assertArrayEquals(Arrays.copyOfRange(plaintext, 2 * CHUNK, 3 * CHUNK), out.array());
+
+            out.clear();
+            try {
+                decryptor.readChunk(channel, 1, out);
+                fail("Expected the corrupted chunk to fail");
+            } catch (GeneralSecurityException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testResumedEncryptorReproducesChunks() throws Exception {
+        byte[] plaintext = data(2 * CHUNK + 5);
+        byte[] sealed = seal(plaintext);
+        byte[] header = Arrays.copyOf(sealed, StreamCrypto.HEADER_SIZE);
+
+        StreamCrypto.Encryptor resumed = crypto.resumeEncryptor(header, AAD);
+        ByteBuffer out = ByteBuffer.allocate(CHUNK + StreamCrypto.TAG_BYTES);
+        int length = resumed.sealChunk(2, true, ByteBuffer.wrap(plaintext, 2 * CHUNK, 5), out);
+        int offset = StreamCrypto.HEADER_SIZE + 2 * (CHUNK + StreamCrypto.TAG_BYTES);
+        assertArrayEquals(Arrays.copyOfRange(sealed, offset, offset + length), Arrays.copyOf(out.array(), length));
+    }
+}
@@ -0,0 +1,206 @@
+package com.securephone.client.storage;
+
+import com.securephone.client.models.ChatMessage;
+import com.securephone.client.security.ClientCrypto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the encrypted on-disk message log.
+ */
+public class MessageLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private SecretKey key;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.getRoot().toPath();
+        key = ClientCrypto.generateRandomKey();
+        log = new MessageLog(root, key, 4096, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+    }
+
+    private void appendMessages(String conversation, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            log.append(conversation, new ChatMessage(i % 2 == 0 ? "alice" : "bob", "message " + i, 1000 + i * 10, null));
+        }
+    }
+
+    @Test
+    public void testTailAndPagesAcrossSegments() throws Exception {
+        appendMessages("alice", 300);
+        assertEquals(300, log.size("alice"));
+        File[] segments = root.resolve(MessageLog.directoryName("alice")).toFile().listFiles((d, n) -> n.endsWith(".seg"));
+        assertTrue(segments.length > 1);
+
+        List<ChatMessage> tail = log.readBefore("alice", -1, 50);
+        assertEquals(50, tail.size());
+        assertEquals(250, tail.get(0).getSequence());
+        assertEquals("message 299", tail.get(49).getContent());
+
+        List<ChatMessage> page = log.readBefore("alice", tail.get(0).getSequence(), 50);
+        assertEquals(200, page.get(0).getSequence());
+        assertEquals(249, page.get(49).getSequence());
+        assertEquals("bob", page.get(49).getSender());
+
+        assertEquals(5, log.readBefore("alice", 5, 50).size());
+        assertTrue(log.readBefore("bob", -1, 50).isEmpty());
+    }
+
+    @Test
+    public void testReopenRecoversTailAndCutsTornRecord() throws Exception {
+        appendMessages("alice", 100);
+        log.close();
+
+        // simulate a write cut short by a crash
+        File[] segments = root.resolve(MessageLog.directoryName("alice")).toFile().listFiles((d, n) -> n.endsWith(".seg"));
+        java.util.Arrays.sort(segments);
+        File last = segments[segments.length - 1];
+        try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+            file.seek(file.length());
+            file.writeInt(500);
+            file.writeInt(0);
+        }
+
+        log = new MessageLog(root, key, 4096, 0);
+        assertEquals(100, log.size("alice"));
+        log.append("alice", new ChatMessage("alice", "after restart", 5000, null));
+        List<ChatMessage> tail = log.readBefore("alice", -1, 2);
+        assertEquals("message 99", tail.get(0).getContent());
+        assertEquals("after restart", tail.get(1).getContent());
+        assertEquals(100, tail.get(1).getSequence());
+    }
+
+    // offset of a record in the first segment, walking the record headers
+    private long recordOffset(RandomAccessFile file, long seq) throws Exception {
+        long offset = 0;
+        for (long i = 0; i < seq; i++) {
+            file.seek(offset);
+            offset += 16 + file.readInt();
+        }
+        return offset;
+    }
+
+    private RandomAccessFile firstSegment() throws Exception {
+        Path dir = root.resolve(MessageLog.directoryName("alice"));
+        return new RandomAccessFile(dir.resolve(String.format("%020d.seg", 0)).toFile(), "rw");
+    }
+
+    @Test
+    public void testUnreadableRecordDoesNotShortenThePage() throws Exception {
+        appendMessages("alice", 100);
+        log.close();
+        try (RandomAccessFile file = firstSegment()) {
+            long offset = recordOffset(file, 15);
+            file.seek(offset + 20);
+            int b = file.read();
+            file.seek(offset + 20);
+            file.write(b ^ 0xFF);
+        }
+
+        log = new MessageLog(root, key, 4096, 0);
+        List<ChatMessage> page = log.readBefore("alice", 20, 10);
+        assertEquals("A full page while older history exists", 10, page.size());
+        assertEquals(9, page.get(0).getSequence());
+        assertEquals(19, page.get(9).getSequence());
+    }
+
+    @Test
+    public void testCorruptLengthInSealedSegmentIsSkipped() throws Exception {
+        appendMessages("alice", 300);
+        log.close();
+        try (RandomAccessFile file = firstSegment()) {
+            file.seek(recordOffset(file, 5));
+            file.writeInt(Integer.MAX_VALUE);
+        }
+
+        log = new MessageLog(root, key, 4096, 0);
+        assertEquals(300, log.size("alice"));
+        List<ChatMessage> all = log.readBefore("alice", -1, 300);
+        assertEquals(0, all.get(0).getSequence());
+        assertEquals(4, all.get(4).getSequence());
+        assertTrue(all.get(5).getSequence() > 5);
+        assertEquals(299, all.get(all.size() - 1).getSequence());
+    }
+
+    @Test
+    public void testFindSequenceUsesTimestamps() throws Exception {
+        appendMessages("alice", 200);
+        assertEquals(0, log.findSequence("alice", 0));
+        assertEquals(150, log.findSequence("alice", 1000 + 150 * 10));
+        assertEquals(151, log.findSequence("alice", 1000 + 150 * 10 + 1));
+        assertEquals(200, log.findSequence("alice", 1_000_000));
+    }
+
+    @Test
+    public void testReadAfterPagesForward() throws Exception {
+        appendMessages("alice", 150);
+        List<ChatMessage> page = log.readAfter("alice", 99, 20);
+        assertEquals(20, page.size());
+        assertEquals(100, page.get(0).getSequence());
+        assertEquals(119, page.get(19).getSequence());
+        assertEquals(30, log.readAfter("alice", 119, 50).size());
+        assertTrue(log.readAfter("alice", 149, 50).isEmpty());
+        assertEquals(0, log.readAfter("alice", -1, 5).get(0).getSequence());
+    }
+
+    @Test
+    public void testFindSequenceAcrossIntervals() throws Exception {
+        appendMessages("alice", 3 * MessageLog.INDEX_INTERVAL + 5);
+        for (long seq = 0; seq < 3 * MessageLog.INDEX_INTERVAL + 5; seq += 7) {
+            assertEquals(seq, log.findSequence("alice", 1000 + seq * 10));
+            assertEquals(seq + 1, log.findSequence("alice", 1000 + seq * 10 + 1));
+        }
+    }
+
+    @Test
+    public void testContentIsEncryptedAndBoundToItsPlace() throws Exception {
+        log.append("alice", new ChatMessage("alice", "secret rendezvous", 1, null));
+        Path dir = root.resolve(MessageLog.directoryName("alice"));
+        byte[] raw = Files.readAllBytes(dir.resolve(String.format("%020d.seg", 0)));
+        assertFalse(new String(raw, "ISO-8859-1").contains("rendezvous"));
+        log.close();
+
+        // the same bytes under another conversation do not decrypt
+        Path other = root.resolve(MessageLog.directoryName("mallory"));
+        Files.createDirectories(other);
+        Files.copy(dir.resolve(String.format("%020d.seg", 0)), other.resolve(String.format("%020d.seg", 0)));
+        log = new MessageLog(root, key, 4096, 0);
+        assertEquals(1, log.size("mallory"));
+        assertTrue(log.readBefore("mallory", -1, 10).isEmpty());
+    }
+
+    @Test
+    public void testKeyDerivationRejectsAnotherPassword() throws Exception {
+        Path user = folder.newFolder("user").toPath();
+        SecretKey first = MessageLog.deriveKey(user, "correct horse");
+        assertArrayEquals(first.getEncoded(), MessageLog.deriveKey(user, "correct horse").getEncoded());
+        try {
+            MessageLog.deriveKey(user, "battery staple");
+            fail("Expected a key mismatch");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+}
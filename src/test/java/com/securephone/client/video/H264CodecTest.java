@@ -0,0 +1,195 @@
+package com.securephone.client.video;
+
+import com.securephone.shared.protocol.VideoPacket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the inter-frame H264Codec.
+ */
+public class H264CodecTest {
+    private H264Codec encoder;
+    private H264Codec decoder;
+
+    @Before
+    public void setUp() {
+        encoder = new H264Codec(2000000, 15, 10);
+        decoder = new H264Codec();
+    }
+
+    @Test
+    public void testRoundTripKeyframe() throws Exception {
+        BufferedImage frame = frame(0);
+        byte[] encoded = encoder.encode(frame);
+        assertEquals(VideoPacket.FRAME_TYPE_KEY, encoder.getLastFrameType());
+
+        BufferedImage decoded = decoder.decode(encoded);
+        assertNotNull(decoded);
+        assertEquals(frame.getWidth(), decoded.getWidth());
+        assertEquals(frame.getHeight(), decoded.getHeight());
+        assertTrue("Decoded frame should be close to the source", meanError(frame, decoded) < 12);
+    }
+
+    @Test
+    public void testKeyframeCadence() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            encoder.encode(frame(i));
+            int expected = i % 10 == 0 ? VideoPacket.FRAME_TYPE_KEY : VideoPacket.FRAME_TYPE_DELTA;
+            assertEquals("Frame " + i, expected, encoder.getLastFrameType());
+        }
+    }
+
+    @Test
+    public void testDeltaFramesAreSmaller() throws Exception {
+        H264Codec constrained = new H264Codec(150000, 15, 60);
+        byte[] key = constrained.encode(frame(0));
+        byte[] delta = constrained.encode(frame(1));
+        assertEquals(VideoPacket.FRAME_TYPE_DELTA, H264Codec.peekFrameType(delta, 0, delta.length));
+        assertTrue("Delta " + delta.length + " should be smaller than key " + key.length,
+            delta.length * 2 < key.length);
+        byte[] still = constrained.encode(frame(1));
+        assertTrue("Unchanged frame should cost less than motion, was " + still.length, still.length < delta.length);
+    }
+
+    @Test
+    public void testDeltaTracksMotion() throws Exception {
+        BufferedImage last = null;
+        BufferedImage decoded = null;
+        for (int i = 0; i < 8; i++) {
+            last = frame(i * 7);
+            decoded = decoder.decode(encoder.encode(last));
+        }
+        assertTrue("Decoded delta should follow the source", meanError(last, decoded) < 12);
+    }
+
+    @Test
+    public void testDeltaWithoutKeyframeIsDropped() throws Exception {
+        encoder.encode(frame(0));
+        byte[] delta = encoder.encode(frame(1));
+        assertNull(decoder.decode(delta));
+    }
+
+    @Test
+    public void testRequestKeyframe() throws Exception {
+        encoder.encode(frame(0));
+        encoder.encode(frame(1));
+        encoder.requestKeyframe();
+        encoder.encode(frame(2));
+        assertEquals(VideoPacket.FRAME_TYPE_KEY, encoder.getLastFrameType());
+    }
+
+    @Test
+    public void testRateControlApproachesBitrate() throws Exception {
+        H264Codec limited = new H264Codec(200000, 15, 30);
+        long bytes = 0;
+        for (int i = 0; i < 90; i++) {
+            BufferedImage image = frame(i * 5);
+            noise(image, i);
+            int length = limited.encode(image, new byte[VideoPacket.MAX_VIDEO_SIZE]);
+            if (i >= 30) {
+                bytes += length;
+            }
+        }
+        long bitsPerSecond = bytes * 8 * 15 / 60;
+        assertTrue("Measured " + bitsPerSecond + " bps", bitsPerSecond < 200000 * 1.5);
+    }
+
+    @Test
+    public void testNullInput() throws Exception {
+        assertArrayEquals(new byte[0], encoder.encode(null));
+        assertNull(decoder.decode(null));
+    }
+
+    @Test
+    public void testOversizedFrameIsRejectedBeforeAllocation() throws Exception {
+        byte[] encoded = encoder.encode(frame(0));
+        // rewrite the header to claim a 40000x40000 keyframe
+        encoded[2] = (byte) (40000 >> 8);
+        encoded[3] = (byte) 40000;
+        encoded[4] = (byte) (40000 >> 8);
+        encoded[5] = (byte) 40000;
+        try {
+            decoder.decode(encoded, 0, encoded.length);
+            fail("Oversized frame should be rejected");
+        } catch (java.io.IOException expected) {
+        }
+        // the decoder is still usable
+        encoder.requestKeyframe();
+        assertNotNull(decoder.decode(encoder.encode(frame(1))));
+    }
+
+    @Test
+    public void testDeflateBombIsRejected() throws Exception {
+        byte[] header = encoder.encode(frame(0));
+        // a 160x120 keyframe whose body inflates to 64 MB
+        Deflater deflater = new Deflater(9);
+        byte[] zeros = new byte[1 << 20];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        for (int i = 0; i < 64; i++) {
+            deflater.setInput(zeros);
+            while (!deflater.needsInput()) {
+                body.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            body.write(buffer, 0, deflater.deflate(buffer));
+        }
+        // keep the 7-byte frame header, replace the body
+        byte[] bomb = Arrays.copyOf(header, 7 + body.size());
+        System.arraycopy(body.toByteArray(), 0, bomb, 7, body.size());
+        assertTrue(bomb.length < 1024 * 1024);
+        try {
+            decoder.decode(bomb, 0, bomb.length);
+            fail("Deflate bomb should be rejected");
+        } catch (java.io.IOException expected) {
+            assertTrue(expected.getMessage().contains("decompressee"));
+        }
+        encoder.requestKeyframe();
+        assertNotNull(decoder.decode(encoder.encode(frame(1))));
+    }
+
+    private static BufferedImage frame(int tick) {
+        BufferedImage image = new BufferedImage(160, 120, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(20, 50, 90));
+        g.fillRect(0, 0, 160, 120);
+        g.setColor(Color.ORANGE);
+        g.fillOval(10 + tick % 100, 40, 40, 40);
+        g.dispose();
+        return image;
+    }
+
+    private static void noise(BufferedImage image, int seed) {
+        java.util.Random random = new java.util.Random(seed);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, image.getRGB(x, y) ^ (random.nextInt(64) * 0x010101));
+            }
+        }
+    }
+
+    private static double meanError(BufferedImage a, BufferedImage b) {
+        long sum = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs(((p >> shift) & 0xFF) - ((q >> shift) & 0xFF));
+                }
+            }
+        }
+        return sum / (3.0 * a.getWidth() * a.getHeight());
+    }
+}
@@ -0,0 +1,63 @@
+package com.securephone.client.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the latest-wins VideoBuffer hand-off.
+ */
+public class VideoBufferTest {
+
+    @Test
+    public void testPushLatestEvictsOldest() {
+        VideoBuffer<String> buffer = new VideoBuffer<>(2);
+        assertNull(buffer.pushLatest("a"));
+        assertNull(buffer.pushLatest("b"));
+        assertEquals("a", buffer.pushLatest("c"));
+
+        assertEquals(1, buffer.getDropped());
+        assertEquals("b", buffer.poll());
+        assertEquals("c", buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testPushRejectsWhenFull() {
+        VideoBuffer<String> buffer = new VideoBuffer<>(1);
+        assertTrue(buffer.push("a"));
+        assertFalse(buffer.push("b"));
+        assertEquals(1, buffer.size());
+        assertEquals(1, buffer.getDropped());
+    }
+
+    @Test
+    public void testPollWaitsForProducer() throws Exception {
+        VideoBuffer<String> buffer = new VideoBuffer<>(1);
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            buffer.pushLatest("frame");
+        });
+        producer.start();
+        assertEquals("frame", buffer.poll(2000));
+        producer.join();
+    }
+
+    @Test
+    public void testPollTimesOut() throws Exception {
+        VideoBuffer<String> buffer = new VideoBuffer<>(1);
+        assertNull(buffer.poll(20));
+    }
+
+    @Test
+    public void testWaitTimeIsRecorded() throws Exception {
+        VideoBuffer<String> buffer = new VideoBuffer<>(1);
+        buffer.push("a");
+        Thread.sleep(20);
+        buffer.poll();
+        assertTrue(buffer.getLastWaitNanos() >= 15_000_000L);
+    }
+}
@@ -0,0 +1,47 @@
+package com.securephone.client.video;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for VideoCapture frame recycling.
+ */
+public class VideoCaptureTest {
+    private final VideoCapture capture = new VideoCapture();
+
+    @After
+    public void tearDown() {
+        capture.stop();
+    }
+
+    @Test
+    public void testFramesAreRecycled() throws Exception {
+        Set<BufferedImage> seen = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        capture.start(64, 48, 100, image -> {
+            seen.add(image);
+            capture.release(image);
+        });
+        Thread.sleep(300);
+        capture.stop();
+
+        assertTrue("Expected frames, got " + capture.getCapturedFrames(), capture.getCapturedFrames() > 5);
+        assertTrue("Frames should come from the ring, saw " + seen.size(), seen.size() <= 3);
+    }
+
+    @Test
+    public void testUnreleasedFramesAreSkipped() throws Exception {
+        capture.start(64, 48, 100, image -> { });
+        Thread.sleep(200);
+        capture.stop();
+
+        assertEquals(3, capture.getCapturedFrames());
+        assertTrue(capture.getSkippedFrames() > 0);
+    }
+}
@@ -0,0 +1,112 @@
+package com.securephone.client.video;
+
+import com.securephone.shared.protocol.VideoPacket;
+import com.securephone.shared.protocol.VideoPacketView;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for VideoFrameAssembler fragment reassembly.
+ */
+public class VideoFrameAssemblerTest {
+    private static final int PAYLOAD = 100;
+
+    private VideoFrameAssembler assembler;
+    private VideoPacketView view;
+
+    @Before
+    public void setUp() {
+        assembler = new VideoFrameAssembler(4096, 1000);
+        view = new VideoPacketView();
+    }
+
+    @Test
+    public void testReassemblesOutOfOrder() {
+        byte[] frame = frameData(250, 1);
+        assertNull(accept(frame, 7, 2));
+        assertNull(accept(frame, 7, 0));
+        VideoFrameAssembler.Frame result = accept(frame, 7, 1);
+
+        assertNotNull(result);
+        assertEquals(7, result.getFrameNumber());
+        assertEquals(250, result.getLength());
+        assertEquals(VideoPacket.FRAME_TYPE_KEY, result.getFrameType());
+        for (int i = 0; i < frame.length; i++) {
+            assertEquals(frame[i], result.getData()[i]);
+        }
+    }
+
+    @Test
+    public void testDuplicateFragmentIgnored() {
+        byte[] frame = frameData(150, 2);
+        assertNull(accept(frame, 1, 0));
+        assertNull(accept(frame, 1, 0));
+        assertNotNull(accept(frame, 1, 1));
+        assertEquals(1, assembler.getCompletedFrames());
+    }
+
+    @Test
+    public void testNewerFrameDiscardsIncompleteOlder() {
+        byte[] frame = frameData(150, 3);
+        assertNull(accept(frame, 1, 0));
+        assertNull(accept(frame, 2, 0));
+        assertNotNull(accept(frame, 2, 1));
+
+        assertEquals(1, assembler.getDroppedFrames());
+        assertNull("Late fragment of a discarded frame", accept(frame, 1, 1));
+        assertEquals(1, assembler.getLateFragments());
+    }
+
+    @Test
+    public void testIncompleteFrameTimesOut() throws Exception {
+        assembler.setTimeoutMs(1);
+        byte[] frame = frameData(150, 4);
+        assertNull(accept(frame, 1, 0));
+        Thread.sleep(5);
+        assertNull(accept(frame, 2, 0));
+        assertEquals(1, assembler.getDroppedFrames());
+        assertEquals(1, assembler.getPendingFrames());
+    }
+
+    @Test
+    public void testUnfragmentedPacketCompletesImmediately() {
+        ByteBuffer buffer = ByteBuffer.allocate(VideoPacket.HEADER_SIZE + 3);
+        VideoPacket.encode(buffer, 5, 9, VideoPacket.FRAME_TYPE_DELTA, 0L, 640, 480, new byte[]{1, 2, 3}, 0, 3);
+        buffer.flip();
+        VideoFrameAssembler.Frame result = assembler.accept(view.wrap(buffer));
+        assertNotNull(result);
+        assertEquals(3, result.getLength());
+        assertEquals(VideoPacket.FRAME_TYPE_DELTA, result.getFrameType());
+    }
+
+    @Test
+    public void testOversizedFrameRejected() {
+        byte[] frame = frameData(8192, 5);
+        assertNull(accept(frame, 1, 0));
+        assertEquals(1, assembler.getInvalidFragments());
+        assertEquals(0, assembler.getPendingFrames());
+    }
+
+    private VideoFrameAssembler.Frame accept(byte[] frame, int frameNumber, int index) {
+        int count = (frame.length + PAYLOAD - 1) / PAYLOAD;
+        int offset = index * PAYLOAD;
+        int size = Math.min(PAYLOAD, frame.length - offset);
+        ByteBuffer buffer = ByteBuffer.allocate(VideoPacket.HEADER_SIZE + VideoPacket.FRAGMENT_HEADER_SIZE + size);
+        VideoPacket.encodeFragment(buffer, 5, frameNumber, VideoPacket.FRAME_TYPE_KEY, 1000L, 640, 480,
+            index, count, offset, frame.length, frame, offset, size);
+        buffer.flip();
+        return assembler.accept(view.wrap(buffer));
+    }
+
+    private static byte[] frameData(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
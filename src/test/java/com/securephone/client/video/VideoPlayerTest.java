@@ -0,0 +1,70 @@
+package com.securephone.client.video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for VideoPlayer frame coalescing.
+ */
+public class VideoPlayerTest {
+    private VideoPlayer player;
+
+    @Before
+    public void setUp() {
+        player = new VideoPlayer();
+        player.setSize(320, 240);
+    }
+
+    @Test
+    public void testUnpaintedFrameIsDropped() {
+        player.setFrame(frame());
+        player.setFrame(frame());
+        player.setFrame(frame());
+        assertEquals(2, player.getDroppedFrames());
+
+        paint();
+        assertEquals(1, player.getDisplayedFrames());
+    }
+
+    @Test
+    public void testRepaintWithoutNewFrameIsNotCounted() {
+        player.setFrame(frame());
+        paint();
+        paint();
+        assertEquals(1, player.getDisplayedFrames());
+        assertEquals(0, player.getDroppedFrames());
+    }
+
+    @Test
+    public void testPaintScalesIntoPanel() {
+        BufferedImage source = frame();
+        source.setRGB(80, 60, 0xFF0000);
+        player.setFrame(source);
+        BufferedImage canvas = paint();
+        // 160x120 doubled into 320x240
+        assertEquals(0xFF0000, canvas.getRGB(161, 121) & 0xFFFFFF);
+    }
+
+    private BufferedImage paint() {
+        BufferedImage canvas = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = canvas.createGraphics();
+        player.paint(g);
+        g.dispose();
+        return canvas;
+    }
+
+    private static BufferedImage frame() {
+        BufferedImage image = new BufferedImage(160, 120, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 120; y++) {
+            for (int x = 0; x < 160; x++) {
+                image.setRGB(x, y, x == 80 && y == 60 ? 0xFF0000 : 0);
+            }
+        }
+        return image;
+    }
+}
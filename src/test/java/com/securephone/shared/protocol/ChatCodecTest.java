@@ -0,0 +1,85 @@
+package com.securephone.shared.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the binary chat packet encoding.
+ */
+public class ChatCodecTest {
+
+    @Test
+    public void testRoundTripKeepsTypesAndValues() {
+        JSONObject data = new JSONObject();
+        data.put("sender_id", 42);
+        data.put("big", 1L << 40);
+        data.put("negative", -7);
+        data.put("ratio", 0.25);
+        data.put("typing", true);
+        data.put("content", "Salut, ça va ? 👋");
+        data.put("empty", JSONObject.NULL);
+        data.put("tags", new JSONArray().put("a").put(3).put(new JSONObject().put("k", "v")));
+
+        ChatPacket packet = new ChatPacket(MessageType.TEXT_MESSAGE, data);
+        packet.setTimestamp(1234567890123L);
+
+        ChatPacket decoded = ChatPacket.fromBytes(packet.toBytes());
+        assertEquals(MessageType.TEXT_MESSAGE, decoded.getType());
+        assertEquals(1234567890123L, decoded.getTimestamp());
+        assertTrue(data.similar(decoded.getData()));
+        assertEquals(42, decoded.getData().get("sender_id"));
+        assertEquals(1L << 40, decoded.getData().getLong("big"));
+    }
+
+    @Test
+    public void testSmallerThanJson() {
+        JSONObject data = new JSONObject();
+        data.put("user_id", 1234);
+        data.put("status", "online");
+        ChatPacket packet = new ChatPacket(MessageType.PRESENCE_UPDATE, data);
+
+        int jsonSize = packet.toJson().getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(packet.toBytes().length * 2 < jsonSize);
+    }
+
+    @Test
+    public void testCodecBufferIsReused() {
+        ChatCodec codec = new ChatCodec(16);
+        JSONObject data = new JSONObject().put("content", new String(new char[500]).replace('\0', 'x'));
+        int large = codec.encode(new ChatPacket(MessageType.TEXT_MESSAGE, data));
+        byte[] buffer = codec.getBuffer();
+        int small = codec.encode(new ChatPacket(MessageType.PING));
+
+        assertSame(buffer, codec.getBuffer());
+        assertTrue(small < large);
+        assertEquals(MessageType.PING, ChatCodec.decode(codec.getBuffer(), 0, small).getType());
+    }
+
+    @Test
+    public void testMalformedInputRejected() {
+        byte[] bytes = new ChatPacket(MessageType.TEXT_MESSAGE,
+                new JSONObject().put("content", "hello")).toBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            try {
+                ChatCodec.decode(bytes, 0, length);
+                fail("Truncated packet accepted at length " + length);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+
+        byte[] badType = bytes.clone();
+        badType[0] = (byte) 0xFF;
+        try {
+            ChatPacket.fromBytes(badType);
+            fail("Unknown type accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
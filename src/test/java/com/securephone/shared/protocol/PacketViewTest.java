@@ -0,0 +1,108 @@
+package com.securephone.shared.protocol;
+
+import org.junit.Test;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for in-place packet encoding and flyweight views.
+ */
+public class PacketViewTest {
+
+    @Test
+    public void testAudioRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(AudioPacket.HEADER_SIZE + 16);
+        byte[] payload = {1, 2, 3, 4, 5};
+        int written = AudioPacket.encode(buffer, 7, 42, 1000L, payload, 0, payload.length);
+        buffer.flip();
+
+        AudioPacketView view = new AudioPacketView().wrap(buffer);
+        assertEquals(AudioPacket.HEADER_SIZE + 5, written);
+        assertEquals(7, view.getUserId());
+        assertEquals(42, view.getSequenceNumber());
+        assertEquals(1000L, view.getTimestamp());
+        assertEquals(5, view.getDataLength());
+
+        byte[] copy = new byte[5];
+        view.copyData(copy, 0);
+        assertArrayEquals(payload, copy);
+    }
+
+    @Test
+    public void testAudioViewMatchesFromBytes() {
+        AudioPacket packet = new AudioPacket(3, new byte[]{9, 8, 7}, 3);
+        packet.setSequenceNumber(11);
+        byte[] bytes = packet.toBytes();
+
+        AudioPacketView view = new AudioPacketView().wrap(ByteBuffer.wrap(bytes));
+        AudioPacket parsed = AudioPacket.fromBytes(bytes);
+        assertEquals(parsed.getSequenceNumber(), view.getSequenceNumber());
+        assertEquals(parsed.getTimestamp(), view.getTimestamp());
+        assertEquals(AudioPacket.HEADER_SIZE, view.getDataOffset());
+    }
+
+    @Test
+    public void testVideoRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(VideoPacket.HEADER_SIZE + 16);
+        byte[] payload = {4, 5, 6};
+        VideoPacket.encode(buffer, 1, 99, 2, 5000L, 640, 480, payload, 0, payload.length);
+        buffer.flip();
+
+        VideoPacketView view = new VideoPacketView().wrap(buffer);
+        assertEquals(1, view.getUserId());
+        assertEquals(99, view.getFrameNumber());
+        assertEquals(2, view.getFrameType());
+        assertEquals(5000L, view.getTimestamp());
+        assertEquals(640, view.getWidth());
+        assertEquals(480, view.getHeight());
+
+        byte[] copy = new byte[3];
+        view.copyData(copy, 0);
+        assertArrayEquals(payload, copy);
+    }
+
+    @Test
+    public void testVideoFragmentRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(VideoPacket.HEADER_SIZE + VideoPacket.FRAGMENT_HEADER_SIZE + 4);
+        byte[] frame = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        VideoPacket.encodeFragment(buffer, 1, 12, VideoPacket.FRAME_TYPE_DELTA, 0L, 320, 240,
+            1, 3, 4, frame.length, frame, 4, 4);
+        buffer.flip();
+
+        VideoPacketView view = new VideoPacketView().wrap(buffer);
+        assertTrue(view.isFragment());
+        assertEquals(VideoPacket.FRAME_TYPE_DELTA, view.getFrameType());
+        assertEquals(1, view.getFragmentIndex());
+        assertEquals(3, view.getFragmentCount());
+        assertEquals(4, view.getFragmentOffset());
+        assertEquals(10, view.getFrameLength());
+
+        VideoPacket parsed = VideoPacket.fromBytes(buffer.array());
+        assertEquals(VideoPacket.FRAME_TYPE_DELTA, parsed.getFrameType());
+        assertEquals(3, parsed.getFragmentCount());
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, parsed.getVideoData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedPacketRejected() {
+        ByteBuffer buffer = ByteBuffer.allocate(AudioPacket.HEADER_SIZE + 8);
+        AudioPacket.encode(buffer, 1, 1, 0L, new byte[8], 0, 8);
+        buffer.flip();
+        buffer.limit(AudioPacket.HEADER_SIZE + 4);
+        new AudioPacketView().wrap(buffer);
+    }
+
+    @Test
+    public void testPoolReusesBuffers() {
+        PacketBufferPool pool = new PacketBufferPool(1, 32, false);
+        ByteBuffer first = pool.acquire();
+        first.putInt(5);
+        pool.release(first);
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(0, pool.getMisses());
+        pool.acquire();
+        assertEquals(1, pool.getMisses());
+    }
+}